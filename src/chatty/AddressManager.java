@@ -1,19 +1,32 @@
 
 package chatty;
 
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 /**
- * Gets an {@code InetSocketAddress} from resolving a host and a port, selecting
- * those first that may be more likely to connect based on previous error
- * reports (if more than one IP/port is available).
+ * Gets {@code InetSocketAddress} objects from resolving a host and a port,
+ * ordering those first that may be more likely to connect based on previous
+ * error reports (if more than one IP/port is available).
+ * 
+ * Resolved hosts are cached. Once a cached result is expired, the host is
+ * resolved again, but if that takes long or fails (e.g. because the network
+ * just came back), the expired result is used instead.
  * 
  * @author tduva
  */
@@ -30,66 +43,168 @@ public class AddressManager {
     private final Set<InetSocketAddress> errors = new HashSet<>();
     
     /**
-     * Gets an {@code InetSocketAddress} based on the given host (a single host)
-     * and the list of ports (one or several comma-seperated ports). It uses the
-     * first host/port that hasn't been added to the errors list via
-     * {@code addError()}, or start from the beginning again if all possible
-     * addresses are in the errors list.
+     * How long resolved hosts are used without resolving them again.
+     */
+    private static final long DNS_TTL = 10*60*1000;
+    
+    /**
+     * How long to wait for resolving a host again, before using the expired
+     * result.
+     */
+    private static final long DNS_REFRESH_WAIT = 1000;
+    
+    private static final Map<String, CachedLookup> dnsCache = new HashMap<>();
+    
+    /**
+     * Gets the {@code InetSocketAddress} objects for the given host (a single
+     * host) and the list of ports (one or several comma-seperated ports), in
+     * the order they should be tried. Addresses that haven't been added to the
+     * errors list via {@code addError()} come first. Otherwise all ports of an
+     * IP come before the next IP, and the IPv6 and IPv4 addresses alternate
+     * (keeping the order of each otherwise). If all
+     * addresses are in the errors list, they are removed from it, so they're
+     * all tried from the start again.
      * 
      * @param host The host to connect to.
      * @param portsString The port(s) to connect to.
-     * @return The {@code InetSocketAddress} or {@code null} if either the host
-     * or ports are invalid
+     * @return The list of addresses, empty if either the host or ports are
+     * invalid
      * @throws java.net.UnknownHostException If the host could not be resolved
      */
-    public InetSocketAddress getAddress(String host, String portsString) throws UnknownHostException {
+    public List<InetSocketAddress> getAddresses(String host, String portsString) throws UnknownHostException {
+        List<InetSocketAddress> result = new ArrayList<>();
         List<Integer> ports = parsePorts(portsString);
         if (ports.isEmpty()) {
             LOGGER.warning("No port to connect to found: "+portsString);
-            return null;
+            return result;
         }
         if (host == null || host.isEmpty()) {
             LOGGER.warning("No host to connect to provided.");
-            return null;
+            return result;
         }
-        InetAddress[] ips = InetAddress.getAllByName(host);
+        List<InetAddress> ips = interleave(resolve(host));
 
         // For testing
-        //ips = InetAddress.getAllByName("199.9.250.239");
-        // Try to find a socket address that isn't in the error list
-        Set<InetSocketAddress> tried = new HashSet<>();
-        for (InetAddress ip : ips) {
-            for (int port : ports) {
-                InetSocketAddress address = new InetSocketAddress(ip, port);
-                if (!errors.contains(address)) {
-                    return address;
+        //ips = Arrays.asList(InetAddress.getAllByName("199.9.250.239"));
+        List<InetSocketAddress> failed = new ArrayList<>();
+        synchronized(errors) {
+            for (InetAddress ip : ips) {
+                for (int port : ports) {
+                    InetSocketAddress address = new InetSocketAddress(ip, port);
+                    if (errors.contains(address)) {
+                        failed.add(address);
+                    } else {
+                        result.add(address);
+                    }
                 }
-                tried.add(address);
+            }
+            if (result.isEmpty()) {
+                LOGGER.info("Tried all available sockets.. trying from the start.");
+                errors.removeAll(failed);
             }
         }
-        LOGGER.info("Tried all available sockets.. trying from the start.");
-        clearErrorsForAddresses(tried);
-        return tried.iterator().next();
+        result.addAll(failed);
+        return result;
     }
     
     /**
-     * Tells the manager that connecting to this address failed, which means
-     * other addresses (if available) are tried first for the next attempt.
+     * Orders the addresses so that IPv6 and IPv4 addresses alternate, starting
+     * with the family of the first address.
      * 
-     * @param address 
+     * @param ips
+     * @return 
      */
-    public void addError(InetSocketAddress address) {
-        errors.add(address);
+    private static List<InetAddress> interleave(InetAddress[] ips) {
+        LinkedList<InetAddress> v6 = new LinkedList<>();
+        LinkedList<InetAddress> v4 = new LinkedList<>();
+        for (InetAddress ip : ips) {
+            if (ip instanceof Inet6Address) {
+                v6.add(ip);
+            } else {
+                v4.add(ip);
+            }
+        }
+        boolean nextV6 = ips.length > 0 && ips[0] instanceof Inet6Address;
+        List<InetAddress> result = new ArrayList<>();
+        while (!v6.isEmpty() || !v4.isEmpty()) {
+            if (nextV6 ? !v6.isEmpty() : v4.isEmpty()) {
+                result.add(v6.removeFirst());
+            } else {
+                result.add(v4.removeFirst());
+            }
+            nextV6 = !nextV6;
+        }
+        return result;
     }
     
     /**
-     * Removes all given {@code InetSocketAddress} objects from the errors list,
-     * so they can be tried again.
+     * Resolves the host, using the cache if possible.
      * 
-     * @param addresses The list of {@code InetSocketAddress} objects to remove
+     * @param host
+     * @return
+     * @throws UnknownHostException 
      */
-    private void clearErrorsForAddresses(Set<InetSocketAddress> addresses) {
-        errors.removeAll(addresses);
+    private static InetAddress[] resolve(final String host) throws UnknownHostException {
+        CachedLookup cached;
+        synchronized(dnsCache) {
+            cached = dnsCache.get(host);
+        }
+        if (cached == null) {
+            return lookup(host);
+        }
+        if (System.currentTimeMillis() - cached.time < DNS_TTL) {
+            return cached.ips;
+        }
+        // Expired, so resolve again, but only wait for a bit
+        FutureTask<InetAddress[]> task = new FutureTask<>(new Callable<InetAddress[]>() {
+
+            @Override
+            public InetAddress[] call() throws Exception {
+                return lookup(host);
+            }
+        });
+        Thread thread = new Thread(task, "Resolve "+host);
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            return task.get(DNS_REFRESH_WAIT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException ex) {
+            LOGGER.info("Resolving "+host+" failed or took too long, using cached result ("+ex+")");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return cached.ips;
+    }
+    
+    private static InetAddress[] lookup(String host) throws UnknownHostException {
+        InetAddress[] ips = InetAddress.getAllByName(host);
+        synchronized(dnsCache) {
+            dnsCache.put(host, new CachedLookup(ips));
+        }
+        return ips;
+    }
+    
+    private static class CachedLookup {
+        
+        private final InetAddress[] ips;
+        private final long time;
+        
+        CachedLookup(InetAddress[] ips) {
+            this.ips = ips;
+            this.time = System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * Tells the manager that connecting to this address failed, which means
+     * other addresses (if available) are tried first for the next attempt.
+     * 
+     * @param address 
+     */
+    public void addError(InetSocketAddress address) {
+        synchronized(errors) {
+            errors.add(address);
+        }
     }
     
     /**
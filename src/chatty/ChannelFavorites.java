@@ -192,6 +192,17 @@ public class ChannelFavorites {
         return settings.getMap(HISTORY_SETTING);
     }
     
+    /**
+     * Checks if the given channel is a favorite.
+     * 
+     * @param channel The channel, with or without #
+     * @return 
+     */
+    public synchronized boolean isFavorite(String channel) {
+        channel = prepareChannel(channel);
+        return channel != null && settings.listContains(FAVORITES_SETTING, channel);
+    }
+    
     /**
      * Returns a copy of the current favorites. A copy, so changes to the
      * favorites won't affect this Set (thread safety) and it can't be changed
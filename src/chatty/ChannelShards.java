@@ -0,0 +1,271 @@
+package chatty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns channels to a number of shards (connections), so that the channels
+ * are spread across all of them. Once assigned, a channel stays on the same
+ * shard until that shard goes down, in which case it's channels can be assigned
+ * to the remaining shards.
+ *
+ * Which shard a new channel is assigned to depends on the policy, either just
+ * the next shard in turn, or the shard with the least load (the messages per
+ * minute of all channels on that shard).
+ *
+ * @author tduva
+ * @param <T> The type of shard
+ */
+public class ChannelShards<T extends ChannelShards.Shard> {
+
+    public enum Policy {
+        ROUND_ROBIN, LOAD
+    }
+
+    /**
+     * The time it takes for the message rate to decay to about a third (in
+     * milliseconds), so it should roughly be messages per minute.
+     */
+    private static final double RATE_DECAY = 60*1000;
+
+    private final List<T> shards = new ArrayList<>();
+    private final Map<String, T> assigned = new HashMap<>();
+    private final Map<String, Rate> rates = new HashMap<>();
+
+    private Policy policy = Policy.ROUND_ROBIN;
+    private int next;
+
+    public synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Parses the policy, which can be "roundrobin" or "load".
+     *
+     * @param value The value to parse
+     * @return The policy, ROUND_ROBIN if the value is invalid
+     */
+    public static Policy parsePolicy(String value) {
+        if ("load".equalsIgnoreCase(value)) {
+            return Policy.LOAD;
+        }
+        return Policy.ROUND_ROBIN;
+    }
+
+    public synchronized void addShard(T shard) {
+        if (!shards.contains(shard)) {
+            shards.add(shard);
+        }
+    }
+
+    /**
+     * Removes the shard entirely, unassigning it's channels.
+     *
+     * @param shard
+     * @return The channels that were assigned to the shard
+     */
+    public synchronized List<String> removeShard(T shard) {
+        List<String> result = shardDown(shard);
+        shards.remove(shard);
+        return result;
+    }
+
+    public synchronized List<T> getShards() {
+        return new ArrayList<>(shards);
+    }
+
+    /**
+     * Gets the shard the channel is currently assigned to.
+     *
+     * @param channel
+     * @return The shard, or null if the channel isn't assigned
+     */
+    public synchronized T get(String channel) {
+        return assigned.get(channel);
+    }
+
+    /**
+     * Assigns the channel to a shard. If the channel is already assigned to an
+     * available shard it stays there, otherwise a shard is selected based on
+     * the policy.
+     *
+     * @param channel The channel
+     * @return The shard, or null if no shard is available
+     */
+    public synchronized T assign(String channel) {
+        T current = assigned.get(channel);
+        if (current != null && current.isAvailable()) {
+            return current;
+        }
+        T selected = policy == Policy.LOAD ? selectByLoad() : selectNext();
+        if (selected != null) {
+            assigned.put(channel, selected);
+        } else {
+            assigned.remove(channel);
+        }
+        return selected;
+    }
+
+    private T selectNext() {
+        for (int i = 0; i < shards.size(); i++) {
+            int index = (next + i) % shards.size();
+            T shard = shards.get(index);
+            if (shard.isAvailable()) {
+                next = index + 1;
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    private T selectByLoad() {
+        long now = System.currentTimeMillis();
+        T selected = null;
+        double selectedLoad = 0;
+        int selectedCount = 0;
+        for (T shard : shards) {
+            if (!shard.isAvailable()) {
+                continue;
+            }
+            double load = 0;
+            int count = 0;
+            for (Map.Entry<String, T> entry : assigned.entrySet()) {
+                if (entry.getValue() == shard) {
+                    load += getRate(entry.getKey(), now);
+                    count++;
+                }
+            }
+            if (selected == null || load < selectedLoad
+                    || (load == selectedLoad && count < selectedCount)) {
+                selected = shard;
+                selectedLoad = load;
+                selectedCount = count;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Removes the channel, e.g. when it is closed.
+     *
+     * @param channel
+     */
+    public synchronized void remove(String channel) {
+        assigned.remove(channel);
+        rates.remove(channel);
+    }
+
+    /**
+     * Unassigns all channels of the shard, so they can be assigned to other
+     * shards.
+     *
+     * @param shard The shard that went down
+     * @return The channels that were assigned to the shard, the busiest first
+     */
+    public synchronized List<String> shardDown(T shard) {
+        List<String> result = getChannels(shard);
+        for (String channel : result) {
+            assigned.remove(channel);
+        }
+        final long now = System.currentTimeMillis();
+        Collections.sort(result, new Comparator<String>() {
+
+            @Override
+            public int compare(String o1, String o2) {
+                return Double.compare(getRate(o2, now), getRate(o1, now));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Gets all channels assigned to the shard.
+     *
+     * @param shard
+     * @return
+     */
+    public synchronized List<String> getChannels(T shard) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, T> entry : assigned.entrySet()) {
+            if (entry.getValue() == shard) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counts a message in the channel, which affects the load.
+     *
+     * @param channel
+     */
+    public synchronized void messageReceived(String channel) {
+        Rate rate = rates.get(channel);
+        if (rate == null) {
+            rate = new Rate();
+            rates.put(channel, rate);
+        }
+        rate.add(System.currentTimeMillis());
+    }
+
+    private double getRate(String channel, long now) {
+        Rate rate = rates.get(channel);
+        return rate == null ? 0 : rate.get(now);
+    }
+
+    /**
+     * Info about the number of channels and the load of each shard.
+     *
+     * @return
+     */
+    public synchronized String getInfo() {
+        long now = System.currentTimeMillis();
+        StringBuilder b = new StringBuilder(policy.toString());
+        for (T shard : shards) {
+            double load = 0;
+            int count = 0;
+            for (Map.Entry<String, T> entry : assigned.entrySet()) {
+                if (entry.getValue() == shard) {
+                    load += getRate(entry.getKey(), now);
+                    count++;
+                }
+            }
+            b.append(String.format(", %s: %d channels (%.0f/min)%s",
+                    shard, count, load, shard.isAvailable() ? "" : " [down]"));
+        }
+        return b.toString();
+    }
+
+    /**
+     * Message rate that decays over time.
+     */
+    private static class Rate {
+
+        private double value;
+        private long updated;
+
+        public void add(long now) {
+            value = get(now) + 1;
+            updated = now;
+        }
+
+        public double get(long now) {
+            return value * Math.exp(-(now - updated) / RATE_DECAY);
+        }
+    }
+
+    public interface Shard {
+
+        /**
+         * Whether channels can currently be assigned to this shard.
+         *
+         * @return
+         */
+        public boolean isAvailable();
+    }
+
+}
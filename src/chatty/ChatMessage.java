@@ -0,0 +1,178 @@
+package chatty;
+
+import chatty.util.api.Emoticons;
+import chatty.util.api.Emoticons.EmoticonMatch;
+import chatty.util.api.Emoticons.TagEmotes;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A received (or sent) chat message, with everything that can be worked out
+ * from the message itself parsed once when it is created, so the windows and
+ * logs it is handed to don't each have to do that again.
+ * 
+ * Immutable, so it can be created on the thread receiving the message and
+ * used on any other thread.
+ * 
+ * @author tduva
+ */
+public class ChatMessage {
+    
+    private static final Pattern URL_PATTERN = Helper.getUrlPattern();
+    
+    public final User user;
+    public final String text;
+    public final boolean action;
+    
+    /**
+     * When the message was created (milliseconds).
+     */
+    public final long timestamp;
+    
+    /**
+     * The emotes from the emotes tag, or null if there was no tag (e.g. for
+     * local messages).
+     */
+    public final TagEmotes emotes;
+    
+    /**
+     * The links found in the text, ordered by position and not overlapping.
+     * Unmodifiable, may be empty.
+     */
+    public final List<Link> links;
+    
+    /**
+     * The emoticons found in the text (see
+     * {@link Emoticons#findEmoticons(User, String, TagEmotes)}), or null if
+     * they haven't been looked up yet. Unmodifiable.
+     */
+    public final List<EmoticonMatch> emoticons;
+    
+    /**
+     * Parses the message.
+     * 
+     * @param user The user who sent the message
+     * @param text The text of the message
+     * @param action Whether this is an action message (/me)
+     * @param emotesTag The value of the emotes tag, may be null
+     */
+    public ChatMessage(User user, String text, boolean action, String emotesTag) {
+        this.user = user;
+        this.text = text;
+        this.action = action;
+        this.timestamp = System.currentTimeMillis();
+        this.emotes = Emoticons.parseEmotesTag(emotesTag, text);
+        this.links = findLinks(text);
+        this.emoticons = null;
+    }
+    
+    private ChatMessage(ChatMessage message, List<EmoticonMatch> emoticons) {
+        this.user = message.user;
+        this.text = message.text;
+        this.action = message.action;
+        this.timestamp = message.timestamp;
+        this.emotes = message.emotes;
+        this.links = message.links;
+        this.emoticons = Collections.unmodifiableList(emoticons);
+    }
+    
+    /**
+     * Creates a copy of this message with the emoticons found in the text,
+     * so they don't have to be looked up again on the EDT.
+     * 
+     * @param emoticons The found emoticons
+     * @return The new message
+     */
+    public ChatMessage withEmoticons(List<EmoticonMatch> emoticons) {
+        return new ChatMessage(this, emoticons);
+    }
+    
+    private static List<Link> findLinks(String text) {
+        List<Link> result = null;
+        Matcher m = URL_PATTERN.matcher(text);
+        while (m.find()) {
+            int start = m.start();
+            int end = m.end() - 1;
+            String foundUrl = m.group();
+
+            if (foundUrl.contains("..")) {
+                continue;
+            }
+
+            // Check if URL contains ( ) like http://example.com/test(abc)
+            // or is just contained in ( ) like (http://example.com)
+            // (of course this won't work perfectly, but it should be ok)
+            if (foundUrl.endsWith(")") && !foundUrl.contains("(")) {
+                foundUrl = foundUrl.substring(0, foundUrl.length() - 1);
+                end--;
+            }
+            if (checkUrl(foundUrl)) {
+                if (!foundUrl.startsWith("http")) {
+                    foundUrl = "http://"+foundUrl;
+                }
+                if (result == null) {
+                    result = new ArrayList<>();
+                }
+                result.add(new Link(start, end, foundUrl));
+            }
+        }
+        if (result == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Checks if the Url can be later used as a URI.
+     *
+     * @param uriToCheck
+     * @return
+     */
+    private static boolean checkUrl(String uriToCheck) {
+        try {
+            new URI(uriToCheck);
+        } catch (URISyntaxException ex) {
+            return false;
+        }
+        return true;
+    }
+    
+    @Override
+    public String toString() {
+        return user+": "+text;
+    }
+    
+    /**
+     * A link in the text.
+     */
+    public static class Link {
+
+        /**
+         * The position of the first character.
+         */
+        public final int start;
+
+        /**
+         * The position of the last character (inclusive).
+         */
+        public final int end;
+
+        /**
+         * The URL to open, which may be different from the text (e.g. with
+         * "http://" added).
+         */
+        public final String url;
+
+        public Link(int start, int end, String url) {
+            this.start = start;
+            this.end = end;
+            this.url = url;
+        }
+    }
+    
+}
@@ -0,0 +1,188 @@
+package chatty;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Connects to one of several addresses, by starting a connection attempt to
+ * the next address if the previous ones haven't succeeded after a short delay
+ * (or have already failed), and using whichever connects first. This way a
+ * single slow or unreachable address doesn't delay connecting by the whole
+ * connect timeout ("Happy Eyeballs").
+ *
+ * @author tduva
+ */
+public class ConnectRace {
+
+    private static final Logger LOGGER = Logger.getLogger(ConnectRace.class.getName());
+
+    private final List<InetSocketAddress> addresses;
+    private final Connector connector;
+    private final String idPrefix;
+
+    private final Object lock = new Object();
+    private int started;
+    private int failed;
+    private boolean done;
+    private Socket winner;
+    private InetSocketAddress winnerAddress;
+    private IOException error;
+    private final List<InetSocketAddress> failedAddresses = new ArrayList<>();
+
+    /**
+     * Creates a new race, which is run by {@link #connect(int, int)}.
+     *
+     * @param addresses The addresses to connect to, in the order they should
+     * be tried (must not be empty)
+     * @param connector Creates and connects the socket
+     * @param id Used for logging
+     */
+    public ConnectRace(List<InetSocketAddress> addresses, Connector connector,
+            String id) {
+        this.addresses = addresses;
+        this.connector = connector;
+        this.idPrefix = "["+id+"] ";
+    }
+
+    /**
+     * Connects to the addresses, blocking until one attempt succeeded or all
+     * failed.
+     *
+     * @param stagger How long to wait before starting the next attempt (in
+     * milliseconds)
+     * @param timeout The timeout for each attempt (in milliseconds)
+     * @return The connected socket
+     * @throws IOException The error of the last failed attempt, if all failed
+     */
+    public Socket connect(int stagger, int timeout) throws IOException {
+        if (addresses.size() == 1) {
+            InetSocketAddress address = addresses.get(0);
+            Socket socket = connector.connect(address, timeout);
+            synchronized(lock) {
+                winnerAddress = address;
+            }
+            return socket;
+        }
+        synchronized(lock) {
+            try {
+                for (InetSocketAddress address : addresses) {
+                    long due = System.currentTimeMillis() + stagger;
+                    // Wait for the previous attempts, unless they all failed
+                    while (winner == null && started > failed) {
+                        long wait = due - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        lock.wait(wait);
+                    }
+                    if (winner != null) {
+                        break;
+                    }
+                    start(address, timeout);
+                }
+                while (winner == null && started > failed) {
+                    lock.wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                done = true;
+            }
+            if (winner != null) {
+                return winner;
+            }
+            if (error == null) {
+                error = new IOException("Connecting interrupted");
+            }
+            throw error;
+        }
+    }
+
+    /**
+     * The address of the successful attempt, or null if none succeeded yet.
+     *
+     * @return
+     */
+    public InetSocketAddress getAddress() {
+        synchronized(lock) {
+            return winnerAddress;
+        }
+    }
+
+    /**
+     * The addresses whose attempts failed so far, in the order they failed
+     * (only if several addresses were tried).
+     *
+     * @return A copy of the list
+     */
+    public List<InetSocketAddress> getFailedAddresses() {
+        synchronized(lock) {
+            return new ArrayList<>(failedAddresses);
+        }
+    }
+
+    private void start(final InetSocketAddress address, final int timeout) {
+        started++;
+        if (started > 1) {
+            LOGGER.info(idPrefix+"Also trying to connect to "+address);
+        }
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                attempt(address, timeout);
+            }
+        }, "ConnectRace "+address);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void attempt(InetSocketAddress address, int timeout) {
+        Socket socket;
+        try {
+            socket = connector.connect(address, timeout);
+        } catch (IOException ex) {
+            LOGGER.info(idPrefix+"Failed to connect to "+address+": "+ex);
+            synchronized(lock) {
+                failed++;
+                failedAddresses.add(address);
+                error = ex;
+                lock.notifyAll();
+            }
+            return;
+        }
+        synchronized(lock) {
+            if (winner == null && !done) {
+                winner = socket;
+                winnerAddress = address;
+                lock.notifyAll();
+                return;
+            }
+        }
+        // Lost the race
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Not used anyway
+        }
+    }
+
+    public interface Connector {
+
+        /**
+         * Creates a socket and connects it to the given address (including
+         * any handshake, like for SSL), closing it again if that fails.
+         *
+         * @param address The address to connect to
+         * @param timeout The timeout (in milliseconds)
+         * @return The connected socket
+         * @throws IOException If connecting failed
+         */
+        public Socket connect(InetSocketAddress address, int timeout) throws IOException;
+    }
+
+}
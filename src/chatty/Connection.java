@@ -2,6 +2,8 @@
 package chatty;
 
 import static chatty.Irc.SSL_ERROR;
+import chatty.util.LineFramer.LineListener;
+import chatty.util.LineReader;
 import chatty.util.StringUtil;
 import java.io.*;
 import java.net.InetSocketAddress;
@@ -9,9 +11,14 @@ import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
@@ -21,16 +28,27 @@ import javax.net.ssl.SSLSocketFactory;
  * 
  * @author tduva
  */
-public class Connection implements Runnable {
+public class Connection implements Runnable, ServerConnection {
 
     private static final Logger LOGGER = Logger.getLogger(Connection.class.getName());
     
-    private final InetSocketAddress address;
+    /**
+     * The addresses to try to connect to, in order.
+     */
+    private final List<InetSocketAddress> addresses;
+    
+    /**
+     * The address connected to (or the first one, before connecting).
+     */
+    private volatile InetSocketAddress address;
+    private volatile List<InetSocketAddress> failedAddresses = Collections.emptyList();
     private final Irc irc;
     
     private Socket socket;
     private PrintWriter out;
-    private BufferedReader in;
+    private final BlockingQueue<String> outgoing = new LinkedBlockingQueue<>();
+    private Thread writer;
+    private LineReader in;
     private boolean connected = false;
     
     private int disconnectReason = -1;
@@ -39,18 +57,52 @@ public class Connection implements Runnable {
     private int connectionCheckedCount;
     
     private static final int CONNECT_TIMEOUT = 10*1000; // 10 seconds timeout
+    private static final int CONNECT_STAGGER = 300; // Next address after 300ms
     private static final int SOCKET_BLOCK_TIMEOUT = 15*1000; // 15 seconds
     private static final int PING_AFTER_CHECKS = 3; // 45 seconds (3*SOCKET_BLOCK_TIMEOUT)
+    private static final int WRITER_CLOSE_TIMEOUT = 2*1000;
     
+    /**
+     * Added to the outgoing queue to tell the writer to write everything
+     * before it and then stop. Compared by identity.
+     */
+    private static final String CLOSE_MARKER = new String("");
+    
+    private final String id;
     private final String idPrefix;
     
     private final boolean secured;
+    private final SSLContext sslContext;
+    
+    /**
+     * Whether to find the line endings in the received bytes, instead of
+     * reading decoded chars one by one.
+     */
+    private final boolean byteLineFraming;
     
-    public Connection(Irc irc, InetSocketAddress address, String id, boolean secured) {
+    /**
+     * Creates a new connection.
+     * 
+     * @param irc
+     * @param addresses The addresses to try, if there are several, then the
+     * next one is also tried if the previous ones didn't connect quickly, using
+     * the first that succeeds
+     * @param id
+     * @param secured
+     * @param sslContext The SSL context for secured connections, null to use
+     * the default
+     * @param byteLineFraming 
+     */
+    public Connection(Irc irc, List<InetSocketAddress> addresses, String id,
+            boolean secured, SSLContext sslContext, boolean byteLineFraming) {
         this.irc = irc;
-        this.address = address;
+        this.addresses = addresses;
+        this.address = addresses.get(0);
+        this.id = id;
         this.idPrefix = "["+id+"] ";
         this.secured = secured;
+        this.sslContext = sslContext;
+        this.byteLineFraming = byteLineFraming;
     }
     
     private final void info(String message) {
@@ -61,46 +113,55 @@ public class Connection implements Runnable {
         LOGGER.warning(idPrefix+message);
     }
     
+    @Override
     public InetSocketAddress getAddress() {
         return address;
     }
     
+    @Override
+    public List<InetSocketAddress> getFailedAddresses() {
+        return failedAddresses;
+    }
+    
+    /**
+     * Starts the thread that connects and reads from the connection.
+     */
+    @Override
+    public void start() {
+        new Thread(this).start();
+    }
+    
     /**
      * Thread that opens the connection and receives data from the connection.
      */
     @Override
     public void run() {
         Charset charset = Charset.forName("UTF-8");
+        ConnectRace race = new ConnectRace(addresses, new ConnectRace.Connector() {
+
+            @Override
+            public Socket connect(InetSocketAddress address, int timeout) throws IOException {
+                return createSocket(address, timeout);
+            }
+        }, id);
         try {
-            info("Trying to connect to "+address+(secured ? " (secured)" : ""));
+            info("Trying to connect to "+address+(secured ? " (secured)" : "")
+                    +(addresses.size() > 1 ? " ("+addresses.size()+" addresses)" : ""));
             // Try to connect and open streams
-            if (secured) {
-                SSLSocketFactory sf = (SSLSocketFactory)SSLSocketFactory.getDefault();
-                socket = sf.createSocket();
-                ((SSLSocket) socket).setUseClientMode(true);
-                
-                /**
-                 * Workaround for "Could not generate DH keypair" exception
-                 * http://stackoverflow.com/a/6862383
-                 */
-                List<String> limited = new LinkedList<>();
-                for (String suite : ((SSLSocket) socket).getEnabledCipherSuites()) {
-                    if (!suite.contains("_DHE_")) {
-                        limited.add(suite);
-                    }
-                }
-                ((SSLSocket) socket).setEnabledCipherSuites(limited.toArray(new String[limited.size()]));
-            } else {
-                socket = new Socket();
+            try {
+                socket = race.connect(CONNECT_STAGGER, CONNECT_TIMEOUT);
+            } finally {
+                failedAddresses = race.getFailedAddresses();
             }
-            socket.connect(address, CONNECT_TIMEOUT);
-//            info("Connecting to "+socket.getRemoteSocketAddress().toString());
+            address = race.getAddress();
             out = new PrintWriter(
                     new OutputStreamWriter(socket.getOutputStream(),charset)
                     );
-            in = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream(),charset)
-                );
+            if (byteLineFraming) {
+                in = LineReader.bytes(socket.getInputStream());
+            } else {
+                in = LineReader.chars(socket.getInputStream(), charset);
+            }
             socket.setSoTimeout(SOCKET_BLOCK_TIMEOUT);
         } catch (UnknownHostException ex) {
             irc.disconnected(Irc.ERROR_UNKNOWN_HOST);
@@ -120,50 +181,28 @@ public class Connection implements Runnable {
         
         info("Connected to "+socket.getRemoteSocketAddress().toString());
         connected = true;
+        writer = new Writer();
+        writer.start();
         irc.connected(socket.getInetAddress().toString(),address.getPort());
 
-        StringBuilder b = new StringBuilder();
-        boolean previousWasCR = false;
-        String receivedLine = null;
+        LineListener lineListener = new LineListener() {
+
+            @Override
+            public void lineReceived(String line) {
+                // Line was received
+                irc.received(line);
+                activity();
+            }
+        };
         while (true) {
             try {
                 /**
-                 * Read line ending with \r\n (blocks, but has a timeout set).
-                 * 
-                 * This also filters \r and \n characters from the parsed
-                 * messages, because they are not added to the buffer.
+                 * Read lines ending with \r\n (blocks, but has a timeout set).
                  */
-                int c = in.read();
-                if (c == -1) {
+                if (in.read(lineListener) == -1) {
                     // End of stream
                     break;
                 }
-                if (c == '\r') {
-                    previousWasCR = true;
-                    //System.out.print("\\r");
-                } else if (c == '\n') {
-                    //System.out.println("\\n");
-                    if (previousWasCR) {
-                        // Take buffer as line and reset
-                        receivedLine = b.toString();
-                        b.setLength(0);
-                        previousWasCR = false;
-                    }
-                } else {
-                    b.append((char)c);
-                    previousWasCR = false;
-                    //System.out.print((char)c);
-                }
-                
-                if (receivedLine == null) {
-                    // Read more characters to get to end of line
-                    continue;
-                }
-                
-                // Line was received
-                irc.received(receivedLine);
-                receivedLine = null;
-                activity();
             } catch (SocketTimeoutException ex) {
                 checkConnection();
             } catch (SSLException ex) {
@@ -181,6 +220,52 @@ public class Connection implements Runnable {
         close();
     }
     
+    /**
+     * Creates a socket and connects it to the given address. For a secured
+     * connection, the handshake is also done, so a connection that gets stuck
+     * there doesn't win the race against other addresses.
+     * 
+     * @param address The address to connect to
+     * @param timeout The timeout (in milliseconds)
+     * @return The connected socket
+     * @throws IOException If connecting failed
+     */
+    private Socket createSocket(InetSocketAddress address, int timeout) throws IOException {
+        Socket socket;
+        if (secured) {
+            SSLSocketFactory sf = sslContext != null
+                    ? sslContext.getSocketFactory()
+                    : (SSLSocketFactory)SSLSocketFactory.getDefault();
+            socket = sf.createSocket();
+            ((SSLSocket) socket).setUseClientMode(true);
+
+            /**
+             * Workaround for "Could not generate DH keypair" exception
+             * http://stackoverflow.com/a/6862383
+             */
+            List<String> limited = new LinkedList<>();
+            for (String suite : ((SSLSocket) socket).getEnabledCipherSuites()) {
+                if (!suite.contains("_DHE_")) {
+                    limited.add(suite);
+                }
+            }
+            ((SSLSocket) socket).setEnabledCipherSuites(limited.toArray(new String[limited.size()]));
+        } else {
+            socket = new Socket();
+        }
+        try {
+            socket.connect(address, timeout);
+            if (secured) {
+                socket.setSoTimeout(timeout);
+                ((SSLSocket) socket).startHandshake();
+            }
+            return socket;
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+    
     /**
      * Notifies the activity tracker that there was activity on the connection.
      */
@@ -203,18 +288,22 @@ public class Connection implements Runnable {
     }
     
     /**
-     * Closes the connection if still connected and cleans up.
+     * Closes the connection if still connected and cleans up. Lines that
+     * haven't been written yet (including ones the writer already took from
+     * the queue) are written first, after which the writer closes the socket.
+     * 
+     * <p>
+     * This doesn't wait for the writer, since it may be called on the EDT and
+     * the writer may be stuck on a slow connection. If the writer doesn't
+     * finish in time, the socket is closed from another thread.
+     * </p>
      */
+    @Override
     synchronized public void close() {
         if (connected) {
             info("Closing socket.");
-            try {
-                out.close();
-                in.close();
-                socket.close();
-            } catch (IOException ex) {
-                warning("Error closing socket: "+ex);
-            }
+            outgoing.add(CLOSE_MARKER);
+            closeSocketLater();
             if (disconnectReason == -1) {
                 disconnectReason = Irc.ERROR_CONNECTION_CLOSED;
             }
@@ -227,15 +316,107 @@ public class Connection implements Runnable {
     }
     
     /**
-     * Send a line of data to the server.
+     * Starts a thread that closes the socket if the writer hasn't finished
+     * writing the remaining lines in time.
+     */
+    private void closeSocketLater() {
+        final Thread currentWriter = writer;
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    currentWriter.join(WRITER_CLOSE_TIMEOUT);
+                } catch (InterruptedException ex) {
+                    // Just close now
+                }
+                if (currentWriter.isAlive()) {
+                    warning("Writer didn't finish in time, closing anyway");
+                    closeSocket();
+                }
+            }
+        }, "Connection close "+idPrefix.trim());
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Closes the socket (which may already be closed). The socket is closed
+     * first, in case the writer is still stuck writing.
+     */
+    private void closeSocket() {
+        try {
+            socket.close();
+            out.close();
+        } catch (IOException ex) {
+            warning("Error closing socket: "+ex);
+        }
+    }
+    
+    /**
+     * Send a line of data to the server. The line is only added to the
+     * queue that is written by the writer thread, so this doesn't block.
      * 
      * @param data 
      */
-    synchronized public void send(String data) {
+    @Override
+    public void send(String data) {
         data = StringUtil.removeLinebreakCharacters(data);
         irc.sent(data);
-        out.print(data+"\r\n");
-        out.flush();
+        outgoing.add(data);
         activity();
     }
+    
+    /**
+     * Writes the given lines and flushes once.
+     * 
+     * @param lines 
+     */
+    private void write(List<String> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        synchronized(out) {
+            for (String line : lines) {
+                out.print(line);
+                out.print("\r\n");
+            }
+            out.flush();
+        }
+    }
+    
+    /**
+     * Writes the lines added to the queue, taking all lines that are available
+     * at once to write them together. Stops after writing all lines before
+     * the {@code CLOSE_MARKER} and then closes the socket.
+     */
+    private class Writer extends Thread {
+        
+        Writer() {
+            super("Connection writer "+idPrefix.trim());
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            List<String> lines = new ArrayList<>();
+            while (true) {
+                try {
+                    lines.add(outgoing.take());
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                outgoing.drainTo(lines);
+                for (int i = 0; i < lines.size(); i++) {
+                    if (lines.get(i) == CLOSE_MARKER) {
+                        write(lines.subList(0, i));
+                        closeSocket();
+                        return;
+                    }
+                }
+                write(lines);
+                lines.clear();
+            }
+        }
+    }
 }
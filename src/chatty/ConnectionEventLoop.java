@@ -0,0 +1,245 @@
+package chatty;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single thread that handles all {@link EventLoopConnection} sockets with one
+ * {@code Selector}, instead of one blocking thread per connection.
+ *
+ * Besides the socket events, tasks can be run on the loop thread and timers
+ * can be scheduled (for connect timeouts and keepalive). Everything that
+ * changes the state of a connection should happen on the loop thread.
+ *
+ * @author tduva
+ */
+public class ConnectionEventLoop implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ConnectionEventLoop.class.getName());
+
+    private static volatile ConnectionEventLoop instance;
+
+    /**
+     * Gets the shared instance, starting the loop thread on first use.
+     *
+     * @return The instance
+     * @throws IOException If the selector could not be opened
+     */
+    public static synchronized ConnectionEventLoop get() throws IOException {
+        if (instance == null) {
+            instance = new ConnectionEventLoop();
+            Thread thread = new Thread(instance, "ConnectionEventLoop");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return instance;
+    }
+
+    private final Selector selector;
+
+    /**
+     * Tasks to run on the loop thread, added from any thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Scheduled timers, only accessed on the loop thread.
+     */
+    private final PriorityQueue<Timeout> timers = new PriorityQueue<>();
+
+    private volatile Thread loopThread;
+
+    private ConnectionEventLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * Runs the given task on the loop thread. If this is called on the loop
+     * thread, the task is still only run after the current task is done.
+     *
+     * @param task
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != loopThread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the given task on the loop thread after the given delay.
+     *
+     * @param task The task to run
+     * @param delay The delay in milliseconds
+     * @return The {@code Timeout}, which can be used to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        final Timeout timeout = new Timeout(task, System.currentTimeMillis() + delay);
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+                if (!timeout.canceled) {
+                    timers.add(timeout);
+                }
+            }
+        });
+        return timeout;
+    }
+
+    /**
+     * Registers the channel with the selector. Must be called on the loop
+     * thread.
+     *
+     * @param channel The channel (must be non-blocking)
+     * @param ops The initial interest set
+     * @param handler The handler that receives the events
+     * @return The key
+     * @throws IOException
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+        return channel.register(selector, ops, handler);
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == loopThread;
+    }
+
+    /**
+     * Whether the current thread is the thread of the shared instance, without
+     * starting it.
+     *
+     * @return
+     */
+    public static boolean isLoopThread() {
+        ConnectionEventLoop current = instance;
+        return current != null && current.inLoop();
+    }
+
+    @Override
+    public void run() {
+        loopThread = Thread.currentThread();
+        LOGGER.info("Started connection event loop");
+        while (true) {
+            try {
+                long wait = runTimers();
+                if (tasks.isEmpty()) {
+                    selector.select(wait);
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Handler handler = (Handler)key.attachment();
+                    try {
+                        handler.handle(key);
+                    } catch (Exception ex) {
+                        LOGGER.log(Level.WARNING, "Error handling connection event", ex);
+                        handler.failed(ex);
+                    }
+                }
+                runTasks();
+            } catch (Exception ex) {
+                // Don't stop the loop, since it handles all connections
+                LOGGER.log(Level.WARNING, "Error in connection event loop", ex);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception ex) {
+                LOGGER.log(Level.WARNING, "Error running connection task", ex);
+            }
+        }
+    }
+
+    /**
+     * Runs all timers that are due.
+     *
+     * @return How long to wait for the next timer, 0 for no timer
+     */
+    private long runTimers() {
+        while (!timers.isEmpty()) {
+            Timeout next = timers.peek();
+            if (next.canceled) {
+                timers.poll();
+                continue;
+            }
+            long wait = next.time - System.currentTimeMillis();
+            if (wait > 0) {
+                return wait;
+            }
+            timers.poll();
+            try {
+                next.task.run();
+            } catch (Exception ex) {
+                LOGGER.log(Level.WARNING, "Error running connection timer", ex);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public static class Timeout implements Comparable<Timeout> {
+
+        private final Runnable task;
+        private final long time;
+        private volatile boolean canceled;
+
+        private Timeout(Runnable task, long time) {
+            this.task = task;
+            this.time = time;
+        }
+
+        /**
+         * Prevents the task from running, if it hasn't already.
+         */
+        public void cancel() {
+            canceled = true;
+        }
+
+        @Override
+        public int compareTo(Timeout o) {
+            return Long.compare(time, o.time);
+        }
+
+    }
+
+    /**
+     * Receives the events of a registered channel.
+     */
+    interface Handler {
+
+        /**
+         * The channel is ready for the operations in the selected key.
+         *
+         * @param key
+         * @throws IOException
+         */
+        void handle(SelectionKey key) throws IOException;
+
+        /**
+         * Handling an event threw an exception.
+         *
+         * @param ex
+         */
+        void failed(Exception ex);
+    }
+
+}
@@ -0,0 +1,640 @@
+package chatty;
+
+import chatty.ConnectionEventLoop.Timeout;
+import chatty.util.LineFramer;
+import chatty.util.LineFramer.LineListener;
+import chatty.util.StringUtil;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.Charset;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * A connection to a server that is handled on the shared
+ * {@link ConnectionEventLoop}, using a non-blocking {@code SocketChannel} (and
+ * an {@code SSLEngine} for secured connections) instead of a thread with
+ * blocking reads.
+ *
+ * Reports to the {@code Irc} the same way as {@link Connection}, except that
+ * it happens on the event loop thread.
+ *
+ * @author tduva
+ */
+public class EventLoopConnection implements ServerConnection, ConnectionEventLoop.Handler {
+
+    private static final Logger LOGGER = Logger.getLogger(EventLoopConnection.class.getName());
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final int CONNECT_TIMEOUT = 10*1000; // 10 seconds timeout
+    private static final int CHECK_DELAY = 15*1000; // 15 seconds
+    private static final int PING_AFTER = 45*1000; // Same as Connection
+
+    private static final int BUFFER_SIZE = 32*1024;
+
+    private final ConnectionEventLoop loop;
+    private final InetSocketAddress address;
+    private final Irc irc;
+    private final String idPrefix;
+    private final boolean secured;
+    private final SSLContext sslContext;
+
+    /**
+     * Lines added by any thread, to be written on the loop thread.
+     */
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+
+    private final Runnable writeTask = new Runnable() {
+
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    private final LineListener lineListener = new LineListener() {
+
+        @Override
+        public void lineReceived(String line) {
+            irc.received(line);
+        }
+    };
+
+    // Only accessed on the loop thread
+    private SocketChannel channel;
+    private SelectionKey key;
+    private SSLEngine ssl;
+    private LineFramer framer;
+    /**
+     * Encrypted data received (SSL only).
+     */
+    private ByteBuffer netIn;
+    /**
+     * Data to be written to the socket (encrypted for SSL), in read mode.
+     */
+    private ByteBuffer netOut;
+    /**
+     * Plain data not yet encrypted (SSL only), in read mode.
+     */
+    private ByteBuffer appOut;
+    private boolean handshakeDone;
+    private Timeout connectTimeout;
+    private Timeout checkTimeout;
+    private long lastActivity;
+
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private int disconnectReason = -1;
+    private String disconnectMessage = null;
+
+    public EventLoopConnection(ConnectionEventLoop loop, Irc irc,
+            InetSocketAddress address, String id, boolean secured,
+            SSLContext sslContext) {
+        this.loop = loop;
+        this.irc = irc;
+        this.address = address;
+        this.idPrefix = "["+id+"] ";
+        this.secured = secured;
+        this.sslContext = sslContext;
+    }
+
+    private void info(String message) {
+        LOGGER.info(idPrefix+message);
+    }
+
+    private void warning(String message) {
+        LOGGER.warning(idPrefix+message);
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    @Override
+    public List<InetSocketAddress> getFailedAddresses() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void start() {
+        loop.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    /**
+     * Opens the channel and starts connecting.
+     */
+    private void open() {
+        info("Trying to connect to "+address+(secured ? " (secured)" : "")+" (event loop)");
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(address)) {
+                key = loop.register(channel, 0, this);
+                finishConnect();
+            } else {
+                key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+                connectTimeout = loop.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (!connected && !closed) {
+                            warning("Error opening connection: Connect timed out");
+                            abort(Irc.ERROR_SOCKET_TIMEOUT, "");
+                        }
+                    }
+                }, CONNECT_TIMEOUT);
+            }
+        } catch (UnresolvedAddressException ex) {
+            warning("Error opening connection to "+address+": "+ex);
+            abort(Irc.ERROR_UNKNOWN_HOST, "");
+        } catch (IOException ex) {
+            warning("Error opening connection: "+ex);
+            abort(Irc.ERROR_SOCKET_ERROR, ex.getLocalizedMessage());
+        }
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isConnectable()) {
+            if (channel.finishConnect()) {
+                finishConnect();
+            }
+            return;
+        }
+        if (key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            write();
+        }
+    }
+
+    @Override
+    public void failed(Exception ex) {
+        if (connected) {
+            info("Error reading from socket: "+ex);
+            if (ex instanceof SSLException) {
+                disconnectReason = Irc.SSL_ERROR;
+                disconnectMessage = ex.getLocalizedMessage();
+            }
+            closeNow();
+        } else if (ex instanceof ConnectException) {
+            warning("Error opening connection: "+ex);
+            abort(Irc.ERROR_SOCKET_ERROR, ex.getLocalizedMessage());
+        } else {
+            warning("Error opening connection: "+ex);
+            abort(ex instanceof SSLException ? Irc.SSL_ERROR : Irc.ERROR_SOCKET_ERROR,
+                    ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * The TCP connection has been established.
+     *
+     * @throws IOException
+     */
+    private void finishConnect() throws IOException {
+        netOut = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        netOut.flip();
+        if (secured) {
+            ssl = createEngine();
+            int appSize = ssl.getSession().getApplicationBufferSize();
+            framer = new LineFramer(Math.max(BUFFER_SIZE, appSize * 2), true);
+            netIn = ByteBuffer.allocateDirect(ssl.getSession().getPacketBufferSize());
+            netOut = ByteBuffer.allocateDirect(ssl.getSession().getPacketBufferSize());
+            netOut.flip();
+            appOut = ByteBuffer.allocate(appSize);
+            appOut.flip();
+            ssl.beginHandshake();
+            key.interestOps(SelectionKey.OP_READ);
+            handshake();
+        } else {
+            framer = new LineFramer(BUFFER_SIZE, true);
+            key.interestOps(SelectionKey.OP_READ);
+            established();
+        }
+    }
+
+    private SSLEngine createEngine() throws IOException {
+        SSLContext context = sslContext;
+        if (context == null) {
+            try {
+                context = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException ex) {
+                throw new SSLException(ex);
+            }
+        }
+        SSLEngine engine = context.createSSLEngine(address.getHostString(), address.getPort());
+        engine.setUseClientMode(true);
+        /**
+         * Workaround for "Could not generate DH keypair" exception, same as in
+         * Connection.
+         */
+        List<String> limited = new ArrayList<>();
+        for (String suite : engine.getEnabledCipherSuites()) {
+            if (!suite.contains("_DHE_")) {
+                limited.add(suite);
+            }
+        }
+        engine.setEnabledCipherSuites(limited.toArray(new String[limited.size()]));
+        return engine;
+    }
+
+    /**
+     * Connected and ready to send data (after the SSL handshake).
+     */
+    private void established() {
+        // Also covers the SSL handshake
+        if (connectTimeout != null) {
+            connectTimeout.cancel();
+        }
+        info("Connected to "+address);
+        connected = true;
+        activity();
+        scheduleCheck();
+        irc.connected(address.getAddress().toString(), address.getPort());
+        write();
+    }
+
+    private void activity() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Sends a PING if there hasn't been any activity for a while, so that a
+     * dead connection is noticed.
+     */
+    private void scheduleCheck() {
+        checkTimeout = loop.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                if (closed) {
+                    return;
+                }
+                if (System.currentTimeMillis() - lastActivity >= PING_AFTER) {
+                    send("PING");
+                }
+                scheduleCheck();
+            }
+        }, CHECK_DELAY);
+    }
+
+    //==========================
+    // Reading
+    //==========================
+
+    private void read() throws IOException {
+        if (ssl == null) {
+            int read = channel.read(framer.getBuffer());
+            if (read == -1) {
+                closeNow();
+                return;
+            }
+            if (framer.frame(lineListener) > 0) {
+                activity();
+            }
+        } else {
+            int read = channel.read(netIn);
+            unwrap();
+            if (read == -1) {
+                closeNow();
+            }
+        }
+    }
+
+    /**
+     * Decrypts as much data as possible from the received encrypted data,
+     * continuing the handshake if necessary.
+     *
+     * @throws IOException
+     */
+    private void unwrap() throws IOException {
+        netIn.flip();
+        try {
+            while (!closed) {
+                ByteBuffer appIn = framer.getBuffer(ssl.getSession().getApplicationBufferSize());
+                SSLEngineResult result = ssl.unwrap(netIn, appIn);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    closeNow();
+                    return;
+                }
+                if (result.bytesProduced() > 0 && framer.frame(lineListener) > 0) {
+                    activity();
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    // Need more data
+                    if (netIn.limit() == netIn.capacity()) {
+                        netIn = enlarge(netIn, ssl.getSession().getPacketBufferSize());
+                    }
+                    break;
+                }
+                HandshakeStatus status = result.getHandshakeStatus();
+                if (status != HandshakeStatus.NOT_HANDSHAKING
+                        && !runHandshakeStep(status)) {
+                    break;
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                        && result.getHandshakeStatus() != HandshakeStatus.NEED_UNWRAP) {
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    //==========================
+    // SSL Handshake
+    //==========================
+
+    private void handshake() throws IOException {
+        runHandshakeStep(ssl.getHandshakeStatus());
+    }
+
+    /**
+     * Performs the handshake steps that can be done without receiving more
+     * data.
+     *
+     * @param status The current handshake status
+     * @return true if unwrapping should continue, false if more data has to be
+     * received first
+     * @throws IOException
+     */
+    private boolean runHandshakeStep(HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK:
+                    // Tasks are usually short, so just run them on the loop
+                    Runnable task;
+                    while ((task = ssl.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = ssl.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    status = wrap(ByteBuffer.allocate(0)).getHandshakeStatus();
+                    flushNetOut();
+                    break;
+                case NEED_UNWRAP:
+                    return true;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    if (!handshakeDone) {
+                        handshakeDone = true;
+                        established();
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    //==========================
+    // Writing
+    //==========================
+
+    /**
+     * Send a line of data to the server. Can be called from any thread, the
+     * data is written on the loop thread.
+     *
+     * @param data
+     */
+    @Override
+    public void send(String data) {
+        data = StringUtil.removeLinebreakCharacters(data);
+        irc.sent(data);
+        pending.add(data);
+        loop.execute(writeTask);
+    }
+
+    /**
+     * Writes all pending lines, coalesced into as few writes as possible.
+     */
+    private void write() {
+        if (!connected || closed) {
+            return;
+        }
+        try {
+            if (ssl == null) {
+                fillOut(netOut);
+            } else {
+                fillOut(appOut);
+                while (appOut.hasRemaining()) {
+                    SSLEngineResult result = wrap(appOut);
+                    if (result.bytesConsumed() == 0) {
+                        break;
+                    }
+                    flushNetOut();
+                    if (netOut.hasRemaining()) {
+                        break;
+                    }
+                    fillOut(appOut);
+                }
+            }
+            flushNetOut();
+        } catch (IOException ex) {
+            info("Error writing to socket: "+ex);
+            if (ex instanceof SSLException) {
+                disconnectReason = Irc.SSL_ERROR;
+                disconnectMessage = ex.getLocalizedMessage();
+            }
+            closeNow();
+        }
+    }
+
+    /**
+     * Adds as many pending lines as fit into the given buffer (which is in
+     * read mode before and after).
+     *
+     * @param buffer
+     */
+    private void fillOut(ByteBuffer buffer) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        buffer.compact();
+        String line;
+        while ((line = pending.peek()) != null) {
+            byte[] bytes = (line+"\r\n").getBytes(CHARSET);
+            if (bytes.length > buffer.remaining()) {
+                if (buffer.position() > 0) {
+                    break;
+                }
+                // Line larger than the buffer, so make room for it
+                buffer.flip();
+                buffer = enlargeOut(buffer, bytes.length);
+            }
+            buffer.put(bytes);
+            pending.poll();
+            activity();
+        }
+        buffer.flip();
+    }
+
+    private ByteBuffer enlargeOut(ByteBuffer buffer, int size) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() + size);
+        bigger.put(buffer);
+        if (buffer == netOut) {
+            netOut = bigger;
+        } else {
+            appOut = bigger;
+        }
+        return bigger;
+    }
+
+    private SSLEngineResult wrap(ByteBuffer source) throws IOException {
+        netOut.compact();
+        try {
+            SSLEngineResult result = ssl.wrap(source, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut.flip();
+                netOut = enlarge(netOut, ssl.getSession().getPacketBufferSize());
+                netOut.compact();
+                result = ssl.wrap(source, netOut);
+            }
+            return result;
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    /**
+     * Writes as much of the outgoing data as possible, and registers for write
+     * events if not everything could be written.
+     *
+     * @throws IOException
+     */
+    private void flushNetOut() throws IOException {
+        if (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        if (!key.isValid()) {
+            return;
+        }
+        boolean more = netOut.hasRemaining()
+                || (!pending.isEmpty() && (ssl == null || handshakeDone));
+        if (more) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minCapacity) {
+        // Buffer in read mode
+        ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(minCapacity, buffer.capacity() * 2));
+        bigger.put(buffer);
+        bigger.flip();
+        return bigger;
+    }
+
+    //==========================
+    // Closing
+    //==========================
+
+    /**
+     * Closes the connection if still connected and cleans up. Any lines that
+     * have already been sent are tried to be written first.
+     */
+    @Override
+    public void close() {
+        loop.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                write();
+                closeNow();
+            }
+        });
+    }
+
+    /**
+     * Closes the connection, must be run on the loop thread.
+     */
+    private void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (connectTimeout != null) {
+            connectTimeout.cancel();
+        }
+        if (checkTimeout != null) {
+            checkTimeout.cancel();
+        }
+        if (connected) {
+            info("Closing socket.");
+            if (ssl != null) {
+                try {
+                    ssl.closeOutbound();
+                    wrap(ByteBuffer.allocate(0));
+                    channel.write(netOut);
+                } catch (IOException ex) {
+                    // Closing anyway
+                }
+            }
+        }
+        closeChannel();
+        if (disconnectReason == -1) {
+            disconnectReason = connected ? Irc.ERROR_CONNECTION_CLOSED : Irc.ERROR_SOCKET_ERROR;
+        }
+        if (disconnectMessage == null) {
+            disconnectMessage = "";
+        }
+        connected = false;
+        irc.disconnected(disconnectReason, disconnectMessage);
+    }
+
+    /**
+     * Connecting failed.
+     *
+     * @param reason
+     * @param message
+     */
+    private void abort(int reason, String message) {
+        if (disconnectReason == -1) {
+            disconnectReason = reason;
+            disconnectMessage = message;
+        }
+        closeNow();
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                warning("Error closing socket: "+ex);
+            }
+        }
+    }
+
+}
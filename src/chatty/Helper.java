@@ -247,7 +247,6 @@ public class Helper {
     
     private static final Replacer HTMLSPECIALCHARS_ENCODE;
     private static final Replacer HTMLSPECIALCHARS_DECODE;
-    private static final Replacer TAGS_VALUE_DECODE;
     
     static {
         Map<String, String> replacements = new HashMap<>();
@@ -262,22 +261,46 @@ public class Helper {
         }
         HTMLSPECIALCHARS_ENCODE = new Replacer(replacementsReverse);
         HTMLSPECIALCHARS_DECODE = new Replacer(replacements);
-        
-        Map<String, String> replacements2 = new HashMap<>();
-        replacements2.put("\\\\s", " ");
-        replacements2.put("\\\\n", "\n");
-        replacements2.put("\\\\r", "\r");
-        replacements2.put("\\\\:", ";");
-        replacements2.put("\\\\\\\\", "\\");
-        
-        TAGS_VALUE_DECODE = new Replacer(replacements2);
     }
     
     public static String tagsvalue_decode(String s) {
         if (s == null) {
             return null;
         }
-        return TAGS_VALUE_DECODE.replace(s);
+        return tagsvalue_decode(s, 0, s.length());
+    }
+    
+    /**
+     * Decodes the escaped IRCv3 tags value in the given range of the String in
+     * a single pass. Unknown escape sequences are kept as they are.
+     * 
+     * @param s The String containing the value
+     * @param start The start of the value (inclusive)
+     * @param end The end of the value (exclusive)
+     * @return The decoded value
+     */
+    public static String tagsvalue_decode(String s, int start, int end) {
+        int escape = s.indexOf('\\', start);
+        if (escape == -1 || escape >= end) {
+            return s.substring(start, end);
+        }
+        StringBuilder b = new StringBuilder(end - start);
+        b.append(s, start, escape);
+        for (int i = escape; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < end) {
+                char next = s.charAt(i + 1);
+                switch (next) {
+                    case 's': b.append(' '); i++; continue;
+                    case 'n': b.append('\n'); i++; continue;
+                    case 'r': b.append('\r'); i++; continue;
+                    case ':': b.append(';'); i++; continue;
+                    case '\\': b.append('\\'); i++; continue;
+                }
+            }
+            b.append(c);
+        }
+        return b.toString();
     }
     
     public static String htmlspecialchars_decode(String s) {
@@ -0,0 +1,524 @@
+package chatty;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Bounded queue of received lines between the thread reading from the socket
+ * and the thread processing the lines, so that reading doesn't have to wait
+ * for processing, but can't get arbitrarily far ahead either.
+ *
+ * The lines are stored in a ring buffer which grows as needed. When the limit
+ * is reached, the overload policy decides what happens:
+ * <ul>
+ * <li>BLOCK - The reader waits until there is room again</li>
+ * <li>COALESCE - Additionally, JOIN/PART of other users are added without
+ * waiting, and of those added while overloaded, only the last per user and
+ * channel is kept (at it's original position, so it is still processed in
+ * order with the other lines)</li>
+ * <li>DROP - Additionally, chat messages the {@link DropFilter} allows to be
+ * dropped (e.g. not highlighted and not in the active channel) are left
+ * out</li>
+ * </ul>
+ * Lines that can't be coalesced or dropped wait for room, except when added
+ * on the shared {@link ConnectionEventLoop} thread (which would stall all
+ * connections) or the EDT (which the processing thread may wait for). Those
+ * lines are added anyway, up to {@code SPILL_FACTOR} times the limit, and
+ * dropped beyond that.
+ *
+ * After processing, the queue also waits for the Event Dispatch Thread to
+ * catch up now and then, so that the work scheduled from processing the lines
+ * can't pile up without bounds there either, and to measure the lag from
+ * receiving a line to the EDT having handled it.
+ *
+ * @author tduva
+ */
+public class InboundQueue implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(InboundQueue.class.getName());
+
+    public enum Overload {
+        BLOCK, COALESCE, DROP
+    }
+
+    /**
+     * Additional room for tasks (e.g. the disconnect) that have to be queued
+     * even if the queue is full with lines.
+     */
+    private static final int TASK_ROOM = 16;
+
+    private static final int INITIAL_SIZE = 256;
+
+    /**
+     * How many times the limit lines may be in the queue when they are added
+     * on a thread that can't wait.
+     */
+    private static final int SPILL_FACTOR = 4;
+
+    /**
+     * Placeholder for a coalesced line that is still in the ring buffer.
+     */
+    private static final Object REMOVED = new Object();
+
+    /**
+     * How often to wait for the EDT (in milliseconds).
+     */
+    private static final int EDT_SYNC_INTERVAL = 100;
+
+    private final String id;
+    private final Handler handler;
+
+    // Ring buffer
+    private Object[] items = new Object[INITIAL_SIZE];
+    private long[] times = new long[INITIAL_SIZE];
+    private int head;
+    private int count;
+    private int lineCount;
+    /**
+     * The number of items ever taken out of the ring buffer, so the position
+     * of an item can be found by the number of items added before it.
+     */
+    private long headSeq;
+
+    private int limit = 10000;
+    private Overload overload = Overload.DROP;
+    private String localNick;
+    private DropFilter dropFilter;
+    private volatile Runnable beforeEdtSync;
+
+    /**
+     * Position of the JOIN/PART lines added while overloaded, by "channel
+     * nick", so a later one for the same user can replace it.
+     */
+    private final Map<String, Long> membership = new HashMap<>();
+    private final IrcMessage overloadParser = new IrcMessage();
+
+    private Thread thread;
+
+    // Only accessed by the processing thread
+    private long lastEdtSync;
+    private long lastProcessedTime;
+
+    /**
+     * Set when the EDT has handled the last sync, accessed with the
+     * {@code edtLock}.
+     */
+    private final Object edtLock = new Object();
+    private boolean edtPending;
+
+    // Stats
+    private int maxDepth;
+    private long processed;
+    private long coalesced;
+    private long dropped;
+    private long spilled;
+    private long blockedTime;
+    private long lag;
+    private long maxLag;
+    private long totalLag;
+    private volatile long edtLag;
+    private volatile long maxEdtLag;
+
+    /**
+     * Creates a new queue, the thread processing the lines is started when the
+     * first line is added.
+     *
+     * @param id Used to name the thread
+     * @param handler Processes the lines
+     */
+    public InboundQueue(String id, Handler handler) {
+        this.id = id;
+        this.handler = handler;
+    }
+
+    /**
+     * Sets the maximum number of lines in the queue.
+     *
+     * @param limit
+     */
+    public synchronized void setLimit(int limit) {
+        this.limit = Math.max(limit, 1);
+        notifyAll();
+    }
+
+    public synchronized void setOverload(Overload overload) {
+        this.overload = overload;
+    }
+
+    /**
+     * Parses the overload policy, which can be "block", "coalesce" or "drop".
+     *
+     * @param value The value to parse
+     * @return The policy, BLOCK if the value is invalid
+     */
+    public static Overload parseOverload(String value) {
+        if ("drop".equalsIgnoreCase(value)) {
+            return Overload.DROP;
+        } else if ("coalesce".equalsIgnoreCase(value)) {
+            return Overload.COALESCE;
+        }
+        return Overload.BLOCK;
+    }
+
+    /**
+     * The name of the local user, whose JOIN/PART are never coalesced.
+     *
+     * @param nick
+     */
+    public synchronized void setLocalNick(String nick) {
+        this.localNick = nick;
+    }
+
+    public synchronized void setDropFilter(DropFilter filter) {
+        this.dropFilter = filter;
+    }
+
+    /**
+     * Run on the processing thread before each EDT sync, e.g. to wait for
+     * lines handed off to other threads, so the EDT work scheduled by those
+     * is limited as well.
+     *
+     * @param task The task, or null
+     */
+    public void setBeforeEdtSync(Runnable task) {
+        this.beforeEdtSync = task;
+    }
+
+    /**
+     * Adds a received line to be processed. This may block if the queue is
+     * full, unless called on a thread that mustn't wait.
+     *
+     * @param line The line
+     */
+    public void add(String line) {
+        long now = System.currentTimeMillis();
+        boolean canWait = canWait();
+        synchronized(this) {
+            Object item = line;
+            if (lineCount >= limit) {
+                item = handleOverload(line);
+                if (item == null) {
+                    return;
+                }
+                // Coalesced lines never wait (at most one per user and
+                // channel is queued)
+                if (lineCount >= limit && !(item instanceof Membership)) {
+                    if (canWait) {
+                        waitForRoom(false);
+                    } else if (lineCount >= limit * SPILL_FACTOR) {
+                        dropped++;
+                        return;
+                    } else {
+                        spilled++;
+                    }
+                }
+            }
+            if (item instanceof Membership) {
+                membership.put(((Membership)item).key, headSeq + count);
+            }
+            enqueue(item, now);
+            lineCount++;
+            maxDepth = Math.max(maxDepth, lineCount);
+        }
+    }
+
+    /**
+     * Adds a task to be run after all lines added so far have been processed.
+     * Tasks only wait for room if a lot of them are queued (and only on
+     * threads that may wait).
+     *
+     * @param task
+     */
+    public void addTask(Runnable task) {
+        long now = System.currentTimeMillis();
+        boolean canWait = canWait();
+        synchronized(this) {
+            if (canWait) {
+                waitForRoom(true);
+            }
+            enqueue(task, now);
+        }
+    }
+
+    /**
+     * Whether the current thread may wait for room in the queue. The event
+     * loop thread is shared by all connections and the processing thread may
+     * wait for the EDT, so neither of those may wait.
+     *
+     * @return
+     */
+    private static boolean canWait() {
+        return !ConnectionEventLoop.isLoopThread()
+                && !SwingUtilities.isEventDispatchThread();
+    }
+
+    private void waitForRoom(boolean task) {
+        long start = -1;
+        while (task ? count >= limit + TASK_ROOM : lineCount >= limit) {
+            if (start == -1) {
+                start = System.currentTimeMillis();
+            }
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (start != -1) {
+            blockedTime += System.currentTimeMillis() - start;
+        }
+    }
+
+    private void enqueue(Object item, long time) {
+        if (count == items.length) {
+            grow();
+        }
+        int index = (head + count) % items.length;
+        items[index] = item;
+        times[index] = time;
+        count++;
+        if (thread == null) {
+            thread = new Thread(this, "Inbound-"+id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    private void grow() {
+        int size = items.length * 2;
+        Object[] newItems = new Object[size];
+        long[] newTimes = new long[size];
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) % items.length;
+            newItems[i] = items[index];
+            newTimes[i] = times[index];
+        }
+        items = newItems;
+        times = newTimes;
+        head = 0;
+    }
+
+    /**
+     * Tries to coalesce or drop the line, according to the overload policy.
+     * When a JOIN/PART is coalesced, the previous one of the same user still
+     * in the queue is removed, and the new one is queued normally.
+     *
+     * @param line The line
+     * @return The item to queue (the line or a {@code Membership}), or null
+     * if the line was dropped
+     */
+    private Object handleOverload(String line) {
+        if (overload == Overload.BLOCK || !overloadParser.parse(line)) {
+            return line;
+        }
+        String command = overloadParser.getCommand();
+        String nick = Irc.getNickFromPrefix(overloadParser.getPrefix());
+        String[] parameters = overloadParser.getParameters();
+        if (nick.isEmpty() || nick.equalsIgnoreCase(localNick)
+                || parameters.length == 0) {
+            return line;
+        }
+        String channel = parameters[0];
+        if (command.equals("JOIN") || command.equals("PART")) {
+            String key = channel+" "+nick;
+            Long previous = membership.remove(key);
+            if (previous != null) {
+                int index = (int)((head + previous - headSeq) % items.length);
+                items[index] = REMOVED;
+                lineCount--;
+                coalesced++;
+            }
+            return new Membership(key, line);
+        }
+        if (command.equals("PRIVMSG") && overload == Overload.DROP
+                && dropFilter != null
+                && dropFilter.canDrop(channel, nick, overloadParser.getTrailing())) {
+            dropped++;
+            return null;
+        }
+        return line;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Object item;
+            long time;
+            synchronized(this) {
+                while (count == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                item = items[head];
+                time = times[head];
+                items[head] = null;
+                head = (head + 1) % items.length;
+                count--;
+                if (item instanceof Membership) {
+                    Membership m = (Membership)item;
+                    Long seq = membership.get(m.key);
+                    if (seq != null && seq == headSeq) {
+                        membership.remove(m.key);
+                    }
+                    item = m.line;
+                }
+                headSeq++;
+                if (item instanceof String) {
+                    lineCount--;
+                }
+                notifyAll();
+            }
+            if (item != REMOVED) {
+                process(item, time);
+            }
+        }
+    }
+
+    private void process(Object item, long time) {
+        long now = System.currentTimeMillis();
+        try {
+            if (item instanceof String) {
+                handler.process((String)item);
+            } else {
+                ((Runnable)item).run();
+            }
+        } catch (Exception ex) {
+            LOGGER.log(Level.WARNING, "Error processing received line", ex);
+        }
+        synchronized(this) {
+            processed++;
+            lag = now - time;
+            totalLag += lag;
+            maxLag = Math.max(maxLag, lag);
+        }
+        lastProcessedTime = time;
+        syncEdt(now);
+    }
+
+    /**
+     * Waits for the previous EDT sync to be handled and schedules a new one,
+     * if enough time has passed since the last one.
+     *
+     * @param now
+     */
+    private void syncEdt(long now) {
+        if (now - lastEdtSync < EDT_SYNC_INTERVAL || SwingUtilities.isEventDispatchThread()) {
+            return;
+        }
+        lastEdtSync = now;
+        Runnable before = beforeEdtSync;
+        if (before != null) {
+            before.run();
+        }
+        synchronized(edtLock) {
+            while (edtPending) {
+                try {
+                    edtLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            edtPending = true;
+        }
+        final long received = lastProcessedTime;
+        SwingUtilities.invokeLater(new Runnable() {
+
+            @Override
+            public void run() {
+                long lag = System.currentTimeMillis() - received;
+                edtLag = lag;
+                maxEdtLag = Math.max(maxEdtLag, lag);
+                synchronized(edtLock) {
+                    edtPending = false;
+                    edtLock.notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * The number of lines currently waiting to be processed.
+     *
+     * @return
+     */
+    public synchronized int getDepth() {
+        return lineCount;
+    }
+
+    /**
+     * The time the last processed line waited in the queue.
+     *
+     * @return The lag in milliseconds
+     */
+    public synchronized long getLag() {
+        return lag;
+    }
+
+    /**
+     * The time from receiving a line until the EDT caught up with the work
+     * scheduled while processing it, as measured by the last sync.
+     *
+     * @return The lag in milliseconds
+     */
+    public long getEdtLag() {
+        return edtLag;
+    }
+
+    public synchronized String getInfo() {
+        return String.format("Inbound: %d/%d (max %d), Lag: %dms (avg %dms, max %dms), "
+                + "EDT lag: %dms (max %dms), Coalesced: %d, Dropped: %d, "
+                + "Spilled: %d, Blocked: %dms",
+                lineCount, limit, maxDepth, lag,
+                processed > 0 ? totalLag / processed : 0, maxLag,
+                edtLag, maxEdtLag, coalesced, dropped, spilled, blockedTime);
+    }
+
+    /**
+     * A JOIN/PART line added while overloaded, which may still be replaced by
+     * a later one of the same user.
+     */
+    private static class Membership {
+
+        private final String key;
+        private final String line;
+
+        Membership(String key, String line) {
+            this.key = key;
+            this.line = line;
+        }
+    }
+
+    public interface Handler {
+
+        /**
+         * Process the received line.
+         *
+         * @param line
+         */
+        public void process(String line);
+    }
+
+    public interface DropFilter {
+
+        /**
+         * Whether this chat message can be left out when overloaded. Called
+         * on the thread that reads from the socket.
+         *
+         * @param channel The channel the message is in
+         * @param nick The name of the user who sent the message
+         * @param text The text of the message
+         * @return true if the message can be dropped
+         */
+        public boolean canDrop(String channel, String nick, String text);
+    }
+
+}
@@ -1,16 +1,16 @@
 
 package chatty;
 
-import chatty.util.DelayedActionQueue;
-import chatty.util.DelayedActionQueue.DelayedActionListener;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
+import javax.net.ssl.SSLContext;
 
 /**
  *
@@ -21,18 +21,43 @@ public abstract class Irc {
     private static final Logger LOGGER = Logger.getLogger(Irc.class.getName());
     
     /**
-     * Delay between JOINs (in milliseconds).
+     * How many addresses to try to connect to at most for one connection
+     * attempt (started one after another, if the previous ones are slow).
      */
-    private static final int JOIN_DELAY = 1200;
+    private static final int MAX_CONNECT_ADDRESSES = 4;
     
     private final AddressManager addressManager = new AddressManager();
-    private final DelayedActionQueue<String> joinQueue
-            = DelayedActionQueue.create(new DelayedJoinAction(), JOIN_DELAY);
+    private final JoinScheduler joinScheduler = new JoinScheduler(new JoinScheduler.Sender() {
+
+        @Override
+        public boolean sendJoin(List<String> channels) {
+            info("JOIN: "+channels);
+            return joinChannelsImmediately(channels);
+        }
+    });
+    
+    private volatile JoinScheduler.Prioritizer joinPrioritizer;
     
     private String nick;
     private String pass;
     
-    private Connection connection;
+    private volatile ServerConnection connection;
+    
+    private final OutboundQueue outbound = new OutboundQueue(new OutboundQueue.Sender() {
+
+        @Override
+        public void sendNow(String line) {
+            ServerConnection c = connection;
+            if (state > STATE_OFFLINE && c != null) {
+                c.send(line);
+            }
+        }
+
+        @Override
+        public boolean isModerator(String channel) {
+            return isModeratorIn(channel);
+        }
+    });
     
     private String quitmessage = "Quit";
     
@@ -42,6 +67,12 @@ public abstract class Irc {
     
     private volatile int state = STATE_OFFLINE;
     
+    private volatile boolean byteLineFraming = true;
+    
+    private volatile boolean useEventLoop = false;
+    
+    private volatile SSLContext sslContext;
+    
     /**
      * State while reconnecting.
      */
@@ -99,7 +130,19 @@ public abstract class Irc {
     private boolean requestedDisconnect = false;
     
     
-    private static final Pattern SPACE_PATTERN = Pattern.compile(" ");
+    /**
+     * Reused for parsing every received message, one per thread, since
+     * messages may be handled on several threads at once. Any data from it
+     * (like the tags) is only valid while the received message is being
+     * handled.
+     */
+    private final ThreadLocal<IrcMessage> message = new ThreadLocal<IrcMessage>() {
+
+        @Override
+        protected IrcMessage initialValue() {
+            return new IrcMessage();
+        }
+    };
     
     private final String id;
     private final String idPrefix;
@@ -135,6 +178,37 @@ public abstract class Irc {
         return state;
     }
     
+    /**
+     * Whether the connection should find lines in the received bytes, instead
+     * of reading char by char. Applies to the next connection.
+     * 
+     * @param byteLineFraming 
+     */
+    public void setByteLineFraming(boolean byteLineFraming) {
+        this.byteLineFraming = byteLineFraming;
+    }
+    
+    /**
+     * Whether the connection should be handled on the shared
+     * {@link ConnectionEventLoop} instead of it's own thread. Applies to the
+     * next connection.
+     * 
+     * @param useEventLoop 
+     */
+    public void setUseEventLoop(boolean useEventLoop) {
+        this.useEventLoop = useEventLoop;
+    }
+    
+    /**
+     * The SSL context to use for secured connections, instead of the default
+     * one. Applies to the next connection.
+     * 
+     * @param sslContext The context, or null to use the default
+     */
+    public void setSSLContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+    
     public boolean isRegistered() {
         return state == STATE_REGISTERED;
     }
@@ -187,8 +261,8 @@ public abstract class Irc {
     
     /**
      * Connects to a server using the given credentials. This starts a new
-     * Thread, running the Connection class, after checking if already
-     * connected.
+     * Thread, running the Connection class (or adds the connection to the event
+     * loop), after checking if already connected.
      * 
      * @param server The ip or host of the server
      * @param port The port of the server
@@ -207,20 +281,21 @@ public abstract class Irc {
             return;
         }
         
-        InetSocketAddress address = null;
+        List<InetSocketAddress> addresses;
         try {
-            address = addressManager.getAddress(server, port);
+            addresses = addressManager.getAddresses(server, port);
         } catch (UnknownHostException ex) {
             onConnectionAttempt(server, -1, false);
             warning("Could not resolve host: "+server);
             disconnected(ERROR_UNKNOWN_HOST);
             return;
         }
-        if (address == null) {
+        if (addresses.isEmpty()) {
             onConnectionAttempt(null, -1, false);
             warning("Invalid address: "+server+":"+port);
             return;
         }
+        InetSocketAddress address = addresses.get(0);
 
         state = STATE_CONNECTING;
         
@@ -232,12 +307,35 @@ public abstract class Irc {
         // and sent once the initial connection has been established.
         //System.out.println(securedPorts+" "+address.getPort());
         boolean secured = securedPorts.contains(address.getPort());
+        
+        // Other addresses to try at the same time, if the first is slow
+        List<InetSocketAddress> candidates = new ArrayList<>();
+        for (InetSocketAddress candidate : addresses) {
+            if (securedPorts.contains(candidate.getPort()) == secured
+                    && candidates.size() < MAX_CONNECT_ADDRESSES) {
+                candidates.add(candidate);
+            }
+        }
         onConnectionAttempt(address.getHostString(), address.getPort(), secured);
-        connection = new Connection(this,address, id, secured);
-        new Thread(connection).start();
+        connection = createConnection(candidates, secured);
+        connection.start();
     }
     
     
+    private ServerConnection createConnection(List<InetSocketAddress> addresses,
+            boolean secured) {
+        if (useEventLoop) {
+            try {
+                return new EventLoopConnection(ConnectionEventLoop.get(), this,
+                        addresses.get(0), id, secured, sslContext);
+            } catch (IOException ex) {
+                warning("Could not start event loop, using regular connection: "+ex);
+            }
+        }
+        return new Connection(this, addresses, id, secured, sslContext,
+                byteLineFraming);
+    }
+    
     /**
      * Disconnect if connected.
      */
@@ -259,23 +357,6 @@ public abstract class Irc {
         sendCommand("QUIT",quitmessage);
     }
     
-    private static Map<String, String> parseTags(String data) {
-        String[] tags = data.split(";");
-        if (tags.length > 0) {
-            Map<String, String> result = new HashMap<>();
-            for (String tag : tags) {
-                String[] keyValue = tag.split("=",2);
-                if (keyValue.length == 2) {
-                    result.put(keyValue[0], Helper.tagsvalue_decode(keyValue[1]));
-                } else {
-                    result.put(keyValue[0], null);
-                }
-            }
-            return result;
-        }
-        return null;
-    }
-    
     public void simulate(String data) {
         received(data);
     }
@@ -291,66 +372,14 @@ public abstract class Irc {
         }
         raw(data);
         
-        Map<String, String> tags = null;
-        if (data.startsWith("@")) {
-            int endOfTags = data.indexOf(" ");
-            if (endOfTags == -1) {
-                warning("Parsing error: Couldn't find whitespace after tags: "+data);
-                return;
-            }
-            tags = parseTags(data.substring(1, endOfTags));
-            data = data.substring(endOfTags+1);
-        }
-        //System.out.println("Tags: "+tags);
-        
-        String prefix = "";
-        String command;
-        String[] parameters = new String[0];
-        String trailing = "";
-        
-        int endOfPrefix = 0;
-        int endOfCommand = 0;
-        
-        // Get prefix if available
-        if (data.startsWith(":")) {
-            endOfPrefix = data.indexOf(" ");
-            if (endOfPrefix == -1) {
-                warning("Parsing error: Couldn't find whitespace after prefix: "+data);
-                return;
-            }
-            prefix = data.substring(1,endOfPrefix);
-        }
-        
-        // Find and get trailing if available
-        endOfCommand = data.indexOf(":",endOfPrefix);
-        if (endOfCommand == -1) {
-            // No trailing, so the command takes up the remaining length
-            endOfCommand = data.length();
-        }
-        else {
-            trailing = data.substring(endOfCommand+1,data.length());
-        }
-        
-        // Get commands and parameters
-        String commandAndParameter = data.substring(endOfPrefix,endOfCommand).trim();
-        // Trying precompiled Pattern, but may not change the performance
-        // that much (it's an easy Pattern after all)
-        String[] parts = SPACE_PATTERN.split(commandAndParameter);
-        //String[] parts = commandAndParameter.split(" ");
-        if (parts.length > 1) {
-            // Get parameters if available
-            parameters = new String[parts.length - 1];
-            System.arraycopy(parts, 1, parameters, 0, parts.length - 1);
+        IrcMessage parsed = message.get();
+        if (!parsed.parse(data)) {
+            warning("Parsing error: "+parsed.getError()+": "+data);
+            return;
         }
-        // First part must be command
-        command = parts[0];
-        
-        // An exception shouldn't happen unless the message is malformed (hopefully :P)
-//        try {
-            receivedCommand(prefix,command,parameters,trailing, tags);
-//        } catch (NullPointerException | ArrayIndexOutOfBoundsException ex) {
-//            warning("Error parsing irc message: "+data+" ["+ex+"]");
-//        }
+        receivedCommand(parsed.getPrefix(), parsed.getCommand(),
+                parsed.getParameters(), parsed.getTrailing(),
+                parsed.getTags());
     }
     
     /**
@@ -377,111 +406,113 @@ public abstract class Irc {
             }
         }
         
-        if (command.equals("PING")) {
-            sendCommand("PONG",trailing);
-        }
-        
-        if (command.equals("PRIVMSG") && !trailing.isEmpty()) {
-            if (parameters.length == 0) {
-                /**
-                 * For hosting message, which is as follows (no channel/name as
-                 * PRIVMSG target):
-                 * :jtv!jtv@jtv.tmi.twitch.tv PRIVMSG  :tduvatest is now hosting you for 0 viewers. [0]
-                 */
-                onQueryMessage(nick, prefix, trailing);
-            } else if (parameters[0].startsWith("#")) {
-                //System.out.println((int)trailing.charAt(0));
-                //filter.reset(trailing).replaceAll("?");
-                if (trailing.charAt(0) == (char)1 && trailing.startsWith("ACTION", 1)) {
-                    onChannelMessage(parameters[0], nick, prefix, trailing.substring(7).trim(), tags, true);
+        // Switch on String looks up the command by hash, instead of going
+        // through all commands
+        switch (command) {
+            case "PING":
+                sendCommand("PONG",trailing);
+                break;
+            case "PRIVMSG":
+                if (!trailing.isEmpty()) {
+                    receivedPrivmsg(nick, prefix, parameters, trailing, tags);
+                }
+                break;
+            case "NOTICE":
+                if (parameters.length == 1) {
+                    if (!parameters[0].startsWith("#")) {
+                        onNotice(nick, prefix, trailing);
+                    } else {
+                        onNotice(parameters[0], trailing, tags);
+                    }
                 } else {
-                    onChannelMessage(parameters[0], nick, prefix, trailing, tags, false);
+                    LOGGER.info("Unknown info message: "+trailing);
                 }
-            } else {
-                onQueryMessage(nick, prefix, trailing);
-            }
-        }
-        if (command.equals("NOTICE")) {
-            if (parameters.length == 1) {
-                if (!parameters[0].startsWith("#")) {
-                    onNotice(nick, prefix, trailing);
+                break;
+            case "JOIN":
+                if (trailing.isEmpty() && parameters.length > 0) {
+                    onJoin(parameters[0], nick, prefix);
                 } else {
-                    onNotice(parameters[0], trailing, tags);
+                    onJoin(trailing, nick, prefix);
                 }
-            } else {
-                LOGGER.info("Unknown info message: "+trailing);
-            }
-        }
-        if (command.equals("JOIN")) {
-            if (trailing.isEmpty() && parameters.length > 0) {
-                onJoin(parameters[0], nick, prefix);
-            } else {
-                onJoin(trailing, nick, prefix);
-            }
-        }
-        else if (command.equals("PART")) {
-            if (parameters.length == 1) {
-                onPart(parameters[0], nick, prefix, trailing);
-            }
-        }
-        else if (command.equals("MODE")) {
-            if (parameters.length == 3) {
-                String chan = parameters[0];
-                String mode = parameters[1];
-                String name = parameters[2];
-                
-                if (mode.length() == 2) {
-                    String modeChar = mode.substring(1, 2);
-                    if (mode.startsWith("+")) {
-                        onModeChange(chan,name,true,modeChar, prefix);
+                break;
+            case "PART":
+                if (parameters.length == 1) {
+                    onPart(parameters[0], nick, prefix, trailing);
+                }
+                break;
+            case "MODE":
+                if (parameters.length == 3) {
+                    String chan = parameters[0];
+                    String mode = parameters[1];
+                    String name = parameters[2];
+
+                    if (mode.length() == 2) {
+                        String modeChar = mode.substring(1, 2);
+                        if (mode.startsWith("+")) {
+                            onModeChange(chan,name,true,modeChar, prefix);
+                        }
+                        else if (mode.startsWith("-")) {
+                            onModeChange(chan,name,false,modeChar, prefix);
+                        }
                     }
-                    else if (mode.startsWith("-")) {
-                        onModeChange(chan,name,false,modeChar, prefix);
+                }
+                break;
+            // Now the connection is really going.. ;)
+            case "004":
+                setState(STATE_REGISTERED);
+                onRegistered();
+                break;
+            // Nick list, usually on channel join
+            case "353":
+                if (parameters.length == 3 && parameters[1].equals("=") && parameters[2].startsWith("#")) {
+                    String[] names = trailing.split(" ");
+                    onUserlist(parameters[2],names);
+                }
+                break;
+            // WHO response not really correct now
+            case "352":
+                break;
+            case "USERSTATE":
+                if (tags != null && parameters.length > 0 && parameters[0].startsWith("#")) {
+                    String channel = parameters[0];
+                    onUserstate(channel, tags);
+                }
+                break;
+            case "GLOBALUSERSTATE":
+                if (tags != null) {
+                    onGlobalUserstate(tags);
+                }
+                break;
+            case "CLEARCHAT":
+                if (parameters.length == 1 && parameters[0].startsWith("#")) {
+                    String channel = parameters[0];
+                    if (trailing.isEmpty()) {
+                        onClearChat(channel, null);
+                    } else {
+                        onClearChat(channel, trailing);
                     }
-                    
                 }
-            }
-        }
-        // Now the connection is really going.. ;)
-        else if (command.equals("004")) {
-            setState(STATE_REGISTERED);
-            onRegistered();
-        }
-        // Nick list, usually on channel join
-        else if (command.equals("353")) {
-            if (parameters.length == 3 && parameters[1].equals("=") && parameters[2].startsWith("#")) {
-                String[] names = trailing.split(" ");
-                onUserlist(parameters[2],names);
-            }
-            
-        }
-        // WHO response not really correct now
-        else if (command.equals("352")) {
-            String[] parts = trailing.split(" ");
-            if (parts.length > 1) {
-                //onWhoResponse(parts[0],parts[1]);
-            }
+                break;
         }
-        else if (command.equals("USERSTATE")) {
-            if (tags != null && parameters.length > 0 && parameters[0].startsWith("#")) {
-                String channel = parameters[0];
-                onUserstate(channel, tags);
-            }
-        }
-        else if (command.equals("GLOBALUSERSTATE")) {
-            if (tags != null) {
-                onGlobalUserstate(tags);
-            }
-        }
-        else if (command.equals("CLEARCHAT")) {
-            if (parameters.length == 1 && parameters[0].startsWith("#")) {
-                String channel = parameters[0];
-                if (trailing.isEmpty()) {
-                    onClearChat(channel, null);
-                } else {
-                    onClearChat(channel, trailing);
-                }
+    }
+    
+    private void receivedPrivmsg(String nick, String prefix,
+            String[] parameters, String trailing, Map<String, String> tags) {
+        if (parameters.length == 0) {
+            /**
+             * For hosting message, which is as follows (no channel/name as
+             * PRIVMSG target):
+             * :jtv!jtv@jtv.tmi.twitch.tv PRIVMSG  :tduvatest is now hosting you for 0 viewers. [0]
+             */
+            onQueryMessage(nick, prefix, trailing);
+        } else if (parameters[0].startsWith("#")) {
+            if (trailing.charAt(0) == (char)1 && trailing.startsWith("ACTION", 1)) {
+                onChannelMessage(parameters[0], nick, prefix, trailing.substring(7).trim(), tags, true);
+            } else {
+                onChannelMessage(parameters[0], nick, prefix, trailing, tags, false);
             }
+        } else {
+            onQueryMessage(nick, prefix, trailing);
         }
     }
     
@@ -491,7 +522,7 @@ public abstract class Irc {
      * @param sender
      * @return 
      */
-    public String getNickFromPrefix(String sender) {
+    public static String getNickFromPrefix(String sender) {
         int endOfNick = sender.indexOf("!");
         if (endOfNick == -1) {
             return sender;
@@ -512,13 +543,27 @@ public abstract class Irc {
     }
     
     /**
-     * Joins {@code channel} on a queue, that puts some time between each join.
+     * Joins {@code channel} on a queue, that joins channels as fast as the
+     * join limit allows.
      * 
      * @param channel The name of the channel to join
      */
     public void joinChannel(String channel) {
         info("JOINING: " + channel);
-        joinQueue.add(channel);
+        JoinScheduler.Prioritizer p = joinPrioritizer;
+        joinScheduler.add(channel, p != null && p.isPriority(channel));
+    }
+    
+    /**
+     * Joins all the given channels on the join queue, which may join several
+     * channels in one line.
+     * 
+     * @param channels The names of the channels to join
+     */
+    public void joinChannels(Collection<String> channels) {
+        for (String channel : channels) {
+            joinChannel(channel);
+        }
     }
     
     /**
@@ -540,17 +585,68 @@ public abstract class Irc {
     }
     
     /**
-     * Listener for the join queue, which is called when the next channel can
-     * be joined.
+     * Join several channels in one line. The channels must already start with
+     * # and the line must not be too long.
+     * 
+     * @param channels 
+     * @return true if the line was sent, false if not registered
      */
-    private class DelayedJoinAction implements DelayedActionListener<String> {
-
-        @Override
-        public void actionPerformed(String item) {
-            info("JOIN: "+item+" (delayed)");
-            joinChannelImmediately(item);
+    private boolean joinChannelsImmediately(List<String> channels) {
+        if (state >= STATE_REGISTERED && !channels.isEmpty()) {
+            StringBuilder b = new StringBuilder("JOIN ");
+            for (String channel : channels) {
+                if (b.length() > 5) {
+                    b.append(",");
+                }
+                b.append(channel);
+            }
+            // Before sending, since the JOIN may be received back before
+            // send() returns
+            for (String channel : channels) {
+                onJoinAttempt(channel);
+            }
+            send(b.toString());
+            return true;
         }
-        
+        return false;
+    }
+    
+    /**
+     * Sets the join limit in the format "joins/seconds".
+     * 
+     * @param limit 
+     * @see JoinScheduler#setLimit(String)
+     */
+    public void setJoinLimit(String limit) {
+        joinScheduler.setLimit(limit);
+    }
+    
+    /**
+     * Counts the joins of this connection towards the same join limit as the
+     * given connection.
+     * 
+     * @param other 
+     */
+    public void shareJoinLimit(Irc other) {
+        joinScheduler.shareLimit(other.joinScheduler);
+    }
+    
+    /**
+     * Sets what decides which queued channels are joined first.
+     * 
+     * @param prioritizer The prioritizer, or null to join in order
+     */
+    public void setJoinPrioritizer(JoinScheduler.Prioritizer prioritizer) {
+        this.joinPrioritizer = prioritizer;
+    }
+    
+    /**
+     * Info about the join queue.
+     * 
+     * @return 
+     */
+    public String getJoinInfo() {
+        return joinScheduler.getInfo();
     }
     
     /**
@@ -562,6 +658,7 @@ public abstract class Irc {
         if (!channel.startsWith("#")) {
             channel = "#"+channel;
         }
+        joinScheduler.remove(channel);
         send("PART "+channel);
     }
     
@@ -579,12 +676,38 @@ public abstract class Irc {
         send("PRIVMSG "+to+" :"+(char)1+"ACTION "+message+(char)1);
     }
     
-    synchronized public void send(String data) {
+    /**
+     * Sends the line to the server. Chat messages may be delayed to stay within
+     * the message limits.
+     * 
+     * @param data 
+     */
+    public void send(String data) {
         if (state > STATE_OFFLINE) {
-            connection.send(data);
+            outbound.add(data);
         }
     }
     
+    /**
+     * Sets the message limits in the format "messages/seconds".
+     * 
+     * @param limit The regular limit
+     * @param modLimit The limit in channels with moderator rights
+     * @see OutboundQueue#setLimits(String, String)
+     */
+    public void setMessageLimits(String limit, String modLimit) {
+        outbound.setLimits(limit, modLimit);
+    }
+    
+    /**
+     * Info about the queue of outgoing messages.
+     * 
+     * @return 
+     */
+    public String getOutboundInfo() {
+        return outbound.getInfo();
+    }
+    
     /**
      * Called from the Connection Thread once the initial connection has
      * been established without an error.
@@ -621,16 +744,24 @@ public abstract class Irc {
     protected void disconnected(int reason, String reasonMessage) {
         // Clear any potential join queue, so it doesn't carry over to the next
         // connection
-        joinQueue.clear();
+        joinScheduler.clear();
+        outbound.clear();
         
         // Retrieve state before changing it, but must be changed before calling
         // onDisconnect() which might check the state when trying to reconnect
         int oldState = getState();
         setState(Irc.STATE_OFFLINE);
         
-        // If connecting failed, then add it as an error
+        // If connecting failed, then add it as an error (every address that
+        // was tried, or only the one that connected if registering failed)
         if (!requestedDisconnect && oldState != STATE_REGISTERED && connection != null) {
-            addressManager.addError(connection.getAddress());
+            List<InetSocketAddress> failed = connection.getFailedAddresses();
+            for (InetSocketAddress address : failed) {
+                addressManager.addError(address);
+            }
+            if (oldState == STATE_CONNECTED || failed.isEmpty()) {
+                addressManager.addError(connection.getAddress());
+            }
         }
 
         if (requestedDisconnect) {
@@ -698,6 +829,15 @@ public abstract class Irc {
     
     void onClearChat(String channel, String name) { }
     
+    /**
+     * Whether the local user has moderator rights in the given channel, which
+     * allows more messages to be sent.
+     * 
+     * @param channel
+     * @return 
+     */
+    boolean isModeratorIn(String channel) { return false; }
+    
     void onChannelCommand(Map<String, String> tags, String nick, String channel, String command, String trailing) { }
     
     void onCommand(String nick, String command, String parameter, String text, Map<String, String> tags) { }
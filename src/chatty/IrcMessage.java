@@ -0,0 +1,344 @@
+package chatty;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A parsed IRC message. The tags are not parsed upfront, only the position of
+ * the tags in the raw line is stored and the value of a tag is only looked up
+ * and decoded when it is actually requested.
+ *
+ * An instance can be reused by calling {@link #parse(String)} again, which
+ * means that any data retrieved from it (including the tags {@code Map}) is
+ * only valid until the next message is parsed. This is not thread-safe.
+ *
+ * @author tduva
+ */
+public class IrcMessage {
+
+    private static final String[] NO_PARAMETERS = new String[0];
+
+    private final Tags tags = new Tags();
+
+    private String raw;
+    private String error;
+
+    /**
+     * Start (after the @) and end of the tags in the raw line, -1 if no tags
+     * are present.
+     */
+    private int tagsStart;
+    private int tagsEnd;
+
+    private String prefix;
+    private String command;
+    private String[] parameters;
+    private String trailing;
+
+    /**
+     * Parses the given line, replacing any data of the previously parsed line.
+     *
+     * @param line The raw line, can't be {@code null}
+     * @return true if the line could be parsed, false otherwise (see
+     * {@link #getError()})
+     */
+    public boolean parse(String line) {
+        raw = line;
+        error = null;
+        tagsStart = -1;
+        tagsEnd = -1;
+        prefix = "";
+        command = null;
+        parameters = NO_PARAMETERS;
+        trailing = "";
+        tags.clearCache();
+
+        int start = 0;
+        if (line.startsWith("@")) {
+            int endOfTags = line.indexOf(' ');
+            if (endOfTags == -1) {
+                error = "Couldn't find whitespace after tags";
+                return false;
+            }
+            tagsStart = 1;
+            tagsEnd = endOfTags;
+            start = endOfTags + 1;
+        }
+
+        // Get prefix if available
+        int endOfPrefix = start;
+        if (line.startsWith(":", start)) {
+            endOfPrefix = line.indexOf(' ', start);
+            if (endOfPrefix == -1) {
+                error = "Couldn't find whitespace after prefix";
+                return false;
+            }
+            prefix = line.substring(start + 1, endOfPrefix);
+        }
+
+        // Find and get trailing if available
+        int endOfCommand = line.indexOf(':', endOfPrefix);
+        if (endOfCommand == -1) {
+            // No trailing, so the command takes up the remaining length
+            endOfCommand = line.length();
+        } else {
+            trailing = line.substring(endOfCommand + 1);
+        }
+
+        // Trim command and parameters (like String.trim())
+        int cmdStart = endOfPrefix;
+        int cmdEnd = endOfCommand;
+        while (cmdStart < cmdEnd && line.charAt(cmdStart) <= ' ') {
+            cmdStart++;
+        }
+        while (cmdEnd > cmdStart && line.charAt(cmdEnd - 1) <= ' ') {
+            cmdEnd--;
+        }
+
+        // First part is the command, the other parts are the parameters
+        int endOfCommandName = line.indexOf(' ', cmdStart);
+        if (endOfCommandName == -1 || endOfCommandName >= cmdEnd) {
+            command = line.substring(cmdStart, cmdEnd);
+        } else {
+            command = line.substring(cmdStart, endOfCommandName);
+            int count = 1;
+            for (int i = endOfCommandName + 1; i < cmdEnd; i++) {
+                if (line.charAt(i) == ' ') {
+                    count++;
+                }
+            }
+            parameters = new String[count];
+            int partStart = endOfCommandName + 1;
+            for (int i = 0; i < count; i++) {
+                int partEnd = line.indexOf(' ', partStart);
+                if (partEnd == -1 || partEnd > cmdEnd) {
+                    partEnd = cmdEnd;
+                }
+                parameters[i] = line.substring(partStart, partEnd);
+                partStart = partEnd + 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the channel a raw line refers to, without fully parsing it. This
+     * is the first parameter (not counting the trailing) that starts with a
+     * "#", so it also works for replies like "353 nick = #channel".
+     *
+     * @param line The raw line
+     * @return The channel, or null if none was found
+     */
+    public static String findChannel(String line) {
+        int pos = 0;
+        if (line.startsWith("@")) {
+            pos = line.indexOf(' ');
+            if (pos == -1) {
+                return null;
+            }
+            pos++;
+        }
+        if (line.startsWith(":", pos)) {
+            pos = line.indexOf(' ', pos);
+            if (pos == -1) {
+                return null;
+            }
+            pos++;
+        }
+        // Skip command
+        pos = line.indexOf(' ', pos);
+        while (pos != -1) {
+            pos++;
+            if (pos >= line.length() || line.charAt(pos) == ':') {
+                return null;
+            }
+            int end = line.indexOf(' ', pos);
+            if (end == -1) {
+                end = line.length();
+            }
+            if (line.charAt(pos) == '#') {
+                return line.substring(pos, end);
+            }
+            pos = end < line.length() ? end : -1;
+        }
+        return null;
+    }
+
+    public String getRaw() {
+        return raw;
+    }
+
+    /**
+     * The reason why parsing failed.
+     *
+     * @return The error, or {@code null} if parsing didn't fail
+     */
+    public String getError() {
+        return error;
+    }
+
+    public boolean hasTags() {
+        return tagsStart != -1;
+    }
+
+    /**
+     * A read-only view of the tags of this message, decoding the value of a tag
+     * when it is requested.
+     *
+     * @return The tags, or {@code null} if the message has no tags
+     */
+    public Map<String, String> getTags() {
+        return hasTags() ? tags : null;
+    }
+
+    /**
+     * The prefix (without the leading :).
+     *
+     * @return The prefix, empty if none was present
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * The parameters between the command and the trailing.
+     *
+     * @return The parameters, may be empty
+     */
+    public String[] getParameters() {
+        return parameters;
+    }
+
+    /**
+     * The trailing (without the leading :).
+     *
+     * @return The trailing, empty if none was present
+     */
+    public String getTrailing() {
+        return trailing;
+    }
+
+    /**
+     * Finds the value of the given tag in the raw line.
+     *
+     * @param key The name of the tag
+     * @return The index of the value (which may be the end of the tag, if it
+     * has no value), -1 if the tag isn't present
+     */
+    private int findTag(String key) {
+        if (tagsStart == -1) {
+            return -1;
+        }
+        int length = key.length();
+        int pos = tagsStart;
+        while (pos < tagsEnd) {
+            int end = raw.indexOf(';', pos);
+            if (end == -1 || end > tagsEnd) {
+                end = tagsEnd;
+            }
+            if (pos + length <= end && raw.regionMatches(pos, key, 0, length)) {
+                if (pos + length == end) {
+                    return end;
+                }
+                if (raw.charAt(pos + length) == '=') {
+                    return pos + length;
+                }
+            }
+            pos = end + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the decoded value starting at the given index (which should be the
+     * index of the = or the end of the tag).
+     *
+     * @param pos
+     * @return The value, or {@code null} if the tag has no value
+     */
+    private String getTagValue(int pos) {
+        if (pos >= tagsEnd || raw.charAt(pos) != '=') {
+            return null;
+        }
+        int end = raw.indexOf(';', pos);
+        if (end == -1 || end > tagsEnd) {
+            end = tagsEnd;
+        }
+        return Helper.tagsvalue_decode(raw, pos + 1, end);
+    }
+
+    /**
+     * Map view of the tags. Single tags are looked up directly in the raw
+     * line, only when all entries are requested a regular {@code Map} is
+     * created (once per message).
+     */
+    private class Tags extends AbstractMap<String, String> {
+
+        private Map<String, String> all;
+
+        private void clearCache() {
+            all = null;
+        }
+
+        @Override
+        public String get(Object key) {
+            if (all != null) {
+                return all.get(key);
+            }
+            if (!(key instanceof String)) {
+                return null;
+            }
+            int pos = findTag((String)key);
+            if (pos == -1) {
+                return null;
+            }
+            return getTagValue(pos);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (all != null) {
+                return all.containsKey(key);
+            }
+            return key instanceof String && findTag((String)key) != -1;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            if (all == null) {
+                all = parseAll();
+            }
+            return all.entrySet();
+        }
+
+        private Map<String, String> parseAll() {
+            Map<String, String> result = new LinkedHashMap<>();
+            int pos = tagsStart;
+            // Same as splitting, an empty tags part still results in one tag
+            while (pos < tagsEnd || pos == tagsStart) {
+                int end = raw.indexOf(';', pos);
+                if (end == -1 || end > tagsEnd) {
+                    end = tagsEnd;
+                }
+                int equals = raw.indexOf('=', pos);
+                if (equals == -1 || equals > end) {
+                    result.put(raw.substring(pos, end).intern(), null);
+                } else {
+                    result.put(raw.substring(pos, equals).intern(),
+                            Helper.tagsvalue_decode(raw, equals + 1, end));
+                }
+                pos = end + 1;
+            }
+            return Collections.unmodifiableMap(result);
+        }
+
+    }
+
+}
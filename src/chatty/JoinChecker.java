@@ -1,19 +1,24 @@
 
 package chatty;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.logging.Logger;
 
 /**
- * On a connection attempt a timer can be started that will join the channel
- * again, unless the timer is canceled, which can be done if the channel join
+ * On a connection attempt a check can be scheduled that will join the channel
+ * again, unless the check is canceled, which can be done if the channel join
  * actually succeeds.
  * 
+ * All channels share one timer, and channels whose checks are due at about the
+ * same time are joined again together, so that the join queue can join them in
+ * as few lines as possible.
+ * 
  * @author tduva
  */
 public class JoinChecker {
@@ -27,20 +32,31 @@ public class JoinChecker {
     private static final int[] DELAY = new int[]{4, 4, 7, 15, 30, 30, 30, 120,
                                 120, 120, 120, 300};
     
+    /**
+     * Checks due within this time (in milliseconds) after the earliest check
+     * are performed together with it.
+     */
+    private static final int BATCH_WINDOW = 2000;
+    
     private final Irc irc;
     
+    private final Timer timer = new Timer("JoinChecker", true);
+    
     /**
-     * Map of timers for channels.
+     * Map of channels to the time the check is due.
      */
-    private final HashMap<String, Timer> pendingChecks = new HashMap<>();
+    private final Map<String, Long> pendingChecks = new HashMap<>();
     private final Map<String, Integer> joinAttempts = new HashMap<>();
     
+    private TimerTask scheduled;
+    private long scheduledTime;
+    
     public JoinChecker(Irc irc) {
         this.irc = irc;
     }
     
     /**
-     * Starts a timer that will JOIN {@code channel} once it runs out.
+     * Schedules a check that will JOIN {@code channel} once it is due.
      * 
      * @param channel The name of the channel to start the timer for
      */
@@ -53,41 +69,79 @@ public class JoinChecker {
         } else {
             delay = DELAY[count - 1];
         }
-
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
+        long due = System.currentTimeMillis() + delay*1000;
+        pendingChecks.put(channel, due);
+        joinAttempts.put(channel, count);
+        if (scheduled == null || due < scheduledTime) {
+            schedule(due);
+        }
+    }
+    
+    /**
+     * Joins all channels whose checks are due (or will be soon) again and
+     * schedules the next check. Joining happens outside the lock, since it may
+     * cause new join attempts from other threads.
+     */
+    private void check() {
+        List<String> channels = new ArrayList<>();
+        synchronized(this) {
+            scheduled = null;
+            long batchEnd = System.currentTimeMillis() + BATCH_WINDOW;
+            long next = -1;
+            Iterator<Map.Entry<String, Long>> it = pendingChecks.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                if (entry.getValue() <= batchEnd) {
+                    channels.add(entry.getKey());
+                    it.remove();
+                } else if (next == -1 || entry.getValue() < next) {
+                    next = entry.getValue();
+                }
+            }
+            if (next != -1) {
+                schedule(next);
+            }
+        }
+        if (!channels.isEmpty()) {
+            LOGGER.warning("Join may have failed "+channels);
+            irc.joinChannels(channels);
+        }
+    }
+    
+    private void schedule(long time) {
+        if (scheduled != null) {
+            scheduled.cancel();
+        }
+        scheduled = new TimerTask() {
 
             @Override
             public void run() {
-                LOGGER.warning("Join may have failed ("+channel+")");
-                irc.joinChannel(channel);
+                check();
             }
-        }, delay*1000);
-        
-        pendingChecks.put(channel, timer);
-        joinAttempts.put(channel, count);
+        };
+        scheduledTime = time;
+        timer.schedule(scheduled, Math.max(0, time - System.currentTimeMillis()));
     }
     
     /**
-     * Cancels the timer for {@code channel} if one was running.
+     * Cancels the check for {@code channel} if one was pending.
      * 
-     * @param channel Then name of the channel to cancel the timer for
+     * @param channel Then name of the channel to cancel the check for
      */
     public synchronized void cancel(String channel) {
-        Timer timer = pendingChecks.remove(channel);
-        if (timer != null) {
-            timer.cancel();
-        }
+        pendingChecks.remove(channel);
         joinAttempts.remove(channel);
     }
     
     /**
-     * Stops all timers.
+     * Stops all checks.
      */
     public synchronized void cancelAll() {
-        Set<String> toRemove = new HashSet<>(pendingChecks.keySet());
-        for (String channel : toRemove) {
-            cancel(channel);
+        pendingChecks.clear();
+        joinAttempts.clear();
+        if (scheduled != null) {
+            scheduled.cancel();
+            scheduled = null;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,286 @@
+package chatty;
+
+import chatty.util.RateLimiter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Joins channels as fast as the server join limit allows. Instead of waiting
+ * a fixed time between each JOIN, the joins are counted in a sliding window,
+ * so a burst of channels can be joined right away, and only the channels
+ * exceeding the limit are joined later.
+ *
+ * Channels added shortly after each other are collected and joined in as few
+ * lines as possible ({@code JOIN #a,#b,#c}). Priority channels (e.g. the
+ * active channel or favorites) are joined before all other queued channels.
+ *
+ * @author tduva
+ */
+public class JoinScheduler {
+
+    /**
+     * Shared by all schedulers to join delayed channels.
+     */
+    private static final Timer TIMER = new Timer("JoinScheduler", true);
+
+    /**
+     * How long to wait for more channels to be added before joining (in
+     * milliseconds).
+     */
+    private static final int BATCH_DELAY = 100;
+
+    /**
+     * Maximum length of a JOIN line, leaving some room below the IRC line
+     * limit of 512 (including CRLF).
+     */
+    private static final int MAX_LINE_LENGTH = 500;
+
+    private final Sender sender;
+    private RateLimiter limiter = new RateLimiter(20, 10*1000);
+    private final LinkedHashSet<String> priorityQueue = new LinkedHashSet<>();
+    private final LinkedHashSet<String> queue = new LinkedHashSet<>();
+
+    private TimerTask scheduled;
+
+    // Stats
+    private long joinCount;
+    private long lineCount;
+
+    public JoinScheduler(Sender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Sets the join limit in the format "joins/seconds", invalid values are
+     * ignored and 0 means no limit.
+     *
+     * @param limit
+     */
+    public void setLimit(String limit) {
+        long[] parsed = RateLimiter.parse(limit);
+        if (parsed != null) {
+            // Not while holding this lock (drain() locks limiter first)
+            RateLimiter current;
+            synchronized(this) {
+                current = limiter;
+            }
+            current.setLimit((int)parsed[0], parsed[1]);
+        }
+    }
+
+    /**
+     * Uses the same limiter as the given scheduler, for connections that share
+     * the same join limit (e.g. because they are logged in with the same
+     * account).
+     *
+     * @param other The scheduler to share the limiter with
+     */
+    public void shareLimit(JoinScheduler other) {
+        RateLimiter shared;
+        synchronized(other) {
+            shared = other.limiter;
+        }
+        synchronized(this) {
+            limiter = shared;
+        }
+    }
+
+    /**
+     * Adds a channel to be joined. If the channel is already queued, it is
+     * only moved to the priority channels if {@code priority} is true.
+     *
+     * @param channel The channel to join (# is added if not there)
+     * @param priority Whether to join this before non-priority channels
+     */
+    public synchronized void add(String channel, boolean priority) {
+        channel = prepareChannel(channel);
+        if (priority) {
+            queue.remove(channel);
+            priorityQueue.add(channel);
+        } else if (!priorityQueue.contains(channel)) {
+            queue.add(channel);
+        }
+        if (scheduled == null) {
+            schedule(BATCH_DELAY);
+        }
+    }
+
+    /**
+     * Removes a channel that hasn't been joined yet.
+     *
+     * @param channel
+     */
+    public synchronized void remove(String channel) {
+        channel = prepareChannel(channel);
+        queue.remove(channel);
+        priorityQueue.remove(channel);
+    }
+
+    /**
+     * Joins as many channels as allowed and schedules the next attempt if
+     * there are channels left.
+     * 
+     * <p>
+     * The limiter (which may be shared with other schedulers) is locked while
+     * sending, so joins are only counted once they have actually been sent
+     * (lines the connection couldn't send, e.g. because it isn't registered,
+     * don't use up the limit), without other schedulers using the same
+     * allowance in the meantime. This lock is not held while sending, since
+     * sending may cause more channels to be added (from other threads).
+     * </p>
+     */
+    private void drain() {
+        RateLimiter currentLimiter;
+        synchronized(this) {
+            currentLimiter = limiter;
+        }
+        synchronized(currentLimiter) {
+            long now = System.currentTimeMillis();
+            List<List<String>> lines = new ArrayList<>();
+            synchronized(this) {
+                scheduled = null;
+                int allowance = currentLimiter.getAllowance(now);
+                while (allowance > 0 && !isEmpty()) {
+                    List<String> line = takeLine(allowance);
+                    allowance -= line.size();
+                    lines.add(line);
+                }
+            }
+            for (List<String> line : lines) {
+                if (sender.sendJoin(line)) {
+                    for (int i = 0; i < line.size(); i++) {
+                        currentLimiter.add(now);
+                    }
+                    synchronized(this) {
+                        joinCount += line.size();
+                        lineCount++;
+                    }
+                }
+            }
+            synchronized(this) {
+                if (!isEmpty() && scheduled == null) {
+                    schedule(Math.max(currentLimiter.getWaitTime(now), BATCH_DELAY));
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes channels from the queues (priority channels first) that fit
+     * into a single JOIN line.
+     *
+     * @param max The maximum number of channels
+     * @return The channels, at least one
+     */
+    private List<String> takeLine(int max) {
+        List<String> result = new ArrayList<>();
+        int length = "JOIN ".length();
+        Iterator<String> it = priorityQueue.iterator();
+        boolean priority = true;
+        while (result.size() < max) {
+            if (!it.hasNext()) {
+                if (!priority) {
+                    break;
+                }
+                priority = false;
+                it = queue.iterator();
+                continue;
+            }
+            String channel = it.next();
+            int added = result.isEmpty() ? channel.length() : channel.length() + 1;
+            if (!result.isEmpty() && length + added > MAX_LINE_LENGTH) {
+                break;
+            }
+            result.add(channel);
+            length += added;
+            it.remove();
+        }
+        return result;
+    }
+
+    private boolean isEmpty() {
+        return queue.isEmpty() && priorityQueue.isEmpty();
+    }
+
+    private void schedule(long delay) {
+        if (scheduled != null) {
+            scheduled.cancel();
+        }
+        scheduled = new TimerTask() {
+
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        TIMER.schedule(scheduled, delay);
+    }
+
+    /**
+     * Removes all queued channels, e.g. when disconnected. The joins already
+     * counted towards the limit are kept, since they still count on the server
+     * when reconnecting right away.
+     */
+    public synchronized void clear() {
+        queue.clear();
+        priorityQueue.clear();
+        if (scheduled != null) {
+            scheduled.cancel();
+            scheduled = null;
+        }
+    }
+
+    /**
+     * The number of channels waiting to be joined.
+     *
+     * @return
+     */
+    public synchronized int getQueueSize() {
+        return queue.size() + priorityQueue.size();
+    }
+
+    /**
+     * Info about the currently queued channels and the joins sent so far.
+     *
+     * @return
+     */
+    public synchronized String getInfo() {
+        return String.format("Joins queued: %d, Sent: %d (in %d lines)",
+                getQueueSize(), joinCount, lineCount);
+    }
+
+    private static String prepareChannel(String channel) {
+        if (!channel.startsWith("#")) {
+            return "#"+channel;
+        }
+        return channel;
+    }
+
+    public interface Sender {
+
+        /**
+         * Actually join the channels, all in one line.
+         *
+         * @param channels The channels (starting with #)
+         * @return true if the line was sent, false if it couldn't be sent
+         * (e.g. because the connection isn't registered)
+         */
+        public boolean sendJoin(List<String> channels);
+    }
+
+    public interface Prioritizer {
+
+        /**
+         * Whether the channel should be joined before other channels.
+         *
+         * @param channel The channel (may or may not start with #)
+         * @return
+         */
+        public boolean isPriority(String channel);
+    }
+
+}
@@ -0,0 +1,219 @@
+package chatty;
+
+import chatty.util.RateLimiter;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+
+/**
+ * Queues outgoing chat messages so that the server message limits aren't
+ * exceeded. Messages that would exceed the limit are sent later, in order,
+ * instead of being sent right away (or not at all). Lines that aren't chat
+ * messages (PRIVMSG) are not limited and passed on directly.
+ *
+ * All messages count towards the limit, but which limit applies depends on
+ * whether the local user has moderator rights in the channel the message is
+ * sent to.
+ *
+ * @author tduva
+ */
+public class OutboundQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(OutboundQueue.class.getName());
+
+    /**
+     * Shared by all queues to send delayed messages.
+     */
+    private static final Timer TIMER = new Timer("OutboundQueue", true);
+
+    private final Sender sender;
+    private final RateLimiter limiter = new RateLimiter(20, 30*1000);
+    private final RateLimiter modLimiter = new RateLimiter(100, 30*1000);
+    private final LinkedList<Item> queue = new LinkedList<>();
+
+    private TimerTask scheduled;
+
+    // Stats
+    private long sentCount;
+    private long delayedCount;
+    private long totalWait;
+    private long maxWait;
+
+    public OutboundQueue(Sender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Sets the limits in the format "messages/seconds", invalid values are
+     * ignored and 0 means no limit. Messages already sent still count, so
+     * this can be called again on reconnect.
+     *
+     * @param limit The limit for regular users
+     * @param modLimit The limit in channels with moderator rights
+     */
+    public synchronized void setLimits(String limit, String modLimit) {
+        long[] parsed = RateLimiter.parse(limit);
+        if (parsed != null) {
+            limiter.setLimit((int)parsed[0], parsed[1]);
+        }
+        parsed = RateLimiter.parse(modLimit);
+        if (parsed != null) {
+            modLimiter.setLimit((int)parsed[0], parsed[1]);
+        }
+    }
+
+    /**
+     * Sends the line, right away if possible or otherwise once the limit
+     * allows it.
+     *
+     * @param line The line to send
+     */
+    public synchronized void add(String line) {
+        String channel = getLimitedChannel(line);
+        if (channel == null) {
+            sender.sendNow(line);
+            return;
+        }
+        queue.add(new Item(line, channel, System.currentTimeMillis()));
+        drain();
+    }
+
+    /**
+     * Sends as many queued messages as allowed and schedules the next attempt
+     * if there are messages left.
+     */
+    private synchronized void drain() {
+        scheduled = null;
+        while (!queue.isEmpty()) {
+            Item item = queue.peek();
+            long now = System.currentTimeMillis();
+            RateLimiter applies = sender.isModerator(item.channel) ? modLimiter : limiter;
+            long wait = applies.getWaitTime(now);
+            if (wait > 0) {
+                schedule(wait);
+                return;
+            }
+            queue.poll();
+            limiter.add(now);
+            modLimiter.add(now);
+            long waited = now - item.added;
+            sentCount++;
+            if (waited > 0) {
+                delayedCount++;
+                totalWait += waited;
+                maxWait = Math.max(maxWait, waited);
+            }
+            sender.sendNow(item.line);
+        }
+    }
+
+    private void schedule(long delay) {
+        if (scheduled != null) {
+            scheduled.cancel();
+        }
+        scheduled = new TimerTask() {
+
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        TIMER.schedule(scheduled, delay);
+    }
+
+    /**
+     * Removes all queued messages, e.g. when disconnected.
+     */
+    public synchronized void clear() {
+        if (!queue.isEmpty()) {
+            LOGGER.info("Discarded "+queue.size()+" queued messages");
+        }
+        queue.clear();
+        if (scheduled != null) {
+            scheduled.cancel();
+            scheduled = null;
+        }
+    }
+
+    /**
+     * The number of messages waiting to be sent.
+     *
+     * @return
+     */
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * How long the oldest queued message has been waiting.
+     *
+     * @return The time in milliseconds, 0 if no message is waiting
+     */
+    public synchronized long getCurrentWait() {
+        if (queue.isEmpty()) {
+            return 0;
+        }
+        return System.currentTimeMillis() - queue.peek().added;
+    }
+
+    /**
+     * Info about the current queue and the time messages had to wait.
+     *
+     * @return
+     */
+    public synchronized String getInfo() {
+        return String.format("Queued: %d (waiting %dms), Sent: %d (%d delayed, avg %dms, max %dms)",
+                queue.size(), getCurrentWait(), sentCount, delayedCount,
+                delayedCount > 0 ? totalWait / delayedCount : 0, maxWait);
+    }
+
+    /**
+     * Gets the channel of a chat message.
+     *
+     * @param line The line to check
+     * @return The channel, or null if this isn't a limited message
+     */
+    private static String getLimitedChannel(String line) {
+        if (!line.startsWith("PRIVMSG ")) {
+            return null;
+        }
+        int end = line.indexOf(' ', 8);
+        if (end == -1) {
+            return null;
+        }
+        return line.substring(8, end);
+    }
+
+    private static class Item {
+
+        private final String line;
+        private final String channel;
+        private final long added;
+
+        Item(String line, String channel, long added) {
+            this.line = line;
+            this.channel = channel;
+            this.added = added;
+        }
+    }
+
+    public interface Sender {
+
+        /**
+         * Actually send the line.
+         *
+         * @param line
+         */
+        public void sendNow(String line);
+
+        /**
+         * Whether the higher moderator limit applies in this channel.
+         *
+         * @param channel
+         * @return
+         */
+        public boolean isModerator(String channel);
+    }
+
+}
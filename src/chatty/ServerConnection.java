@@ -0,0 +1,41 @@
+package chatty;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * A connection to a server that the {@link Irc} can send data through. Once
+ * started, the connection reports back to the {@code Irc} when it connected,
+ * received a line or disconnected.
+ * 
+ * @author tduva
+ */
+public interface ServerConnection {
+    
+    /**
+     * Starts connecting to the server. Should only be called once.
+     */
+    public void start();
+    
+    /**
+     * Send a line of data to the server.
+     * 
+     * @param data The line, without linebreak
+     */
+    public void send(String data);
+    
+    /**
+     * Closes the connection if still connected.
+     */
+    public void close();
+    
+    public InetSocketAddress getAddress();
+    
+    /**
+     * The addresses that couldn't be connected to, if several were tried.
+     * 
+     * @return The addresses, empty if none failed or only one was tried
+     */
+    public List<InetSocketAddress> getFailedAddresses();
+    
+}
@@ -0,0 +1,307 @@
+package chatty;
+
+import chatty.util.SessionRecorder;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Replays a session recorded with {@link SessionRecorder}, feeding the lines
+ * back into the receive path with the recorded timing (optionally faster), and
+ * measures the throughput and how long work scheduled on the EDT has to wait.
+ *
+ * @author tduva
+ */
+public class SessionReplay implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(SessionReplay.class.getName());
+
+    /**
+     * How often to measure the EDT latency (in milliseconds).
+     */
+    private static final int PROBE_INTERVAL = 50;
+
+    private final File file;
+    private final double speed;
+    private final Target target;
+    private final Listener listener;
+
+    private volatile boolean stopped;
+
+    // EDT latency samples, only accessed on the EDT
+    private long[] samples = new long[1024];
+    private int sampleCount;
+
+    /**
+     * Creates a new replay, which is started with {@link #start()}.
+     *
+     * @param file The recording
+     * @param speed How much faster than recorded to replay (e.g. 10 for 10x),
+     * 0 for as fast as possible
+     * @param target Where to send the lines
+     * @param listener Receives the results when done
+     */
+    public SessionReplay(File file, double speed, Target target, Listener listener) {
+        this.file = file;
+        this.speed = speed;
+        this.target = target;
+        this.listener = listener;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "SessionReplay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the replay, the results up to this point are still reported.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void run() {
+        Timer probeTimer = new Timer("SessionReplayProbe", true);
+        probeTimer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                final long posted = System.nanoTime();
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        addSample((System.nanoTime() - posted) / 1000);
+                    }
+                });
+            }
+        }, 0, PROBE_INTERVAL);
+
+        long lines = 0;
+        long bytes = 0;
+        long recordedDuration = 0;
+        long start = System.currentTimeMillis();
+        String error = null;
+        try (SessionRecorder.Reader reader = new SessionRecorder.Reader(file)) {
+            while (!stopped && reader.next()) {
+                if (speed > 0) {
+                    long due = start + (long)(reader.getTime() / speed);
+                    long wait = due - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                }
+                String line = reader.getLine();
+                target.received(line);
+                lines++;
+                bytes += line.length();
+                recordedDuration = reader.getTime();
+            }
+        } catch (IOException ex) {
+            error = ex.toString();
+        } catch (InterruptedException ex) {
+            error = "Interrupted";
+        }
+        long fed = System.currentTimeMillis();
+
+        // Wait for processing and the EDT to catch up
+        while (target.getPending() > 0 && !stopped) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                break;
+            }
+        }
+        waitForEdt();
+        long end = System.currentTimeMillis();
+        probeTimer.cancel();
+        waitForEdt();
+
+        final Result result = new Result();
+        result.lines = lines;
+        result.bytes = bytes;
+        result.recordedDuration = recordedDuration;
+        result.feedDuration = fed - start;
+        result.duration = end - start;
+        result.error = error;
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+
+                @Override
+                public void run() {
+                    result.setSamples(Arrays.copyOf(samples, sampleCount));
+                }
+            });
+        } catch (InterruptedException | InvocationTargetException ex) {
+            LOGGER.log(Level.WARNING, "Error getting replay stats", ex);
+        }
+        listener.replayDone(result);
+    }
+
+    private void waitForEdt() {
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+
+                @Override
+                public void run() {
+                    // Just wait
+                }
+            });
+        } catch (InterruptedException | InvocationTargetException ex) {
+            LOGGER.log(Level.WARNING, "Error waiting for EDT", ex);
+        }
+    }
+
+    private void addSample(long value) {
+        if (sampleCount == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[sampleCount++] = value;
+    }
+
+    /**
+     * The results of a replay.
+     */
+    public static class Result {
+
+        public long lines;
+        public long bytes;
+        /**
+         * The time between the first and last line in the recording.
+         */
+        public long recordedDuration;
+        /**
+         * How long it took to feed all lines.
+         */
+        public long feedDuration;
+        /**
+         * How long it took until all lines were processed.
+         */
+        public long duration;
+        public String error;
+
+        /**
+         * EDT latency in microseconds.
+         */
+        public long edtAvg;
+        public long edtMedian;
+        public long edtP95;
+        public long edtP99;
+        public long edtMax;
+        public int edtSamples;
+
+        private void setSamples(long[] values) {
+            edtSamples = values.length;
+            if (values.length == 0) {
+                return;
+            }
+            Arrays.sort(values);
+            long total = 0;
+            for (long value : values) {
+                total += value;
+            }
+            edtAvg = total / values.length;
+            edtMedian = values[values.length / 2];
+            edtP95 = values[(int)(values.length * 0.95)];
+            edtP99 = values[(int)(values.length * 0.99)];
+            edtMax = values[values.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Replayed %d lines (%d KB, %.1fs recorded) in %.1fs "
+                    + "(fed in %.1fs), %.0f lines/s. EDT latency (%d samples): "
+                    + "avg %.1fms, median %.1fms, 95%% %.1fms, 99%% %.1fms, max %.1fms%s",
+                    lines, bytes / 1024, recordedDuration / 1000.0,
+                    duration / 1000.0, feedDuration / 1000.0,
+                    duration > 0 ? lines * 1000.0 / duration : 0,
+                    edtSamples, edtAvg / 1000.0, edtMedian / 1000.0,
+                    edtP95 / 1000.0, edtP99 / 1000.0, edtMax / 1000.0,
+                    error != null ? " [Error: "+error+"]" : "");
+        }
+    }
+
+    /**
+     * Where the replayed lines are sent.
+     */
+    public interface Target {
+
+        /**
+         * Handle a line as if it was received from the server.
+         *
+         * @param line
+         */
+        public void received(String line);
+
+        /**
+         * How many received lines haven't been processed yet.
+         *
+         * @return
+         */
+        public int getPending();
+    }
+
+    public interface Listener {
+
+        public void replayDone(Result result);
+    }
+
+    /**
+     * Replays a recording without the GUI, only parsing the lines in the
+     * {@link Irc} class.
+     *
+     * Usage: SessionReplay &lt;file&gt; [speed]
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: SessionReplay <file> [speed, 0 for max]");
+            return;
+        }
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        final int[] messages = new int[1];
+        final Irc irc = new Irc("replay") {
+
+            @Override
+            public void debug(String line) {
+            }
+
+            @Override
+            void onChannelMessage(String channel, String nick, String from,
+                    String text, Map<String, String> tags, boolean action) {
+                messages[0]++;
+            }
+        };
+        new SessionReplay(new File(args[0]), speed, new Target() {
+
+            @Override
+            public void received(String line) {
+                irc.simulate(line);
+            }
+
+            @Override
+            public int getPending() {
+                return 0;
+            }
+        }, new Listener() {
+
+            @Override
+            public void replayDone(Result result) {
+                System.out.println(result);
+                System.out.println("Chat messages: "+messages[0]);
+                System.exit(0);
+            }
+        }).run();
+    }
+
+}
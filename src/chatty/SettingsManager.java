@@ -103,6 +103,8 @@ public class SettingsManager {
         settings.addBoolean("userlistConnection", true);
         settings.addList("userlistConnectionBlacklist", new ArrayList(), Setting.STRING);
         settings.addBoolean("membershipEnabled", true);
+        settings.addBoolean("ircByteLineFraming", true);
+        settings.addBoolean("ircEventLoop", false);
         
         settings.addBoolean("botBadgeEnabled", true);
         settings.addBoolean("botNamesBTTV", true);
@@ -150,6 +152,8 @@ public class SettingsManager {
         settings.addLong("deletedMessagesMaxLength", 50);
         settings.addBoolean("clearChatOnChannelCleared", false);
         settings.addLong("bufferSize", 500);
+        settings.addLong("chatBatchTime", 0);
+        settings.addLong("firehoseThreshold", 100);
         settings.addBoolean("twitchnotifyAsInfo", true);
         settings.addBoolean("printStreamStatus", true);
         settings.addLong("filterCombiningCharacters", Helper.FILTER_COMBINING_CHARACTERS_LENIENT);
@@ -190,6 +194,8 @@ public class SettingsManager {
         settings.addLong("dialogFontSize", -1);
         
         settings.addBoolean("imageCache", true);
+        // In MB (at least 16)
+        settings.addLong("imageCacheMemory", 64);
         
         // Colors
         settings.addString("foregroundColor","#111111");
@@ -240,6 +246,14 @@ public class SettingsManager {
         settings.addString("liveStreamsSorting", "recent");
         settings.addLong("historyRange", 0);
         settings.addString("spamProtection", "18/30");
+        settings.addString("messageLimit", "20/30");
+        settings.addString("messageLimitMod", "100/30");
+        settings.addString("joinLimit", "20/10");
+        settings.addLong("connectionPoolSize", 1);
+        settings.addString("connectionPoolPolicy", "roundrobin");
+        settings.addLong("inboundQueueSize", 10000);
+        settings.addString("inboundOverload", "drop");
+        settings.addBoolean("inboundParallel", true);
 
         settings.addString("currentVersion", "");
         
@@ -288,6 +302,10 @@ public class SettingsManager {
         settings.addList("ignoredUsers", new ArrayList(), Setting.STRING);
         settings.addList("ignoredUsersWhisper", new ArrayList(), Setting.STRING);
         
+        // Highlight/Ignore items and emotes disabled because the regex took
+        // too long
+        settings.addList("regexDisabled", new ArrayList<String>(), Setting.STRING);
+        
         // Sounds
         settings.addBoolean("sounds", false);
         settings.addString("highlightSound", "off");
@@ -1,7 +1,7 @@
 
 package chatty;
 
-import chatty.util.TimedCounter;
+import chatty.util.RateLimiter;
 
 /**
  * Tracks when lines where send to the server to prevent spam.
@@ -10,10 +10,9 @@ import chatty.util.TimedCounter;
  */
 public class SpamProtection {
     
-    private final TimedCounter counter = new TimedCounter(30*1000, 0);
+    private final RateLimiter limiter = new RateLimiter(0, 30*1000);
     
     private boolean enabled = false;
-    private int lines;
 
     /**
      * Changes the lines per seconds. If either lines or seconds is 0, then the
@@ -24,8 +23,7 @@ public class SpamProtection {
      */
     public synchronized void setLinesPerSeconds(int lines, int seconds) {
         enabled = lines > 0 && seconds > 0;
-        this.lines = lines;
-        counter.setInterval(seconds*1000);
+        limiter.setLimit(enabled ? lines : 0, seconds*1000);
     }
     
     /**
@@ -55,11 +53,11 @@ public class SpamProtection {
         if (!enabled) {
             return 1;
         }
-        return lines - counter.getCount(true);
+        return limiter.getAllowance(System.currentTimeMillis());
     }
     
     public synchronized void increase() {
-        counter.increase();
+        limiter.add(System.currentTimeMillis());
     }
     
     public synchronized boolean tryMessage() {
@@ -12,8 +12,10 @@ import chatty.util.api.TwitchApi;
 import chatty.Version.VersionListener;
 import chatty.WhisperConnection.WhisperListener;
 import chatty.gui.GuiUtil;
+import chatty.gui.Highlighter;
 import chatty.gui.MainGui;
 import chatty.gui.components.Channel;
+import chatty.gui.components.textpane.ChannelTextPane;
 import chatty.util.BTTVEmotes;
 import chatty.util.BotNameManager;
 import chatty.util.DateTime;
@@ -23,6 +25,7 @@ import chatty.util.FrankerFaceZListener;
 import chatty.util.ImageCache;
 import chatty.util.LogUtil;
 import chatty.util.MiscUtil;
+import chatty.util.RegexGuard;
 import chatty.util.Speedruncom;
 import chatty.util.StreamHighlightHelper;
 import chatty.util.StreamStatusWriter;
@@ -41,6 +44,7 @@ import chatty.util.settings.Settings;
 import chatty.util.settings.SettingsListener;
 import chatty.util.srl.SpeedrunsLive;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -73,6 +77,11 @@ public class TwitchClient {
      * The interval to check version in (seconds)
      */
     private static final int CHECK_VERSION_INTERVAL = 60*60*24*2;
+    
+    /**
+     * How long to wait after a setting changed before saving it (milliseconds)
+     */
+    private static final long SETTINGS_SAVE_DELAY = 10*1000;
 
     /**
      * Holds the Settings object, which is used to store and retrieve renametings
@@ -145,6 +154,11 @@ public class TwitchClient {
     private final Set<String> refreshRequests = Collections.synchronizedSet(new HashSet<String>());
     
     private final WhisperConnection w;
+    
+    /**
+     * The currently running session replay (debug command), if any.
+     */
+    private SessionReplay replay;
     private final IrcLogger ircLogger = new IrcLogger();
     
     public TwitchClient(HashMap<String, String> args) {
@@ -179,9 +193,13 @@ public class TwitchClient {
         settingsManager.loadCommandLineSettings(args);
         settingsManager.overrideSettings();
         settingsManager.debugSettings();
+        if (!settings.getBoolean("dontSaveSettings")) {
+            settings.setAutoSave(SETTINGS_SAVE_DELAY);
+        }
         
         ImageCache.setDefaultPath(Paths.get(Chatty.getCacheDirectory()+"img"));
         ImageCache.setCachingEnabled(settings.getBoolean("imageCache"));
+        Emoticon.setImageCacheMemory(settings.getLong("imageCacheMemory"));
         ImageCache.clearOldFiles();
         EmoticonSizeCache.loadFromFile();
         
@@ -234,6 +252,23 @@ public class TwitchClient {
         c.setUsericonManager(usericonManager);
         c.setBotNameManager(botNameManager);
         c.addChannelStateListener(new ChannelStateUpdater());
+        c.setJoinPrioritizer(new JoinScheduler.Prioritizer() {
+
+            @Override
+            public boolean isPriority(String channel) {
+                // Called from the connection threads, so don't access the GUI
+                return channelFavorites.isFavorite(channel)
+                        || (g != null && Helper.toStream(channel).equals(
+                                Helper.toStream(g.getLastActiveChannel())));
+            }
+        });
+        c.setInboundDropFilter(new InboundQueue.DropFilter() {
+
+            @Override
+            public boolean canDrop(String channel, String nick, String text) {
+                return g != null && g.canDropMessage(c.getUser(channel, nick), text);
+            }
+        });
         
         w = new WhisperConnection(new MyWhisperListener(), settings);
         w.setUsericonManager(usericonManager);
@@ -926,6 +961,8 @@ public class TwitchClient {
         }
         else if (command.equals("appinfo")) {
             g.printSystem(LogUtil.getMemoryUsage());
+            g.printSystem("Emote images: "+Emoticon.IMAGE_LOADER.getInfo());
+            g.printSystem("Emote images in memory: "+Emoticon.IMAGE_CACHE.getInfo());
         }
         else if (command.equals("addstreamhighlight")) {
             commandAddStreamHighlight(channel, parameter);
@@ -963,6 +1000,137 @@ public class TwitchClient {
         return true;
     }
     
+    /**
+     * Starts recording the received lines to the given file, or stops
+     * recording if the parameter is "stop".
+     * 
+     * @param parameter 
+     */
+    private void commandRecord(String parameter) {
+        if (parameter == null || parameter.isEmpty()) {
+            g.printLine("Usage: /record <file>|stop");
+        } else if (parameter.equals("stop")) {
+            String result = c.stopRecording();
+            g.printLine(result == null ? "Not recording." : result);
+        } else {
+            try {
+                c.startRecording(new File(parameter));
+                g.printLine("Recording received lines to "+parameter);
+            } catch (IOException ex) {
+                g.printLine("Error starting recording: "+ex);
+            }
+        }
+    }
+    
+    /**
+     * Estimates the worst-case cost of the regex in the highlight/ignore items
+     * and custom emotes and outputs the most expensive ones. This is done in
+     * a separate thread, since it may take a while.
+     */
+    private void commandRegexCost() {
+        final Highlighter highlight = new Highlighter();
+        highlight.update(StringUtil.getStringList(settings.getList("highlight")));
+        final Highlighter ignore = new Highlighter();
+        ignore.update(StringUtil.getStringList(settings.getList("ignore")));
+        final List<Emoticon> emotes = new ArrayList<>(g.emoticons.getCustomEmotes());
+        g.printLine("Measuring regex cost..");
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                final Map<String, Long> costs = new HashMap<>();
+                for (Map.Entry<String, Long> entry : highlight.getRegexCosts().entrySet()) {
+                    costs.put("Highlight '"+entry.getKey()+"'", entry.getValue());
+                }
+                for (Map.Entry<String, Long> entry : ignore.getRegexCosts().entrySet()) {
+                    costs.put("Ignore '"+entry.getKey()+"'", entry.getValue());
+                }
+                for (Emoticon emote : emotes) {
+                    costs.put("Emote '"+emote.code+"'", emote.getRegexCost());
+                }
+                List<String> sorted = new ArrayList<>(costs.keySet());
+                Collections.sort(sorted, new Comparator<String>() {
+
+                    @Override
+                    public int compare(String o1, String o2) {
+                        return costs.get(o2).compareTo(costs.get(o1));
+                    }
+                });
+                StringBuilder b = new StringBuilder("Regex cost (limit "
+                        + RegexGuard.DEFAULT_BUDGET+"):");
+                for (int i = 0; i < sorted.size() && i < 10; i++) {
+                    String item = sorted.get(i);
+                    b.append(" ").append(item).append(": ").append(costs.get(item));
+                    if (costs.get(item) > RegexGuard.DEFAULT_BUDGET) {
+                        b.append(" (too slow)");
+                    }
+                    b.append(i + 1 < sorted.size() && i < 9 ? "," : "");
+                }
+                if (sorted.isEmpty()) {
+                    b.append(" No regex found");
+                }
+                g.printLine(b.toString());
+            }
+        }, "RegexCost");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Replays a recording through the normal receive path, optionally with a
+     * speed factor (0 for as fast as possible), or stops the current replay.
+     * 
+     * @param parameter 
+     */
+    private void commandReplay(String parameter) {
+        if (parameter == null || parameter.isEmpty()) {
+            g.printLine("Usage: /replay <file> [speed]|stop");
+            return;
+        }
+        if (parameter.equals("stop")) {
+            if (replay != null) {
+                replay.stop();
+                replay = null;
+            } else {
+                g.printLine("No replay running.");
+            }
+            return;
+        }
+        String[] split = parameter.split(" ");
+        double speed = 1;
+        if (split.length > 1) {
+            try {
+                speed = Double.parseDouble(split[1]);
+            } catch (NumberFormatException ex) {
+                g.printLine("Invalid speed: "+split[1]);
+                return;
+            }
+        }
+        if (replay != null) {
+            replay.stop();
+        }
+        replay = new SessionReplay(new File(split[0]), speed, new SessionReplay.Target() {
+
+            @Override
+            public void received(String line) {
+                c.simulate(line);
+            }
+
+            @Override
+            public int getPending() {
+                return c.getInboundDepth();
+            }
+        }, new SessionReplay.Listener() {
+
+            @Override
+            public void replayDone(SessionReplay.Result result) {
+                g.printLine(result.toString());
+            }
+        });
+        replay.start();
+        g.printLine("Replaying "+split[0]+(speed > 0 ? " ("+speed+"x)" : " (max speed)"));
+    }
+    
     private void testCommands(String channel, String command, String parameter) {
         if (command.equals("addchans")) {
             String[] splitSpace = parameter.split(" ");
@@ -1056,6 +1224,14 @@ public class TwitchClient {
             api.getFollowers(parameter);
         } else if (command.equals("simulate")) {
             c.simulate(parameter);
+        } else if (command.equals("record")) {
+            commandRecord(parameter);
+        } else if (command.equals("replay")) {
+            commandReplay(parameter);
+        } else if (command.equals("regexcost")) {
+            commandRegexCost();
+        } else if (command.equals("batchinfo")) {
+            g.printLine(ChannelTextPane.getBatchInfo());
         } else if (command.equals("lb")) {
             String[] split = parameter.split("&");
             String message = "";
@@ -1908,10 +2084,11 @@ public class TwitchClient {
         }
 
         @Override
-        public void onChannelMessage(User user, String message, boolean action,
-                String emotes) {
-            g.printMessage(user.getChannel(), user, message, action, emotes);
-            if (!action) {
+        public void onChannelMessage(ChatMessage chatMessage) {
+            User user = chatMessage.user;
+            String message = chatMessage.text;
+            g.printMessage(user.getChannel(), chatMessage);
+            if (!chatMessage.action) {
                 addressbookCommands(user.getChannel(), user, message);
                 
                 // Stream Highlights
@@ -2080,7 +2257,7 @@ public class TwitchClient {
         }
 
         @Override
-        public void onWhisper(User user, String message, String emotes) {
+        public void onWhisper(ChatMessage message) {
         }
         
     }
@@ -2134,10 +2311,10 @@ public class TwitchClient {
     private class MyWhisperListener implements WhisperListener {
 
         @Override
-        public void whisperReceived(User user, String message, String emotes) {
-            g.printMessage(WhisperConnection.WHISPER_CHANNEL, user, message, false, emotes);
+        public void whisperReceived(ChatMessage message) {
+            g.printMessage(WhisperConnection.WHISPER_CHANNEL, message);
             if (settings.getLong("whisperDisplayMode") == WhisperConnection.DISPLAY_ONE_WINDOW) {
-                g.updateUser(user);
+                g.updateUser(message.user);
             }
         }
 
@@ -2,8 +2,12 @@ package chatty;
 
 import chatty.ChannelStateManager.ChannelStateListener;
 import chatty.util.BotNameManager;
+import chatty.util.SessionRecorder;
+import chatty.util.StripedExecutor;
 import chatty.util.StringUtil;
 import chatty.util.settings.Settings;
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -14,6 +18,7 @@ import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -62,6 +67,13 @@ public class TwitchConnection {
     private volatile Timer reconnectionTimer;
     
     private static final int SECONDARY_CONNECTION_UPDATE_DELAY = 10*1000;
+    
+    /**
+     * Processes received lines of different channels in parallel (shared by
+     * all connections), while keeping the order within each channel.
+     */
+    private static final StripedExecutor CHANNEL_EXECUTOR = new StripedExecutor(
+            "Channel", Runtime.getRuntime().availableProcessors(), 1000);
 
     /**
      * The username to send to the server. This is stored to reconnect.
@@ -86,6 +98,18 @@ public class TwitchConnection {
     private final IrcConnection irc;
     private final IrcConnection irc2;
     private final IrcConnection userlistConnection;
+    
+    /**
+     * Additional connections that the channels are spread across (together
+     * with the main connection), if the connection pool is enabled.
+     */
+    private final List<IrcConnection> shards = new CopyOnWriteArrayList<>();
+    private final ChannelShards<IrcConnection> pool = new ChannelShards<>();
+    private final String label;
+    
+    private volatile JoinScheduler.Prioritizer joinPrioritizer;
+    private volatile InboundQueue.DropFilter inboundDropFilter;
+    private volatile SessionRecorder recorder;
 
     private final TwitchCommands twitchCommands;
     private final SpamProtection spamProtection;
@@ -98,6 +122,8 @@ public class TwitchConnection {
         irc = new IrcConnection(label);
         irc2 = new IrcConnection(label+"-secondary");
         userlistConnection = irc;
+        pool.addShard(irc);
+        this.label = label;
         this.listener = listener;
         this.settings = settings;
         this.twitchCommands = new TwitchCommands(this);
@@ -122,6 +148,7 @@ public class TwitchConnection {
             @Override
             public void run() {
                 updateSecondaryConnection();
+                updateConnectionPool();
             }
         };
         final Timer timer = new Timer("update secondary connection", true);
@@ -148,6 +175,52 @@ public class TwitchConnection {
         irc.simulate(data);
     }
     
+    /**
+     * Starts recording all lines received on any of the connections, stopping
+     * any previous recording.
+     * 
+     * @param file The file to record to
+     * @throws IOException If the file couldn't be opened
+     */
+    public void startRecording(File file) throws IOException {
+        stopRecording();
+        recorder = new SessionRecorder(file);
+    }
+    
+    /**
+     * Stops the current recording, if there is one.
+     * 
+     * @return Info about the stopped recording, or null if there was none
+     */
+    public String stopRecording() {
+        SessionRecorder current = recorder;
+        recorder = null;
+        if (current == null) {
+            return null;
+        }
+        try {
+            current.close();
+        } catch (IOException ex) {
+            LOGGER.warning("Error closing recording: "+ex);
+        }
+        return String.format("Recorded %d lines (%.1fs)",
+                current.getCount(), current.getDuration() / 1000.0);
+    }
+    
+    /**
+     * The number of received lines that haven't been processed yet, on all
+     * connections.
+     * 
+     * @return 
+     */
+    public int getInboundDepth() {
+        int depth = irc.inbound.getDepth() + irc.stripes.getPending();
+        for (IrcConnection shard : shards) {
+            depth += shard.inbound.getDepth() + shard.stripes.getPending();
+        }
+        return depth;
+    }
+    
     public void addChannelStateListener(ChannelStateListener listener) {
         channelStates.addListener(listener);
     }
@@ -184,6 +257,31 @@ public class TwitchConnection {
         users.setCustomNamesManager(customNames);
     }
     
+    /**
+     * Sets which channels are joined first when several channels are waiting
+     * to be joined (e.g. after reconnecting).
+     * 
+     * @param prioritizer 
+     */
+    public void setJoinPrioritizer(JoinScheduler.Prioritizer prioritizer) {
+        this.joinPrioritizer = prioritizer;
+        irc.setJoinPrioritizer(prioritizer);
+        irc2.setJoinPrioritizer(prioritizer);
+        for (IrcConnection shard : shards) {
+            shard.setJoinPrioritizer(prioritizer);
+        }
+    }
+    
+    /**
+     * Sets which received chat messages can be dropped when messages are
+     * received faster than they can be processed.
+     * 
+     * @param filter 
+     */
+    public void setInboundDropFilter(InboundQueue.DropFilter filter) {
+        this.inboundDropFilter = filter;
+    }
+    
     public User getUser(String channel, String name) {
         return users.getUser(channel, name);
     }
@@ -198,7 +296,8 @@ public class TwitchConnection {
     }
     
     public boolean isUserlistLoaded(String channel) {
-        return userlistConnection.isRegistered() && userlistConnection.userlistReceived.contains(channel);
+        IrcConnection c = getConnection(channel);
+        return c.isRegistered() && c.userlistReceived.contains(channel);
     }
     
     public Set<String> getOpenChannels() {
@@ -243,7 +342,23 @@ public class TwitchConnection {
     }
 
     public Set<String> getJoinedChannels() {
-        return irc.getJoinedChannels();
+        Set<String> result = irc.getJoinedChannels();
+        for (IrcConnection shard : shards) {
+            result.addAll(shard.getJoinedChannels());
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the connection the given channel is assigned to.
+     * 
+     * @param channel The channel
+     * @return The connection, the main connection if the channel isn't
+     * assigned
+     */
+    private IrcConnection getConnection(String channel) {
+        IrcConnection c = pool.get(channel);
+        return c != null ? c : irc;
     }
     
     public boolean isChannelOpen(String channel) {
@@ -254,7 +369,8 @@ public class TwitchConnection {
         partChannel(channel);
         openChannels.remove(channel);
         users.clear(channel);
-        irc.cancelJoinAttempt(channel);
+        getConnection(channel).cancelJoinAttempt(channel);
+        pool.remove(channel);
     }
     
     public void setAllOffline() {
@@ -263,7 +379,7 @@ public class TwitchConnection {
     
     public void partChannel(String channel) {
         if (onChannel(channel)) {
-            irc.partChannel(channel);
+            getConnection(channel).partChannel(channel);
         }
     }
 
@@ -276,7 +392,7 @@ public class TwitchConnection {
      * @return
      */
     public boolean onChannel(String channel, boolean showMessage) {
-        boolean onChannel = irc.joinedChannels.contains(channel);
+        boolean onChannel = getConnection(channel).onChannel(channel);
         if (showMessage && !onChannel) {
             if (channel == null || channel.isEmpty()) {
                 listener.onInfo("Not in a channel");
@@ -339,12 +455,123 @@ public class TwitchConnection {
     private void connect() {
         if (irc.getState() <= Irc.STATE_OFFLINE) {
             cancelReconnectionTimer();
+            prepareConnection(irc);
             irc.connect(server,serverPorts,username,password, getSecuredPorts());
+            updatePoolSize();
+            for (IrcConnection shard : shards) {
+                if (shard.isOffline()) {
+                    prepareConnection(shard);
+                    shard.connect(server, serverPorts, username, password, getSecuredPorts());
+                }
+            }
         } else {
             listener.onConnectError("Already connected or connecting.");
         }
     }
     
+    /**
+     * Applies the current settings to the connection before connecting.
+     * 
+     * @param c 
+     */
+    private void prepareConnection(IrcConnection c) {
+        c.setByteLineFraming(settings.getBoolean("ircByteLineFraming"));
+        c.setUseEventLoop(settings.getBoolean("ircEventLoop"));
+        c.setMessageLimits(settings.getString("messageLimit"),
+                settings.getString("messageLimitMod"));
+        c.setInbound((int)settings.getLong("inboundQueueSize"),
+                InboundQueue.parseOverload(settings.getString("inboundOverload")),
+                settings.getBoolean("inboundParallel"));
+        if (c == irc) {
+            c.setJoinLimit(settings.getString("joinLimit"));
+        } else {
+            // Joins count towards the same limit, since it's the same account
+            c.shareJoinLimit(irc);
+        }
+    }
+    
+    /**
+     * Adds or removes connections to the pool, based on the current setting.
+     * Connections are only removed once they are offline, or when they are
+     * moved out of the pool, in which case their channels are joined on the
+     * remaining connections.
+     */
+    private void updatePoolSize() {
+        int size = Math.max((int)settings.getLong("connectionPoolSize") - 1, 0);
+        pool.setPolicy(ChannelShards.parsePolicy(settings.getString("connectionPoolPolicy")));
+        synchronized(shards) {
+            while (shards.size() < size) {
+                IrcConnection shard = new IrcConnection(label+"-"+(shards.size() + 2));
+                shard.setJoinPrioritizer(joinPrioritizer);
+                shards.add(shard);
+                pool.addShard(shard);
+            }
+            while (shards.size() > size) {
+                IrcConnection shard = shards.remove(shards.size() - 1);
+                List<String> channels = pool.removeShard(shard);
+                if (!shard.isOffline()) {
+                    shard.disconnect();
+                    moveChannels(channels);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Connects pool connections that are offline, as long as the main
+     * connection is registered.
+     */
+    private void updateConnectionPool() {
+        if (!irc.isRegistered()) {
+            return;
+        }
+        updatePoolSize();
+        for (IrcConnection shard : shards) {
+            if (shard.isOffline()) {
+                int delay = getReconnectionDelay(shard.connectionAttempts);
+                if (shard.getLastConnectionAttemptAgo() > delay) {
+                    prepareConnection(shard);
+                    shard.connect(server, serverPorts, username, password, getSecuredPorts());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Joins the channels that were on a connection that went down on the
+     * remaining connections.
+     * 
+     * @param channels The channels
+     */
+    private void moveChannels(List<String> channels) {
+        int count = 0;
+        for (String channel : channels) {
+            if (openChannels.contains(channel)) {
+                join(channel);
+                count++;
+            }
+        }
+        if (count > 0) {
+            LOGGER.info("Moved "+count+" channels to other connections");
+        }
+    }
+    
+    /**
+     * Whether any connection in the pool except the given one is registered,
+     * so channels can be moved there.
+     * 
+     * @param c The connection to ignore
+     * @return 
+     */
+    private boolean hasOtherRegistered(IrcConnection c) {
+        for (IrcConnection other : pool.getShards()) {
+            if (other != c && other.isRegistered()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     private Collection<Integer> getSecuredPorts() {
         Collection<Integer> result = new HashSet<>();
         for (Object value : settings.getList("securedPorts")) {
@@ -381,12 +608,18 @@ public class TwitchConnection {
         }
         boolean success = irc.disconnect();
         irc2.disconnect();
+        for (IrcConnection shard : shards) {
+            shard.disconnect();
+        }
         return success;
     }
     
     public void quit() {
         irc.disconnect();
         irc2.disconnect();
+        for (IrcConnection shard : shards) {
+            shard.disconnect();
+        }
     }
     
     /**
@@ -402,6 +635,7 @@ public class TwitchConnection {
             if (irc2.isOffline()) {
                 int delay = getReconnectionDelay(irc2.connectionAttempts);
                 if (irc2.getLastConnectionAttemptAgo() > delay) {
+                    prepareConnection(irc2);
                     irc2.connect(server, serverPorts, username, password, getSecuredPorts());
                 }
             } else if (irc2.isRegistered()) {
@@ -430,10 +664,20 @@ public class TwitchConnection {
         if (regular == null) {
             return "Not connected.";
         }
+        String queue = " {"+irc.getOutboundInfo()+"} {"+irc.getJoinInfo()+"}";
+        if (irc.inboundEnabled) {
+            queue += " {"+irc.inbound.getInfo()+"}";
+            if (irc.parallel) {
+                queue += " {Channels: "+CHANNEL_EXECUTOR.getInfo()+"}";
+            }
+        }
+        if (!shards.isEmpty()) {
+            queue += " {Pool: "+pool.getInfo()+"}";
+        }
         if (secondary != null) {
-            return "Connected to: "+regular+" ("+secondary+")";
+            return "Connected to: "+regular+" ("+secondary+")"+queue;
         }
-        return "Connected to: "+regular;
+        return "Connected to: "+regular+queue;
     }
     
     public boolean autoRequestModsEnabled() {
@@ -497,13 +741,24 @@ public class TwitchConnection {
     }
 
     public int getNumJoinedChannels() {
-        return irc.joinedChannels.size();
+        return getJoinedChannels().size();
     }
     
     
 
+    /**
+     * Joins the channel on the connection it is assigned to. If that
+     * connection isn't registered yet, it will join the channel once it is.
+     * 
+     * @param channel 
+     */
     public void join(String channel) {
-        irc.joinChannel(channel);
+        IrcConnection c = pool.assign(channel);
+        if (c == null) {
+            irc.joinChannel(channel);
+        } else if (c.isRegistered()) {
+            c.joinChannel(channel);
+        }
     }
     
     /**
@@ -568,7 +823,7 @@ public class TwitchConnection {
      * IRC Connection which handles the messages (manages users, special
      * messages etc.) and redirects them to the listener accordingly.
      */
-    private class IrcConnection extends Irc {
+    private class IrcConnection extends Irc implements ChannelShards.Shard {
         
         /**
          * How many times was tried to connect. Reset when the connection is
@@ -606,9 +861,143 @@ public class TwitchConnection {
                 new HashSet<String>());
         
         
+        private final String id;
+        
+        /**
+         * Received lines are processed on the thread of this queue, if
+         * enabled.
+         */
+        private final InboundQueue inbound;
+        private volatile boolean inboundEnabled;
+        
+        /**
+         * If enabled, the lines taken from the inbound queue that belong to a
+         * channel are processed on {@link #CHANNEL_EXECUTOR}.
+         */
+        private final StripedExecutor.Group stripes = CHANNEL_EXECUTOR.newGroup();
+        private volatile boolean parallel;
+        
         public IrcConnection(String id) {
             super(id);
+            this.id = id;
             this.idPrefix= "["+id+"] ";
+            this.inbound = new InboundQueue(id, new InboundQueue.Handler() {
+
+                @Override
+                public void process(final String line) {
+                    String channel = parallel ? IrcMessage.findChannel(line) : null;
+                    if (channel != null) {
+                        stripes.execute(channel, new Runnable() {
+
+                            @Override
+                            public void run() {
+                                IrcConnection.super.received(line);
+                            }
+                        });
+                    } else {
+                        // Lines not for a specific channel (e.g. whispers or
+                        // the login) may affect several channels, so wait
+                        // for all channels to catch up first
+                        stripes.await();
+                        IrcConnection.super.received(line);
+                    }
+                }
+            });
+            // Channels processed in parallel also post to the EDT, so they
+            // have to catch up before the queue waits for the EDT
+            this.inbound.setBeforeEdtSync(new Runnable() {
+
+                @Override
+                public void run() {
+                    stripes.await();
+                }
+            });
+        }
+        
+        /**
+         * Configures the queue of received lines, applies to the next
+         * connection.
+         * 
+         * @param size The maximum number of lines, 0 to process the lines
+         * directly on the thread that reads them
+         * @param overload What to do when the queue is full
+         * @param parallel Whether to process different channels in parallel
+         * (only if the queue is enabled)
+         */
+        public void setInbound(int size, InboundQueue.Overload overload,
+                boolean parallel) {
+            if (getState() <= Irc.STATE_OFFLINE) {
+                inboundEnabled = size > 0;
+                this.parallel = parallel;
+            }
+            inbound.setLimit(size);
+            inbound.setOverload(overload);
+            inbound.setLocalNick(username);
+            inbound.setDropFilter(inboundDropFilter);
+        }
+        
+        @Override
+        protected void received(String data) {
+            SessionRecorder r = recorder;
+            if (r != null) {
+                r.record(data);
+            }
+            if (inboundEnabled) {
+                inbound.add(data);
+            } else {
+                super.received(data);
+            }
+        }
+        
+        @Override
+        protected void disconnected(final int reason, final String reasonMessage) {
+            if (inboundEnabled) {
+                // Only after all received lines have been processed
+                inbound.addTask(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        stripes.await();
+                        IrcConnection.super.disconnected(reason, reasonMessage);
+                    }
+                });
+            } else {
+                super.disconnected(reason, reasonMessage);
+            }
+        }
+        
+        @Override
+        public boolean isAvailable() {
+            return getState() >= Irc.STATE_CONNECTING;
+        }
+        
+        /**
+         * Whether this is a pool connection, which handles the channels
+         * assigned to it like the main connection.
+         * 
+         * @return 
+         */
+        private boolean isShard() {
+            return shards.contains(this);
+        }
+        
+        /**
+         * Whether messages in channels of this connection should be passed on
+         * to the listener.
+         * 
+         * @return 
+         */
+        private boolean handlesChannels() {
+            return this == irc || isShard();
+        }
+        
+        private boolean isUserlistConnection() {
+            return this == userlistConnection || isShard();
+        }
+        
+        @Override
+        public String toString() {
+            return id;
         }
         
         public int getLastConnectionAttemptAgo() {
@@ -631,7 +1020,7 @@ public class TwitchConnection {
         
         @Override
         void onUserlist(String channel, String[] nicknames) {
-            if ((this == userlistConnection) && isChannelOpen(channel)) {
+            if (isUserlistConnection() && isChannelOpen(channel)) {
                 
                 /**
                  * Don't clear userlist just yet if only local name is in the
@@ -680,7 +1069,7 @@ public class TwitchConnection {
 
         @Override
         void onConnect() {
-            if (this == irc) {
+            if (handlesChannels()) {
                 send("CAP REQ :twitch.tv/tags");
                 send("CAP REQ :twitch.tv/commands");
                 if (settings.getBoolean("membershipEnabled")) {
@@ -696,12 +1085,21 @@ public class TwitchConnection {
         void onRegistered() {
             connectionAttempts = 1;
 
+            if (isShard()) {
+                for (String channel : pool.getChannels(this)) {
+                    joinChannel(channel);
+                }
+                return;
+            }
             if (this != irc) {
                 return;
             }
             
             if (!openChannels.isEmpty()) {
-                joinChannels(getOpenChannels());
+                // Channels may still be joined on other pool connections
+                Set<String> toJoin = getOpenChannels();
+                toJoin.removeAll(getJoinedChannels());
+                TwitchConnection.this.joinChannels(toJoin);
             } else if (autojoin != null) {
                 for (String channel : autojoin) {
                     joinChannel(channel);
@@ -715,6 +1113,13 @@ public class TwitchConnection {
             joinedChannels.clear();
             joinChecker.cancelAll();
             
+            // Channels on this connection can be joined on the others (if
+            // there are none, they are joined again when reconnected)
+            List<String> channels = pool.shardDown(this);
+            if (reason != Irc.REQUESTED_DISCONNECT && hasOtherRegistered(this)) {
+                moveChannels(channels);
+            }
+            
             if (this == irc) {
                 channelStates.reset();
                 twitchCommands.clearModsAlreadyRequested(null);
@@ -726,8 +1131,6 @@ public class TwitchConnection {
                     connectionAttempts = 0;
                 }
                 listener.onDisconnect(reason, reasonMessage);
-            } else if (this == userlistConnection) {
-                //clearUserlist(null);
             }
         }
         
@@ -751,7 +1154,7 @@ public class TwitchConnection {
         @Override
         void onJoinAttempt(String channel) {
             joinChecker.joinAttempt(channel);
-            if (this == irc) {
+            if (handlesChannels()) {
                 listener.onJoinAttempt(channel);
                 openChannels.add(channel);
             }
@@ -765,7 +1168,7 @@ public class TwitchConnection {
                  */
                 joinChecker.cancel(channel);
                 debug("JOINED: " + channel);
-                if (this == irc && !onChannel(channel)) {
+                if (handlesChannels() && !onChannel(channel)) {
                     listener.onChannelJoined(channel);
                 }
                 userJoined(channel, nick);
@@ -774,7 +1177,7 @@ public class TwitchConnection {
                 /**
                  * Another user has joined a channel we are currently in.
                  */
-                if ((this == userlistConnection) && isChannelOpen(channel)) {
+                if (isUserlistConnection() && isChannelOpen(channel)) {
                     if (!userlistReceived.contains(channel)) {
                         clearUserlist(channel);
                         // Add local user again, must be on this channel but
@@ -812,11 +1215,11 @@ public class TwitchConnection {
                  * Local User Leaving Channel
                  */
                 joinChecker.cancel(channel);
-                if (this == irc) {
+                if (handlesChannels()) {
                     userOffline(channel, nick);
                 }
                 joinedChannels.remove(channel);
-                if (this == irc) {
+                if (handlesChannels()) {
                     twitchCommands.clearModsAlreadyRequested(channel);
                     // Remove users for this channel, clearing the userlist in the
                     // GUI shouldn't be necessary if this channel is closed since
@@ -825,7 +1228,7 @@ public class TwitchConnection {
                     listener.onChannelLeft(channel);
                     channelStates.reset(channel);
                 }
-                if (this == userlistConnection) {
+                if (isUserlistConnection()) {
                     // Leaving the channel on the userlist connection means
                     // the userlist can no longer be considered as received for
                     // this channel.
@@ -833,7 +1236,7 @@ public class TwitchConnection {
                 }
                 debug("PARTED: "+channel);
             } else {
-                if ((this == userlistConnection) && isChannelOpen(channel)) {
+                if (isUserlistConnection() && isChannelOpen(channel)) {
                     User user = userOffline(channel, nick);
                     listener.onPart(user);
                 }
@@ -850,7 +1253,7 @@ public class TwitchConnection {
             if (modeAdded) {
                 user.setMode(mode);
                 if (mode.equals("o")) {
-                    if (this == irc) {
+                    if (handlesChannels()) {
                         listener.onMod(user);
                     }
                     if (!isUserlistLoaded(channel)) {
@@ -860,7 +1263,7 @@ public class TwitchConnection {
             } else {
                 user.setMode("");
                 if (mode.equals("o")) {
-                    if (this == irc) {
+                    if (handlesChannels()) {
                         listener.onUnmod(user);
                     }
                 }
@@ -932,7 +1335,7 @@ public class TwitchConnection {
         @Override
         void onChannelMessage(String channel, String nick, String from, String text,
                 Map<String, String> tags, boolean action) {
-            if (this != irc) {
+            if (!handlesChannels()) {
                 return;
             }
             if (nick.isEmpty()) {
@@ -944,10 +1347,11 @@ public class TwitchConnection {
                 } else if (nick.equals("jtv")) {
                     specialMessage(text, channel);
                 } else {
+                    pool.messageReceived(channel);
                     User user = userJoined(channel, nick);
                     updateUserFromTags(user, tags);
                     String emotesTag = tags != null ? tags.get("emotes") : null;
-                    listener.onChannelMessage(user, text, action, emotesTag);
+                    listener.onChannelMessage(new ChatMessage(user, text, action, emotesTag));
                 }
             }
         }
@@ -963,7 +1367,7 @@ public class TwitchConnection {
         
         @Override
         void onNotice(String channel, String text, Map<String, String> tags) {
-            if (this != irc) {
+            if (!handlesChannels()) {
                 return;
             }
             if (onChannel(channel) || whisperConnection) {
@@ -1126,7 +1530,9 @@ public class TwitchConnection {
         @Override
         protected void setState(int state) {
             super.setState(state);
-            listener.onConnectionStateChanged(state);
+            if (this == irc) {
+                listener.onConnectionStateChanged(state);
+            }
         }
 
         /**
@@ -1164,6 +1570,9 @@ public class TwitchConnection {
         
         @Override
         public void onGlobalUserstate(Map<String, String> tags) {
+            if (this != irc) {
+                return;
+            }
             updateUserstate(null, tags);
         }
         
@@ -1207,6 +1616,12 @@ public class TwitchConnection {
             updateUserFromTags(users.specialUser, tags);
         }
         
+        @Override
+        boolean isModeratorIn(String channel) {
+            User user = users.getUserIfExists(channel, StringUtil.toLowerCase(username));
+            return user != null && user.hasChannelModeratorRights();
+        }
+        
         @Override
         public void onClearChat(String channel, String nick) {
             if (nick != null) {
@@ -1263,11 +1678,11 @@ public class TwitchConnection {
             if (nick.isEmpty()) {
                 return;
             }
-            if (command.equals("WHISPER")) {
+            if (command.equals("WHISPER") && this == irc) {
                 User user = userJoined(WhisperConnection.WHISPER_CHANNEL, nick);
                 updateUserFromTags(user, tags);
                 String emotesTag = tags != null ? tags.get("emotes") : null;
-                listener.onWhisper(user, text, emotesTag);
+                listener.onWhisper(new ChatMessage(user, text, false, emotesTag));
             }
         }
     }
@@ -1341,9 +1756,15 @@ public class TwitchConnection {
 
         void onUserUpdated(User user);
 
-        void onChannelMessage(User user, String message, boolean action, String emotes);
+        /**
+         * A chat message was received. Called on the thread processing the
+         * channel's messages.
+         * 
+         * @param message The parsed message
+         */
+        void onChannelMessage(ChatMessage message);
         
-        void onWhisper(User user, String message, String emotes);
+        void onWhisper(ChatMessage message);
 
         void onNotice(String message);
 
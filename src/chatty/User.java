@@ -6,6 +6,7 @@ import chatty.gui.NamedColor;
 import chatty.util.StringUtil;
 import java.awt.Color;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -21,7 +22,7 @@ public class User implements Comparable {
     
     private static final Pattern SPLIT_EMOTESET = Pattern.compile("[^0-9]");
     
-    private static final Set<Integer> EMPTY_EMOTESETS = new HashSet<>();
+    private static final Set<Integer> EMPTY_EMOTESETS = Collections.emptySet();
     
     private static final NamedColor[] defaultColors = {
         new NamedColor("Red", 255, 0, 0),
@@ -43,7 +44,11 @@ public class User implements Comparable {
     
     private static final int MAXLINES = 100;
     
-    private final Set<Integer> emoteSets = new HashSet<>();
+    /**
+     * Immutable, replaced as a whole when the emotesets change, so it can be
+     * returned without copying.
+     */
+    private Set<Integer> emoteSets = EMPTY_EMOTESETS;
     private final List<Message> messages = new ArrayList<>();
     
     /**
@@ -629,39 +634,39 @@ public class User implements Comparable {
      */
     public synchronized void setEmoteSets(String newEmoteSets) {
         //String[] split = newEmoteSets.split("[^0-9]");
-        emoteSets.clear();
-        if (newEmoteSets == null) {
-            return;
-        }
-        String[] split = SPLIT_EMOTESET.split(newEmoteSets);
-        for (String emoteSet : split) {
-            if (!emoteSet.isEmpty()) {
-                try {
-                    emoteSets.add(Integer.parseInt(emoteSet));
-                } catch (NumberFormatException ex) {
-                    // Do nothing, invalid emoteset, just don't add it
+        Set<Integer> result = new HashSet<>();
+        if (newEmoteSets != null) {
+            String[] split = SPLIT_EMOTESET.split(newEmoteSets);
+            for (String emoteSet : split) {
+                if (!emoteSet.isEmpty()) {
+                    try {
+                        result.add(Integer.parseInt(emoteSet));
+                    } catch (NumberFormatException ex) {
+                        // Do nothing, invalid emoteset, just don't add it
+                    }
                 }
             }
         }
+        setEmoteSets(result);
     }
     
     public synchronized void setEmoteSets(Set<Integer> emoteSets) {
-        this.emoteSets.clear();
-        this.emoteSets.addAll(emoteSets);
+        if (emoteSets.isEmpty()) {
+            this.emoteSets = EMPTY_EMOTESETS;
+        } else if (!emoteSets.equals(this.emoteSets)) {
+            this.emoteSets = Collections.unmodifiableSet(new HashSet<>(emoteSets));
+        }
     }
     
     /**
      * Gets a Set of Integer containing the emotesets available to this user.
-     * Defensive copying because it might be iterated over while being modified
-     * concurrently.
+     * The Set is immutable and only replaced when the emotesets change, so it
+     * stays the same object as long as the emotesets are the same.
      * 
-     * @return 
+     * @return An unmodifiable Set
      */
     public synchronized Set<Integer> getEmoteSet() {
-        if (emoteSets.isEmpty()) {
-            return EMPTY_EMOTESETS;
-        }
-        return new HashSet<>(emoteSets);
+        return emoteSets;
     }
     
     public synchronized int getActivityScore() {
@@ -4,6 +4,9 @@ package chatty;
 import chatty.util.BotNameManager;
 import java.util.Map.Entry;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.logging.Logger;
 
 /**
@@ -15,31 +18,37 @@ import java.util.logging.Logger;
  * Although it could be useful to add some caching again (e.g. for showing
  * user type in userlist before the user said something).
  * 
+ * Can be used from several threads at once (e.g. messages from different
+ * channels being processed in parallel). The users are stored in concurrent
+ * maps per channel, so getting an existing user doesn't need a lock. Creating
+ * users and changes affecting all users of a channel lock the map of the
+ * channel.
+ * 
  * @author tduva
  */
 public class UserManager {
 
     private static final Logger LOGGER = Logger.getLogger(UserManager.class.getName());
     
-    private final Set<UserManagerListener> listeners = new HashSet<>();
+    private final Set<UserManagerListener> listeners = new CopyOnWriteArraySet<>();
     
     private volatile String localUsername;
     public final User specialUser = new User("[specialUser]", "[nochannel]");
     
-    private final HashMap<String, HashMap<String, User>> users = new HashMap<>();
-    private final HashMap<String, String> cachedColors = new HashMap<>();
-    private boolean capitalizedNames = false;
+    private final ConcurrentMap<String, ConcurrentMap<String, User>> users = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> cachedColors = new ConcurrentHashMap<>();
+    private volatile boolean capitalizedNames = false;
     
     private final Map<Integer, String> emotesets = Collections.synchronizedMap(new HashMap<Integer, String>());
     
     private final User errorUser = new User("[Error]", "#[error]");
 
-    private CapitalizedNames capitalizedNamesManager;
-    private CustomNames customNamesManager;
-    private UsericonManager usericonManager;
-    private UsercolorManager usercolorManager;
-    private Addressbook addressbook;
-    private BotNameManager botNameManager;
+    private volatile CapitalizedNames capitalizedNamesManager;
+    private volatile CustomNames customNamesManager;
+    private volatile UsericonManager usericonManager;
+    private volatile UsercolorManager usercolorManager;
+    private volatile Addressbook addressbook;
+    private volatile BotNameManager botNameManager;
     
     public void setLocalUsername(String username) {
         this.localUsername = username;
@@ -143,11 +152,18 @@ public class UserManager {
      * @param channel
      * @return 
      */
-    public synchronized HashMap<String, User> getUsersByChannel(String channel) {
-        HashMap<String, User> result = users.get(channel);
+    public Map<String, User> getUsersByChannel(String channel) {
+        return getChannelUsers(channel);
+    }
+    
+    private ConcurrentMap<String, User> getChannelUsers(String channel) {
+        ConcurrentMap<String, User> result = users.get(channel);
         if (result == null) {
-            result = new HashMap<>();
-            users.put(channel, result);
+            result = new ConcurrentHashMap<>();
+            ConcurrentMap<String, User> existing = users.putIfAbsent(channel, result);
+            if (existing != null) {
+                result = existing;
+            }
         }
         return result;
     }
@@ -160,12 +176,12 @@ public class UserManager {
      * @param name The username to search for
      * @return The List of User-objects.
      */
-    public synchronized List<User> getUsersByName(String name) {
+    public List<User> getUsersByName(String name) {
         name = name.toLowerCase();
         List<User> result = new ArrayList<>();
-        Iterator<HashMap<String, User>> it = users.values().iterator();
+        Iterator<ConcurrentMap<String, User>> it = users.values().iterator();
         while (it.hasNext()) {
-            HashMap<String, User> channelUsers = it.next();
+            Map<String, User> channelUsers = it.next();
             User user = channelUsers.get(name);
             if (user != null) {
                 result.add(user);
@@ -182,7 +198,7 @@ public class UserManager {
      * @param name
      * @return The {@code User} object or null if none exists
      */
-    public synchronized User getUserIfExists(String channel, String name) {
+    public User getUserIfExists(String channel, String name) {
         return getUsersByChannel(channel).get(name);
     }
     
@@ -195,59 +211,24 @@ public class UserManager {
      * @return The matching User object
      * @see User
      */
-    public synchronized User getUser(String channel, String name) {
+    public User getUser(String channel, String name) {
         // Not sure if this makes sense
         if (name == null || name.isEmpty()) {
             return errorUser;
         }
         String displayName = name;
         name = name.toLowerCase(Locale.ENGLISH);
-        User user = getUserIfExists(channel, name);
+        ConcurrentMap<String, User> channelUsers = getChannelUsers(channel);
+        User user = channelUsers.get(name);
         if (user == null) {
-            String capitalizedName = capitalizedNamesManager != null
-                    ? capitalizedNamesManager.getName(name) : null;
-            if (displayName.equals(name)) {
-                if (capitalizedName != null) {
-                    displayName = capitalizedName;
-                } else if (capitalizedNames) {
-                    displayName = name.substring(0, 1).toUpperCase() + name.substring(1);
-                }
-            }
-            user = new User(displayName, capitalizedName, channel);
-            user.setUsercolorManager(usercolorManager);
-            user.setAddressbook(addressbook);
-            user.setUsericonManager(usericonManager);
-            if (customNamesManager != null) {
-                user.setCustomNick(customNamesManager.getCustomName(name));
-            }
-            if (botNameManager != null && botNameManager.isBotName(channel, name)) {
-                user.setBot(true);
-            }
-            // Initialize some values if present for this name
-            if (cachedColors.containsKey(name)) {
-                user.setColor(cachedColors.get(name));
-            }
-            if (name.equals(localUsername)) {
-                /**
-                 * Set initial data for local user that is globally valid. This
-                 * data would have been received from the GLOBALUSERSTATE
-                 * command which may not be send after every join or sent
-                 * message.
-                 */
-                user.setAdmin(specialUser.isAdmin());
-                user.setGlobalMod(specialUser.isGlobalMod());
-                user.setStaff(specialUser.isStaff());
-                user.setTurbo(specialUser.hasTurbo());
-                if (!specialUser.hasDefaultColor()) {
-                    user.setColor(specialUser.getPlainColor());
-                }
-                user.setEmoteSets(specialUser.getEmoteSet());
-                if (specialUser.hasDisplayNickSet()) {
-                    user.setDisplayNick(specialUser.getDisplayNick());
+            synchronized(channelUsers) {
+                // Another thread may have created it in the meantime
+                user = channelUsers.get(name);
+                if (user == null) {
+                    user = createUser(channel, name, displayName);
+                    channelUsers.put(name, user);
                 }
             }
-            // Put User into the map for the channel
-            getUsersByChannel(channel).put(name, user);
         } else if (capitalizedNamesManager != null) {
             //System.out.println(name);
             capitalizedNamesManager.activity(name);
@@ -255,6 +236,61 @@ public class UserManager {
         return user;
     }
     
+    /**
+     * Creates and initializes a new User object, should only be called once
+     * for each user.
+     * 
+     * @param channel
+     * @param name The name of the user (lowercase)
+     * @param displayName The name as it was given
+     * @return The new User object
+     */
+    private User createUser(String channel, String name, String displayName) {
+        String capitalizedName = capitalizedNamesManager != null
+                ? capitalizedNamesManager.getName(name) : null;
+        if (displayName.equals(name)) {
+            if (capitalizedName != null) {
+                displayName = capitalizedName;
+            } else if (capitalizedNames) {
+                displayName = name.substring(0, 1).toUpperCase() + name.substring(1);
+            }
+        }
+        User user = new User(displayName, capitalizedName, channel);
+        user.setUsercolorManager(usercolorManager);
+        user.setAddressbook(addressbook);
+        user.setUsericonManager(usericonManager);
+        if (customNamesManager != null) {
+            user.setCustomNick(customNamesManager.getCustomName(name));
+        }
+        if (botNameManager != null && botNameManager.isBotName(channel, name)) {
+            user.setBot(true);
+        }
+        // Initialize some values if present for this name
+        if (cachedColors.containsKey(name)) {
+            user.setColor(cachedColors.get(name));
+        }
+        if (name.equals(localUsername)) {
+            /**
+             * Set initial data for local user that is globally valid. This
+             * data would have been received from the GLOBALUSERSTATE
+             * command which may not be send after every join or sent
+             * message.
+             */
+            user.setAdmin(specialUser.isAdmin());
+            user.setGlobalMod(specialUser.isGlobalMod());
+            user.setStaff(specialUser.isStaff());
+            user.setTurbo(specialUser.hasTurbo());
+            if (!specialUser.hasDefaultColor()) {
+                user.setColor(specialUser.getPlainColor());
+            }
+            user.setEmoteSets(specialUser.getEmoteSet());
+            if (specialUser.hasDisplayNickSet()) {
+                user.setDisplayNick(specialUser.getDisplayNick());
+            }
+        }
+        return user;
+    }
+    
     /**
      * Searches all channels for the given username and returns a Map with
      * all channels the username was found in and the associated User objects.
@@ -262,16 +298,16 @@ public class UserManager {
      * @param name The username to be searched for
      * @return A Map with channel->User association
      */
-    public synchronized HashMap<String,User> getChannelsAndUsersByUserName(String name) {
+    public HashMap<String,User> getChannelsAndUsersByUserName(String name) {
         String lowercaseName = name.toLowerCase(Locale.ENGLISH);
         HashMap<String,User> result = new HashMap<>();
         
-        Iterator<Entry<String, HashMap<String, User>>> it = users.entrySet().iterator();
+        Iterator<Entry<String, ConcurrentMap<String, User>>> it = users.entrySet().iterator();
         while (it.hasNext()) {
-            Entry<String, HashMap<String, User>> channel = it.next();
+            Entry<String, ConcurrentMap<String, User>> channel = it.next();
             
             String channelName = channel.getKey();
-            HashMap<String,User> channelUsers = channel.getValue();
+            Map<String,User> channelUsers = channel.getValue();
             
             User user = channelUsers.get(lowercaseName);
             if (user != null) {
@@ -284,7 +320,7 @@ public class UserManager {
     /**
      * Remove all users.
      */
-    public synchronized void clear() {
+    public void clear() {
         users.clear();
     }
     
@@ -293,15 +329,15 @@ public class UserManager {
      * 
      * @param channel 
      */
-    public synchronized void clear(String channel) {
+    public void clear(String channel) {
         getUsersByChannel(channel).clear();
     }
     
     /**
      * Set all users offline.
      */
-    public synchronized void setAllOffline() {
-        Iterator<HashMap<String,User>> it = users.values().iterator();
+    public void setAllOffline() {
+        Iterator<ConcurrentMap<String,User>> it = users.values().iterator();
         while (it.hasNext()) {
             setAllOffline(it.next());
         }
@@ -312,7 +348,7 @@ public class UserManager {
      * 
      * @param channel 
      */
-    public synchronized void setAllOffline(String channel) {
+    public void setAllOffline(String channel) {
         if (channel == null) {
             setAllOffline();
         }
@@ -328,8 +364,10 @@ public class UserManager {
      * @param usersInChannel 
      */
     private void setAllOffline(Map<String, User> usersInChannel) {
-        for (User user : usersInChannel.values()) {
-            user.setOnline(false);
+        synchronized(usersInChannel) {
+            for (User user : usersInChannel.values()) {
+                user.setOnline(false);
+            }
         }
     }
     
@@ -339,7 +377,7 @@ public class UserManager {
      * @param userName String The name of the user
      * @param color String The color as a string representation
      */
-    protected synchronized void setColorForUsername(String userName, String color) {
+    protected void setColorForUsername(String userName, String color) {
         userName = userName.toLowerCase();
         cachedColors.put(userName,color);
         
@@ -357,24 +395,32 @@ public class UserManager {
      * @param modsList
      * @return 
      */
-    protected synchronized List<User> modsListReceived(String channel, List<String> modsList) {
-        // Demod everyone on the channel
-        Map<String,User> usersToDemod = getUsersByChannel(channel);
-        for (User user : usersToDemod.values()) {
-            user.setModerator(false);
-        }
-        // Mod everyone in the list
+    protected List<User> modsListReceived(String channel, List<String> modsList) {
         LOGGER.info("Setting users as mod for "+channel+": "+modsList);
         List<User> changedUsers = new ArrayList<>();
-        for (String userName : modsList) {
-            if (Helper.validateChannel(userName)) {
-                User user = getUser(channel, userName);
-                if (user.setModerator(true)) {
-                    userUpdated(user);
+        List<User> updated = new ArrayList<>();
+        // Users created meanwhile shouldn't be missed when demodding
+        Map<String,User> channelUsers = getChannelUsers(channel);
+        synchronized(channelUsers) {
+            // Demod everyone on the channel
+            for (User user : channelUsers.values()) {
+                user.setModerator(false);
+            }
+            // Mod everyone in the list
+            for (String userName : modsList) {
+                if (Helper.validateChannel(userName)) {
+                    User user = getUser(channel, userName);
+                    if (user.setModerator(true)) {
+                        updated.add(user);
+                    }
+                    changedUsers.add(user);
                 }
-                changedUsers.add(user);
             }
         }
+        // Not while holding the lock
+        for (User user : updated) {
+            userUpdated(user);
+        }
         return changedUsers;
     }
     
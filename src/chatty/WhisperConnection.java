@@ -229,7 +229,7 @@ public class WhisperConnection {
         }
 
         @Override
-        public void onChannelMessage(User user, String message, boolean action, String emotes) {
+        public void onChannelMessage(ChatMessage message) {
             
         }
 
@@ -310,16 +310,16 @@ public class WhisperConnection {
         }
 
         @Override
-        public void onWhisper(User user, String message, String emotes) {
-            if (isUserAllowed(user)) {
-                listener.whisperReceived(user, message, emotes);
+        public void onWhisper(ChatMessage message) {
+            if (isUserAllowed(message.user)) {
+                listener.whisperReceived(message);
             }
         }
         
     }
     
     public interface WhisperListener {
-        public void whisperReceived(User user, String message, String emotes);
+        public void whisperReceived(ChatMessage message);
         public void whisperSent(User to, String message);
         public void info(String message);
         public void onRawSent(String text);
@@ -8,6 +8,7 @@ import chatty.gui.components.ChannelDialog;
 import chatty.gui.components.tabs.Tabs;
 import chatty.gui.components.menus.ContextMenuListener;
 import chatty.gui.components.menus.TabContextMenu;
+import chatty.util.ImageLoader;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Point;
@@ -343,6 +344,7 @@ public class Channels {
         }
         
         dialogs.put(channel, newDialog);
+        updateImagePriority();
         
         // Making it visible directly apparently makes it not properly detect
         // it as active window
@@ -433,6 +435,7 @@ public class Channels {
             return;
         }
         dialogs.remove(channel);
+        updateImagePriority();
         if (defaultChannel != null) {
             tabs.removeTab(defaultChannel);
             defaultChannel = null;
@@ -652,6 +655,7 @@ public class Channels {
         @Override
         public void stateChanged(ChangeEvent e) {
             lastActiveChannel = getActiveTab();
+            updateImagePriority();
             
             setInitialFocus();
             resetChannelTab(getActiveChannel());
@@ -659,6 +663,21 @@ public class Channels {
         }
     }
     
+    /**
+     * Loads images for the visible channels (the active tab and popouts)
+     * first.
+     */
+    private void updateImagePriority() {
+        Channel activeTab = getActiveTab();
+        for (Channel channel : channels.values()) {
+            if (channel == activeTab || dialogs.containsKey(channel)) {
+                channel.setImagePriority(ImageLoader.PRIORITY_HIGH);
+            } else {
+                channel.setImagePriority(ImageLoader.PRIORITY_NORMAL);
+            }
+        }
+    }
+    
     /**
      * Sets the focus to the input bar when clicked anywhere on the channel.
      */
@@ -0,0 +1,140 @@
+package chatty.gui;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which chat messages to print in channels that receive more
+ * messages than can be displayed (or read). Once a channel receives more
+ * messages per second than the threshold, only about the threshold number of
+ * regular messages per second are printed, evenly sampled from all of them.
+ * Important messages (e.g. highlights or own messages) are always printed.
+ * 
+ * The rate is measured over whole seconds, so it switches on and off with a
+ * delay of about a second. Can be used from several threads at once.
+ * 
+ * @author tduva
+ */
+public class Firehose {
+    
+    private final ConcurrentHashMap<String, Rate> channels = new ConcurrentHashMap<>();
+    
+    /**
+     * Counts the message and returns whether it should be printed.
+     * 
+     * @param channel The channel the message is in
+     * @param important Whether the message should always be printed
+     * @param threshold The messages per second above which not all messages
+     * are printed anymore, 0 to print all messages
+     * @return true if the message should be printed, false if it should be
+     * skipped
+     */
+    public boolean allow(String channel, boolean important, long threshold) {
+        return allow(channel, important, threshold, System.currentTimeMillis());
+    }
+    
+    boolean allow(String channel, boolean important, long threshold, long time) {
+        Rate rate = channels.get(channel);
+        if (rate == null) {
+            rate = new Rate();
+            Rate prev = channels.putIfAbsent(channel, rate);
+            if (prev != null) {
+                rate = prev;
+            }
+        }
+        return rate.allow(important, threshold, time);
+    }
+    
+    /**
+     * How many messages were skipped in the channel during the last second.
+     * 
+     * @param channel The channel
+     * @return The number of skipped messages, or -1 if messages are not being
+     * skipped in the channel
+     */
+    public int getSkipped(String channel) {
+        return getSkipped(channel, System.currentTimeMillis());
+    }
+    
+    int getSkipped(String channel, long time) {
+        Rate rate = channels.get(channel);
+        if (rate == null) {
+            return -1;
+        }
+        return rate.getSkipped(time);
+    }
+    
+    /**
+     * Removes the data of the channel, e.g. when it was closed.
+     * 
+     * @param channel 
+     */
+    public void remove(String channel) {
+        channels.remove(channel);
+    }
+    
+    private static class Rate {
+        
+        private long second;
+        private int count;
+        private int regular;
+        private int skipped;
+        private int lastCount;
+        private int lastSkipped;
+        private boolean active;
+        
+        synchronized boolean allow(boolean important, long threshold, long time) {
+            update(time);
+            count++;
+            if (threshold <= 0) {
+                active = false;
+                return true;
+            }
+            /**
+             * Switch off only when it's clearly lower again, so it doesn't
+             * switch back and forth around the threshold.
+             */
+            if (lastCount > threshold) {
+                active = true;
+            } else if (lastCount < threshold * 3 / 4) {
+                active = false;
+            }
+            if (!active || important) {
+                return true;
+            }
+            regular++;
+            long every = (lastCount + threshold - 1) / threshold;
+            if (every <= 1 || regular % every == 0) {
+                return true;
+            }
+            skipped++;
+            return false;
+        }
+        
+        synchronized int getSkipped(long time) {
+            update(time);
+            return active ? lastSkipped : -1;
+        }
+        
+        /**
+         * Starts a new second if necessary.
+         * 
+         * @param time The current time
+         */
+        private void update(long time) {
+            long current = time / 1000;
+            if (current != second) {
+                boolean previous = current == second + 1;
+                lastCount = previous ? count : 0;
+                lastSkipped = previous ? skipped : 0;
+                count = 0;
+                regular = 0;
+                skipped = 0;
+                second = current;
+                if (lastCount == 0) {
+                    active = false;
+                }
+            }
+        }
+    }
+    
+}
@@ -3,22 +3,30 @@ package chatty.gui;
 
 import chatty.Helper;
 import chatty.User;
+import chatty.util.AhoCorasick;
+import chatty.util.ExpiringSet;
+import chatty.util.RegexGuard;
 import java.awt.Color;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 /**
  * Checks if a given String matches the saved highlight items.
  * 
+ * Messages can be checked with {@link #match(User, String)} from several
+ * threads at once, while the items and settings are changed.
+ * 
  * @author tduva
  */
 public class Highlighter {
@@ -27,16 +35,18 @@ public class Highlighter {
     
     private static final int LAST_HIGHLIGHTED_TIMEOUT = 10*1000;
     
-    private final Map<String, Long> lastHighlighted = new HashMap<>();
-    private final List<HighlightItem> items = new ArrayList<>();
-    private Pattern usernamePattern;
-    private Color lastMatchColor;
-    private boolean lastMatchNoNotification;
-    private boolean lastMatchNoSound;
+    /**
+     * Users whose messages were recently highlighted.
+     */
+    private final ExpiringSet<String> lastHighlighted =
+            new ExpiringSet<>(LAST_HIGHLIGHTED_TIMEOUT, 1000);
+    private volatile CompiledItems items = new CompiledItems(new ArrayList<HighlightItem>());
+    private volatile Pattern usernamePattern;
+    private Match lastMatch;
     
     // Settings
-    private boolean highlightUsername;
-    private boolean highlightNextMessages;
+    private volatile boolean highlightUsername;
+    private volatile boolean highlightNextMessages;
     
     /**
      * Clear current items and load the new ones.
@@ -44,13 +54,14 @@ public class Highlighter {
      * @param newItems 
      * @throws NullPointerException if newItems is null
      */
-    public void update(List<String> newItems) {
-        items.clear();
+    public synchronized void update(List<String> newItems) {
+        List<HighlightItem> parsed = new ArrayList<>();
         for (String item : newItems) {
             if (item != null && !item.isEmpty()) {
-                items.add(new HighlightItem(item));
+                parsed.add(new HighlightItem(item));
             }
         }
+        items = new CompiledItems(parsed);
     }
     
     /**
@@ -58,14 +69,14 @@ public class Highlighter {
      * 
      * @param username 
      */
-    public void setUsername(String username) {
+    public synchronized void setUsername(String username) {
         if (username == null) {
             usernamePattern = null;
         }
         else {
             // Create pattern to match username on word boundaries
             try {
-                usernamePattern = Pattern.compile("(?i).*\\b"+username+"\\b.*");
+                usernamePattern = Pattern.compile("(?i)\\b"+username+"\\b");
             } catch (PatternSyntaxException ex) {
                 LOGGER.warning("Invalid regex for username: " + ex.getLocalizedMessage());
                 usernamePattern = null;
@@ -78,22 +89,61 @@ public class Highlighter {
      * 
      * @param highlighted 
      */
-    public void setHighlightUsername(boolean highlighted) {
+    public synchronized void setHighlightUsername(boolean highlighted) {
         this.highlightUsername = highlighted;
     }
     
-    public void setHighlightNextMessages(boolean highlight) {
+    public synchronized void setHighlightNextMessages(boolean highlight) {
         this.highlightNextMessages = highlight;
     }
     
-    public boolean check(User fromUser, String text) {
-        if (checkMatch(fromUser, text)) {
-            if (fromUser != null) {
-                addMatch(fromUser.getNick());
-            }
-            return true;
+    /**
+     * Checks whether the given message should be highlighted. If it should,
+     * the user is remembered for highlighting the next messages (if
+     * enabled). Can be called from any thread.
+     * 
+     * @param fromUser The user who sent the message, null for info messages
+     * @param text The text of the message
+     * @return The {@code Match}, or {@code null} if the message should not be
+     * highlighted
+     */
+    public Match match(User fromUser, String text) {
+        Match result = findMatch(fromUser, text);
+        if (result != null && fromUser != null) {
+            lastHighlighted.add(fromUser.getNick());
         }
-        return false;
+        return result;
+    }
+    
+    /**
+     * Same as {@link #match(User, String)}, except that the user is not
+     * remembered for highlighting the next messages. Can be called from any
+     * thread.
+     * 
+     * @param fromUser The user who sent the message, null for info messages
+     * @param text The text of the message
+     * @return true if the message would be highlighted, false otherwise
+     */
+    public boolean wouldMatch(User fromUser, String text) {
+        return findMatch(fromUser, text) != null;
+    }
+    
+    /**
+     * Same as {@link #match(User, String)}, but only returns whether it
+     * matched, while the details can be retrieved with the
+     * {@code getLastMatch..} methods.
+     * 
+     * <p>The last match is shared by all threads, so the instance has to be
+     * synchronized on to call this and the {@code getLastMatch..} methods,
+     * {@link #match(User, String)} doesn't have this issue.</p>
+     * 
+     * @param fromUser
+     * @param text
+     * @return 
+     */
+    public synchronized boolean check(User fromUser, String text) {
+        lastMatch = match(fromUser, text);
+        return lastMatch != null;
     }
     
     /**
@@ -102,16 +152,35 @@ public class Highlighter {
      * 
      * @return The {@code Color} or {@code null} if no color was specified
      */
-    public Color getLastMatchColor() {
-        return lastMatchColor;
+    public synchronized Color getLastMatchColor() {
+        return lastMatch != null ? lastMatch.getColor() : null;
     }
     
-    public boolean getLastMatchNoNotification() {
-        return lastMatchNoNotification;
+    public synchronized boolean getLastMatchNoNotification() {
+        return lastMatch != null && lastMatch.noNotification();
     }
     
-    public boolean getLastMatchNoSound() {
-        return lastMatchNoSound;
+    public synchronized boolean getLastMatchNoSound() {
+        return lastMatch != null && lastMatch.noSound();
+    }
+    
+    /**
+     * Estimates the worst-case cost of the regex of each item that has one.
+     * This may take a while.
+     * 
+     * @return The items (as entered) and their cost (see
+     * {@link RegexGuard#measure(Pattern, boolean)}), in the original order
+     */
+    public Map<String, Long> getRegexCosts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (HighlightItem item : items.items) {
+            if (item.pattern != null) {
+                result.put(item.getRaw(), RegexGuard.measure(item.pattern, false));
+            } else if (item.wordPattern != null) {
+                result.put(item.getRaw(), RegexGuard.measure(item.wordPattern, true));
+            }
+        }
+        return result;
     }
     
     /**
@@ -120,55 +189,282 @@ public class Highlighter {
      * 
      * @param userName The name of the user who send the message
      * @param text The text of the message
-     * @return true if the message should be highlighted, false otherwise
+     * @return The match, or null if the message should not be highlighted
      */
-    private boolean checkMatch(User user, String text) {
-        
-        lastMatchColor = null;
-        lastMatchNoNotification = false;
-        lastMatchNoSound = false;
+    private Match findMatch(User user, String text) {
         
         String lowercaseText = text.toLowerCase();
         
         // Try to match own name first (if enabled)
-        if (highlightUsername && usernamePattern != null &&
-                usernamePattern.matcher(text).matches()) {
-            return true;
+        Pattern currentUsernamePattern = usernamePattern;
+        if (highlightUsername && currentUsernamePattern != null &&
+                currentUsernamePattern.matcher(text).find()) {
+            return Match.USERNAME;
         }
         
         // Then try to match against the items
-        for (HighlightItem item : items) {
-            if (item.matches(user, text, lowercaseText)) {
-                lastMatchColor = item.getColor();
-                lastMatchNoNotification = item.noNotification();
-                lastMatchNoSound = item.noSound();
-                return true;
-            }
+        HighlightItem item = items.match(user, text, lowercaseText);
+        if (item != null) {
+            return new Match(item);
         }
         
         // Then see if there is a recent match
-        if (highlightNextMessages && user != null && hasRecentMatch(user.nick)) {
-            return true;
+        if (highlightNextMessages && user != null
+                && lastHighlighted.contains(user.getNick())) {
+            return Match.RECENT;
         }
-        return false;
+        return null;
     }
     
-    private void addMatch(String fromUsername) {
-        lastHighlighted.put(fromUsername, System.currentTimeMillis());
-    }
-    
-    private boolean hasRecentMatch(String fromUsername) {
-        clearRecentMatches();
-        return lastHighlighted.containsKey(fromUsername);
+    /**
+     * The result of a message matching, containing what it matched and how it
+     * should be highlighted. Immutable.
+     */
+    public static class Match {
+        
+        private static final Match USERNAME = new Match(null);
+        private static final Match RECENT = new Match(null);
+        
+        private final HighlightItem item;
+        
+        private Match(HighlightItem item) {
+            this.item = item;
+        }
+        
+        /**
+         * The item that matched, as entered in the settings.
+         * 
+         * @return The item, or {@code null} if the message matched the own
+         * username or was highlighted because of a recent match from the same
+         * user
+         */
+        public String getItem() {
+            return item != null ? item.getRaw() : null;
+        }
+        
+        public boolean isUsername() {
+            return this == USERNAME;
+        }
+        
+        public boolean isRecent() {
+            return this == RECENT;
+        }
+        
+        /**
+         * The color defined for the item that matched.
+         * 
+         * @return The {@code Color} or {@code null} if no color was specified
+         */
+        public Color getColor() {
+            return item != null ? item.getColor() : null;
+        }
+        
+        public boolean noNotification() {
+            return item != null && item.noNotification();
+        }
+        
+        public boolean noSound() {
+            return item != null && item.noSound();
+        }
     }
     
-    private void clearRecentMatches() {
-        Iterator<Map.Entry<String, Long>> it = lastHighlighted.entrySet().iterator();
-        while (it.hasNext()) {
-            if (System.currentTimeMillis() - it.next().getValue() > LAST_HIGHLIGHTED_TIMEOUT) {
-                it.remove();
+    /**
+     * The items prepared for checking a message against all of them at once,
+     * instead of one after another.
+     * 
+     * The plain, cs: and start: terms of all items are each searched for in
+     * a single pass over the text and the w:/wcs: terms are first checked
+     * together in a single regex. Only the items whose text matches and that
+     * are for the user/channel of the message (or not restricted to any) are
+     * then checked individually, in the original order, so the first
+     * matching item is still the one that is used.
+     * 
+     * Immutable once created.
+     */
+    static class CompiledItems {
+        
+        private final List<HighlightItem> items;
+        
+        private final AhoCorasick caseInsensitive;
+        private final AhoCorasick caseSensitive;
+        private final AhoCorasick startsWith;
+        
+        /**
+         * All w:/wcs: terms combined, null if there are none or they can't be
+         * combined.
+         */
+        private final Pattern words;
+        
+        /**
+         * Items that don't require a certain text.
+         */
+        private final BitSet anyText = new BitSet();
+        
+        /**
+         * Items that have to check the text individually (re:, w:, wcs:).
+         */
+        private final BitSet checkText = new BitSet();
+        private final BitSet wordItems = new BitSet();
+        
+        /**
+         * Items for messages from all users, on all channels.
+         */
+        private final BitSet general = new BitSet();
+        private final Map<String, BitSet> byUser = new HashMap<>();
+        private final Map<String, BitSet> byChannel = new HashMap<>();
+        private final BitSet info = new BitSet();
+        
+        CompiledItems(List<HighlightItem> items) {
+            this.items = items;
+            List<String> ci = new ArrayList<>();
+            List<String> cs = new ArrayList<>();
+            List<String> start = new ArrayList<>();
+            StringBuilder wordsRegex = new StringBuilder();
+            boolean wordsCombinable = true;
+            for (int i = 0; i < items.size(); i++) {
+                HighlightItem item = items.get(i);
+                ci.add(item.caseInsensitive);
+                cs.add(item.caseSensitive);
+                start.add(item.startsWith);
+                if (item.wordPattern != null) {
+                    checkText.set(i);
+                    wordItems.set(i);
+                    if (wordsRegex.length() > 0) {
+                        wordsRegex.append("|");
+                    }
+                    wordsRegex.append(item.wordRegex);
+                    // Group numbers would change when combined
+                    if (BACKREFERENCE.matcher(item.wordRegex).find()) {
+                        wordsCombinable = false;
+                    }
+                } else if (item.pattern != null) {
+                    checkText.set(i);
+                } else if (item.caseInsensitive == null
+                        && item.caseSensitive == null
+                        && item.startsWith == null) {
+                    anyText.set(i);
+                }
+                
+                if (item.appliesToInfo) {
+                    info.set(i);
+                } else if (item.username != null) {
+                    add(byUser, item.username, i);
+                } else if (!item.channels.isEmpty()) {
+                    for (String channel : item.channels) {
+                        add(byChannel, channel, i);
+                    }
+                } else {
+                    general.set(i);
+                }
+            }
+            caseInsensitive = makeSearch(ci);
+            caseSensitive = makeSearch(cs);
+            startsWith = makeSearch(start);
+            words = wordsCombinable ? compileWords(wordsRegex) : null;
+        }
+        
+        private static final Pattern BACKREFERENCE = Pattern.compile("\\\\(\\d|k<)");
+        
+        private static void add(Map<String, BitSet> map, String key, int index) {
+            BitSet set = map.get(key);
+            if (set == null) {
+                set = new BitSet();
+                map.put(key, set);
+            }
+            set.set(index);
+        }
+        
+        private static AhoCorasick makeSearch(List<String> terms) {
+            for (String term : terms) {
+                if (term != null) {
+                    return new AhoCorasick(terms);
+                }
+            }
+            return null;
+        }
+        
+        private static Pattern compileWords(StringBuilder regex) {
+            if (regex.length() == 0) {
+                return null;
+            }
+            try {
+                return Pattern.compile("\\b(?:"+regex+")\\b");
+            } catch (PatternSyntaxException ex) {
+                return null;
+            }
+        }
+        
+        /**
+         * Whether any of the combined w:/wcs: terms may occur in the text. If
+         * that took too long, the items are checked individually for this
+         * message only (where an item that repeatedly takes too long can be
+         * disabled).
+         */
+        private boolean findWords(String text) {
+            try {
+                return RegexGuard.matcher(words, text).find();
+            } catch (RegexGuard.BudgetExceededException ex) {
+                return true;
+            }
+        }
+        
+        /**
+         * Returns the first item that matches the given message.
+         * 
+         * @param user The user the message is from, null for info messages
+         * @param text The text of the message
+         * @param lowercaseText The text in lowercase
+         * @return The matching item, or null if none matches
+         */
+        public HighlightItem match(User user, String text, String lowercaseText) {
+            BitSet candidates;
+            if (user == null) {
+                candidates = (BitSet)info.clone();
+            } else {
+                candidates = (BitSet)general.clone();
+                BitSet forUser = byUser.get(user.nick);
+                if (forUser != null) {
+                    candidates.or(forUser);
+                }
+                BitSet forChannel = byChannel.get(user.getChannel());
+                if (forChannel != null) {
+                    candidates.or(forChannel);
+                }
+            }
+            if (candidates.isEmpty()) {
+                return null;
+            }
+            
+            BitSet textMatches = (BitSet)anyText.clone();
+            textMatches.or(checkText);
+            if (caseInsensitive != null) {
+                textMatches.or(caseInsensitive.find(lowercaseText));
+            }
+            if (caseSensitive != null) {
+                textMatches.or(caseSensitive.find(text));
+            }
+            if (startsWith != null) {
+                textMatches.or(startsWith.findPrefixes(lowercaseText));
+            }
+            candidates.and(textMatches);
+            
+            if (words != null
+                    && candidates.intersects(wordItems) && !findWords(text)) {
+                candidates.andNot(wordItems);
+            }
+            
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i+1)) {
+                HighlightItem item = items.get(i);
+                if (checkText.get(i) && !item.matchesText(text, lowercaseText)) {
+                    continue;
+                }
+                if (item.matchesUser(user)) {
+                    return item;
+                }
             }
+            return null;
         }
+        
     }
     
     /**
@@ -192,8 +488,11 @@ public class Highlighter {
      */
     static class HighlightItem {
         
+        private final String raw;
         private String username;
         private Pattern pattern;
+        private Pattern wordPattern;
+        private String wordRegex;
         private String caseSensitive;
         private String caseInsensitive;
         private String startsWith;
@@ -223,6 +522,7 @@ public class Highlighter {
         }
         
         HighlightItem(String item) {
+            this.raw = item;
             prepare(item);
         }
         
@@ -237,9 +537,9 @@ public class Highlighter {
             if (item.startsWith("re:") && item.length() > 3) {
                 compilePattern(item.substring(3));
             } else if (item.startsWith("w:") && item.length() > 2) {
-                compilePattern("(?i).*\\b"+item.substring(2)+"\\b.*");
+                compileWordPattern("(?i:"+item.substring(2)+")");
             } else if (item.startsWith("wcs:") && item.length() > 4) {
-                compilePattern(".*\\b"+item.substring(4)+"\\b.*");
+                compileWordPattern("(?:"+item.substring(4)+")");
             } else if (item.startsWith("cs:") && item.length() > 3) {
                 caseSensitive = item.substring(3);
             } else if (item.startsWith("start:") && item.length() > 6) {
@@ -358,6 +658,21 @@ public class Highlighter {
             }
         }
         
+        /**
+         * Compiles a regex that has to match on word boundaries somewhere in
+         * the text.
+         * 
+         * @param regex 
+         */
+        private void compileWordPattern(String regex) {
+            try {
+                wordPattern = Pattern.compile("\\b"+regex+"\\b");
+                wordRegex = regex;
+            } catch (PatternSyntaxException ex) {
+                LOGGER.warning("Invalid regex: " + ex.getLocalizedMessage());
+            }
+        }
+        
         /**
          * Check whether a message matches this item.
          * 
@@ -368,8 +683,21 @@ public class Highlighter {
          * @return true if it matches, false otherwise
          */
         public boolean matches(User user, String text, String lowercaseText) {
-            
-            if (pattern != null && !pattern.matcher(text).matches()) {
+            return matchesText(text, lowercaseText) && matchesUser(user);
+        }
+        
+        /**
+         * Check whether the text of a message matches this item.
+         * 
+         * @param text The text as received
+         * @param lowercaseText The text in lowercase
+         * @return true if it matches, false otherwise
+         */
+        public boolean matchesText(String text, String lowercaseText) {
+            if (pattern != null && !matchesRegex(pattern, text, false)) {
+                return false;
+            }
+            if (wordPattern != null && !matchesRegex(wordPattern, text, true)) {
                 return false;
             }
             if (caseSensitive != null && !text.contains(caseSensitive)) {
@@ -381,6 +709,41 @@ public class Highlighter {
             if (startsWith != null && !lowercaseText.startsWith(startsWith)) {
                 return false;
             }
+            return true;
+        }
+        
+        /**
+         * Checks the regex, with a limit on how long it may take. If it takes
+         * too long, this item is disabled (it doesn't match anymore).
+         * 
+         * @param p The pattern
+         * @param text The text
+         * @param find Whether to find the pattern anywhere, instead of
+         * matching the whole text
+         * @return true if it matches, false if it doesn't match or the item
+         * is disabled
+         */
+        private boolean matchesRegex(Pattern p, String text, boolean find) {
+            if (RegexGuard.isDisabled(raw)) {
+                return false;
+            }
+            try {
+                Matcher m = RegexGuard.matcher(p, text);
+                return find ? m.find() : m.matches();
+            } catch (RegexGuard.BudgetExceededException ex) {
+                // Not matching for this message
+                RegexGuard.exceeded(raw, "Highlight/Ignore item");
+                return false;
+            }
+        }
+        
+        /**
+         * Check whether the user (and channel) of a message matches this item.
+         * 
+         * @param user The user, null for info messages
+         * @return true if it matches, false otherwise
+         */
+        public boolean matchesUser(User user) {
             if (user == null) {
                 return appliesToInfo;
             }
@@ -487,6 +850,15 @@ public class Highlighter {
             return color;
         }
         
+        /**
+         * The item as it was given.
+         * 
+         * @return 
+         */
+        public String getRaw() {
+            return raw;
+        }
+        
         public boolean noNotification() {
             return noNotification;
         }
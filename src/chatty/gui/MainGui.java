@@ -20,6 +20,7 @@ import chatty.util.api.TokenInfo;
 import chatty.util.api.Emoticons;
 import chatty.util.api.ChannelInfo;
 import java.util.List;
+import chatty.ChatMessage;
 import chatty.Chatty;
 import chatty.TwitchClient;
 import chatty.Helper;
@@ -48,11 +49,11 @@ import chatty.gui.notifications.NotificationManager;
 import chatty.util.DateTime;
 import chatty.util.ImageCache;
 import chatty.util.MiscUtil;
+import chatty.util.RegexGuard;
 import chatty.util.Sound;
 import chatty.util.StringUtil;
 import chatty.util.api.Emoticon.EmoticonImage;
 import chatty.util.api.EmoticonUpdate;
-import chatty.util.api.Emoticons.TagEmotes;
 import chatty.util.api.FollowerInfo;
 import chatty.util.hotkeys.HotkeyManager;
 import chatty.util.settings.Setting;
@@ -70,6 +71,7 @@ import javax.swing.JDialog;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import javax.swing.event.MenuEvent;
@@ -123,6 +125,12 @@ public class MainGui extends JFrame implements Runnable {
     // Helpers
     private final Highlighter highlighter = new Highlighter();
     private final Highlighter ignoreChecker = new Highlighter();
+    private final Firehose firehose = new Firehose();
+    
+    /**
+     * The channel last active, so it can be accessed outside the EDT.
+     */
+    private volatile String activeChannel;
     private StyleManager styleManager;
     private TrayIconManager trayIcon;
     private final StateUpdater state = new StateUpdater();
@@ -233,6 +241,18 @@ public class MainGui extends JFrame implements Runnable {
         add(channels.getComponent(), BorderLayout.CENTER);
         channels.setChangeListener(new ChannelChangeListener());
         
+        // Update the skipped messages info once per second
+        Timer firehoseTimer = new Timer(1000, new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                for (Channel chan : channels.channels()) {
+                    chan.setSkippedMessages(firehose.getSkipped(chan.getName()));
+                }
+            }
+        });
+        firehoseTimer.start();
+        
         // Some newer stuff
         addressbookDialog = new AddressbookDialog(this, client.addressbook);
         srl = new SRL(this, client.speedrunsLive, contextMenuListener);
@@ -747,6 +767,7 @@ public class MainGui extends JFrame implements Runnable {
         }
         updateHighlight();
         updateIgnore();
+        updateRegexDisabled();
         updateHistoryRange();
         updateNotificationSettings();
         updateChannelsSettings();
@@ -814,6 +835,24 @@ public class MainGui extends JFrame implements Runnable {
         ignoreChecker.update(StringUtil.getStringList(client.settings.getList("ignore")));
     }
     
+    /**
+     * Applies the list of disabled regex (which can be edited to enable them
+     * again) and adds regex that are disabled while running to the list.
+     */
+    private void updateRegexDisabled() {
+        RegexGuard.setDisabled(StringUtil.getStringList(client.settings.getList("regexDisabled")));
+        RegexGuard.setListener(new RegexGuard.Listener() {
+
+            @Override
+            public void patternDisabled(String pattern, String source) {
+                client.settings.setAdd("regexDisabled", pattern);
+                printLine(source+" '"+pattern+"' disabled, because it repeatedly "
+                        + "took too long to match (remove it from the list in "
+                        + "Settings - Highlight to enable it again).");
+            }
+        });
+    }
+    
     private void updateCustomContextMenuEntries() {
         ContextMenuHelper.channelCustomCommands = client.settings.getString("channelContextMenu");
         ContextMenuHelper.userCustomCommands = client.settings.getString("userContextMenu");
@@ -1675,6 +1714,7 @@ public class MainGui extends JFrame implements Runnable {
          */
         @Override
         public void stateChanged(ChangeEvent e) {
+            activeChannel = channels.getLastActiveChannel().getName();
             state.update(true);
             updateChannelInfoDialog();
             emotesDialog.updateStream(channels.getLastActiveChannel().getStreamName());
@@ -1796,7 +1836,7 @@ public class MainGui extends JFrame implements Runnable {
             if (parameter != null && !parameter.isEmpty()) {
                 message = parameter;
             }
-            Message m = new Message(client.getSpecialUser(), message, null);
+            Message m = new Message(new ChatMessage(client.getSpecialUser(), message, false, null));
             streamChat.printMessage(m);
         } else if (command.equals("livestreamer")) {
             String stream = null;
@@ -2130,6 +2170,7 @@ public class MainGui extends JFrame implements Runnable {
             @Override
             public void run() {
                 channels.removeChannel(channel);
+                firehose.remove(channel);
                 state.update();
             }
         });
@@ -2317,20 +2358,91 @@ public class MainGui extends JFrame implements Runnable {
      * # Messages #
      */
     
-    public void printMessage(final String toChan, final User user,
-            final String text, final boolean action, final String emotes) {
+    /**
+     * Prints a chat message (e.g. a local message), parsing it first.
+     * 
+     * @param toChan The channel the message is in
+     * @param user The user who sent the message
+     * @param text The text of the message
+     * @param action Whether this is an action message (/me)
+     * @param emotes The emotes tag, may be null
+     * @see #printMessage(String, ChatMessage)
+     */
+    public void printMessage(String toChan, User user, String text,
+            boolean action, String emotes) {
+        printMessage(toChan, new ChatMessage(user, text, action, emotes));
+    }
+    
+    /**
+     * Prints a chat message. Everything that doesn't need the EDT (logging,
+     * checking ignore/highlight) is done on the calling thread (usually the
+     * thread processing the received messages), so the EDT only has to handle
+     * the result. Messages and other events from the same thread still arrive
+     * on the EDT in order.
+     * 
+     * The same ChatMessage (already parsed when it was created, with the
+     * emoticons looked up here) is handed to all windows and logs the message
+     * appears in.
+     * 
+     * @param toChan The channel the message is in
+     * @param message The message
+     */
+    public void printMessage(final String toChan, ChatMessage message) {
+        if (client.settings.getBoolean("emoticonsEnabled")) {
+            message = message.withEmoticons(emoticons.findEmoticons(
+                    message.user, message.text, message.emotes));
+        }
+        final ChatMessage chatMessage = message;
+        final User user = chatMessage.user;
+        final String text = chatMessage.text;
+        final boolean action = chatMessage.action;
+        final boolean whisper = toChan.equals(WhisperConnection.WHISPER_CHANNEL);
+        if (!whisper) {
+            // Whispers are logged once the target channel is known
+            client.chatLog.message(toChan, chatMessage);
+        }
+        
+        final boolean isOwnMessage = isOwnUsername(user.getNick()) || (whisper && action);
+        final boolean ignored = checkHighlight(user, text, ignoreChecker, "ignore", isOwnMessage) != null
+                || (userIgnored(user, whisper) && !isOwnMessage);
+        Highlighter.Match highlightMatch = null;
+        if (client.settings.getBoolean("highlightIgnored") || !ignored) {
+            highlightMatch = checkHighlight(user, text, highlighter, "highlight", isOwnMessage);
+        }
+        final boolean highlighted = highlightMatch != null;
+        final Color color = highlighted ? highlightMatch.getColor() : null;
+        final boolean noSound = highlighted && highlightMatch.noSound();
+        final boolean noNotification = highlighted && highlightMatch.noNotification();
+        final long ignoreMode = client.settings.getLong("ignoreMode");
+        
+        /**
+         * In very busy channels only print some of the regular messages. The
+         * log and the highlighted/ignored messages windows still get all of
+         * them.
+         */
+        boolean important = highlighted || ignored || isOwnMessage || whisper
+                || user.hasChannelModeratorRights() || user.isStaff()
+                || user.isAdmin() || client.addressbook.get(user.getNick()) != null;
+        final boolean skipped = !firehose.allow(toChan, important,
+                client.settings.getLong("firehoseThreshold"));
+        
+        // Stuff independent of highlight/ignore
+        user.addMessage(processMessage(text), action);
+        if (highlighted) {
+            user.setHighlighted();
+        }
+        
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
                 Channel chan;
                 String channel = toChan;
-                boolean whisper = false;
                 
                 /**
                  * Check if special channel and change target according to
                  * settings
                  */
-                if (channel.equals(WhisperConnection.WHISPER_CHANNEL)) {
+                if (whisper) {
                     int whisperSetting = (int)client.settings.getLong("whisperDisplayMode");
                     if (whisperSetting == WhisperConnection.DISPLAY_ONE_WINDOW) {
                         chan = channels.getChannel(channel);
@@ -2343,32 +2455,20 @@ public class MainGui extends JFrame implements Runnable {
                     } else {
                         chan = channels.getActiveChannel();
                     }
-                    whisper = true;
+                    // If channel was changed from the given one, change accordingly
+                    channel = chan.getName();
+                    client.chatLog.message(channel, chatMessage);
                 } else {
                     chan = channels.getChannel(channel);
                 }
-                // If channel was changed from the given one, change accordingly
-                channel = chan.getName();
-                client.chatLog.message(chan.getName(), user, text, action);
-                
-                boolean isOwnMessage = isOwnUsername(user.getNick()) || (whisper && action);
-                boolean ignored = checkHighlight(user, text, ignoreChecker, "ignore", isOwnMessage)
-                        || (userIgnored(user, whisper) && !isOwnMessage);
-                boolean highlighted = false;
-                if (client.settings.getBoolean("highlightIgnored") || !ignored) {
-                    highlighted = checkHighlight(user, text, highlighter, "highlight", isOwnMessage);
-                }
-                
-                TagEmotes tagEmotes = Emoticons.parseEmotesTag(emotes);
                 
                 // Do stuff if highlighted, without printing message
                 if (highlighted) {
-                    highlightedMessages.addMessage(channel, user, text, action,
-                            tagEmotes, whisper);
-                    if (!highlighter.getLastMatchNoSound()) {
+                    highlightedMessages.addMessage(channel, chatMessage, whisper);
+                    if (!noSound) {
                         playHighlightSound(channel);
                     }
-                    if (!highlighter.getLastMatchNoNotification()) {
+                    if (!noNotification) {
                         showHighlightNotification(channel, user, (whisper ? "[Whísper] " : "")+text);
                         channels.setChannelHighlighted(chan);
                     } else {
@@ -2381,11 +2481,9 @@ public class MainGui extends JFrame implements Runnable {
                 
                 // Do stuff if ignored, without printing message
                 if (ignored) {
-                    ignoredMessages.addMessage(channel, user, text, action,
-                            tagEmotes, whisper);
+                    ignoredMessages.addMessage(channel, chatMessage, whisper);
                     ignoredMessagesHelper.ignoredMessage(channel);
                 }
-                long ignoreMode = client.settings.getLong("ignoreMode");
                 
                 // Print or don't print depending on ignore
                 if (ignored && (ignoreMode <= IgnoredMessages.MODE_COUNT || 
@@ -2396,26 +2494,21 @@ public class MainGui extends JFrame implements Runnable {
                     }
                 } else {
                     // Print message, but determine how exactly
-                    Message message = new Message(user, text, tagEmotes);
-                    message.color = highlighter.getLastMatchColor();
+                    Message message = new Message(chatMessage);
+                    message.color = color;
                     message.whisper = whisper;
-                    message.action = action;
                     if (highlighted) {
                         message.setHighlighted(highlighted);
                     } else if (ignored && ignoreMode == IgnoredMessages.MODE_COMPACT) {
                         message.ignored_compact = true;
                     }
-                    chan.printMessage(message);
-                    if (client.settings.listContains("streamChatChannels", channel)) {
-                        streamChat.printMessage(message);
+                    if (!skipped) {
+                        chan.printMessage(message);
+                        if (client.settings.listContains("streamChatChannels", channel)) {
+                            streamChat.printMessage(message);
+                        }
                     }
                 }
-                
-                // Stuff independent of highlight/ignore
-                user.addMessage(processMessage(text), action);
-                if (highlighted) {
-                    user.setHighlighted();
-                }
                 updateUserInfoDialog(user);
             }
         });
@@ -2439,14 +2532,34 @@ public class MainGui extends JFrame implements Runnable {
         return Helper.filterCombiningCharacters(text, "****", mode);
     }
     
-    private boolean checkHighlight(User user, String text, Highlighter hl, String setting, boolean isOwnMessage) {
+    private Highlighter.Match checkHighlight(User user, String text, Highlighter hl, String setting, boolean isOwnMessage) {
         if (client.settings.getBoolean(setting + "Enabled")) {
             if (client.settings.getBoolean(setting + "OwnText") ||
                     !isOwnMessage) {
-                return hl.check(user, text);
+                return hl.match(user, text);
             }
         }
-        return false;
+        return null;
+    }
+    
+    /**
+     * Whether a chat message can be left out if messages are received faster
+     * than they can be processed. This is only the case for messages that are
+     * not in the active channel and that would not be highlighted. Can be
+     * called from any thread.
+     * 
+     * @param user The user who sent the message
+     * @param text The text of the message
+     * @return true if the message can be dropped
+     */
+    public boolean canDropMessage(User user, String text) {
+        if (activeChannel == null || activeChannel.equals(user.getChannel())) {
+            return false;
+        }
+        if (!client.settings.getBoolean("highlightEnabled")) {
+            return true;
+        }
+        return !highlighter.wouldMatch(user, text);
     }
     
     protected void ignoredMessagesCount(String channel, String message) {
@@ -2580,7 +2693,8 @@ public class MainGui extends JFrame implements Runnable {
     }
     
     private void printInfo(Channel channel, String line) {
-        if (!ignoreChecker.check(null, line)) {
+        boolean ignored = ignoreChecker.match(null, line) != null;
+        if (!ignored) {
             channel.printLine(line);
         } else {
             ignoredMessages.addInfoMessage(channel.getName(), line);
@@ -3393,6 +3507,16 @@ public class MainGui extends JFrame implements Runnable {
         return channels.getActiveChannel().getStreamName();
     }
     
+    /**
+     * The name of the channel that was last active, updated on the EDT. Can be
+     * called from any thread.
+     * 
+     * @return The channel name, or null if none was active yet
+     */
+    public String getLastActiveChannel() {
+        return activeChannel;
+    }
+    
     /**
      * Saves the Set game favorites to the settings.
      * 
@@ -3605,6 +3729,8 @@ public class MainGui extends JFrame implements Runnable {
                     updateHighlight();
                 } else if (setting.equals("ignore")) {
                     updateIgnore();
+                } else if (setting.equals("regexDisabled")) {
+                    updateRegexDisabled();
                 } else if (setting.equals("hotkeys")) {
                     hotkeyManager.loadFromSettings(client.settings);
                 }
@@ -3616,6 +3742,8 @@ public class MainGui extends JFrame implements Runnable {
                     streamChat.setMessageTimeout(((Long)value).intValue());
                 } else if (setting.equals("emoteScaleDialog")) {
                     emotesDialog.setEmoteScale(((Long)value).intValue());
+                } else if (setting.equals("imageCacheMemory")) {
+                    Emoticon.setImageCacheMemory((Long)value);
                 }
             }
             if (setting.equals("channelFavorites") || setting.equals("channelHistory")) {
@@ -1,12 +1,15 @@
 
 package chatty.gui;
 
+import chatty.ChatMessage;
 import chatty.User;
 import chatty.util.api.Emoticons;
 import java.awt.Color;
+import java.util.List;
 
 /**
- * A single chat message, containing all the metadata.
+ * A single chat message as printed in a window, containing the parsed
+ * {@link ChatMessage} and how to display it.
  * 
  * @author tduva
  */
@@ -15,16 +18,21 @@ public class Message {
     public final String text;
     public final User user;
     public final Emoticons.TagEmotes emotes;
+    public final List<ChatMessage.Link> links;
+    public final List<Emoticons.EmoticonMatch> emoticons;
     public Color color;
     public boolean whisper;
     public boolean highlighted;
     public boolean ignored_compact;
     public boolean action;
     
-    public Message(User user, String text, Emoticons.TagEmotes emotes) {
-        this.text = text;
-        this.user = user;
-        this.emotes = emotes;
+    public Message(ChatMessage message) {
+        this.text = message.text;
+        this.user = message.user;
+        this.emotes = message.emotes;
+        this.links = message.links;
+        this.emoticons = message.emoticons;
+        this.action = message.action;
     }
     
     public void setHighlighted(boolean highlighted) {
@@ -32,7 +32,8 @@ public class StyleManager implements StyleServer {
             "timestampTimezone", "autoScrollTimeout", "searchResultColor2",
             "inputFont","emoteScale", "emoteMaxHeight", "botBadgeEnabled",
             "filterCombiningCharacters", "pauseChatOnMouseMove",
-            "pauseChatOnMouseMoveCtrlRequired", "showAnimatedEmotes"
+            "pauseChatOnMouseMoveCtrlRequired", "showAnimatedEmotes",
+            "chatBatchTime"
             ));
     
     private MutableAttributeSet baseStyle;
@@ -116,6 +117,7 @@ public class StyleManager implements StyleServer {
         other.addAttribute(Setting.AUTO_SCROLL_TIME, settings.getLong("autoScrollTimeout"));
         other.addAttribute(Setting.ACTION_COLORED, settings.getBoolean("actionColored"));
         other.addAttribute(Setting.BUFFER_SIZE, settings.getLong("bufferSize"));
+        other.addAttribute(Setting.BATCH_TIME, settings.getLong("chatBatchTime"));
         other.addAttribute(Setting.COMBINE_BAN_MESSAGES, settings.getBoolean("combineBanMessages"));
         other.addAttribute(Setting.BOT_BADGE_ENABLED, settings.getBoolean("botBadgeEnabled"));
         other.addAttribute(Setting.FILTER_COMBINING_CHARACTERS, settings.getLong("filterCombiningCharacters"));
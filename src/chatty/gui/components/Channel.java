@@ -9,6 +9,7 @@ import chatty.User;
 import chatty.gui.Message;
 import chatty.gui.components.menus.ContextMenuListener;
 import chatty.gui.components.textpane.ChannelTextPane;
+import chatty.util.api.Emoticon;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
@@ -25,6 +26,7 @@ import java.util.Set;
 import java.util.TreeSet;
 import javax.swing.AbstractAction;
 import javax.swing.InputMap;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
@@ -52,6 +54,7 @@ public class Channel extends JPanel {
     private final JSplitPane mainPane;
     private final JScrollPane userlist;
     private final JScrollPane west;
+    private final JLabel skippedInfo;
     private final StyleServer styleManager;
     private final MainGui main;
     private Type type;
@@ -108,7 +111,12 @@ public class Channel extends JPanel {
         input.setCompletionServer(new InputCompletionServer());
         
 
+        // Only shown while messages are skipped
+        skippedInfo = new JLabel();
+        skippedInfo.setVisible(false);
+        
         // Add components
+        add(skippedInfo, BorderLayout.NORTH);
         add(mainPane, BorderLayout.CENTER);
         add(input, BorderLayout.SOUTH);
 
@@ -121,6 +129,16 @@ public class Channel extends JPanel {
         input.cleanUp();
     }
     
+    /**
+     * Sets the priority for loading images (e.g. emotes) shown in this
+     * channel, relative to other channels.
+     * 
+     * @param priority One of the priorities from {@code ImageLoader}
+     */
+    public void setImagePriority(int priority) {
+        Emoticon.IMAGE_LOADER.setPriority(text, priority);
+    }
+    
     public void setType(Type type) {
         this.type = type;
     }
@@ -368,6 +386,22 @@ public class Channel extends JPanel {
         text.printMessage(message);
     }
     
+    /**
+     * Shows how many messages were not printed during the last second
+     * because the channel is too busy.
+     * 
+     * @param skipped The number of skipped messages, or -1 to hide the info
+     */
+    public void setSkippedMessages(int skipped) {
+        if (skipped < 0) {
+            skippedInfo.setVisible(false);
+        } else {
+            skippedInfo.setText(" Busy channel, showing only some messages: "
+                    +skipped+" messages skipped/s");
+            skippedInfo.setVisible(true);
+        }
+    }
+    
     
     // Style
     
@@ -6,6 +6,7 @@ import chatty.gui.GuiUtil;
 import chatty.gui.MainGui;
 import chatty.gui.components.menus.ContextMenuListener;
 import chatty.gui.components.menus.EmoteContextMenu;
+import chatty.util.ImageLoader;
 import chatty.util.api.Emoticon;
 import chatty.util.api.Emoticon.EmoticonImage;
 import chatty.util.api.Emoticon.EmoticonUser;
@@ -105,6 +106,8 @@ public class EmotesDialog extends JDialog {
                 repaint();
             }
         };
+        // Load images for the chat first
+        Emoticon.IMAGE_LOADER.setPriority(emoteUser, ImageLoader.PRIORITY_LOW);
 //        Timer timer = new Timer(100, new ActionListener() {
 //
 //            @Override
@@ -1,6 +1,7 @@
 
 package chatty.gui.components;
 
+import chatty.ChatMessage;
 import chatty.User;
 import chatty.gui.MainGui;
 import chatty.gui.Message;
@@ -9,7 +10,6 @@ import chatty.gui.components.textpane.ChannelTextPane;
 import chatty.gui.components.menus.ContextMenuListener;
 import chatty.gui.components.menus.HighlightsContextMenu;
 import chatty.util.api.Emoticon.EmoticonImage;
-import chatty.util.api.Emoticons.TagEmotes;
 import chatty.util.api.StreamInfo;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
@@ -80,10 +80,9 @@ public class HighlightedMessages extends JDialog {
         pack();
     }
     
-    public void addMessage(String channel, User user, String text, boolean action,
-            TagEmotes emotes, boolean whisper) {
+    public void addMessage(String channel, ChatMessage chatMessage, boolean whisper) {
         messageAdded(channel);
-        Message message = new Message(user, text, emotes);
+        Message message = new Message(chatMessage);
         message.setWhisper(whisper);
         messages.printMessage(message);
     }
@@ -10,7 +10,6 @@ import chatty.gui.components.menus.ContextMenuListener;
 import chatty.gui.components.menus.HighlightsContextMenu;
 import chatty.gui.components.textpane.ChannelTextPane;
 import chatty.util.api.Emoticon.EmoticonImage;
-import chatty.util.api.Emoticons.TagEmotes;
 import chatty.util.api.StreamInfo;
 import java.awt.BorderLayout;
 import java.awt.Color;
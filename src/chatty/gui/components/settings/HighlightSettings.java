@@ -4,6 +4,7 @@ package chatty.gui.components.settings;
 import chatty.gui.components.LinkLabel;
 import java.awt.GridBagConstraints;
 import java.awt.Insets;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
 
 /**
@@ -87,6 +88,23 @@ public class HighlightSettings extends SettingsPanel {
         gbc.weighty = 1;
         base.add(items, gbc);
         
+        JPanel disabled = addTitledPanel("Disabled Regular Expressions", 1);
+        
+        gbc = d.makeGbc(0,0,1,1);
+        gbc.insets = new Insets(5,10,5,5);
+        ListSelector disabledItems = d.addListSetting("regexDisabled", 220, 80, false);
+        gbc.fill = GridBagConstraints.BOTH;
+        gbc.weightx = 1;
+        disabled.add(disabledItems, gbc);
+        
+        gbc = d.makeGbc(1,0,1,1);
+        gbc.anchor = GridBagConstraints.NORTH;
+        disabled.add(new JLabel("<html><body style='width:120px'>"
+                + "Regular expressions (from Highlight, Ignore or other "
+                + "settings) that repeatedly took too long to match are "
+                + "disabled and added here. Remove them to enable them "
+                + "again."), gbc);
+        
 //        gbc = d.makeGbc(1,4,1,1);
 //        base.add(new LinkLabel("<html><body style=\"width:120px;\">"
 //                + "Add words to highlight messages. "
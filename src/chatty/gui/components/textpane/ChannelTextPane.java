@@ -10,6 +10,7 @@ import chatty.gui.LinkListener;
 import chatty.gui.StyleServer;
 import chatty.gui.UrlOpener;
 import chatty.gui.MainGui;
+import chatty.ChatMessage;
 import chatty.User;
 import chatty.Usericon;
 import chatty.gui.Message;
@@ -19,7 +20,7 @@ import chatty.util.StringUtil;
 import chatty.util.api.Emoticon;
 import chatty.util.api.Emoticon.EmoticonImage;
 import chatty.util.api.Emoticon.EmoticonUser;
-import chatty.util.api.Emoticons;
+import chatty.util.api.Emoticons.EmoticonMatch;
 import chatty.util.api.Emoticons.TagEmotes;
 import java.awt.*;
 import java.awt.event.ActionEvent;
@@ -36,14 +37,11 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionListener;
 import java.awt.image.BufferedImage;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.util.Map.Entry;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 import javax.swing.*;
 import static javax.swing.JComponent.WHEN_FOCUSED;
 import static javax.swing.JComponent.WHEN_IN_FOCUSED_WINDOW;
@@ -95,11 +93,6 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     private static final int BUFFER_SIZE_MIN = 10;
     private static final int BUFFER_SIZE_MAX = 10000;
 
-    /**
-     * The Matcher to use for finding URLs in messages.
-     */
-    private static final Matcher urlMatcher = Helper.getUrlPattern().matcher("");
-    
     public MainGui main;
 
     protected LinkController linkController = new LinkController();
@@ -125,7 +118,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         DELETED_MESSAGES_MODE, ACTION_COLORED, BUFFER_SIZE, AUTO_SCROLL_TIME,
         EMOTICON_MAX_HEIGHT, EMOTICON_SCALE_FACTOR, BOT_BADGE_ENABLED,
         FILTER_COMBINING_CHARACTERS, PAUSE_ON_MOUSEMOVE,
-        PAUSE_ON_MOUSEMOVE_CTRL_REQUIRED, EMOTICONS_SHOW_ANIMATED
+        PAUSE_ON_MOUSEMOVE_CTRL_REQUIRED, EMOTICONS_SHOW_ANIMATED, BATCH_TIME
     }
     
     private static final long DELETED_MESSAGES_KEEP = 0;
@@ -139,6 +132,25 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     
     private final javax.swing.Timer updateTimer;
     
+    /**
+     * Messages waiting to be printed together, if batching is enabled.
+     */
+    private final ArrayList<Message> batch = new ArrayList<>();
+    private final javax.swing.Timer batchTimer;
+    
+    /**
+     * While printing a batch, removing old lines, setting the paragraph
+     * attributes and scrolling down is only done once at the end.
+     */
+    private boolean printingBatch;
+    
+    /**
+     * Statistics for all batches printed (only accessed on the EDT).
+     */
+    private static long batchCount;
+    private static long batchMessages;
+    private static int batchMax;
+    
     public ChannelTextPane(MainGui main, StyleServer styleServer) {
         this(main, styleServer, false, true);
     }
@@ -177,6 +189,15 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         } else {
             updateTimer = null;
         }
+        
+        batchTimer = new javax.swing.Timer(0, new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                printBatch();
+            }
+        });
+        batchTimer.setRepeats(false);
     }
     
     /**
@@ -187,7 +208,10 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         if (updateTimer != null) {
             updateTimer.stop();
         }
+        batchTimer.stop();
         scrollManager.cleanUp();
+        // Images that haven't been loaded yet aren't needed anymore
+        Emoticon.IMAGE_LOADER.cancel(this);
     }
     
     public void setMessageTimeout(int seconds) {
@@ -216,9 +240,76 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     /**
      * Prints a message from a user to the main text area.
      * 
+     * If batching is enabled, the message is printed together with other
+     * messages received shortly after it, so the document is changed and
+     * scrolled less often.
+     * 
      * @param message Message object containing all the data
      */
     public void printMessage(Message message) {
+        int batchTime = styles.batchTime();
+        if (batchTime > 0) {
+            batch.add(message);
+            if (!batchTimer.isRunning()) {
+                batchTimer.setInitialDelay(batchTime);
+                batchTimer.start();
+            }
+        } else {
+            printMessageNow(message);
+        }
+    }
+    
+    /**
+     * Prints all messages waiting to be printed as a batch. This has to be
+     * called before printing anything else, so the order stays correct.
+     */
+    private void printBatch() {
+        batchTimer.stop();
+        if (batch.isEmpty()) {
+            return;
+        }
+        ArrayList<Message> messages = new ArrayList<>(batch);
+        batch.clear();
+        
+        int start = doc.getLength();
+        printingBatch = true;
+        try {
+            for (Message message : messages) {
+                printMessageNow(message);
+            }
+        } finally {
+            printingBatch = false;
+        }
+        // Skip the line that was last before the batch (the first message
+        // starts with a newline)
+        int from = start == 0 ? 0 : start + 1;
+        if (doc.getLength() > from) {
+            doc.setParagraphAttributes(from, doc.getLength() - from,
+                    styles.paragraph(), true);
+        }
+        clearSomeChat(messages.size());
+        scrollDownIfNecessary();
+        
+        batchCount++;
+        batchMessages += messages.size();
+        batchMax = Math.max(batchMax, messages.size());
+    }
+    
+    /**
+     * Information about the batches printed so far, in all text panes.
+     * 
+     * @return 
+     */
+    public static String getBatchInfo() {
+        if (batchCount == 0) {
+            return "No batches printed";
+        }
+        return String.format("Batches: %d, Messages: %d, Average: %.1f, Max: %d",
+                batchCount, batchMessages, batchMessages / (double)batchCount,
+                batchMax);
+    }
+    
+    private void printMessageNow(Message message) {
 
         User user = message.user;
         boolean ignored = message.ignored_compact;
@@ -252,7 +343,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         if (!highlighted && action && styles.actionColored()) {
             style = styles.standard(user.getDisplayColor());
         }
-        printSpecials(text, user, style, emotes);
+        printSpecials(text, message.links, user, style, emotes, message.emoticons);
         printNewline();
     }
     
@@ -389,6 +480,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
      * @param user 
      */
     public void userBanned(User user) {
+        printBatch();
         if (styles.showBanMessages()) {
             Element prevMessage = null;
             if (styles.combineBanMessages()) {
@@ -977,6 +1069,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
      * @return  
      */
     public boolean search(String searchText) {
+        printBatch();
         if (searchText == null || searchText.isEmpty()) {
             return false;
         }
@@ -1196,8 +1289,11 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     /**
      * Removes some chat lines from the top, depending on the current
      * scroll position.
+     * 
+     * @param added The number of lines that were added since this was last
+     * called
      */
-    private void clearSomeChat() {
+    private void clearSomeChat(int added) {
         if (scrollManager.fixedChat) {
             return;
         }
@@ -1206,8 +1302,11 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         }
         int count = doc.getDefaultRootElement().getElementCount();
         int max = styles.bufferSize();
-        if (count > max || ( count > max*0.75 && scrollManager.isScrollpositionAtTheEnd() )) {
-            removeFirstLines(2);
+        int target = scrollManager.isScrollpositionAtTheEnd() ? (int)(max*0.75) : max;
+        if (count > target) {
+            // Remove two lines for every added line, but not much more than
+            // necessary
+            removeFirstLines(Math.min(added*2, count - target + 1));
         }
         //if (doc.getDefaultRootElement().getElementCount() > 500) {
         //    removeFirstLine();
@@ -1243,6 +1342,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
    }
     
     public void removeOldLines() {
+        printBatch();
         if (messageTimeout > 0) {
             Element element = doc.getDefaultRootElement().getElement(0).getElement(0);
             if (element != null && getTimeAgo(element) > messageTimeout * 1000) {
@@ -1255,6 +1355,8 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
     }
     
     public void clearAll() {
+        batch.clear();
+        batchTimer.stop();
         try {
             doc.remove(0, doc.getLength());
             resetNewlineRequired();
@@ -1279,6 +1381,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
      * @param user 
      */
     public void printCompact(String type, User user) {
+        printBatch();
         String seperator = ", ";
         if (startCompactMode(type)) {
             // If compact mode has actually been started for this print,
@@ -1373,6 +1476,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
      * @param style 
      */
     public void printLine(String line, MutableAttributeSet style) {
+        printBatch();
         // Close compact mode, because this is definately a new line (timestamp)
         closeCompactMode();
         print(getTimePrefix()+line,style);
@@ -1388,21 +1492,33 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
      * Then all the special stuff in this map is printed accordingly, while
      * printing the stuff inbetween with regular style.
      * 
-     * @param text 
+     * @param text The text of the message
+     * @param links The links found in the text
      * @param user 
      * @param style 
+     * @param emotes The emotes from the tags, may be null
+     * @param emoticons The emoticons found in the text, or null if they
+     * haven't been looked up yet
      */
-    protected void printSpecials(String text, User user, MutableAttributeSet style,
-            TagEmotes emotes) {
+    protected void printSpecials(String text, java.util.List<ChatMessage.Link> links,
+            User user, MutableAttributeSet style, TagEmotes emotes,
+            java.util.List<EmoticonMatch> emoticons) {
         // Where stuff was found
         TreeMap<Integer,Integer> ranges = new TreeMap<>();
         // The style of the stuff (basicially metadata)
         HashMap<Integer,MutableAttributeSet> rangesStyle = new HashMap<>();
         
-        findLinks(text, ranges, rangesStyle);
+        for (ChatMessage.Link link : links) {
+            ranges.put(link.start, link.end);
+            rangesStyle.put(link.start, styles.url(link.url));
+        }
         
         if (styles.showEmoticons()) {
-            findEmoticons(text, user, ranges, rangesStyle, emotes);
+            if (emoticons == null) {
+                // Not already looked up in the background
+                emoticons = main.emoticons.findEmoticons(user, text, emotes);
+            }
+            addEmoticons(emoticons, ranges, rangesStyle);
         }
         
         // Actually print everything
@@ -1450,177 +1566,18 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         return result;
     }
     
-    private void findLinks(String text, Map<Integer, Integer> ranges,
-            Map<Integer, MutableAttributeSet> rangesStyle) {
-        // Find links
-        urlMatcher.reset(text);
-        while (urlMatcher.find()) {
-            int start = urlMatcher.start();
-            int end = urlMatcher.end() - 1;
-            if (!inRanges(start, ranges) && !inRanges(end,ranges)) {
-                String foundUrl = urlMatcher.group();
-                
-                if (foundUrl.contains("..")) {
-                    continue;
-                }
-                
-                // Check if URL contains ( ) like http://example.com/test(abc)
-                // or is just contained in ( ) like (http://example.com)
-                // (of course this won't work perfectly, but it should be ok)
-                if (foundUrl.endsWith(")") && !foundUrl.contains("(")) {
-                    foundUrl = foundUrl.substring(0, foundUrl.length() - 1);
-                    end--;
-                }
-                if (checkUrl(foundUrl)) {
-                    ranges.put(start, end);
-                    if (!foundUrl.startsWith("http")) {
-                        foundUrl = "http://"+foundUrl;
-                    }
-                    rangesStyle.put(start, styles.url(foundUrl));
-                }
-            }
-        }
-    }
-    
-    
-    private void findEmoticons(String text, User user, Map<Integer, Integer> ranges,
-            Map<Integer, MutableAttributeSet> rangesStyle, TagEmotes tagEmotes) {
-        
-        findEmoticons(user, main.emoticons.getCustomEmotes(), text, ranges, rangesStyle);
-        
-        if (tagEmotes != null) {
-            // Add emotes from tags
-            Map<Integer, Emoticon> emoticonsById = main.emoticons.getEmoticonsById();
-            addTwitchTagsEmoticons(user, emoticonsById, text, ranges, rangesStyle, tagEmotes);
-        }
-        
-        // Emoteset based
-        for (Integer set : user.getEmoteSet()) {
-            HashSet<Emoticon> emoticons = main.emoticons.getEmoticons(set);
-            findEmoticons(emoticons, text, ranges, rangesStyle);
-        }
-        
-        // Global emotes
-        if (tagEmotes == null) {
-            Set<Emoticon> emoticons = main.emoticons.getGlobalTwitchEmotes();
-            findEmoticons(emoticons, text, ranges, rangesStyle);
-        }
-        Set<Emoticon> emoticons = main.emoticons.getOtherGlobalEmotes();
-        findEmoticons(emoticons, text, ranges, rangesStyle);
-        
-        // Channel based (may also have a emoteset restriction)
-        HashSet<Emoticon> channelEmotes = main.emoticons.getEmoticons(user.getStream());
-        findEmoticons(user, channelEmotes, text, ranges, rangesStyle);
-    }
-    
     /**
-     * Adds the emoticons from the Twitch IRCv3 tags.
-     * 
-     * @param emoticons Map of emotes associated with Twitch emote id
-     * @param text The message text
-     * @param ranges The ranges for this message
-     * @param rangesStyle The styles for this message
-     * @param emotesDef The emotes definition from the IRCv3 tags
+     * Adds the found emoticons that don't overlap with anything found before
+     * and that should be shown.
      */
-    private void addTwitchTagsEmoticons(User user, Map<Integer, Emoticon> emoticons, String text,
-            Map<Integer, Integer> ranges, Map<Integer, MutableAttributeSet> rangesStyle,
-            TagEmotes emotesDef) {
-        if (emotesDef == null) {
-            return;
-        }
-        Map<Integer, Emoticons.TagEmote> def = emotesDef.emotes;
-        
-        /**
-         * Iterate over each character of the message and check if an emote starts
-         * at the current position.
-         * 
-         * The offset is used to handle supplemantary characters that consist
-         * of two UTF-16 characters. Twitch Chat sees these as only one character
-         * so that has to be corrected.
-         * 
-         * http://discuss.dev.twitch.tv/t/jtv-2-receiving-messages/1635/10
-         * 
-         * Example message: "Kappa 𠜎 Kappa"
-         */
-        int offset = 0;
-        for (int i=0;i<text.length();) {
-            
-            if (def.containsKey(i-offset)) {
-                // An emote starts at the current position, so add it.
-                Emoticons.TagEmote emoteData = def.get(i-offset);
-                int id = emoteData.id;
-                int start = i;
-                int end = emoteData.end+offset;
-                
-                // Get and check emote
-                Emoticon emoticon = null;
-                Emoticon customEmote = main.emoticons.getCustomEmoteById(id);
-                if (customEmote != null && customEmote.allowedForStream(user.getStream())) {
-                    emoticon = customEmote;
-                } else {
-                    emoticon = emoticons.get(id);
-                }
-                boolean isIgnored = emoticon != null && main.emoticons.isEmoteIgnored(emoticon);
-                if (end < text.length() && !isIgnored) {
-                    if (emoticon == null) {
-                        /**
-                         * Add emote from message alone
-                         */
-                        String code = text.substring(start, end);
-                        String url = Emoticon.getTwitchEmoteUrlById(id, 1);
-                        Emoticon.Builder b = new Emoticon.Builder(
-                                Emoticon.Type.TWITCH, code, url);
-                        b.setNumericId(id);
-                        b.setEmoteset(Emoticon.SET_UNKNOWN);
-                        emoticon = b.build();
-                        main.emoticons.addTempEmoticon(emoticon);
-                        LOGGER.info("Added emote from message: "+emoticon);
-                    }
-                    addEmoticon(emoticon, start, end, ranges,
-                            rangesStyle);
-                }
-            }
-            /**
-             * If the current position in the String consists of an character
-             * thats more than one long (some Unicode characters), then add to
-             * the offset and jump ahead accordingly.
-             */
-            offset += Character.charCount(text.codePointAt(i))-1;
-            i += Character.charCount(text.codePointAt(i));
-        }
-    }
-    
-    private void findEmoticons(Set<Emoticon> emoticons, String text,
-            Map<Integer, Integer> ranges, Map<Integer, MutableAttributeSet> rangesStyle) {
-        findEmoticons(null, emoticons, text, ranges, rangesStyle);
-    }
-    
-    private void findEmoticons(User user, Set<Emoticon> emoticons, String text,
+    private void addEmoticons(java.util.List<EmoticonMatch> emoticons,
             Map<Integer, Integer> ranges, Map<Integer, MutableAttributeSet> rangesStyle) {
-        // Find emoticons
-        Iterator<Emoticon> it = emoticons.iterator();
-        while (it.hasNext()) {
-            // Check the text for every single emoticon
-            Emoticon emoticon = it.next();
-            if (!emoticon.matchesUser(user)) {
-                continue;
-            }
-            if (main.emoticons.isEmoteIgnored(emoticon)) {
+        boolean showAnimated = styles.isEnabled(Setting.EMOTICONS_SHOW_ANIMATED);
+        for (EmoticonMatch match : emoticons) {
+            if (match.emoticon.isAnimated && !showAnimated) {
                 continue;
             }
-            if (emoticon.isAnimated
-                    && !styles.isEnabled(Setting.EMOTICONS_SHOW_ANIMATED)) {
-                continue;
-            }
-            Matcher m = emoticon.getMatcher(text);
-            while (m.find()) {
-                // As long as this emoticon is still found in the text, add
-                // it's position (if it doesn't overlap with something already
-                // found) and move on
-                int start = m.start();
-                int end = m.end() - 1;
-                addEmoticon(emoticon, start, end, ranges, rangesStyle);
-            }
+            addEmoticon(match.emoticon, match.start, match.end, ranges, rangesStyle);
         }
     }
     
@@ -1659,21 +1616,6 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         return false;
     }
 
-    /**
-     * Checks if the Url can be later used as a URI.
-     * 
-     * @param uriToCheck
-     * @return 
-     */
-    private boolean checkUrl(String uriToCheck) {
-        try {
-            new URI(uriToCheck);
-        } catch (URISyntaxException ex) {
-            return false;
-        }
-        return true;
-    }
-    
     public static Element getLastLine(Document doc) {
         return doc.getDefaultRootElement().getElement(doc.getDefaultRootElement().getElementCount() - 1);
     }
@@ -1702,15 +1644,19 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
             if (newlineRequired) {
                 newline = "\n";
                 newlineRequired = false;
-                clearSomeChat();
+                if (!printingBatch) {
+                    clearSomeChat(1);
+                }
             }
             //System.out.println("1:"+doc.getLength());
             doc.insertString(doc.getLength(), newline+text, style);
             //System.out.println("2:"+doc.getLength());
             //this.getHighlighter().addHighlight(doc.getLength(), 10, null);
             // TODO: check how this works
-            doc.setParagraphAttributes(doc.getLength(), 1, styles.paragraph(), true);
-            scrollDownIfNecessary();
+            if (!printingBatch) {
+                doc.setParagraphAttributes(doc.getLength(), 1, styles.paragraph(), true);
+                scrollDownIfNecessary();
+            }
         } catch (BadLocationException e) {
             System.err.println("BadLocationException");
         }
@@ -2233,6 +2179,7 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
             addNumericSetting(Setting.FILTER_COMBINING_CHARACTERS, 1, 0, 2);
             addNumericSetting(Setting.DELETED_MESSAGES_MODE, 30, -1, 9999999);
             addNumericSetting(Setting.BUFFER_SIZE, 250, BUFFER_SIZE_MIN, BUFFER_SIZE_MAX);
+            addNumericSetting(Setting.BATCH_TIME, 0, 0, 1000);
             addNumericSetting(Setting.AUTO_SCROLL_TIME, 30, 5, 1234);
             addNumericSetting(Setting.EMOTICON_MAX_HEIGHT, 200, 0, 300);
             addNumericSetting(Setting.EMOTICON_SCALE_FACTOR, 100, 1, 200);
@@ -2589,6 +2536,16 @@ public class ChannelTextPane extends JTextPane implements LinkListener, Emoticon
         public int bufferSize() {
             return (int)numericSettings.get(Setting.BUFFER_SIZE);
         }
+        
+        /**
+         * How long to collect messages to print them together (in
+         * milliseconds), 0 to print them right away.
+         * 
+         * @return 
+         */
+        public int batchTime() {
+            return (int)numericSettings.get(Setting.BATCH_TIME);
+        }
     }
     
 }
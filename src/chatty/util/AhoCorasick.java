@@ -0,0 +1,203 @@
+package chatty.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds which of a fixed set of strings occur in a text, with only a single
+ * pass over the text regardless of how many strings there are (Aho-Corasick).
+ *
+ * The strings are identified by their index in the list given when creating
+ * this. Immutable once created, so it can be used from several threads.
+ *
+ * @author tduva
+ */
+public class AhoCorasick {
+
+    private final Node root;
+    private final int size;
+
+    /**
+     * Builds the automaton for the given strings. Empty strings are ignored.
+     *
+     * @param strings The strings to search for
+     */
+    public AhoCorasick(List<String> strings) {
+        this.size = strings.size();
+        Builder rootBuilder = new Builder();
+        for (int i = 0; i < strings.size(); i++) {
+            String string = strings.get(i);
+            if (string == null || string.isEmpty()) {
+                continue;
+            }
+            Builder current = rootBuilder;
+            for (int j = 0; j < string.length(); j++) {
+                char c = string.charAt(j);
+                Builder next = current.children.get(c);
+                if (next == null) {
+                    next = new Builder();
+                    current.children.put(c, next);
+                }
+                current = next;
+            }
+            current.ids.add(i);
+        }
+        root = rootBuilder.build();
+        linkFailures();
+    }
+
+    /**
+     * Breadth-first, so the failure node (which is always less deep) is
+     * already done when it is needed for the outputs.
+     */
+    private void linkFailures() {
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        root.fail = root;
+        for (Node child : root.children) {
+            child.fail = root;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            for (int i = 0; i < node.keys.length; i++) {
+                char c = node.keys[i];
+                Node child = node.children[i];
+                Node fail = node.fail;
+                while (fail != root && fail.get(c) == null) {
+                    fail = fail.fail;
+                }
+                Node target = fail.get(c);
+                child.fail = target != null ? target : root;
+                child.allIds = merge(child.ids, child.fail.allIds);
+                queue.add(child);
+            }
+        }
+    }
+
+    private static int[] merge(int[] a, int[] b) {
+        if (b.length == 0) {
+            return a;
+        }
+        if (a.length == 0) {
+            return b;
+        }
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * The number of strings given when creating this (including empty ones).
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds all strings that occur anywhere in the text.
+     *
+     * @param text The text to search in
+     * @return The indices of the strings found
+     */
+    public BitSet find(CharSequence text) {
+        BitSet result = new BitSet(size);
+        Node node = root;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            Node next = node.get(c);
+            while (next == null && node != root) {
+                node = node.fail;
+                next = node.get(c);
+            }
+            node = next != null ? next : root;
+            for (int id : node.allIds) {
+                result.set(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds all strings the text starts with.
+     *
+     * @param text The text to search in
+     * @return The indices of the strings found
+     */
+    public BitSet findPrefixes(CharSequence text) {
+        BitSet result = new BitSet(size);
+        Node node = root;
+        for (int i = 0; i < text.length(); i++) {
+            node = node.get(text.charAt(i));
+            if (node == null) {
+                break;
+            }
+            for (int id : node.ids) {
+                result.set(id);
+            }
+        }
+        return result;
+    }
+
+    private static class Node {
+
+        private final char[] keys;
+        private final Node[] children;
+
+        /**
+         * The strings ending exactly at this node.
+         */
+        private final int[] ids;
+
+        /**
+         * The strings ending at this node or any of its failure nodes.
+         */
+        private int[] allIds;
+        private Node fail;
+
+        Node(char[] keys, Node[] children, int[] ids) {
+            this.keys = keys;
+            this.children = children;
+            this.ids = ids;
+            this.allIds = ids;
+        }
+
+        Node get(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+    }
+
+    /**
+     * Mutable node used while adding the strings, turned into the more
+     * compact {@link Node} afterwards.
+     */
+    private static class Builder {
+
+        private final TreeMap<Character, Builder> children = new TreeMap<>();
+        private final List<Integer> ids = new ArrayList<>();
+
+        Node build() {
+            char[] keys = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, Builder> entry : children.entrySet()) {
+                keys[i] = entry.getKey();
+                nodes[i] = entry.getValue().build();
+                i++;
+            }
+            int[] idsArray = new int[ids.size()];
+            for (int j = 0; j < idsArray.length; j++) {
+                idsArray[j] = ids.get(j);
+            }
+            return new Node(keys, nodes, idsArray);
+        }
+    }
+
+}
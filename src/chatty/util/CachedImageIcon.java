@@ -0,0 +1,147 @@
+package chatty.util;
+
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import javax.swing.ImageIcon;
+
+/**
+ * An ImageIcon whose image counts towards the budget of a
+ * {@link MemoryImageCache}, and may be evicted from memory when it hasn't been
+ * painted in a while. It keeps it's size when evicted (so it can stay in
+ * documents without changing the layout) and asks the {@link Reloader} to load
+ * the image again when it is painted.
+ *
+ * <p>
+ * Should only be used from the EDT.
+ * </p>
+ *
+ * @author tduva
+ */
+public class CachedImageIcon extends ImageIcon {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Image EVICTED = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+
+    private final MemoryImageCache cache;
+    private final Reloader reloader;
+
+    // Managed by the cache
+    volatile boolean referenced;
+    boolean inCache;
+    boolean wasEvicted;
+    long bytes;
+
+    private boolean evicted;
+    private boolean reloadRequested;
+    private int evictedWidth;
+    private int evictedHeight;
+
+    /**
+     * Creates a new icon with the given placeholder image, which doesn't
+     * count towards the budget.
+     *
+     * @param placeholder The image to show until an image is set with
+     * {@link #setCachedImage(Image)}
+     * @param cache The cache
+     * @param reloader Called when the image was evicted and should be shown
+     * again
+     */
+    public CachedImageIcon(Image placeholder, MemoryImageCache cache, Reloader reloader) {
+        super(placeholder);
+        this.cache = cache;
+        this.reloader = reloader;
+    }
+
+    /**
+     * Sets the actual image, which counts towards the budget of the cache.
+     *
+     * @param image The image
+     */
+    public void setCachedImage(Image image) {
+        evicted = false;
+        reloadRequested = false;
+        setImage(image);
+        cache.add(this);
+        wasEvicted = false;
+    }
+
+    /**
+     * Sets an image that doesn't count towards the budget and is never
+     * evicted (e.g. for an error image).
+     *
+     * @param image The image
+     */
+    public void setUncachedImage(Image image) {
+        evicted = false;
+        reloadRequested = false;
+        cache.remove(this);
+        setImage(image);
+    }
+
+    /**
+     * Whether the image was evicted and hasn't been reloaded yet.
+     *
+     * @return
+     */
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+    /**
+     * The reload requested from the {@link Reloader} didn't happen, so it
+     * should be requested again the next time this is painted.
+     */
+    public void reloadCancelled() {
+        reloadRequested = false;
+    }
+
+    /**
+     * Called by the cache.
+     */
+    void evict() {
+        evictedWidth = super.getIconWidth();
+        evictedHeight = super.getIconHeight();
+        evicted = true;
+        wasEvicted = true;
+        reloadRequested = false;
+        setImage(EVICTED);
+    }
+
+    @Override
+    public int getIconWidth() {
+        return evicted ? evictedWidth : super.getIconWidth();
+    }
+
+    @Override
+    public int getIconHeight() {
+        return evicted ? evictedHeight : super.getIconHeight();
+    }
+
+    @Override
+    public synchronized void paintIcon(Component c, Graphics g, int x, int y) {
+        referenced = true;
+        if (evicted) {
+            if (!reloadRequested) {
+                reloadRequested = true;
+                reloader.reload(this);
+            }
+            return;
+        }
+        super.paintIcon(c, g, x, y);
+    }
+
+    public interface Reloader {
+
+        /**
+         * The image was evicted and should be set again with
+         * {@link CachedImageIcon#setCachedImage(Image)}. Called on the EDT.
+         *
+         * @param icon The icon
+         */
+        public void reload(CachedImageIcon icon);
+    }
+
+}
@@ -0,0 +1,108 @@
+package chatty.util;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A set that only contains each element for a limited time after it was
+ * added. Elements are stored in buckets covering a fixed duration each, so
+ * expired elements are dropped a whole bucket at a time, without having to go
+ * through all elements. Elements may be kept up to one bucket duration longer
+ * than the given time.
+ *
+ * Can be used from several threads at once.
+ *
+ * @author tduva
+ * @param <T> The type of the elements
+ */
+public class ExpiringSet<T> {
+
+    private final long bucketDuration;
+    private final int bucketCount;
+    private final AtomicReferenceArray<Bucket<T>> buckets;
+
+    /**
+     * Creates a new empty set.
+     *
+     * @param time How long to keep elements (in milliseconds)
+     * @param bucketDuration The time covered by each bucket (in
+     * milliseconds), smaller values make the time more exact
+     */
+    public ExpiringSet(long time, long bucketDuration) {
+        this.bucketDuration = Math.max(bucketDuration, 1);
+        this.bucketCount = (int)(time / this.bucketDuration) + 1;
+        // One more slot, so the oldest still valid bucket isn't overwritten
+        this.buckets = new AtomicReferenceArray<>(bucketCount + 1);
+    }
+
+    /**
+     * Adds the element, or renews it if it is already contained.
+     *
+     * @param element The element, can't be null
+     */
+    public void add(T element) {
+        add(element, System.currentTimeMillis());
+    }
+
+    void add(T element, long time) {
+        long id = time / bucketDuration;
+        int slot = (int)(id % buckets.length());
+        while (true) {
+            Bucket<T> bucket = buckets.get(slot);
+            if (bucket != null && bucket.id == id) {
+                bucket.elements.add(element);
+                return;
+            }
+            if (bucket != null && bucket.id > id) {
+                // Time went backwards, just drop it
+                return;
+            }
+            buckets.compareAndSet(slot, bucket, new Bucket<T>(id));
+        }
+    }
+
+    /**
+     * Whether the element was added within the time.
+     *
+     * @param element The element, can't be null
+     * @return true if it is contained, false otherwise
+     */
+    public boolean contains(T element) {
+        return contains(element, System.currentTimeMillis());
+    }
+
+    boolean contains(T element, long time) {
+        long current = time / bucketDuration;
+        for (long id = current; id > current - bucketCount && id >= 0; id--) {
+            Bucket<T> bucket = buckets.get((int)(id % buckets.length()));
+            if (bucket != null && bucket.id == id
+                    && bucket.elements.contains(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all elements.
+     */
+    public void clear() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, null);
+        }
+    }
+
+    private static class Bucket<T> {
+
+        private final long id;
+        private final Set<T> elements = Collections.newSetFromMap(
+                new ConcurrentHashMap<T, Boolean>());
+
+        Bucket(long id) {
+            this.id = id;
+        }
+    }
+
+}
@@ -0,0 +1,361 @@
+package chatty.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.ImageIcon;
+
+/**
+ * Loads images on a fixed number of threads, separate from other background
+ * tasks, with only a limited number of images being loaded from the same host
+ * at once.
+ *
+ * <p>
+ * Requests with the same key (e.g. the URL) that are added while one is
+ * already waiting or loading are combined, so the image is only loaded once
+ * and all callbacks receive the same result. Requests belong to owners (e.g.
+ * the component the image is shown in), which can be given a priority, so
+ * images for visible components are loaded before others. When an owner is
+ * cancelled, waiting requests that belong to no other owner are dropped.
+ * </p>
+ *
+ * @author tduva
+ */
+public class ImageLoader {
+
+    private static final Logger LOGGER = Logger.getLogger(ImageLoader.class.getName());
+
+    /**
+     * For owners that are currently visible.
+     */
+    public static final int PRIORITY_HIGH = 2;
+
+    /**
+     * For owners no priority has been set for, or requests without owner.
+     */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * For owners whose images aren't needed urgently.
+     */
+    public static final int PRIORITY_LOW = 0;
+
+    private final String name;
+    private final int maxThreads;
+    private final int maxPerHost;
+
+    /**
+     * Waiting requests, in the order they were added.
+     */
+    private final List<Request> queue = new ArrayList<>();
+
+    /**
+     * Waiting and loading requests, by key.
+     */
+    private final Map<String, Request> requests = new HashMap<>();
+    private final Map<String, Integer> loadingPerHost = new HashMap<>();
+    private final Map<Object, Integer> priorities = new WeakHashMap<>();
+    private int threads;
+
+    // Metrics
+    private int maxQueued;
+    private long loaded;
+    private long coalesced;
+    private long cancelled;
+    private long totalLatency;
+    private long maxLatency;
+
+    /**
+     * Creates a new loader, the threads are only started once they are
+     * needed.
+     *
+     * @param name Used to name the threads
+     * @param threads The maximum number of images loaded at once
+     * @param perHost The maximum number of images loaded at once from the
+     * same host
+     */
+    public ImageLoader(String name, int threads, int perHost) {
+        this.name = name;
+        this.maxThreads = Math.max(threads, 1);
+        this.maxPerHost = Math.max(perHost, 1);
+    }
+
+    /**
+     * Requests an image to be loaded. If a request with the same key is
+     * already waiting or loading, the callback is added to it instead.
+     *
+     * @param key Identifies the image, requests with the same key are
+     * combined
+     * @param host The host the image is loaded from, may be null
+     * @param owner The owner of the request (used for priority and
+     * cancelling), may be null for requests that should never be cancelled
+     * @param task Loads the image, only used if the request isn't combined
+     * with an existing one
+     * @param callback Receives the result, called on a loader thread
+     * @return The request, which can be given more owners
+     */
+    public synchronized Request load(String key, String host, Object owner,
+            Task task, Callback callback) {
+        Request request = requests.get(key);
+        if (request != null) {
+            coalesced++;
+        } else {
+            request = new Request(key, host, task);
+            requests.put(key, request);
+            queue.add(request);
+            maxQueued = Math.max(maxQueued, queue.size());
+            if (threads < maxThreads) {
+                startThread();
+            }
+        }
+        request.callbacks.add(callback);
+        request.addOwnerInternal(owner);
+        notifyAll();
+        return request;
+    }
+
+    /**
+     * Sets the priority of all requests of the given owner, including ones
+     * that are already waiting. A request has the highest priority of any of
+     * it's owners.
+     *
+     * @param owner The owner
+     * @param priority The priority, higher is loaded first
+     */
+    public synchronized void setPriority(Object owner, int priority) {
+        priorities.put(owner, priority);
+    }
+
+    /**
+     * Removes the owner from all waiting requests. Requests that have no
+     * owner left are dropped and their callbacks informed.
+     *
+     * @param owner The owner
+     */
+    public void cancel(Object owner) {
+        List<Callback> toInform = new ArrayList<>();
+        synchronized(this) {
+            priorities.remove(owner);
+            Iterator<Request> it = queue.iterator();
+            while (it.hasNext()) {
+                Request request = it.next();
+                if (request.owners.remove(owner)
+                        && request.owners.isEmpty() && !request.ownerless) {
+                    it.remove();
+                    requests.remove(request.key);
+                    toInform.addAll(request.callbacks);
+                    cancelled++;
+                }
+            }
+        }
+        for (Callback callback : toInform) {
+            callback.cancelled();
+        }
+    }
+
+    /**
+     * The number of requests waiting to be loaded.
+     *
+     * @return
+     */
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    public synchronized String getInfo() {
+        long avgLatency = loaded > 0 ? totalLatency / loaded : 0;
+        return String.format("Queued: %d (max %d), Loading: %d, Loaded: %d"
+                + " (combined %d, cancelled %d), Latency: %dms (max %dms)",
+                queue.size(), maxQueued, requests.size() - queue.size(),
+                loaded, coalesced, cancelled, avgLatency, maxLatency);
+    }
+
+    private void startThread() {
+        threads++;
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        process(take());
+                    }
+                } catch (InterruptedException ex) {
+                    // Just end the thread
+                } finally {
+                    threadEnded();
+                }
+            }
+        }, name+"-"+threads);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A thread ended (only if an Error was thrown, threads otherwise keep
+     * running), so start another one if there is still something to do.
+     */
+    private synchronized void threadEnded() {
+        threads--;
+        if (!queue.isEmpty()) {
+            startThread();
+        }
+    }
+
+    private synchronized Request take() throws InterruptedException {
+        Request request;
+        while ((request = next()) == null) {
+            wait();
+        }
+        queue.remove(request);
+        Integer count = loadingPerHost.get(request.host);
+        loadingPerHost.put(request.host, count == null ? 1 : count + 1);
+        return request;
+    }
+
+    /**
+     * The first waiting request with the highest priority whose host isn't
+     * already busy.
+     */
+    private Request next() {
+        Request result = null;
+        int resultPriority = Integer.MIN_VALUE;
+        for (Request request : queue) {
+            Integer count = loadingPerHost.get(request.host);
+            if (count != null && count >= maxPerHost) {
+                continue;
+            }
+            int priority = getPriority(request);
+            if (priority > resultPriority) {
+                result = request;
+                resultPriority = priority;
+            }
+        }
+        return result;
+    }
+
+    private int getPriority(Request request) {
+        int result = request.ownerless ? PRIORITY_NORMAL : Integer.MIN_VALUE;
+        for (Object owner : request.owners) {
+            Integer priority = priorities.get(owner);
+            result = Math.max(result, priority != null ? priority : PRIORITY_NORMAL);
+        }
+        return result;
+    }
+
+    private void process(Request request) {
+        ImageIcon icon = null;
+        try {
+            icon = request.task.load();
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Error loading image "+request.key, ex);
+        } finally {
+            // Even on an Error, so the host isn't blocked and the callbacks
+            // don't wait forever
+            done(request, icon);
+        }
+    }
+
+    private void done(Request request, ImageIcon icon) {
+        List<Callback> callbacks;
+        synchronized(this) {
+            requests.remove(request.key);
+            int count = loadingPerHost.get(request.host) - 1;
+            if (count == 0) {
+                loadingPerHost.remove(request.host);
+            } else {
+                loadingPerHost.put(request.host, count);
+            }
+            long latency = System.currentTimeMillis() - request.created;
+            loaded++;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            callbacks = new ArrayList<>(request.callbacks);
+            // Host may be available again
+            notifyAll();
+        }
+        for (Callback callback : callbacks) {
+            try {
+                callback.loaded(icon);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "Error processing image "+request.key, ex);
+            }
+        }
+    }
+
+    /**
+     * A waiting or loading request.
+     */
+    public class Request {
+
+        private final String key;
+        private final String host;
+        private final Task task;
+        private final long created = System.currentTimeMillis();
+        private final List<Callback> callbacks = new ArrayList<>();
+        private final Set<Object> owners = new HashSet<>();
+        private boolean ownerless;
+
+        private Request(String key, String host, Task task) {
+            this.key = key;
+            this.host = host;
+            this.task = task;
+        }
+
+        /**
+         * Adds another owner to this request, so it isn't cancelled as long
+         * as this owner isn't cancelled and gets the priority of this owner
+         * if that is higher.
+         *
+         * @param owner The owner, may be null for no owner (the request is
+         * never cancelled then)
+         */
+        public void addOwner(Object owner) {
+            synchronized(ImageLoader.this) {
+                addOwnerInternal(owner);
+            }
+        }
+
+        private void addOwnerInternal(Object owner) {
+            if (owner == null) {
+                ownerless = true;
+            } else {
+                owners.add(owner);
+            }
+        }
+    }
+
+    public interface Task {
+
+        /**
+         * Loads the image. Called on a loader thread.
+         *
+         * @return The image, or null if an error occured
+         */
+        public ImageIcon load();
+    }
+
+    public interface Callback {
+
+        /**
+         * The request is done. Called on a loader thread.
+         *
+         * @param icon The image, or null if an error occured
+         */
+        public void loaded(ImageIcon icon);
+
+        /**
+         * The request was cancelled before it was loaded. Called on the thread
+         * that cancelled the owner.
+         */
+        public void cancelled();
+    }
+
+}
@@ -0,0 +1,187 @@
+package chatty.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a stream of bytes into lines ending with \r\n, directly working on
+ * the byte data. Data is written into the buffer returned by
+ * {@link #getBuffer()}, after which {@link #frame(LineListener)} sends all
+ * complete lines to the listener, decoding each line only once.
+ *
+ * Like the previous char based parsing, any \r and \n characters are removed
+ * from the lines and only \r\n actually ends a line.
+ *
+ * The buffer is reused and only grows if a single line doesn't fit into it.
+ * This is not thread-safe, it is meant to be used by a single reading thread.
+ *
+ * @author tduva
+ */
+public class LineFramer {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private final boolean direct;
+
+    /**
+     * The buffer data is written into (always in write mode when accessible
+     * from the outside).
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Used to copy the line into for decoding, if the buffer has no accessible
+     * array.
+     */
+    private byte[] lineBytes;
+
+    /**
+     * How far the current data has already been searched for a line ending,
+     * relative to the start of the buffer.
+     */
+    private int searched;
+
+    /**
+     * Creates a new framer.
+     *
+     * @param capacity The initial size of the buffer in bytes
+     * @param direct Whether to use a direct buffer (e.g. when reading from a
+     * channel) or a heap buffer (e.g. when reading from a stream)
+     */
+    public LineFramer(int capacity, boolean direct) {
+        this.direct = direct;
+        this.buffer = allocate(capacity);
+        this.lineBytes = new byte[direct ? capacity : 0];
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * The buffer to write received data into. The buffer instance may change
+     * after calling {@link #frame(LineListener)}, so this should be retrieved
+     * again before every read.
+     *
+     * @return The buffer, with at least some space remaining
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Gets the buffer to write received data into, with at least the given
+     * amount of space remaining (e.g. for decrypting a whole SSL packet into).
+     *
+     * @param minRemaining The number of bytes that should fit into the buffer
+     * @return The buffer
+     * @see #getBuffer()
+     */
+    public ByteBuffer getBuffer(int minRemaining) {
+        while (buffer.remaining() < minRemaining) {
+            grow();
+        }
+        return buffer;
+    }
+
+    /**
+     * Sends all complete lines currently in the buffer to the listener and
+     * keeps any incomplete line in the buffer for the next call.
+     *
+     * @param listener The listener to receive the lines
+     * @return The number of lines found
+     */
+    public int frame(LineListener listener) {
+        buffer.flip();
+        int count = 0;
+        int lineStart = 0;
+        int limit = buffer.limit();
+        // Continue where the previous call stopped (a \r\n may be split)
+        for (int i = Math.max(searched, 1); i < limit; i++) {
+            if (buffer.get(i) == LF && buffer.get(i - 1) == CR) {
+                listener.lineReceived(decode(lineStart, i - 1));
+                lineStart = i + 1;
+                count++;
+            }
+        }
+        // Move incomplete line to the front
+        buffer.position(lineStart);
+        buffer.compact();
+        searched = buffer.position();
+        if (!buffer.hasRemaining()) {
+            grow();
+        }
+        return count;
+    }
+
+    /**
+     * Makes room for a line that doesn't fit into the current buffer.
+     */
+    private void grow() {
+        ByteBuffer bigger = allocate(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+        if (direct) {
+            lineBytes = new byte[buffer.capacity()];
+        }
+    }
+
+    /**
+     * Decodes the bytes between {@code start} (inclusive) and {@code end}
+     * (exclusive), removing any stray \r and \n bytes (which can't be part of a
+     * multibyte UTF-8 character).
+     *
+     * @param start
+     * @param end
+     * @return The decoded line
+     */
+    private String decode(int start, int end) {
+        byte[] bytes;
+        int offset;
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            offset = buffer.arrayOffset() + start;
+        } else {
+            bytes = lineBytes;
+            offset = 0;
+            ByteBuffer view = buffer.duplicate();
+            view.limit(end).position(start);
+            view.get(bytes, 0, end - start);
+        }
+        int length = end - start;
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] == CR || bytes[i] == LF) {
+                return decodeFiltered(bytes, offset, length);
+            }
+        }
+        return new String(bytes, offset, length, CHARSET);
+    }
+
+    private static String decodeFiltered(byte[] bytes, int offset, int length) {
+        byte[] filtered = new byte[length];
+        int filteredLength = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] != CR && bytes[i] != LF) {
+                filtered[filteredLength++] = bytes[i];
+            }
+        }
+        return new String(filtered, 0, filteredLength, CHARSET);
+    }
+
+    /**
+     * Removes all data from the buffer.
+     */
+    public void clear() {
+        buffer.clear();
+        searched = 0;
+    }
+
+    public static interface LineListener {
+        public void lineReceived(String line);
+    }
+
+}
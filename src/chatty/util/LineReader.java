@@ -0,0 +1,130 @@
+package chatty.util;
+
+import chatty.util.LineFramer.LineListener;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads lines ending with \r\n from an {@code InputStream}. There are two
+ * implementations, one parsing the decoded chars one by one and one framing
+ * the lines on the raw bytes.
+ *
+ * Both keep any incomplete line between calls, so a read may be interrupted
+ * by a timeout and simply be called again.
+ *
+ * @author tduva
+ */
+public abstract class LineReader {
+
+    /**
+     * Reads data from the stream (blocking) and sends any completed lines to
+     * the listener.
+     *
+     * @param listener The listener to send the lines to
+     * @return The number of lines received, or -1 if the end of the stream has
+     * been reached
+     * @throws IOException If an error occured, including timeouts
+     */
+    public abstract int read(LineListener listener) throws IOException;
+
+    /**
+     * Creates a reader that reads one char at a time from a
+     * {@code BufferedReader} and builds the lines in a {@code StringBuilder}.
+     *
+     * @param in
+     * @param charset
+     * @return
+     */
+    public static LineReader chars(InputStream in, Charset charset) {
+        return new CharLineReader(in, charset);
+    }
+
+    /**
+     * Creates a reader that reads chunks of bytes into a reused buffer and
+     * only decodes complete lines.
+     *
+     * @param in
+     * @return
+     */
+    public static LineReader bytes(InputStream in) {
+        return new ByteLineReader(in);
+    }
+
+    private static class CharLineReader extends LineReader {
+
+        private final BufferedReader in;
+        private final StringBuilder b = new StringBuilder();
+        private boolean previousWasCR;
+
+        CharLineReader(InputStream in, Charset charset) {
+            this.in = new BufferedReader(new InputStreamReader(in, charset));
+        }
+
+        /**
+         * Read line ending with \r\n.
+         *
+         * This also filters \r and \n characters from the parsed messages,
+         * because they are not added to the buffer.
+         */
+        @Override
+        public int read(LineListener listener) throws IOException {
+            while (true) {
+                int c = in.read();
+                if (c == -1) {
+                    // End of stream
+                    return -1;
+                }
+                if (c == '\r') {
+                    previousWasCR = true;
+                } else if (c == '\n') {
+                    if (previousWasCR) {
+                        // Take buffer as line and reset
+                        String receivedLine = b.toString();
+                        b.setLength(0);
+                        previousWasCR = false;
+                        listener.lineReceived(receivedLine);
+                        return 1;
+                    }
+                } else {
+                    b.append((char) c);
+                    previousWasCR = false;
+                }
+            }
+        }
+
+    }
+
+    private static class ByteLineReader extends LineReader {
+
+        /**
+         * Initial size of the buffer, large enough for most lines with tags.
+         */
+        private static final int BUFFER_SIZE = 16*1024;
+
+        private final InputStream in;
+        private final LineFramer framer = new LineFramer(BUFFER_SIZE, false);
+
+        ByteLineReader(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(LineListener listener) throws IOException {
+            ByteBuffer buffer = framer.getBuffer();
+            int read = in.read(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            if (read == -1) {
+                return -1;
+            }
+            buffer.position(buffer.position() + read);
+            return framer.frame(listener);
+        }
+
+    }
+
+}
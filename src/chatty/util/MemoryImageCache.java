@@ -0,0 +1,129 @@
+package chatty.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits how much memory the images of {@link CachedImageIcon}s may use in
+ * total. When the budget is exceeded, images that haven't been painted for the
+ * longest are evicted (second chance: each image that was painted since the
+ * last check is skipped once), which replaces them with an empty placeholder
+ * until they are painted again and reloaded.
+ *
+ * <p>
+ * Since evicting changes the image of an icon that may be shown, this should
+ * only be used from the EDT.
+ * </p>
+ *
+ * @author tduva
+ */
+public class MemoryImageCache {
+
+    /**
+     * The images currently in memory, with {@code hand} going around them
+     * looking for one to evict.
+     */
+    private final List<CachedImageIcon> icons = new ArrayList<>();
+    private int hand;
+    private long budget;
+    private long bytes;
+
+    // Metrics
+    private long evicted;
+    private long reloaded;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param budget The maximum number of bytes the images should use
+     */
+    public MemoryImageCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Sets the maximum number of bytes the images should use, evicting images
+     * if necessary.
+     *
+     * @param budget The budget in bytes
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    /**
+     * Adds the icon after it received a new image (or updates the size if it
+     * is already added), evicting other images if necessary.
+     *
+     * @param icon The icon
+     */
+    synchronized void add(CachedImageIcon icon) {
+        if (icon.inCache) {
+            bytes -= icon.bytes;
+        } else {
+            icons.add(icon);
+            icon.inCache = true;
+        }
+        if (icon.wasEvicted) {
+            reloaded++;
+        }
+        icon.bytes = getBytes(icon);
+        icon.referenced = true;
+        bytes += icon.bytes;
+        evict();
+    }
+
+    /**
+     * Removes the icon, if it doesn't have a cached image anymore.
+     *
+     * @param icon The icon
+     */
+    synchronized void remove(CachedImageIcon icon) {
+        if (icon.inCache) {
+            int index = icons.indexOf(icon);
+            removeAt(index);
+        }
+    }
+
+    private void evict() {
+        // Always keep at least one, the image just added may be too big
+        while (bytes > budget && icons.size() > 1) {
+            if (hand >= icons.size()) {
+                hand = 0;
+            }
+            CachedImageIcon icon = icons.get(hand);
+            if (icon.referenced) {
+                // Second chance
+                icon.referenced = false;
+                hand++;
+            } else {
+                removeAt(hand);
+                icon.evict();
+                evicted++;
+            }
+        }
+    }
+
+    private void removeAt(int index) {
+        CachedImageIcon icon = icons.remove(index);
+        if (index < hand) {
+            hand--;
+        }
+        icon.inCache = false;
+        bytes -= icon.bytes;
+    }
+
+    /**
+     * Estimates the memory used by the icon, assuming 4 bytes per pixel.
+     */
+    private static long getBytes(CachedImageIcon icon) {
+        return Math.max(icon.getIconWidth(), 1) * (long)Math.max(icon.getIconHeight(), 1) * 4;
+    }
+
+    public synchronized String getInfo() {
+        return String.format("%d images, %dKB (max %dKB), Evicted: %d, Reloaded: %d",
+                icons.size(), bytes / 1024, budget / 1024, evicted, reloaded);
+    }
+
+}
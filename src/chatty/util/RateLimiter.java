@@ -0,0 +1,143 @@
+package chatty.util;
+
+/**
+ * Allows a number of events in a sliding time window. The times of the last
+ * events are stored in a ring buffer of primitive longs (one slot per allowed
+ * event), so the oldest event in the window is always the one that is
+ * overwritten next.
+ *
+ * @author tduva
+ */
+public class RateLimiter {
+
+    private long[] times;
+    private int next;
+    private long window;
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param limit How many events are allowed in the window, 0 or less to not
+     * limit at all
+     * @param window The length of the window in milliseconds
+     */
+    public RateLimiter(int limit, long window) {
+        setLimit(limit, window);
+    }
+
+    /**
+     * Changes the limit. The most recent events added so far are kept (as
+     * many as the new limit allows), since they still count on the server
+     * (e.g. when reconnecting). Setting the same limit again changes nothing.
+     *
+     * @param limit How many events are allowed in the window, 0 or less to not
+     * limit at all
+     * @param window The length of the window in milliseconds
+     */
+    public synchronized final void setLimit(int limit, long window) {
+        limit = Math.max(limit, 0);
+        this.window = window;
+        if (times != null && times.length == limit) {
+            return;
+        }
+        long[] newTimes = new long[limit];
+        for (int i = 0; i < newTimes.length; i++) {
+            newTimes[i] = Long.MIN_VALUE / 2;
+        }
+        int kept = 0;
+        if (times != null) {
+            // From oldest to newest, only keeping the newest ones that fit
+            int keep = Math.min(times.length, limit);
+            for (int i = times.length - keep; i < times.length; i++) {
+                newTimes[kept++] = times[(next + i) % times.length];
+            }
+        }
+        this.times = newTimes;
+        // Oldest event (or an unused slot) is overwritten next
+        this.next = limit > 0 ? kept % limit : 0;
+    }
+
+    /**
+     * How long to wait until another event is allowed.
+     *
+     * @param now The current time in milliseconds
+     * @return The time to wait in milliseconds, 0 if an event is allowed now
+     */
+    public synchronized long getWaitTime(long now) {
+        if (times.length == 0) {
+            return 0;
+        }
+        return Math.max(0, times[next] + window - now);
+    }
+
+    /**
+     * How many events are still allowed right now.
+     *
+     * @param now The current time in milliseconds
+     * @return The number of events allowed
+     */
+    public synchronized int getAllowance(long now) {
+        if (times.length == 0) {
+            return Integer.MAX_VALUE;
+        }
+        int count = 0;
+        for (long time : times) {
+            if (time + window <= now) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds an event, regardless of whether it is allowed or not.
+     *
+     * @param now The time of the event in milliseconds
+     */
+    public synchronized void add(long now) {
+        if (times.length == 0) {
+            return;
+        }
+        times[next] = now;
+        next = (next + 1) % times.length;
+    }
+
+    /**
+     * Adds an event if it is allowed.
+     *
+     * @param now The time of the event in milliseconds
+     * @return true if the event was added, false otherwise
+     */
+    public synchronized boolean tryAdd(long now) {
+        if (getWaitTime(now) == 0) {
+            add(now);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses a limit in the format "limit/seconds".
+     *
+     * @param value The value to parse
+     * @return An array with limit and window in milliseconds, or null if the
+     * value is invalid
+     */
+    public static long[] parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] split = value.split("/");
+        if (split.length == 2) {
+            try {
+                long limit = Integer.parseInt(split[0].trim());
+                long seconds = Integer.parseInt(split[1].trim());
+                return new long[]{limit, seconds*1000};
+            } catch (NumberFormatException ex) {
+                // Invalid
+            }
+        }
+        return null;
+    }
+
+}
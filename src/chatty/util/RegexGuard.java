@@ -0,0 +1,299 @@
+package chatty.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Limits how much work a regex may do on a single text, so a pattern entered
+ * by the user (or received from an API) that backtracks excessively on some
+ * text doesn't freeze the program.
+ *
+ * The text is wrapped in a {@code CharSequence} that counts how often a
+ * character is accessed, which is roughly the number of steps the regex
+ * engine performs, and throws {@link BudgetExceededException} when the budget
+ * is used up. The text the budget was exceeded on should be skipped, and
+ * {@link #exceeded(String, String)} called, which disables the pattern (and
+ * informs the listener) if that happens repeatedly.
+ *
+ * @author tduva
+ */
+public class RegexGuard {
+
+    private static final Logger LOGGER = Logger.getLogger(RegexGuard.class.getName());
+
+    /**
+     * How many character accesses a single matcher may perform. Normal
+     * patterns on chat messages stay far below this.
+     */
+    public static final int DEFAULT_BUDGET = 200000;
+
+    /**
+     * How often a pattern may exceed the budget within
+     * {@code EXCEEDED_WINDOW} before it is disabled. A single long message
+     * may be enough for a legit pattern to exceed the budget once.
+     */
+    private static final int MAX_EXCEEDED = 3;
+
+    private static final long EXCEEDED_WINDOW = 10*60*1000;
+
+    /**
+     * How often the pattern exceeded the budget, and when it first did in the
+     * current window.
+     */
+    private static final Map<String, long[]> exceededCounts = new HashMap<>();
+
+    private static final Set<String> disabled = Collections.synchronizedSet(
+            new LinkedHashSet<String>());
+
+    private static volatile Listener listener;
+
+    /**
+     * Creates a matcher for the given text, which throws a
+     * {@link BudgetExceededException} when it uses more than the default
+     * budget.
+     *
+     * @param pattern The pattern
+     * @param text The text to match against
+     * @return The matcher
+     */
+    public static Matcher matcher(Pattern pattern, CharSequence text) {
+        return pattern.matcher(guard(text));
+    }
+
+    /**
+     * Wraps the text, so that a matcher that is reset to it throws a
+     * {@link BudgetExceededException} when it uses more than the default
+     * budget.
+     *
+     * @param text The text
+     * @return The wrapped text
+     */
+    public static CharSequence guard(CharSequence text) {
+        return new Budget(text, DEFAULT_BUDGET);
+    }
+
+    static Budget guard(CharSequence text, long limit) {
+        return new Budget(text, limit);
+    }
+
+    /**
+     * The given pattern exceeded the budget, which disables it if that
+     * happened too often recently.
+     *
+     * @param pattern The pattern as given by the user
+     * @param source Where the pattern is from, for the message
+     * @return true if the pattern is disabled now
+     */
+    public static boolean exceeded(String pattern, String source) {
+        return exceeded(pattern, source, System.currentTimeMillis());
+    }
+
+    static boolean exceeded(String pattern, String source, long now) {
+        int count;
+        synchronized(exceededCounts) {
+            long[] entry = exceededCounts.get(pattern);
+            if (entry == null || now - entry[1] > EXCEEDED_WINDOW) {
+                entry = new long[]{0, now};
+                exceededCounts.put(pattern, entry);
+            }
+            count = (int)++entry[0];
+            if (count >= MAX_EXCEEDED) {
+                exceededCounts.remove(pattern);
+            }
+        }
+        if (count >= MAX_EXCEEDED) {
+            disable(pattern, source);
+            return true;
+        }
+        LOGGER.info("Regex took too long ("+count+"/"+MAX_EXCEEDED+"): "
+                +source+" "+pattern);
+        return false;
+    }
+
+    /**
+     * Disables the given pattern, so that it isn't used anymore (checked with
+     * {@link #isDisabled(String)}).
+     *
+     * @param pattern The pattern as given by the user
+     * @param source Where the pattern is from, for the message
+     */
+    public static void disable(String pattern, String source) {
+        if (disabled.add(pattern)) {
+            LOGGER.warning("Disabled regex (took too long): "+source+" "+pattern);
+            Listener l = listener;
+            if (l != null) {
+                l.patternDisabled(pattern, source);
+            }
+        }
+    }
+
+    /**
+     * Disables the given patterns without informing the listener (e.g. to
+     * restore the ones disabled in an earlier session).
+     *
+     * @param patterns
+     */
+    public static void setDisabled(List<String> patterns) {
+        synchronized(disabled) {
+            disabled.clear();
+            disabled.addAll(patterns);
+        }
+    }
+
+    public static boolean isDisabled(String pattern) {
+        return disabled.contains(pattern);
+    }
+
+    public static List<String> getDisabled() {
+        synchronized(disabled) {
+            return new ArrayList<>(disabled);
+        }
+    }
+
+    /**
+     * Sets the listener that is informed when a pattern is disabled. The
+     * listener may be called from any thread.
+     *
+     * @param listener
+     */
+    public static void setListener(Listener listener) {
+        RegexGuard.listener = listener;
+    }
+
+    /**
+     * Estimates the worst-case cost of the pattern on chat messages, by
+     * running it against texts that are likely to cause excessive
+     * backtracking (repetitions of the characters in the pattern, followed by
+     * a character that doesn't fit).
+     *
+     * @param pattern The pattern
+     * @param find Whether the pattern is used with {@code find()} (instead of
+     * {@code matches()})
+     * @return The highest number of character accesses, capped at 100 times
+     * the default budget
+     */
+    public static long measure(Pattern pattern, boolean find) {
+        long max = 0;
+        for (String text : makeTestTexts(pattern.pattern())) {
+            Budget budget = new Budget(text, DEFAULT_BUDGET * 100L);
+            Matcher m = pattern.matcher(budget);
+            try {
+                if (find) {
+                    while (m.find()) {
+                        // Just go through all matches
+                    }
+                } else {
+                    m.matches();
+                }
+            } catch (BudgetExceededException ex) {
+                // Just use the maximum
+            }
+            max = Math.max(max, budget.steps);
+        }
+        return max;
+    }
+
+    private static final int TEST_LENGTH = 500;
+
+    private static List<String> makeTestTexts(String pattern) {
+        Set<Character> chars = new LinkedHashSet<>();
+        for (char c : pattern.toCharArray()) {
+            if (Character.isLetterOrDigit(c) || c == ' ') {
+                chars.add(c);
+            }
+        }
+        chars.add('a');
+        chars.add(' ');
+        List<String> result = new ArrayList<>();
+        StringBuilder all = new StringBuilder();
+        for (char c : chars) {
+            all.append(c);
+            result.add(repeat(String.valueOf(c), TEST_LENGTH)+"!");
+        }
+        result.add(repeat(all.toString(), TEST_LENGTH / all.length())+"!");
+        return result;
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder b = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            b.append(s);
+        }
+        return b.toString();
+    }
+
+    /**
+     * Counts the character accesses and throws an exception if there are too
+     * many.
+     */
+    static class Budget implements CharSequence {
+
+        private final CharSequence text;
+        private final long limit;
+        private long steps;
+
+        Budget(CharSequence text, long limit) {
+            this.text = text;
+            this.limit = limit;
+        }
+
+        long getSteps() {
+            return steps;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++steps > limit) {
+                throw new BudgetExceededException();
+            }
+            return text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+
+    /**
+     * Thrown by the matcher when the pattern took too long.
+     */
+    public static class BudgetExceededException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        BudgetExceededException() {
+            super("Regex took too long", null, false, false);
+        }
+    }
+
+    public interface Listener {
+
+        /**
+         * A pattern was disabled because it took too long.
+         *
+         * @param pattern The pattern
+         * @param source Where the pattern is from
+         */
+        public void patternDisabled(String pattern, String source);
+    }
+
+}
@@ -0,0 +1,218 @@
+package chatty.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records received lines with the time they were received, so they can be
+ * replayed later.
+ *
+ * The file is gzipped and starts with a header (magic and the start time),
+ * followed by one record per line: the time since the previous line and the
+ * length of the line as variable-length ints, and the UTF-8 bytes of the line.
+ *
+ * @author tduva
+ */
+public class SessionRecorder implements Closeable {
+
+    private static final int MAGIC = 0x43525331; // "CRS1"
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final DataOutputStream out;
+    private final long start;
+    private long last;
+    private long count;
+    private boolean closed;
+
+    /**
+     * Creates a new recording, overwriting the file if it already exists.
+     *
+     * @param file The file to write to
+     * @throws IOException If the file couldn't be opened
+     */
+    public SessionRecorder(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    public SessionRecorder(OutputStream output) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(output)));
+        start = System.currentTimeMillis();
+        last = start;
+        out.writeInt(MAGIC);
+        out.writeLong(start);
+    }
+
+    /**
+     * Records a line with the current time.
+     *
+     * @param line The line to record
+     * @return true if recorded, false if the recorder was already closed or
+     * writing failed
+     */
+    public synchronized boolean record(String line) {
+        if (closed) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            byte[] bytes = line.getBytes(CHARSET);
+            writeVarLong(out, Math.max(0, now - last));
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+            last = Math.max(last, now);
+            count++;
+            return true;
+        } catch (IOException ex) {
+            closeQuietly();
+            return false;
+        }
+    }
+
+    /**
+     * How many lines have been recorded.
+     *
+     * @return
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * How long this has been recording.
+     *
+     * @return The time in milliseconds
+     */
+    public synchronized long getDuration() {
+        return last - start;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.close();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ex) {
+            // Already failed
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Invalid length");
+    }
+
+    /**
+     * Reads the lines of a recording in order.
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final long start;
+        private long time;
+        private String line;
+        private byte[] buffer = new byte[1024];
+
+        public Reader(File file) throws IOException {
+            this(new FileInputStream(file));
+        }
+
+        public Reader(InputStream input) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(input)));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("Not a session recording");
+            }
+            start = in.readLong();
+        }
+
+        /**
+         * Reads the next line.
+         *
+         * @return true if a line was read, false if the end of the recording
+         * was reached
+         * @throws IOException If the recording is corrupted or couldn't be
+         * read
+         */
+        public boolean next() throws IOException {
+            long delta;
+            try {
+                delta = readVarLong(in);
+            } catch (EOFException ex) {
+                line = null;
+                return false;
+            }
+            int length = (int)readVarLong(in);
+            if (length > buffer.length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            in.readFully(buffer, 0, length);
+            time += delta;
+            line = new String(buffer, 0, length, CHARSET);
+            return true;
+        }
+
+        /**
+         * The time of the current line, relative to the start of the
+         * recording.
+         *
+         * @return The time in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public String getLine() {
+            return line;
+        }
+
+        /**
+         * When the recording was started.
+         *
+         * @return The time in milliseconds since the epoch
+         */
+        public long getStart() {
+            return start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+}
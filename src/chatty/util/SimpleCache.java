@@ -69,12 +69,8 @@ public class SimpleCache {
      * error occured
      */
     public String load(boolean loadEvenIfExpired) {
-        LOGGER.info("Cache: Trying to load "+id+"..");
-        try (BufferedReader reader = Files.newBufferedReader(file, CHARSET)) {
-            long time = Long.parseLong(reader.readLine());
-            long timePassed = (System.currentTimeMillis() / 1000) - time;
-            if (!loadEvenIfExpired && timePassed > expireTime) {
-                LOGGER.info("Cache: Did not load "+id+" (expired)");
+        try (BufferedReader reader = open(loadEvenIfExpired)) {
+            if (reader == null) {
                 return null;
             }
             StringBuilder data = new StringBuilder();
@@ -84,10 +80,63 @@ public class SimpleCache {
                 data.append("\n");
             }
             return data.toString();
+        } catch (IOException ex) {
+            LOGGER.warning("Cache: Error loading "+id+" ["+ex+"]");
+            return null;
+        }
+    }
+    
+    /**
+     * Opens the file specified for this cache for reading the cached text, so
+     * it can be processed without reading it into a String first.
+     * 
+     * @param loadEvenIfExpired
+     * @return The reader, positioned at the start of the cached text, which
+     * has to be closed by the caller, or null if the file isn't recent enough
+     * or an error occured
+     */
+    public BufferedReader open(boolean loadEvenIfExpired) {
+        LOGGER.info("Cache: Trying to load "+id+"..");
+        BufferedReader reader = null;
+        try {
+            reader = Files.newBufferedReader(file, CHARSET);
+            long time = Long.parseLong(reader.readLine());
+            if (!loadEvenIfExpired && isExpired(time)) {
+                LOGGER.info("Cache: Did not load "+id+" (expired)");
+                reader.close();
+                return null;
+            }
+            return reader;
         } catch (IOException | NumberFormatException ex) {
             LOGGER.warning("Cache: Error loading "+id+" ["+ex+"]");
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ex2) {
+                    // Nothing more to do
+                }
+            }
             return null;
         }
     }
     
+    /**
+     * Checks whether something saved at the given time is expired.
+     * 
+     * @param time The time in seconds
+     * @return true if it is expired, false otherwise
+     */
+    public boolean isExpired(long time) {
+        return (System.currentTimeMillis() / 1000) - time > expireTime;
+    }
+    
+    /**
+     * The file specified for this cache.
+     * 
+     * @return 
+     */
+    public Path getFile() {
+        return file;
+    }
+    
 }
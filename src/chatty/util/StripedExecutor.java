@@ -0,0 +1,248 @@
+package chatty.util;
+
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on a fixed number of threads, where all tasks with the same key
+ * (e.g. a channel name) always run on the same thread, in the order they were
+ * added. Tasks with different keys may run in parallel.
+ *
+ * Each thread has a bounded queue, so adding a task blocks if the thread it
+ * belongs to is too far behind.
+ *
+ * @author tduva
+ */
+public class StripedExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(StripedExecutor.class.getName());
+
+    private final String name;
+    private final Stripe[] stripes;
+    private final int queueLimit;
+
+    /**
+     * Creates a new executor, the threads are only started once they get a
+     * task.
+     *
+     * @param name Used to name the threads
+     * @param threads The number of threads
+     * @param queueLimit The maximum number of tasks waiting per thread
+     */
+    public StripedExecutor(String name, int threads, int queueLimit) {
+        this.name = name;
+        this.queueLimit = Math.max(queueLimit, 1);
+        this.stripes = new Stripe[Math.max(threads, 1)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(i);
+        }
+    }
+
+    /**
+     * Runs the task after all previously added tasks with the same key. This
+     * may block if there are too many tasks waiting for the same thread. If
+     * called from the thread the task belongs to, it is run directly.
+     *
+     * @param key The key, can't be null
+     * @param task The task
+     */
+    public void execute(Object key, Runnable task) {
+        Stripe stripe = getStripe(key);
+        if (Thread.currentThread() == stripe.thread) {
+            stripe.run(task);
+        } else {
+            stripe.add(task);
+        }
+    }
+
+    private Stripe getStripe(Object key) {
+        int hash = key.hashCode();
+        // Spread the hash, like HashMap does
+        hash ^= (hash >>> 16);
+        return stripes[(hash & 0x7FFFFFFF) % stripes.length];
+    }
+
+    /**
+     * Creates a group, which adds tasks to this executor, but allows waiting
+     * for only the tasks added through the group to finish.
+     *
+     * @return The new group
+     */
+    public Group newGroup() {
+        return new Group();
+    }
+
+    public int getThreadCount() {
+        return stripes.length;
+    }
+
+    /**
+     * The number of tasks currently waiting or running.
+     *
+     * @return
+     */
+    public int getPending() {
+        int result = 0;
+        for (Stripe stripe : stripes) {
+            synchronized(stripe) {
+                result += stripe.pending;
+            }
+        }
+        return result;
+    }
+
+    public String getInfo() {
+        StringBuilder b = new StringBuilder();
+        long total = 0;
+        int maxPending = 0;
+        for (Stripe stripe : stripes) {
+            synchronized(stripe) {
+                total += stripe.processed;
+                maxPending = Math.max(maxPending, stripe.maxPending);
+                if (b.length() > 0) {
+                    b.append("/");
+                }
+                b.append(stripe.pending);
+            }
+        }
+        return String.format("Threads: %d, Pending: %s (max %d), Processed: %d",
+                stripes.length, b, maxPending, total);
+    }
+
+    private class Stripe implements Runnable {
+
+        private final int index;
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        private volatile Thread thread;
+
+        /**
+         * Waiting and running tasks.
+         */
+        private int pending;
+        private int maxPending;
+        private long processed;
+
+        Stripe(int index) {
+            this.index = index;
+        }
+
+        synchronized void add(Runnable task) {
+            while (queue.size() >= queueLimit) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            queue.add(task);
+            pending++;
+            maxPending = Math.max(maxPending, pending);
+            if (thread == null) {
+                thread = new Thread(this, name+"-"+index);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized(this) {
+                    while (queue.isEmpty()) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                    task = queue.poll();
+                    notifyAll();
+                }
+                run(task);
+                synchronized(this) {
+                    pending--;
+                    processed++;
+                }
+            }
+        }
+
+        void run(Runnable task) {
+            try {
+                task.run();
+            } catch (Throwable ex) {
+                // Also Errors (e.g. StackOverflowError from a regex), since
+                // the thread would otherwise end and the tasks for this
+                // stripe would never run
+                LOGGER.log(Level.WARNING, "Error running task", ex);
+            }
+        }
+    }
+
+    /**
+     * Adds tasks to the executor and keeps track of them, so it's possible to
+     * wait for only these tasks to finish.
+     */
+    public class Group {
+
+        private int pending;
+
+        /**
+         * Runs the task, same as {@link StripedExecutor#execute(Object, Runnable)}.
+         *
+         * @param key The key, can't be null
+         * @param task The task
+         */
+        public void execute(Object key, final Runnable task) {
+            synchronized(this) {
+                pending++;
+            }
+            StripedExecutor.this.execute(key, new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        done();
+                    }
+                }
+            });
+        }
+
+        private synchronized void done() {
+            pending--;
+            if (pending == 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until all tasks added through this group are finished. Must
+         * not be called from one of the threads of the executor.
+         */
+        public synchronized void await() {
+            while (pending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * The number of tasks added through this group that aren't finished.
+         *
+         * @return
+         */
+        public synchronized int getPending() {
+            return pending;
+        }
+    }
+
+}
@@ -3,7 +3,11 @@ package chatty.util.api;
 
 import chatty.Helper;
 import chatty.User;
+import chatty.util.CachedImageIcon;
 import chatty.util.ImageCache;
+import chatty.util.ImageLoader;
+import chatty.util.MemoryImageCache;
+import chatty.util.RegexGuard;
 import chatty.util.StringUtil;
 import java.awt.Color;
 import java.awt.Dimension;
@@ -23,14 +27,13 @@ import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
 import java.util.WeakHashMap;
-import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
-import javax.swing.SwingWorker;
+import javax.swing.SwingUtilities;
 
 /**
  * A single emoticon, that contains a pattern, an URL to the image and
@@ -59,6 +62,7 @@ public class Emoticon {
     }
     
     private static final Pattern NOT_WORD = Pattern.compile("[^\\w]");
+    private static final Pattern NO_MATCH = Pattern.compile("(?!)");
     
     /**
      * Try loading the image these many times, which will be tried if an error
@@ -85,6 +89,41 @@ public class Emoticon {
      */
     private static final int CACHE_TIME = 60*60*24*7;
     
+    /**
+     * Loads the images of all emotes. The {@link EmoticonUser} an image is
+     * requested for is the owner of the request, so it can be used to set the
+     * priority or cancel the requests.
+     * 
+     * Almost all Twitch emotes come from the same CDN host, so the per-host
+     * limit is about as high as a browser would use for one host, while
+     * leaving threads for BTTV/FFZ emotes loading at the same time.
+     */
+    public static final ImageLoader IMAGE_LOADER = new ImageLoader("EmoteLoader", 10, 6);
+    
+    /**
+     * Limits the memory used by the loaded images of all emotes. Images that
+     * are evicted are loaded again (usually from the image cache on disk) when
+     * they are shown again.
+     */
+    public static final MemoryImageCache IMAGE_CACHE = new MemoryImageCache(64*1024*1024);
+    
+    /**
+     * The smallest budget (in MB) that can be set for the {@link #IMAGE_CACHE},
+     * so that the emotes currently shown always fit (otherwise painting them
+     * would keep evicting and reloading them).
+     */
+    private static final long MIN_IMAGE_CACHE_MEMORY = 16;
+    
+    /**
+     * Sets the budget of the {@link #IMAGE_CACHE}, but not lower than
+     * {@link #MIN_IMAGE_CACHE_MEMORY}.
+     * 
+     * @param memory The budget in MB
+     */
+    public static void setImageCacheMemory(long memory) {
+        IMAGE_CACHE.setBudget(Math.max(memory, MIN_IMAGE_CACHE_MEMORY)*1024*1024);
+    }
+    
     // Assumed width/height if there is none given
     private static final int DEFAULT_WIDTH = 28;
     private static final int DEFAULT_HEIGHT = 28;
@@ -114,7 +153,11 @@ public class Emoticon {
     private volatile int width;
     private volatile int height;
 
-    private Matcher matcher;
+    /**
+     * Created when first needed. Each use gets it's own Matcher, so emotes
+     * can be found from several threads at once.
+     */
+    private volatile Pattern pattern;
     private Set<EmoticonImage> images;
     
 
@@ -317,8 +360,9 @@ public class Emoticon {
         this.subType = builder.subtype;
     }
     
-    private void createMatcher() {
-        if (matcher == null) {
+    private Pattern getPattern() {
+        Pattern result = pattern;
+        if (result == null) {
             // Only match at word boundaries, unless there is a character that
             // isn't a word character
             String search = code;
@@ -330,14 +374,16 @@ public class Emoticon {
             }
             // Actually compile a Pattern from it
             try {
-                matcher = Pattern.compile(search, flags).matcher("");
+                result = Pattern.compile(search, flags);
             } catch (PatternSyntaxException ex) {
                 LOGGER.warning("Error compiling pattern for '" + search + "' [" + ex.getLocalizedMessage() + "]");
-                // Compile a pattern that doesn't match anything, so a Matcher
+                // Use a pattern that doesn't match anything, so a Matcher
                 // is still available
-                matcher = Pattern.compile("(?!)").matcher("");
+                result = NO_MATCH;
             }
+            pattern = result;
         }
+        return result;
     }
     
     /**
@@ -401,15 +447,31 @@ public class Emoticon {
     }
     
     /**
-     * Gets the matcher that can be used to find this emoticon in the given
-     * text. Should probably only be used out of the EDT.
+     * Gets a new matcher that can be used to find this emoticon in the given
+     * text. Can be used from any thread.
+     * 
+     * The matcher may throw a {@link RegexGuard.BudgetExceededException} if
+     * the emote code is a regex that takes too long on this text, in which
+     * case the emote should be disabled. Disabled emotes return a matcher
+     * that doesn't find anything.
      * 
      * @param text
      * @return 
      */
     public Matcher getMatcher(String text) {
-        createMatcher();
-        return matcher.reset(text);
+        if (RegexGuard.isDisabled(code)) {
+            return NO_MATCH.matcher("");
+        }
+        return getPattern().matcher(RegexGuard.guard(text));
+    }
+    
+    /**
+     * Estimates the worst-case cost of finding this emote in a message.
+     * 
+     * @return The cost, see {@link RegexGuard#measure(Pattern, boolean)}
+     */
+    public long getRegexCost() {
+        return RegexGuard.measure(getPattern(), true);
     }
     
     /**
@@ -441,7 +503,7 @@ public class Emoticon {
     
     /**
      * Requests an ImageIcon to be loaded, returns the default icon at first,
-     * but starts a SwingWorker to get the actual image.
+     * but requests the actual image from the {@link #IMAGE_LOADER}.
      * 
      * @param user
      * @return 
@@ -603,27 +665,34 @@ public class Emoticon {
     
     
     /**
-     * A Worker class to load the Icon. Not doing this in it's own thread
-     * can lead to lag when a lot of new icons are being loaded.
+     * Loads the Icon for an EmoticonImage through the {@link #IMAGE_LOADER},
+     * so it doesn't lag the GUI when a lot of new icons are being loaded.
+     * Images from the same URL are only loaded once, even if they are
+     * requested for several EmoticonImages (e.g. with different scaling).
      */
-    private class IconLoader extends SwingWorker<ImageIcon,Object> {
+    private class IconLoader implements ImageLoader.Callback {
 
         private final EmoticonImage image;
+        private final Dimension defaultSize;
+        private final Dimension scaledSize;
+        private final String url;
+        private final int urlFactor;
+        private final boolean alternate;
         
+        /**
+         * Determines the URL to load the image from. Should be called from
+         * the EDT.
+         * 
+         * @param image 
+         */
         public IconLoader(EmoticonImage image) {
             this.image = image;
-        }
-        
-        @Override
-        protected ImageIcon doInBackground() throws Exception {
             
             // Get the assumed size or size loaded from the size cache
-            Dimension defaultSize = getDefaultSize();
-            Dimension scaledSize = getScaledSize(defaultSize, image.scaleFactor,
+            defaultSize = getDefaultSize();
+            scaledSize = getScaledSize(defaultSize, image.scaleFactor,
                     image.maxHeight);
             
-            //System.out.println(defaultSize+" "+scaledSize+" "+image);
-            
             // Determine which URL to load the image from
             String url = Emoticon.this.url;
             int urlFactor = 1;
@@ -634,30 +703,101 @@ public class Emoticon {
                 String builtUrl = getEmoteUrl(urlFactor);
                 if (builtUrl == null) {
                     LOGGER.warning("Couldn't build URL for "+type+"/"+code);
-                    //return null;
                 } else {
                     url = builtUrl;
                 }
             }
+            this.url = url;
+            this.urlFactor = urlFactor;
+            this.alternate = image.loadingAttempts > TRY_ALTERNATE_AFTER_ATTEMPTS;
+        }
+        
+        /**
+         * Adds the request to the loader.
+         * 
+         * @param owners The users of the image
+         * @return The request
+         */
+        public ImageLoader.Request execute(Set<EmoticonUser> owners) {
+            ImageLoader.Task task = new ImageLoader.Task() {
+
+                @Override
+                public ImageIcon load() {
+                    return loadEmote(url, alternate);
+                }
+            };
+            String key = url+(alternate ? " (alternate)" : "");
+            String host = null;
+            try {
+                host = new URL(url).getHost();
+            } catch (MalformedURLException ex) {
+                // Just use no host, loading will fail anyway
+            }
+            ImageLoader.Request request = null;
+            for (EmoticonUser owner : owners) {
+                if (request == null) {
+                    request = IMAGE_LOADER.load(key, host, owner, task, this);
+                } else {
+                    request.addOwner(owner);
+                }
+            }
+            if (request == null) {
+                request = IMAGE_LOADER.load(key, host, null, task, this);
+            }
+            return request;
+        }
+        
+        @Override
+        public void loaded(ImageIcon loadedIcon) {
+            final ImageIcon icon = processIcon(loadedIcon);
+            SwingUtilities.invokeLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    done(icon);
+                }
+            });
+        }
+        
+        @Override
+        public void cancelled() {
+            SwingUtilities.invokeLater(new Runnable() {
 
-            ImageIcon icon = loadEmote(url);
+                @Override
+                public void run() {
+                    image.setLoadingCancelled();
+                }
+            });
+        }
+        
+        /**
+         * Checks and scales the loaded image. Called on a loader thread.
+         * 
+         * @param loadedIcon The icon as loaded, may be shared with other
+         * EmoticonImages, so it's not modified
+         * @return The icon for this EmoticonImage, or null if an error occured
+         */
+        private ImageIcon processIcon(ImageIcon loadedIcon) {
             image.setLoadedFrom(url);
             
             /**
              * If an error occured loading the image, return null.
              */
-            if (icon == null) {
+            if (loadedIcon == null) {
                 return null;
             }
             /**
              * Only doing this on ERRORED, waiting for COMPLETE would not allow
              * animated GIFs to load
              */
-            if (icon.getImageLoadStatus() == MediaTracker.ERRORED) {
-                icon.getImage().flush();
+            if (loadedIcon.getImageLoadStatus() == MediaTracker.ERRORED) {
+                loadedIcon.getImage().flush();
                 return null;
             }
             
+            // Own ImageIcon, so scaling doesn't affect the other images
+            ImageIcon icon = new ImageIcon(loadedIcon.getImage());
+            
             /**
              * Determine the size to actually scale the image to. If a size has
              * already been specified (when importing the emote from an API or
@@ -710,10 +850,10 @@ public class Emoticon {
             return icon;
         }
         
-        private ImageIcon loadEmote(String url) {
+        private ImageIcon loadEmote(String url, boolean alternate) {
             ImageIcon loadedIcon = null;
             
-            if (image.loadingAttempts <= TRY_ALTERNATE_AFTER_ATTEMPTS) {
+            if (!alternate) {
                 /**
                  * Primary method, which should be used if no error occurs. For
                  * some reason this way loads some images (e.g. Kappa) with more
@@ -774,21 +914,16 @@ public class Emoticon {
         /**
          * The image should be done loading, replace the defaulticon with the
          * actual loaded icon and tell the user that it's loaded.
+         * 
+         * @param loadedIcon The icon, or null if an error occured
          */
-        @Override
-        protected void done() {
-            try {
-                // This is null if an error occured
-                ImageIcon loadedIcon = get();
-                if (loadedIcon == null) {
-                    image.setLoadingError();
-                } else {
-                    image.setImage(loadedIcon.getImage());
-                }
-                image.setLoadingDone();
-            } catch (InterruptedException | ExecutionException ex) {
-                LOGGER.warning("Unexpected error when loading emoticon: "+ex);
+        private void done(ImageIcon loadedIcon) {
+            if (loadedIcon == null) {
+                image.setLoadingError();
+            } else {
+                image.setImage(loadedIcon.getImage());
             }
+            image.setLoadingDone();
         }
     }
     
@@ -866,12 +1001,14 @@ public class Emoticon {
      * 
      * <p>
      * The actual image is loaded asynchronous once {@link getImageIcon()} is
-     * called.
+     * called. It may be evicted from memory when it hasn't been shown in a
+     * while (see {@link #IMAGE_CACHE}), and is loaded again when it is shown
+     * again.
      * </p>
      */
     public class EmoticonImage {
         
-        private ImageIcon icon;
+        private CachedImageIcon icon;
         public final float scaleFactor;
         public final int maxHeight;
         
@@ -886,6 +1023,8 @@ public class Emoticon {
         
         private boolean loading = false;
         private boolean loadingError = false;
+        private boolean loadingCancelled = false;
+        private ImageLoader.Request request;
         private volatile int loadingAttempts = 0;
         private long lastLoadingAttempt;
         
@@ -906,6 +1045,8 @@ public class Emoticon {
             if (icon == null) {
                 icon = getDefaultIcon();
                 loadImage();
+            } else if (loadingCancelled) {
+                loadImage();
             } else if (loadingError) {
                 if (loadImage()) {
                     LOGGER.warning("Trying to load " + code + " again (" + url + ")");
@@ -944,21 +1085,33 @@ public class Emoticon {
                     && System.currentTimeMillis() - lastLoadingAttempt > LOADING_ATTEMPT_DELAY) {
                 loading = true;
                 loadingError = false;
+                loadingCancelled = false;
                 loadingAttempts++;
                 lastLoadingAttempt = System.currentTimeMillis();
-                (new IconLoader(this)).execute();
+                request = new IconLoader(this).execute(getUsers());
                 return true;
             }
             return false;
         }
         
         private void setLoadingError() {
-            icon.setImage(getDefaultImage(true));
+            icon.setUncachedImage(getDefaultImage(true));
             loadingError = true;
         }
         
         private void setImage(Image image) {
-            icon.setImage(image);
+            icon.setCachedImage(image);
+        }
+        
+        /**
+         * The image was evicted from memory, but is shown again, so load it
+         * again (which doesn't count as an attempt).
+         */
+        private void reload() {
+            if (!loading) {
+                loading = true;
+                request = new IconLoader(this).execute(getUsers());
+            }
         }
         
         private void setLoadedFrom(String url) {
@@ -973,6 +1126,24 @@ public class Emoticon {
         private void setLoadingDone() {
             informUsers();
             loading = false;
+            request = null;
+        }
+        
+        /**
+         * All users of this image have been removed before it was loaded, so
+         * try again when it is requested the next time (which doesn't count
+         * as an attempt).
+         */
+        private void setLoadingCancelled() {
+            loading = false;
+            request = null;
+            if (icon.isEvicted()) {
+                icon.reloadCancelled();
+            } else {
+                loadingCancelled = true;
+                loadingAttempts--;
+                lastLoadingAttempt = 0;
+            }
         }
         
         private void addUser(EmoticonUser user) {
@@ -980,7 +1151,16 @@ public class Emoticon {
                 users = Collections.newSetFromMap(
                         new WeakHashMap<EmoticonUser, Boolean>());
             }
-            users.add(user);
+            if (users.add(user) && request != null) {
+                request.addOwner(user);
+            }
+        }
+        
+        private Set<EmoticonUser> getUsers() {
+            if (users == null) {
+                return Collections.emptySet();
+            }
+            return new HashSet<>(users);
         }
         
         private void informUsers() {
@@ -994,8 +1174,15 @@ public class Emoticon {
          *
          * @return
          */
-        private ImageIcon getDefaultIcon() {
-            return new ImageIcon(getDefaultImage(false));
+        private CachedImageIcon getDefaultIcon() {
+            return new CachedImageIcon(getDefaultImage(false), IMAGE_CACHE,
+                    new CachedImageIcon.Reloader() {
+
+                @Override
+                public void reload(CachedImageIcon icon) {
+                    EmoticonImage.this.reload();
+                }
+            });
         }
         
         /**
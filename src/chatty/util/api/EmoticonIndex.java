@@ -0,0 +1,158 @@
+package chatty.util.api;
+
+import chatty.util.AhoCorasick;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Finds which emoticons out of a set may occur in a text, without having to
+ * run the regex of every single emoticon over the text.
+ * 
+ * <p>
+ * Most emoticon codes are plain words that only match as a whole
+ * whitespace-separated word, so the text is split into words once and each
+ * word is looked up by code. Literal codes containing non-word characters
+ * (which match anywhere in the text) are searched for all at once. Only the
+ * few codes that are actual regular expressions (like some Twitch smileys)
+ * are always returned.
+ * </p>
+ * 
+ * <p>
+ * The returned emoticons still have to be found in the text with
+ * {@link Emoticon#getMatcher(String)} to get the exact positions, but usually
+ * this leaves only a handful instead of thousands of emoticons to check.
+ * Immutable once created.
+ * </p>
+ * 
+ * @author tduva
+ */
+public class EmoticonIndex {
+    
+    private static final Pattern NOT_WORD = Pattern.compile("[^\\w]");
+    private static final Pattern REGEX_CHARS = Pattern.compile("[\\\\\\[\\](){}.*+?^$|]");
+    
+    /**
+     * Emoticons that match as a whole word, by code.
+     */
+    private final Map<String, List<Emoticon>> byCode = new HashMap<>();
+    
+    /**
+     * Literal emoticons that can match anywhere.
+     */
+    private final List<Emoticon> anywhere = new ArrayList<>();
+    private final AhoCorasick anywhereSearch;
+    
+    /**
+     * Emoticons with a regex code, always returned.
+     */
+    private final List<Emoticon> regex = new ArrayList<>();
+    
+    /**
+     * Creates the index for the given emoticons.
+     * 
+     * @param emoticons The emoticons, should not be modified during this
+     */
+    public EmoticonIndex(Collection<Emoticon> emoticons) {
+        List<String> anywhereCodes = new ArrayList<>();
+        for (Emoticon emote : emoticons) {
+            String code = emote.code;
+            if (emote.literal && NOT_WORD.matcher(code).find()) {
+                anywhere.add(emote);
+                anywhereCodes.add(code);
+            } else if (!emote.literal && REGEX_CHARS.matcher(code).find()) {
+                regex.add(emote);
+            } else {
+                List<Emoticon> list = byCode.get(code);
+                if (list == null) {
+                    list = new ArrayList<>(1);
+                    byCode.put(code, list);
+                }
+                list.add(emote);
+            }
+        }
+        anywhereSearch = anywhereCodes.isEmpty() ? null : new AhoCorasick(anywhereCodes);
+    }
+    
+    /**
+     * Gets the emoticons that may occur in the given text.
+     * 
+     * @param text The text
+     * @return The emoticons, ordered by where they were first found in the
+     * text, followed by those that can't be looked up (should not be
+     * modified)
+     */
+    public List<Emoticon> getCandidates(String text) {
+        List<Emoticon> result = null;
+        Set<Emoticon> added = null;
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            while (start < length && isWhitespace(text.charAt(start))) {
+                start++;
+            }
+            int end = start;
+            while (end < length && !isWhitespace(text.charAt(end))) {
+                end++;
+            }
+            if (end > start) {
+                List<Emoticon> found = byCode.get(text.substring(start, end));
+                if (found != null) {
+                    if (result == null) {
+                        result = new ArrayList<>();
+                        added = Collections.newSetFromMap(new IdentityHashMap<Emoticon, Boolean>());
+                    }
+                    for (Emoticon emote : found) {
+                        if (added.add(emote)) {
+                            result.add(emote);
+                        }
+                    }
+                }
+            }
+            start = end;
+        }
+        if (anywhereSearch != null) {
+            BitSet found = anywhereSearch.find(text);
+            if (!found.isEmpty() && result == null) {
+                result = new ArrayList<>();
+            }
+            for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i+1)) {
+                result.add(anywhere.get(i));
+            }
+        }
+        if (result == null) {
+            return regex;
+        }
+        result.addAll(regex);
+        return result;
+    }
+    
+    /**
+     * The characters matched by {@code \s} in the emoticon regex.
+     * 
+     * @param c
+     * @return 
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+                || c == '\f' || c == '\r';
+    }
+    
+    /**
+     * The number of emoticons that are always returned, because their code
+     * is a regex.
+     * 
+     * @return 
+     */
+    public int getRegexCount() {
+        return regex.size();
+    }
+    
+}
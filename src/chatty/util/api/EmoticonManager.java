@@ -4,12 +4,16 @@ package chatty.util.api;
 import chatty.Chatty;
 import chatty.Logging;
 import chatty.util.SimpleCache;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
 import java.util.logging.Logger;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
@@ -28,12 +32,22 @@ public class EmoticonManager {
     
     private static final String FILE = Chatty.getCacheDirectory()+"emoticon_images";
     
+    private static final String SNAPSHOT_FILE = FILE+".bin";
+    
+    /**
+     * How many emotes may be invalid before the whole list is considered
+     * invalid.
+     */
+    private static final int MAX_ERRORS = 100;
+    
     private final SimpleCache cache;
+    private final EmoticonSnapshot snapshot;
     private final TwitchApiResultListener listener;
     
     public EmoticonManager(TwitchApiResultListener listener) {
         this.listener = listener;
         this.cache = new SimpleCache("emoticons", FILE, CACHED_EMOTICONS_EXPIRE_AFTER);
+        this.snapshot = new EmoticonSnapshot(SNAPSHOT_FILE);
     }
     
     /**
@@ -44,13 +58,9 @@ public class EmoticonManager {
      *  requested from the API.
      */
     protected boolean loadEmoticons(boolean useFileEvenIfExpired) {
-        String fromFile = loadEmoticonsFromFile(useFileEvenIfExpired);
+        EmoticonSnapshot.Entries fromFile = loadEmoticonsFromFile(useFileEvenIfExpired);
         if (fromFile != null) {
-            Set<Emoticon> parsed = parseEmoticons(fromFile);
-            if (parsed == null) {
-                return false;
-            }
-            listener.receivedEmoticons(parsed);
+            listener.receivedEmoticons(createEmoticons(fromFile));
             LOGGER.info("Using emoticons list from file."+(useFileEvenIfExpired ? " (forced)" : ""));
             return true;
         }
@@ -58,16 +68,19 @@ public class EmoticonManager {
     }
     
     protected void emoticonsReceived(String result, String type) {
-        Set<Emoticon> parsed = parseEmoticons(result);
+        EmoticonSnapshot.Entries parsed = null;
+        if (result != null) {
+            parsed = parseEmoticons(new StringReader(result));
+        }
         if (parsed != null) {
-            if (!parsed.isEmpty()) {
-                saveEmoticonsToFile(result);
+            if (parsed.size() > 0) {
+                saveEmoticonsToFile(result, parsed);
             }
             if (listener != null) {
-                listener.receivedEmoticons(parsed);
+                listener.receivedEmoticons(createEmoticons(parsed));
             }
         }
-        if (parsed == null || parsed.isEmpty()) {
+        if (parsed == null || parsed.size() == 0) {
             if (!type.equals("update")) {
                 loadEmoticons(true);
             } else {
@@ -78,92 +91,245 @@ public class EmoticonManager {
     
     /**
      * Saves the given json text (which should be the list of emoticons as
-     * received from the Twitch API v2) into a file.
+     * received from the Twitch API v2) into a file, as well as the snapshot
+     * of the parsed data.
      *
      * @param json
+     * @param parsed The data parsed from the json
      */
-    private void saveEmoticonsToFile(String json) {
+    private void saveEmoticonsToFile(String json, EmoticonSnapshot.Entries parsed) {
         synchronized(cache) {
             cache.save(json);
+            snapshot.save(cache.getFile(), parsed);
         }
     }
     
     /**
-     * Loads emoticons list from the file.
+     * Loads emoticons list from the snapshot, or from the json file if the
+     * snapshot doesn't match the json file (a new snapshot is saved then).
      * 
-     * @return The json as received from the Twitch API v2 or null if the file
-     * isn't recent enough or an error occured
+     * @return The parsed data or null if the file isn't recent enough or an
+     * error occured
      */
-    private String loadEmoticonsFromFile(boolean loadEvenIfExpired) {
+    private EmoticonSnapshot.Entries loadEmoticonsFromFile(boolean loadEvenIfExpired) {
         synchronized(cache) {
-            return cache.load(loadEvenIfExpired);
+            Path file = cache.getFile();
+            EmoticonSnapshot.Entries result = snapshot.load(file);
+            if (result != null) {
+                if (!loadEvenIfExpired && isExpired(file)) {
+                    LOGGER.info("Cache: Did not load emoticons snapshot (expired)");
+                    return null;
+                }
+                LOGGER.info("Loaded emoticons snapshot");
+                return result;
+            }
+            try (BufferedReader reader = cache.open(loadEvenIfExpired)) {
+                if (reader == null) {
+                    return null;
+                }
+                result = parseEmoticons(reader);
+            } catch (IOException ex) {
+                LOGGER.warning("Error loading emoticons: "+ex);
+                return null;
+            }
+            if (result != null && result.size() > 0) {
+                snapshot.save(file, result);
+            }
+            return result;
         }
     }
     
     /**
-     * Parses the list of emoticons from the Twitch API.
-     * 
-     * @param json
-     * @return 
+     * The snapshot doesn't contain the time the json file was saved at, so
+     * use the modification time of the json file (the snapshot is only used
+     * if it's the same file it was made from).
      */
-    private Set<Emoticon> parseEmoticons(String json) {
-        Set<Emoticon> result = new HashSet<>();
-        if (json == null) {
-            return null;
+    private boolean isExpired(Path file) {
+        try {
+            return cache.isExpired(Files.getLastModifiedTime(file).toMillis() / 1000);
+        } catch (IOException ex) {
+            return true;
         }
+    }
+    
+    /**
+     * Parses the list of emoticons from the Twitch API, without reading the
+     * whole JSON into memory first.
+     * 
+     * @param json The reader to read the JSON from
+     * @return The parsed data, or null if an error occured
+     */
+    static EmoticonSnapshot.Entries parseEmoticons(Reader json) {
         JSONParser parser = new JSONParser();
-        int errors = 0;
+        Parser handler = new Parser();
         try {
-            JSONObject root = (JSONObject)parser.parse(json);
-            JSONArray emoticons = (JSONArray)root.get("emoticons");
-            for (Object obj : emoticons) {
-                if (obj instanceof JSONObject) {
-                    JSONObject emote_json = (JSONObject)obj;
-                    Emoticon emote = parseEmoticon(emote_json);
-                    if (emote == null) {
-                        if (errors < 10) {
-                            LOGGER.warning("Error loading emote: "+emote_json);
-                        }
-                        errors++;
-                    } else {
-                        result.add(emote);
-                    }
-                }
-            }
-            if (errors > 0) {
-                LOGGER.warning(errors+" emotes couldn't be loaded");
-            }
-            if (errors > 100) {
-                return null;
-            }
-            return result;
-        } catch (ParseException | NullPointerException | ClassCastException ex) {
+            parser.parse(json, handler);
+        } catch (IOException | ParseException
+                | NullPointerException | ClassCastException ex) {
             LOGGER.warning("Error parsing emoticons: "+ex);
             return null;
         }
+        if (!handler.emoticonsFound) {
+            LOGGER.warning("Error parsing emoticons: No emoticons found");
+            return null;
+        }
+        if (handler.errors > 0) {
+            LOGGER.warning(handler.errors+" emotes couldn't be loaded");
+        }
+        if (handler.errors > MAX_ERRORS) {
+            return null;
+        }
+        return handler.result;
     }
     
     /**
-     * Parses an Emoticon from the given JSONObject.
+     * Creates the Emoticon objects from the parsed data.
      * 
-     * @param emote The JSONObject containing the emoticon data
-     * @return The Emoticon object or null if an error occured
+     * @param data
+     * @return 
      */
-    private Emoticon parseEmoticon(JSONObject emote) {
-        try {
-            String code = (String)emote.get("code");
-            int id = ((Number)emote.get("id")).intValue();
+    private static Set<Emoticon> createEmoticons(EmoticonSnapshot.Entries data) {
+        Set<Emoticon> result = new HashSet<>();
+        for (int i = 0; i < data.size(); i++) {
+            int id = data.getId(i);
             String url = Emoticon.getTwitchEmoteUrlById(id, 1);
-            Emoticon.Builder b = new Emoticon.Builder(Emoticon.Type.TWITCH, code, url);
-            if (emote.get("emoticon_set") != null) {
-                int emoteSet = ((Number)emote.get("emoticon_set")).intValue();
-                b.setEmoteset(emoteSet);
-            }
+            Emoticon.Builder b = new Emoticon.Builder(Emoticon.Type.TWITCH,
+                    data.getCode(i), url);
+            b.setEmoteset(data.getEmoteset(i));
             b.setNumericId(id);
-            return b.build();
-        } catch (NullPointerException | ClassCastException ex) {
-            return null;
+            result.add(b.build());
+        }
+        return result;
+    }
+    
+    /**
+     * Collects the id, code and emoteset of each emote in the "emoticons"
+     * array, ignoring everything else.
+     */
+    private static class Parser implements ContentHandler {
+        
+        private final EmoticonSnapshot.Entries result = new EmoticonSnapshot.Entries();
+        
+        /**
+         * How many Objects/Arrays the current position is in.
+         */
+        private int depth;
+        private String key;
+        
+        private boolean emoticonsFound;
+        private boolean inEmoticons;
+        private boolean inEmote;
+        private int errors;
+        
+        private String code;
+        private Number id;
+        private Number emoteset;
+        private boolean invalid;
+
+        @Override
+        public void startJSON() {
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() {
+            depth++;
+            if (inEmoticons && depth == 3) {
+                inEmote = true;
+                code = null;
+                id = null;
+                emoteset = null;
+                invalid = false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endObject() {
+            if (inEmote && depth == 3) {
+                inEmote = false;
+                addEmote();
+            }
+            depth--;
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            this.key = key;
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            return true;
+        }
+
+        @Override
+        public boolean startArray() {
+            depth++;
+            if (depth == 2 && "emoticons".equals(key)) {
+                inEmoticons = true;
+                emoticonsFound = true;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endArray() {
+            if (depth == 2) {
+                inEmoticons = false;
+            }
+            depth--;
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object value) {
+            if (!inEmote || depth != 3 || key == null) {
+                return true;
+            }
+            switch (key) {
+                case "code":
+                    if (value instanceof String) {
+                        code = (String)value;
+                    } else {
+                        invalid = true;
+                    }
+                    break;
+                case "id":
+                    if (value instanceof Number) {
+                        id = (Number)value;
+                    } else {
+                        invalid = true;
+                    }
+                    break;
+                case "emoticon_set":
+                    if (value instanceof Number) {
+                        emoteset = (Number)value;
+                    } else if (value != null) {
+                        invalid = true;
+                    }
+                    break;
+            }
+            return true;
+        }
+        
+        private void addEmote() {
+            if (invalid || code == null || id == null) {
+                if (errors < 10) {
+                    LOGGER.warning("Error loading emote: "+code+"/"+id+"/"+emoteset);
+                }
+                errors++;
+            } else {
+                int set = emoteset != null ? emoteset.intValue() : Emoticon.SET_UNDEFINED;
+                result.add(id.intValue(), set, code);
+            }
         }
+        
     }
     
 }
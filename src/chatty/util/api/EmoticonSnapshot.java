@@ -0,0 +1,199 @@
+
+package chatty.util.api;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * A compact binary copy of the Twitch emoticon list (only ids, codes and
+ * emotesets), which is much faster to load than parsing the JSON again.
+ *
+ * The snapshot remembers the modification time and size of the JSON file it
+ * was made from, and is only used as long as that file hasn't changed.
+ *
+ * @author tduva
+ */
+class EmoticonSnapshot {
+
+    private static final Logger LOGGER = Logger.getLogger(EmoticonSnapshot.class.getName());
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Should be changed when the format changes, so old files are ignored.
+     */
+    private static final int MAGIC = 0x43454d01;
+
+    private static final int ENTRY_MIN_BYTES = 12;
+
+    private final Path file;
+
+    /**
+     * Creates a new snapshot object for a single file.
+     *
+     * @param file The file to save into
+     */
+    EmoticonSnapshot(String file) {
+        this.file = Paths.get(file);
+    }
+
+    /**
+     * Saves the given entries, parsed from the source file.
+     *
+     * @param source The JSON file the entries were parsed from
+     * @param entries The entries
+     */
+    public void save(Path source, Entries entries) {
+        Path tempFile = Paths.get(file.toString()+".tmp");
+        try {
+            long modified = Files.getLastModifiedTime(source).toMillis();
+            long size = Files.size(source);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(modified);
+                out.writeLong(size);
+                out.writeInt(entries.size());
+                for (int i = 0; i < entries.size(); i++) {
+                    out.writeInt(entries.getId(i));
+                    out.writeInt(entries.getEmoteset(i));
+                    byte[] code = entries.getCode(i).getBytes(CHARSET);
+                    out.writeInt(code.length);
+                    out.write(code);
+                }
+            }
+            try {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            LOGGER.info("Saved emoticon snapshot ("+entries.size()+" emotes)");
+        } catch (IOException ex) {
+            LOGGER.warning("Error saving emoticon snapshot: "+ex);
+        }
+    }
+
+    /**
+     * Loads the entries, if the snapshot was made from the given source file
+     * in it's current state.
+     *
+     * @param source The JSON file the snapshot should have been made from
+     * @return The entries, or null if there is no snapshot, it is stale or
+     * an error occured
+     */
+    public Entries load(Path source) {
+        try {
+            // Not mapped, since a mapped file can't be replaced on Windows
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (buffer.getInt() != MAGIC) {
+                LOGGER.info("Emoticon snapshot has a different format");
+                return null;
+            }
+            long modified = buffer.getLong();
+            long size = buffer.getLong();
+            if (modified != Files.getLastModifiedTime(source).toMillis()
+                    || size != Files.size(source)) {
+                LOGGER.info("Emoticon snapshot is stale");
+                return null;
+            }
+            int count = buffer.getInt();
+            // Each entry has at least id, emoteset and code length
+            if (count < 0 || count > buffer.remaining() / ENTRY_MIN_BYTES) {
+                LOGGER.warning("Emoticon snapshot is corrupt (count "+count+")");
+                return null;
+            }
+            Entries result = new Entries(count);
+            for (int i = 0; i < count; i++) {
+                int id = buffer.getInt();
+                int emoteset = buffer.getInt();
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    LOGGER.warning("Emoticon snapshot is corrupt (length "+length+")");
+                    return null;
+                }
+                byte[] code = new byte[length];
+                buffer.get(code);
+                result.add(id, emoteset, new String(code, CHARSET));
+            }
+            return result;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException | BufferUnderflowException ex) {
+            LOGGER.warning("Error loading emoticon snapshot: "+ex);
+            return null;
+        }
+    }
+
+    /**
+     * The data of the Twitch emoticons, as parsed from the JSON or loaded from
+     * the snapshot.
+     */
+    public static class Entries {
+
+        private int[] ids;
+        private int[] emotesets;
+        private String[] codes;
+        private int size;
+
+        public Entries() {
+            this(1024);
+        }
+
+        public Entries(int capacity) {
+            capacity = Math.max(capacity, 16);
+            ids = new int[capacity];
+            emotesets = new int[capacity];
+            codes = new String[capacity];
+        }
+
+        /**
+         * Adds an emote.
+         *
+         * @param id The numeric id
+         * @param emoteset The emoteset, or {@code Emoticon.SET_UNDEFINED}
+         * @param code The code as received from the API
+         */
+        public void add(int id, int emoteset, String code) {
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                emotesets = Arrays.copyOf(emotesets, capacity);
+                codes = Arrays.copyOf(codes, capacity);
+            }
+            ids[size] = id;
+            emotesets[size] = emoteset;
+            codes[size] = code;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getId(int index) {
+            return ids[index];
+        }
+
+        public int getEmoteset(int index) {
+            return emotesets[index];
+        }
+
+        public String getCode(int index) {
+            return codes[index];
+        }
+    }
+
+}
@@ -3,6 +3,8 @@ package chatty.util.api;
 
 import chatty.Chatty;
 import chatty.Helper;
+import chatty.User;
+import chatty.util.RegexGuard;
 import chatty.util.settings.Settings;
 import java.awt.Dimension;
 import java.io.BufferedReader;
@@ -13,16 +15,19 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
 
 /**
  * Add emoticons and get a list of them matching a certain emoteset.
@@ -37,7 +42,9 @@ import java.util.logging.Logger;
  * 
  * <p>
  * This is generally not thread-safe and all methods should be only used from
- * the same thread (like in this case probably the EDT).
+ * the same thread (like in this case probably the EDT). The exception is
+ * {@link #findEmoticons(User, String, TagEmotes)}, which may be used from any
+ * thread, so the methods changing what it uses are synchronized.
  * </p>
  * 
  * @author tduva
@@ -122,14 +129,33 @@ public class Emoticons {
     
     private Set<Integer> localEmotesets = new HashSet<>();
     
-    public void updateEmoticons(EmoticonUpdate update) {
+    /**
+     * Indices of the emoticon sets returned by this class, created when
+     * needed and discarded when emoticons are added or removed.
+     */
+    private final Map<Set<Emoticon>, EmoticonIndex> indices = new IdentityHashMap<>();
+    
+    /**
+     * The emoteset and channel based emoticons a user can use, by emotesets
+     * and stream, with restrictions and ignored emotes already filtered out.
+     * Discarded when anything they depend on changes.
+     */
+    private final Map<UserEmotesKey, UserEmotes> userEmotes = new HashMap<>();
+    
+    /**
+     * If more different combinations of emotesets and stream than this are
+     * cached, the cache is cleared, so it doesn't grow indefinitely.
+     */
+    private static final int MAX_USER_EMOTES = 2000;
+    
+    public synchronized void updateEmoticons(EmoticonUpdate update) {
         removeEmoticons(update);
         if (!update.emotes.isEmpty()) {
             addEmoticons(update.emotes);
         }
     }
     
-    private void removeEmoticons(EmoticonUpdate update) {
+    private synchronized void removeEmoticons(EmoticonUpdate update) {
         // If used for other types as well, may have to handle favorites
         if (update.typeToRemove == null) {
             return;
@@ -152,6 +178,7 @@ public class Emoticons {
             LOGGER.info(String.format("Removed %d emotes (%s/%s)", removed,
                     update.typeToRemove, update.subTypeToRemove));
         }
+        clearIndices();
     }
     
     /**
@@ -169,12 +196,13 @@ public class Emoticons {
      * </ul>
      * 
      * <p>
-     * This is not thread-safe, so it should only be called from the EDT.
+     * This should only be called from the EDT, since the sets returned by
+     * other methods are used there without locking.
      * </p>
      * 
      * @param newEmoticons 
      */
-    public void addEmoticons(Set<Emoticon> newEmoticons) {
+    public synchronized void addEmoticons(Set<Emoticon> newEmoticons) {
         for (Emoticon emote : newEmoticons) {
             Set<String> channelRestrictions = emote.getStreamRestrictions();
             if (channelRestrictions != null) {
@@ -212,6 +240,7 @@ public class Emoticons {
                 + " Now "+emoticonsByEmoteset.size()+" emotesets and "
                 +streamEmoticons.size()+" channels with exclusive emotes ("
                 +getGlobalTwitchEmotes().size()+" global emotes).");
+        clearIndices();
         findFavorites();
     }
     
@@ -248,7 +277,7 @@ public class Emoticons {
      * 
      * @param emote 
      */
-    public void addTempEmoticon(Emoticon emote) {
+    public synchronized void addTempEmoticon(Emoticon emote) {
         twitchEmotesById.put(emote.numericId, emote);
     }
 
@@ -256,7 +285,7 @@ public class Emoticons {
         return customEmotes;
     }
     
-    public Emoticon getCustomEmoteById(int id) {
+    public synchronized Emoticon getCustomEmoteById(int id) {
         return customEmotesById.get(id);
     }
     
@@ -308,6 +337,194 @@ public class Emoticons {
         return result;
     }
     
+    /**
+     * Gets the index to find which emoticons of the given set may occur in a
+     * text. The index is kept until emoticons are added or removed.
+     * 
+     * @param emoticons One of the sets returned by this class (e.g.
+     * {@link #getGlobalTwitchEmotes()})
+     * @return The index
+     */
+    public synchronized EmoticonIndex getIndex(Set<Emoticon> emoticons) {
+        EmoticonIndex index = indices.get(emoticons);
+        if (index == null) {
+            index = new EmoticonIndex(emoticons);
+            indices.put(emoticons, index);
+        }
+        return index;
+    }
+    
+    /**
+     * Gets the emoteset and channel based emoticons that can be used by a user
+     * with the given emotesets in the given stream. The result is cached until
+     * emoticons, ignored emotes or emoteset streams change.
+     * 
+     * @param emotesets The emotesets of the user, should not be modified
+     * afterwards (e.g. the unmodifiable Set from {@link chatty.User#getEmoteSet()})
+     * @param stream The stream the user is in, may be null
+     * @return The emoticons the user can use, already filtered
+     */
+    public synchronized UserEmotes getUserEmotes(Set<Integer> emotesets, String stream) {
+        UserEmotesKey key = new UserEmotesKey(emotesets, stream);
+        UserEmotes result = userEmotes.get(key);
+        if (result == null) {
+            if (userEmotes.size() >= MAX_USER_EMOTES) {
+                userEmotes.clear();
+            }
+            List<Emoticon> byEmoteset = new ArrayList<>();
+            for (int emoteset : emotesets) {
+                for (Emoticon emote : getEmoticons(emoteset)) {
+                    if (emote.allowedForStream(stream) && !isEmoteIgnored(emote)) {
+                        byEmoteset.add(emote);
+                    }
+                }
+            }
+            List<Emoticon> byStream = new ArrayList<>();
+            if (stream != null) {
+                for (Emoticon emote : getEmoticons(stream)) {
+                    if ((emote.emoteSet <= Emoticon.SET_GLOBAL
+                            || emotesets.contains(emote.emoteSet))
+                            && !isEmoteIgnored(emote)) {
+                        byStream.add(emote);
+                    }
+                }
+            }
+            result = new UserEmotes(new EmoticonIndex(byEmoteset),
+                    new EmoticonIndex(byStream));
+            userEmotes.put(key, result);
+        }
+        return result;
+    }
+    
+    private void clearIndices() {
+        indices.clear();
+        userEmotes.clear();
+    }
+    
+    /**
+     * Finds the emoticons in the text of a message, in the order they should
+     * be used (an emoticon overlapping one found earlier should be skipped).
+     * 
+     * <p>
+     * Which emoticons may occur in the text is looked up while holding the
+     * lock, but their actual positions are found afterwards, so this can be
+     * used from several threads at once (e.g. while processing the messages
+     * of different channels). The result still has to be checked for
+     * overlapping emoticons and whether the image is available.
+     * </p>
+     * 
+     * @param user The user who sent the message
+     * @param text The text of the message
+     * @param tagEmotes The emotes from the tags, may be null
+     * @return The found emoticons, may be empty
+     */
+    public List<EmoticonMatch> findEmoticons(User user, String text, TagEmotes tagEmotes) {
+        List<Emoticon> custom = new ArrayList<>();
+        List<EmoticonMatch> fromTags = new ArrayList<>();
+        List<Emoticon> other = new ArrayList<>();
+        synchronized(this) {
+            addCandidates(custom, user, customEmotes, text);
+            if (tagEmotes != null) {
+                findTagEmoticons(fromTags, user, text, tagEmotes);
+            }
+            
+            // Emoteset based (already filtered for this user)
+            UserEmotes userEmotes = getUserEmotes(user.getEmoteSet(), user.getStream());
+            other.addAll(userEmotes.byEmoteset.getCandidates(text));
+            
+            // Global emotes
+            if (tagEmotes == null) {
+                addCandidates(other, null, globalTwitchEmotes, text);
+            }
+            addCandidates(other, null, otherGlobalEmotes, text);
+            
+            // Channel based (may also have a emoteset restriction, already
+            // filtered for this user)
+            other.addAll(userEmotes.byStream.getCandidates(text));
+        }
+        List<EmoticonMatch> result = new ArrayList<>();
+        findPositions(result, custom, text);
+        result.addAll(fromTags);
+        findPositions(result, other, text);
+        return result;
+    }
+    
+    /**
+     * Adds the emoticons of the set that may occur in the text and that can
+     * be used by the user and aren't ignored.
+     */
+    private void addCandidates(List<Emoticon> result, User user,
+            Set<Emoticon> emoticons, String text) {
+        for (Emoticon emote : getIndex(emoticons).getCandidates(text)) {
+            if (emote.matchesUser(user) && !isEmoteIgnored(emote)) {
+                result.add(emote);
+            }
+        }
+    }
+    
+    /**
+     * Adds the emoticons from the Twitch IRCv3 tags. Emoticons that aren't
+     * known yet are created from the message alone.
+     */
+    private void findTagEmoticons(List<EmoticonMatch> result, User user,
+            String text, TagEmotes tagEmotes) {
+        /**
+         * The ranges are already converted to indices into the text (which
+         * may differ from the ones sent by the server if the text contains
+         * supplementary characters).
+         */
+        for (int i = 0; i < tagEmotes.size(); i++) {
+            int id = tagEmotes.getId(i);
+            int start = tagEmotes.getStart(i);
+            int end = tagEmotes.getEnd(i);
+            
+            // Get and check emote
+            Emoticon emoticon;
+            Emoticon customEmote = customEmotesById.get(id);
+            if (customEmote != null && customEmote.allowedForStream(user.getStream())) {
+                emoticon = customEmote;
+            } else {
+                emoticon = twitchEmotesById.get(id);
+            }
+            boolean isIgnored = emoticon != null && isEmoteIgnored(emoticon);
+            if (end < text.length() && !isIgnored) {
+                if (emoticon == null) {
+                    /**
+                     * Add emote from message alone
+                     */
+                    String code = text.substring(start, end);
+                    String url = Emoticon.getTwitchEmoteUrlById(id, 1);
+                    Emoticon.Builder b = new Emoticon.Builder(
+                            Emoticon.Type.TWITCH, code, url);
+                    b.setNumericId(id);
+                    b.setEmoteset(Emoticon.SET_UNKNOWN);
+                    emoticon = b.build();
+                    addTempEmoticon(emoticon);
+                    LOGGER.info("Added emote from message: "+emoticon);
+                }
+                result.add(new EmoticonMatch(emoticon, start, end));
+            }
+        }
+    }
+    
+    /**
+     * Finds all positions of the given emoticons in the text.
+     */
+    private static void findPositions(List<EmoticonMatch> result,
+            List<Emoticon> emoticons, String text) {
+        for (Emoticon emoticon : emoticons) {
+            Matcher m = emoticon.getMatcher(text);
+            try {
+                while (m.find()) {
+                    result.add(new EmoticonMatch(emoticon, m.start(), m.end() - 1));
+                }
+            } catch (RegexGuard.BudgetExceededException ex) {
+                // Skip this emote for this message
+                RegexGuard.exceeded(emoticon.code, "Emote");
+            }
+        }
+    }
+    
     public Collection<String> getEmoteNames() {
         return emoteNames;
     }
@@ -348,8 +565,9 @@ public class Emoticons {
      * 
      * @param data 
      */
-    public void addEmotesetStreams(Map<Integer, String> data) {
+    public synchronized void addEmotesetStreams(Map<Integer, String> data) {
         emotesetStreams.putAll(data);
+        userEmotes.clear();
     }
     
     /**
@@ -391,9 +609,10 @@ public class Emoticons {
      * 
      * @param ignoredEmotes A Collection of emote codes to ignore
      */
-    public void setIgnoredEmotes(Collection<String> ignoredEmotes) {
+    public synchronized void setIgnoredEmotes(Collection<String> ignoredEmotes) {
         this.ignoredEmotes.clear();
         this.ignoredEmotes.addAll(ignoredEmotes);
+        userEmotes.clear();
     }
     
     /**
@@ -410,8 +629,9 @@ public class Emoticons {
      * 
      * @param emoteCode The emote code to add
      */
-    public void addIgnoredEmote(String emoteCode) {
+    public synchronized void addIgnoredEmote(String emoteCode) {
         ignoredEmotes.add(emoteCode);
+        userEmotes.clear();
     }
     
     /**
@@ -421,7 +641,7 @@ public class Emoticons {
      * @param emote The Emoticon to check
      * @return true if the emote is ignored, false otherwise
      */
-    public boolean isEmoteIgnored(Emoticon emote) {
+    public synchronized boolean isEmoteIgnored(Emoticon emote) {
         return ignoredEmotes.contains(emote.code);
     }
     
@@ -779,9 +999,10 @@ public class Emoticons {
      * Each line can have one emote. See {@link loadCustomEmote(String)} for the
      * parsing of each line.
      */
-    public void loadCustomEmotes() {
+    public synchronized void loadCustomEmotes() {
         customEmotes.clear();
         customEmotesById.clear();
+        clearIndices();
         
         Path file = Paths.get(Chatty.getUserDataDirectory()+"emotes.txt");
         try (BufferedReader r = Files.newBufferedReader(file, Charset.forName("UTF-8"))) {
@@ -936,17 +1157,26 @@ public class Emoticons {
     /**
      * Parses the Twitch emotes tag into an easier usable format.
      * 
+     * The ranges in the tag count Unicode code points, whereas Java Strings
+     * count UTF-16 chars, so supplementary characters (e.g. "Kappa 𠜎 Kappa")
+     * would shift the ranges. They are converted here once, so the result can
+     * be used on the text directly.
+     * 
+     * http://discuss.dev.twitch.tv/t/jtv-2-receiving-messages/1635/10
+     * 
      * @param tag The value of the emotes tag, can be null if no emotes are
      * supplied
-     * @return The TagEmotes object containing the Map of emotes and ranges, or
-     * null if the tag value was null (used for local messages for example,
+     * @param text The text of the message the tag belongs to
+     * @return The TagEmotes object containing the emotes and ranges, or null
+     * if the tag value was null (used for local messages for example,
      * indicating twitch emotes have to be parsed using regex)
      */
-    public static TagEmotes parseEmotesTag(String tag) {
-        Map<Integer, TagEmote> result = new HashMap<>();
+    public static TagEmotes parseEmotesTag(String tag, String text) {
         if (tag == null) {
             return null;
         }
+        int[] data = new int[12];
+        int count = 0;
         String[] emotes = tag.split("/");
         for (String emote : emotes) {
             // Go through all emotes
@@ -967,9 +1197,13 @@ public class Emoticons {
                         int start = Integer.parseInt(rangeSplit[0]);
                         int end = Integer.parseInt(rangeSplit[1]);
                         if (end > start && start >= 0) {
-                            // Every start index should only appear once anyway,
-                            // so it can be used as key
-                            result.put(start, new TagEmote(id, end));
+                            if ((count + 1) * 3 > data.length) {
+                                data = Arrays.copyOf(data, data.length * 2);
+                            }
+                            data[count*3] = start;
+                            data[count*3+1] = end;
+                            data[count*3+2] = id;
+                            count++;
                         }
                     }
                 } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
@@ -977,26 +1211,108 @@ public class Emoticons {
                 }
             }
         }
-        return new TagEmotes(result);
+        return new TagEmotes(data, count, text);
     }
     
     public static void main(String[] args) {
-        System.out.println(parseEmotesTag("131:1-2,4-5/43:1-7"));
+        System.out.println(parseEmotesTag("131:1-2,4-5/43:1-7", "abcdefghij"));
     }
     
     /**
-     * Wrapping class for the Map of emote ids and their ranges.
+     * The emotes from the Twitch emotes tag, stored as the start, end and id
+     * of each emote in a single array, ordered by start. Start and end
+     * (inclusive) are indices into the message text. Immutable.
      */
     public static class TagEmotes {
-        public final Map<Integer, TagEmote> emotes;
         
-        public TagEmotes(Map<Integer, TagEmote> emotes) {
-            this.emotes = emotes;
+        private final int[] data;
+        
+        /**
+         * Sorts the given ranges by start, removes ranges with the same start
+         * as a previous one or that don't fit the text and converts the code
+         * point offsets into char indices.
+         * 
+         * @param data Start, end and id of each emote
+         * @param count The number of emotes in the array
+         * @param text The text of the message
+         */
+        TagEmotes(int[] data, int count, String text) {
+            // Insertion sort, there are usually only a few emotes
+            for (int i = 1; i < count; i++) {
+                int start = data[i*3];
+                int end = data[i*3+1];
+                int id = data[i*3+2];
+                int j = i - 1;
+                while (j >= 0 && data[j*3] > start) {
+                    System.arraycopy(data, j*3, data, (j+1)*3, 3);
+                    j--;
+                }
+                data[(j+1)*3] = start;
+                data[(j+1)*3+1] = end;
+                data[(j+1)*3+2] = id;
+            }
+            int codePoints = text.codePointCount(0, text.length());
+            boolean convert = codePoints != text.length();
+            int[] result = new int[count*3];
+            int resultCount = 0;
+            int prevStart = -1;
+            for (int i = 0; i < count; i++) {
+                int start = data[i*3];
+                int end = data[i*3+1];
+                if (start == prevStart || end >= codePoints) {
+                    continue;
+                }
+                prevStart = start;
+                if (convert) {
+                    start = text.offsetByCodePoints(0, start);
+                    end = text.offsetByCodePoints(0, end + 1) - 1;
+                }
+                result[resultCount*3] = start;
+                result[resultCount*3+1] = end;
+                result[resultCount*3+2] = data[i*3+2];
+                resultCount++;
+            }
+            this.data = Arrays.copyOf(result, resultCount*3);
+        }
+        
+        /**
+         * The number of emotes.
+         * 
+         * @return 
+         */
+        public int size() {
+            return data.length / 3;
+        }
+        
+        public int getStart(int index) {
+            return data[index*3];
+        }
+        
+        /**
+         * The index of the last char of the emote.
+         * 
+         * @param index
+         * @return 
+         */
+        public int getEnd(int index) {
+            return data[index*3+1];
+        }
+        
+        public int getId(int index) {
+            return data[index*3+2];
         }
         
         @Override
         public String toString() {
-            return emotes.toString();
+            StringBuilder b = new StringBuilder("[");
+            for (int i = 0; i < size(); i++) {
+                if (i > 0) {
+                    b.append(", ");
+                }
+                b.append(getStart(i)).append(">").append(getId(i))
+                        .append(":").append(getEnd(i));
+            }
+            return b.append("]").toString();
         }
 
         @Override
@@ -1008,38 +1324,83 @@ public class Emoticons {
                 return false;
             }
             final TagEmotes other = (TagEmotes) obj;
-            if (!Objects.equals(this.emotes, other.emotes)) {
-                return false;
-            }
-            return true;
+            return Arrays.equals(this.data, other.data);
         }
 
         @Override
         public int hashCode() {
             int hash = 3;
-            hash = 37 * hash + Objects.hashCode(this.emotes);
+            hash = 37 * hash + Arrays.hashCode(this.data);
             return hash;
         }
     }
+            
+    /**
+     * The emoticons a user can use, split into emoteset and channel based, so
+     * they can be checked in the same order as before.
+     */
+    public static class UserEmotes {
+        
+        public final EmoticonIndex byEmoteset;
+        public final EmoticonIndex byStream;
+        
+        private UserEmotes(EmoticonIndex byEmoteset, EmoticonIndex byStream) {
+            this.byEmoteset = byEmoteset;
+            this.byStream = byStream;
+        }
+    }
     
     /**
-     * Tag Emote with an id and a range end (the start should be the key
-     * referring to this object.
+     * An emoticon found in a message.
      */
-    public static class TagEmote {
+    public static class EmoticonMatch {
+        
+        public final Emoticon emoticon;
+        
+        /**
+         * The index of the first character of the emoticon.
+         */
+        public final int start;
         
-        public final int id;
+        /**
+         * The index of the last character of the emoticon (inclusive).
+         */
         public final int end;
         
-        public TagEmote(int start, int end) {
-            this.id = start;
+        public EmoticonMatch(Emoticon emoticon, int start, int end) {
+            this.emoticon = emoticon;
+            this.start = start;
             this.end = end;
         }
+    }
+    
+    private static class UserEmotesKey {
+        
+        private final Set<Integer> emotesets;
+        private final String stream;
+        
+        UserEmotesKey(Set<Integer> emotesets, String stream) {
+            this.emotesets = emotesets;
+            this.stream = stream;
+        }
         
         @Override
-        public String toString() {
-            return ">"+id+":"+end;
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final UserEmotesKey other = (UserEmotesKey) obj;
+            return Objects.equals(stream, other.stream)
+                    && emotesets.equals(other.emotesets);
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * emotesets.hashCode() + Objects.hashCode(stream);
         }
     }
-            
+    
 }
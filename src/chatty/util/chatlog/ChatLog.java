@@ -1,6 +1,7 @@
 
 package chatty.util.chatlog;
 
+import chatty.ChatMessage;
 import chatty.Chatty;
 import chatty.Helper;
 import chatty.User;
@@ -84,13 +85,14 @@ public class ChatLog {
         }
     }
 
-    public void message(String channel, User user, String message, boolean action) {
+    public void message(String channel, ChatMessage message) {
         if (isEnabled(channel)) {
             String line;
-            if (action) {
-                line = timestamp()+"<"+user+">* "+message;
+            String timestamp = timestamp(message.timestamp);
+            if (message.action) {
+                line = timestamp+"<"+message.user+">* "+message.text;
             } else {
-                line = timestamp()+"<"+user+"> "+message;
+                line = timestamp+"<"+message.user+"> "+message.text;
             }
             writeLine(channel, line);
         }
@@ -175,6 +177,21 @@ public class ChatLog {
         return DateTime.currentTime(sdf);
     }
     
+    /**
+     * The timestamp for something that happened at the given time, rather
+     * than when it is written.
+     * 
+     * @param time The time in milliseconds
+     * @return The formatted timestamp, or an empty String if timestamps are
+     * disabled
+     */
+    private String timestamp(long time) {
+        if (sdf == null) {
+            return "";
+        }
+        return DateTime.format(time, sdf);
+    }
+    
     /**
      * Close chatlogging, which writes any remaining lines in the buffer closes
      * all files and stops the thread. This waits for the thread to finish, so
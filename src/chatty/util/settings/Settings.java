@@ -6,13 +6,22 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Map.Entry;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ContentHandler;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
@@ -23,6 +32,15 @@ import org.json.simple.parser.ParseException;
  * settings and checking type isn't synchronized, but if settings are only
  * added once at the beginning this shouldn't be a problem.
  * 
+ * Boolean, numeric, String and List values are read from a
+ * {@link SettingsSnapshot} without locking. The snapshot is discarded when
+ * any value is changed and created again on the next read.
+ * 
+ * Only files that contain changed settings are saved. With
+ * {@link #setAutoSave(long)} changed files are also saved in the background,
+ * a short time after the first change, so several changes close together
+ * result in only one save.
+ * 
  * @author tduva
  */
 public class Settings {
@@ -44,6 +62,27 @@ public class Settings {
     
     private boolean saved;
     
+    /**
+     * The current values, or null if something changed since it was created.
+     */
+    private volatile SettingsSnapshot snapshot;
+    
+    /**
+     * Files that contain settings that changed since the file was last saved
+     * or loaded.
+     */
+    private final Set<String> dirtyFiles = new HashSet<>();
+    
+    /**
+     * Only one save at a time, so an older state of a file can't overwrite a
+     * newer one.
+     */
+    private final Object SAVE_LOCK = new Object();
+    
+    private ScheduledExecutorService saver;
+    private long autoSaveDelay;
+    private boolean saveScheduled;
+    
     public Settings(String path) {
         this.defaultFile = path;
     }
@@ -205,6 +244,59 @@ public class Settings {
         else {
             settings.put(settingName, new Setting(value, type, save, defaultFile));
         }
+        // Maps aren't in the snapshot
+        if (type != Setting.MAP) {
+            synchronized(LOCK) {
+                changed();
+            }
+        }
+    }
+    
+    /**
+     * Must be called (while holding the LOCK) after any value was changed,
+     * so the snapshot is created again.
+     */
+    private void changed() {
+        snapshot = null;
+    }
+    
+    /**
+     * Must be called (while holding the LOCK) after the value of the given
+     * setting was changed, so the snapshot is created again and the file of
+     * the setting is saved.
+     * 
+     * @param settingName 
+     */
+    private void changed(String settingName) {
+        Setting setting = settings.get(settingName);
+        // Maps aren't in the snapshot
+        if (setting == null || setting.getType() != Setting.MAP) {
+            changed();
+        }
+        if (setting != null && setting.allowedToSave()) {
+            dirtyFiles.add(setting.getFile());
+            scheduleSave();
+        }
+    }
+    
+    /**
+     * Gets an immutable copy of the current values, which can be used to read
+     * several values that belong together, or to read values often.
+     * 
+     * @return The snapshot
+     */
+    public SettingsSnapshot getSnapshot() {
+        SettingsSnapshot result = snapshot;
+        if (result == null) {
+            synchronized(LOCK) {
+                result = snapshot;
+                if (result == null) {
+                    result = new SettingsSnapshot(settings);
+                    snapshot = result;
+                }
+            }
+        }
+        return result;
     }
     
     /**
@@ -229,6 +321,9 @@ public class Settings {
             } else {
                 changed = setting.setValue(value);
             }
+            if (changed) {
+                changed(settingName);
+            }
         }
         if (changed) {
             settingChanged(settingName,type,value);
@@ -262,7 +357,7 @@ public class Settings {
     }
     
     public boolean getBoolean(String settingName) {
-        return (Boolean)get(settingName, Setting.BOOLEAN);
+        return getSnapshot().getBoolean(settingName);
     }
     
     /**
@@ -272,11 +367,11 @@ public class Settings {
      * @return 
      */
     public String getString(String setting) {
-        return (String)get(setting, Setting.STRING);
+        return getSnapshot().getString(setting);
     }
     
     public long getLong(String setting) {
-        return ((Number)(get(setting, Setting.LONG))).longValue();
+        return getSnapshot().getLong(setting);
     }
 
 
@@ -327,6 +422,7 @@ public class Settings {
             Map settingMap = getMapInternal(settingName);
             settingMap.clear();
             settingMap.putAll(map);
+            changed(settingName);
         }
     }
     
@@ -350,6 +446,7 @@ public class Settings {
     public void mapPut(String settingName, Object key, Object value) {
         synchronized(LOCK) {
             getMapInternal(settingName).put(key, value);
+            changed(settingName);
         }
     }
     
@@ -365,6 +462,7 @@ public class Settings {
     public void mapClear(String settingName) {
         synchronized(LOCK) {
             getMapInternal(settingName).clear();
+            changed(settingName);
         }
     }
     
@@ -382,6 +480,7 @@ public class Settings {
     public void mapRemove(String settingName, Object key) {
         synchronized (LOCK) {
             getMapInternal(settingName).remove(key);
+            changed(settingName);
         }
     }
 
@@ -429,6 +528,7 @@ public class Settings {
             List settingList = (List) get(settingName, Setting.LIST);
             settingList.clear();
             settingList.addAll(list);
+            changed(settingName);
         }
     }
     
@@ -442,9 +542,7 @@ public class Settings {
      * exist or isn't a {@code List} setting.
      */
     public boolean listContains(String settingName, Object value) {
-        synchronized(LOCK) {
-            return getListInternal(settingName).contains(value);
-        }
+        return getSnapshot().listContains(settingName, value);
     }
 
     /**
@@ -458,19 +556,25 @@ public class Settings {
      */
     public boolean listRemove(String settingName, Object value) {
         synchronized(LOCK) {
-            return getListInternal(settingName).remove(value);
+            boolean removed = getListInternal(settingName).remove(value);
+            if (removed) {
+                changed(settingName);
+            }
+            return removed;
         }
     }
     
     public void listAdd(String settingName, Object value) {
         synchronized(LOCK) {
             getListInternal(settingName).add(value);
+            changed(settingName);
         }
     }
     
     public void listClear(String settingName) {
         synchronized(LOCK) {
             getListInternal(settingName).clear();
+            changed(settingName);
         }
     }
     
@@ -488,6 +592,7 @@ public class Settings {
             List settingList = (List)get(settingName, Setting.LIST);
             if (!settingList.contains(value)) {
                 settingList.add(value);
+                changed(settingName);
                 return true;
             }
             return false;
@@ -749,68 +854,198 @@ public class Settings {
     }
     
     /**
-     * Turns all settings into a JSON String.
+     * Copies the values of all settings that should be saved to the given
+     * file, so they can be written without holding the LOCK. Must be called
+     * while holding the LOCK.
      * 
-     * @return The JSON
+     * @param file The file
+     * @return A Map of setting names and copied values
      */
-    private String settingsToJson(String file) {
-        JSONObject obj = new JSONObject();
-        
-        Set<Map.Entry<String,Setting>> set = settings.entrySet();
-        for (Entry<String,Setting> entry : set) {
+    private Map<String, Object> copyValues(String file) {
+        Map<String, Object> result = new HashMap<>();
+        for (Entry<String,Setting> entry : settings.entrySet()) {
             Setting setting = entry.getValue();
             if (setting.allowedToSave() && setting.getFile().equals(file)) {
-                String key = entry.getKey();
-                Object value = setting.getValue();
-//                if (setting.getType() == Setting.MAP) {
-//                    Map map = new HashMap<>();
-//                    synchronized(value) {
-//                        getMap2(entry.getKey(), map);
-//                    }
-//                    value = map;
-//                    //obj.put(entry.getKey(), getMap2(entry.getKey(), new HashMap()));
-//                }
-                obj.put(key, value);
+                result.put(entry.getKey(), copyValue(setting.getValue()));
             }
         }
-        
-        return obj.toJSONString();
+        return result;
+    }
+    
+    private static Object copyValue(Object value) {
+        if (value instanceof Map) {
+            Map<Object, Object> result = new HashMap<>();
+            for (Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+                result.put(entry.getKey(), copyValue(entry.getValue()));
+            }
+            return result;
+        }
+        if (value instanceof List) {
+            List<Object> result = new ArrayList<>();
+            for (Object item : (List<?>)value) {
+                result.add(copyValue(item));
+            }
+            return result;
+        }
+        return value;
     }
     
     /**
-     * Parses the settings from a JSON String and adds them to the settings
-     * data. Only loads settings that were peviously defined and that can be
-     * saved.
+     * Sets the value loaded from file, if it is of the type of the setting.
      * 
-     * @param json
-     * @throws ParseException 
+     * @param setting The setting
+     * @param obj The loaded value
      */
-    private void settingsFromJson(String json) throws ParseException {
-        JSONParser parser = new JSONParser();
-        JSONObject root = (JSONObject)parser.parse(json);
+    private void loadValue(Setting setting, Object obj) {
+        int objType = getTypeFromObject(obj);
+        if (objType == setting.getType()) {
+            if (objType == Setting.MAP) {
+                mapFromJson((Map)obj, (SubtypeSetting)setting);
+            }
+            else if (objType == Setting.LIST) {
+                listFromJson((List)obj, (SubtypeSetting)setting);
+            }
+            else {
+                setting.setValue(obj);
+            }
+        }
+    }
+    
+    /**
+     * Receives the parsed JSON while the file is read and collects each
+     * top-level value as soon as it is complete, so the JSON text never has to
+     * be held in memory. Only builds values for settings that were previously
+     * defined and that can be saved. The values are only set once the whole
+     * file was parsed successfully.
+     */
+    private class Loader implements ContentHandler {
+        
+        /**
+         * The Maps/Lists of the current value that are not complete yet.
+         */
+        private final Deque<Object> containers = new ArrayDeque<>();
+        
+        /**
+         * The keys of the Maps in containers.
+         */
+        private final Deque<String> keys = new ArrayDeque<>();
+        
+        private int depth;
+        
+        /**
+         * The setting for the current top-level key, or null if the value
+         * should be skipped.
+         */
+        private Setting setting;
+        private Object value;
+        
+        /**
+         * The complete top-level values, in the order they were read.
+         */
+        private final Map<Setting, Object> values = new LinkedHashMap<>();
 
-        for (Entry<String,Setting> entry : settings.entrySet()) {
-            // For every defined setting
-            Setting setting = entry.getValue();
-            String settingName = entry.getKey();
-            Object obj = root.get(settingName);
-            if (setting.allowedToSave()) {
-                int objType = getTypeFromObject(obj);
-                //System.out.println(settingName+" "+objType);
-                if (objType == setting.getType()) {
-                    //System.out.println("Loading setting: "+settingName+" "+obj);
-                    if (objType == Setting.MAP) {
-                        mapFromJson((Map)obj, (SubtypeSetting)setting);
-                    }
-                    else if (objType == Setting.LIST) {
-                        listFromJson((List)obj, (SubtypeSetting)setting);
-                    }
-                    else {
-                        setting.setValue(obj);
-                    }
+        @Override
+        public void startJSON() {
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() {
+            depth++;
+            if (depth > 1 && setting != null) {
+                containers.push(new HashMap<String, Object>());
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endObject() {
+            depth--;
+            if (depth > 0 && setting != null) {
+                value(containers.pop());
+            }
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            if (depth == 1) {
+                setting = settings.get(key);
+                if (setting != null && !setting.allowedToSave()) {
+                    setting = null;
+                }
+                value = null;
+            } else if (setting != null) {
+                keys.push(key);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            if (depth == 1) {
+                if (setting != null) {
+                    values.put(setting, value);
                 }
+                setting = null;
+                value = null;
+            } else if (setting != null) {
+                keys.pop();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean startArray() {
+            depth++;
+            if (setting != null) {
+                containers.push(new ArrayList<Object>());
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endArray() {
+            depth--;
+            if (setting != null) {
+                value(containers.pop());
+            }
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object primitive) {
+            if (setting != null) {
+                value(primitive);
+            }
+            return true;
+        }
+        
+        @SuppressWarnings("unchecked") // Containers are created above
+        private void value(Object v) {
+            Object parent = containers.peek();
+            if (parent == null) {
+                value = v;
+            } else if (parent instanceof Map) {
+                ((Map<String, Object>)parent).put(keys.peek(), v);
+            } else {
+                ((List<Object>)parent).add(v);
+            }
+        }
+        
+        /**
+         * Sets the collected values, should only be called after the file
+         * was parsed successfully.
+         */
+        private void apply() {
+            for (Entry<Setting, Object> entry : values.entrySet()) {
+                loadValue(entry.getKey(), entry.getValue());
             }
         }
+        
     }
     
     
@@ -855,33 +1090,120 @@ public class Settings {
     }
     
     /**
-     * Saves the settings to a file as JSON.
+     * Saves the changed settings to file as JSON. Only saves once, so it can
+     * be called during regular shutdown as well as from a shutdown hook.
      * 
-     * @throws IOException 
+     * Informs the SettingsListeners first, so they can store their current
+     * state in the settings.
      */
     public void saveSettingsToJson() {
         aboutToSaveSettings();
         synchronized(LOCK) {
-            if (!saved) {
-                System.out.println("Saving settings.");
-                saved = true;
-                saveSettingsToJson(defaultFile);
-                for (String fileName : files) {
-                    saveSettingsToJson(fileName);
+            if (saved) {
+                return;
+            }
+            saved = true;
+        }
+        System.out.println("Saving settings.");
+        saveChangedFiles();
+    }
+    
+    /**
+     * Enables or disables saving changed settings in the background.
+     * Listeners are not informed before these saves.
+     * 
+     * @param delay How long to wait after the first change before saving (in
+     * milliseconds), 0 to disable
+     */
+    public void setAutoSave(long delay) {
+        synchronized(LOCK) {
+            autoSaveDelay = delay;
+            if (delay > 0 && saver == null) {
+                saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "SettingsSaver");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            scheduleSave();
+        }
+    }
+    
+    /**
+     * Schedules saving the changed files, unless already scheduled. Must be
+     * called while holding the LOCK.
+     */
+    private void scheduleSave() {
+        if (autoSaveDelay > 0 && !saveScheduled && !dirtyFiles.isEmpty()) {
+            saveScheduled = true;
+            saver.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    synchronized(LOCK) {
+                        saveScheduled = false;
+                    }
+                    saveChangedFiles();
+                }
+            }, autoSaveDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Saves all files that contain changed settings. The values are copied
+     * while holding the LOCK, but written without it.
+     */
+    private void saveChangedFiles() {
+        synchronized(SAVE_LOCK) {
+            Map<String, Map<String, Object>> data = new HashMap<>();
+            synchronized(LOCK) {
+                for (String fileName : dirtyFiles) {
+                    data.put(fileName, copyValues(fileName));
+                }
+                dirtyFiles.clear();
+            }
+            for (String fileName : data.keySet()) {
+                if (!saveSettingsToJson(fileName, data.get(fileName))) {
+                    synchronized(LOCK) {
+                        dirtyFiles.add(fileName);
+                    }
                 }
             }
         }
     }
     
-    private void saveSettingsToJson(String fileName) {
+    /**
+     * Writes the values into a temporary file first and then replaces the
+     * actual file with it, so the file isn't left incomplete if writing
+     * fails.
+     * 
+     * @param fileName The file to write to
+     * @param values The values to write
+     * @return true if the file was saved, false if an error occured
+     */
+    private boolean saveSettingsToJson(String fileName, Map<String, Object> values) {
         LOGGER.info("Saving settings to file: "+fileName);
-        String json = settingsToJson(fileName);
         Path file = Paths.get(fileName);
-        try (BufferedWriter writer = Files.newBufferedWriter(file, CHARSET)) {
-            writer.write(json);
+        Path tempFile = Paths.get(fileName+".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tempFile, CHARSET)) {
+                JSONValue.writeJSONString(values, writer);
+            }
+            try {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
         } catch (IOException ex) {
             LOGGER.warning("Error saving settings to file: "+ex);
             System.out.println("Error saving settings to file: "+ex);
+            return false;
         }
     }
     
@@ -894,26 +1216,68 @@ public class Settings {
             for (String fileName : files) {
                 loadSettingsFromJson(fileName);
             }
+            changed();
         }
     }
     
+    /**
+     * Loads the settings from the given file. If the file couldn't be loaded
+     * properly it is marked as changed, so it is saved with valid data again
+     * (after making a copy of it, in case it contained anything that may
+     * still be recovered).
+     * 
+     * @param fileName 
+     */
     private void loadSettingsFromJson(String fileName) {
         LOGGER.info("Loading settings from file: "+fileName);
         Path file = Paths.get(fileName);
         
         try (BufferedReader reader = Files.newBufferedReader(file, CHARSET)) {
-            String input = reader.readLine();
-            if (input != null) {
-                settingsFromJson(input);
+            if (Files.size(file) > 0) {
+                Loader loader = new Loader();
+                new JSONParser().parse(reader, loader);
+                loader.apply();
+                LOGGER.info("Loaded "+loader.values.size()+" settings from file: "+fileName);
             } else {
                 LOGGER.warning("Settings file empty: "+fileName);
                 LOGGER.log(Logging.USERINFO, "Settings file empty, using default settings ("+fileName+")");
+                dirtyFiles.add(fileName);
             }
+        } catch (NoSuchFileException ex) {
+            LOGGER.warning("Settings file not found: "+fileName);
+            dirtyFiles.add(fileName);
         } catch (IOException ex) {
             LOGGER.warning("Error loading settings from file: "+ex);
+            if (backupCorruptFile(file)) {
+                dirtyFiles.add(fileName);
+            }
         } catch (ParseException ex) {
             LOGGER.warning("Error parsing settings: "+ex);
             LOGGER.log(Logging.USERINFO, "Settings file corrupt, using default settings ("+fileName+")");
+            if (backupCorruptFile(file)) {
+                dirtyFiles.add(fileName);
+            }
+        }
+    }
+    
+    /**
+     * Copies a settings file that couldn't be loaded, before it is
+     * overwritten. Each copy gets a new name, so an earlier copy is never
+     * replaced.
+     * 
+     * @param file The file
+     * @return true if the copy was made, false otherwise (the file should not
+     * be overwritten then)
+     */
+    private static boolean backupCorruptFile(Path file) {
+        Path backup = Paths.get(file+"."+System.currentTimeMillis()+".corrupt");
+        try {
+            Files.copy(file, backup);
+            LOGGER.warning("Copied corrupt settings file to: "+backup);
+            return true;
+        } catch (IOException ex) {
+            LOGGER.warning("Error copying corrupt settings file: "+ex);
+            return false;
         }
     }
     
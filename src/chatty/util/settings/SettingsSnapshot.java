@@ -0,0 +1,108 @@
+
+package chatty.util.settings;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable copy of the boolean, numeric, String and List settings at one
+ * point in time, so they can be read from any thread without locking. List
+ * settings are stored as Sets, so checking if they contain a value doesn't
+ * have to go through the whole List.
+ *
+ * @author tduva
+ */
+public class SettingsSnapshot {
+
+    private final Map<String, Boolean> booleans = new HashMap<>();
+    private final Map<String, Long> longs = new HashMap<>();
+    private final Map<String, String> strings = new HashMap<>();
+    private final Map<String, Set<Object>> lists = new HashMap<>();
+
+    /**
+     * Copies the current values. Must be called while the settings can't be
+     * changed.
+     *
+     * @param settings
+     */
+    SettingsSnapshot(Map<String, Setting> settings) {
+        for (Map.Entry<String, Setting> entry : settings.entrySet()) {
+            String name = entry.getKey();
+            Setting setting = entry.getValue();
+            Object value = setting.getValue();
+            switch (setting.getType()) {
+                case Setting.BOOLEAN:
+                    booleans.put(name, (Boolean)value);
+                    break;
+                case Setting.LONG:
+                    longs.put(name, ((Number)value).longValue());
+                    break;
+                case Setting.STRING:
+                    strings.put(name, (String)value);
+                    break;
+                case Setting.LIST:
+                    lists.put(name, Collections.unmodifiableSet(
+                            new HashSet<Object>((List<?>)value)));
+                    break;
+            }
+        }
+    }
+
+    public boolean getBoolean(String settingName) {
+        Boolean value = booleans.get(settingName);
+        if (value == null) {
+            throw new SettingNotFoundException("Could not find setting: " + settingName);
+        }
+        return value;
+    }
+
+    public long getLong(String settingName) {
+        Long value = longs.get(settingName);
+        if (value == null) {
+            throw new SettingNotFoundException("Could not find setting: " + settingName);
+        }
+        return value;
+    }
+
+    public String getString(String settingName) {
+        String value = strings.get(settingName);
+        if (value == null) {
+            throw new SettingNotFoundException("Could not find setting: " + settingName);
+        }
+        return value;
+    }
+
+    /**
+     * Checks if the List setting contains the given value.
+     *
+     * @param settingName The name of the List setting
+     * @param value The value to check
+     * @return {@code true} if the value is contained, {@code false} otherwise
+     * @throws SettingNotFoundException if a setting with this name doesn't
+     * exist or isn't a {@code List} setting.
+     */
+    public boolean listContains(String settingName, Object value) {
+        return getSet(settingName).contains(value);
+    }
+
+    /**
+     * The values of the List setting, without duplicates.
+     *
+     * @param settingName The name of the List setting
+     * @return An unmodifiable Set
+     * @throws SettingNotFoundException if a setting with this name doesn't
+     * exist or isn't a {@code List} setting.
+     */
+    public Set<Object> getSet(String settingName) {
+        Set<Object> value = lists.get(settingName);
+        if (value == null) {
+            throw new SettingNotFoundException("Could not find setting: " + settingName);
+        }
+        return value;
+    }
+
+}
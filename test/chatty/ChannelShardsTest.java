@@ -0,0 +1,92 @@
+package chatty;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class ChannelShardsTest {
+
+    private static class TestShard implements ChannelShards.Shard {
+
+        private boolean available = true;
+
+        @Override
+        public boolean isAvailable() {
+            return available;
+        }
+    }
+
+    @Test
+    public void testRoundRobin() {
+        ChannelShards<TestShard> shards = new ChannelShards<>();
+        TestShard a = new TestShard();
+        TestShard b = new TestShard();
+        TestShard c = new TestShard();
+        shards.addShard(a);
+        shards.addShard(b);
+        shards.addShard(c);
+
+        assertSame(a, shards.assign("#a"));
+        assertSame(b, shards.assign("#b"));
+        assertSame(c, shards.assign("#c"));
+        assertSame(a, shards.assign("#d"));
+        // Already assigned
+        assertSame(b, shards.assign("#b"));
+        assertSame(b, shards.get("#b"));
+
+        // Failover
+        b.available = false;
+        assertEquals(Arrays.asList("#b"), shards.shardDown(b));
+        assertNull(shards.get("#b"));
+        assertSame(c, shards.assign("#b"));
+        assertSame(a, shards.assign("#e"));
+
+        a.available = false;
+        c.available = false;
+        assertNull(shards.assign("#f"));
+        assertNull(shards.get("#f"));
+
+        shards.remove("#a");
+        assertNull(shards.get("#a"));
+    }
+
+    @Test
+    public void testLoad() {
+        ChannelShards<TestShard> shards = new ChannelShards<>();
+        shards.setPolicy(ChannelShards.Policy.LOAD);
+        TestShard a = new TestShard();
+        TestShard b = new TestShard();
+        shards.addShard(a);
+        shards.addShard(b);
+
+        // Same load, so fewest channels
+        assertSame(a, shards.assign("#busy"));
+        assertSame(b, shards.assign("#quiet"));
+        for (int i = 0; i < 100; i++) {
+            shards.messageReceived("#busy");
+        }
+        shards.messageReceived("#quiet");
+        assertSame(b, shards.assign("#new1"));
+        assertSame(b, shards.assign("#new2"));
+        assertEquals(3, shards.getChannels(b).size());
+
+        // Busiest channels first
+        shards.messageReceived("#new2");
+        shards.messageReceived("#new2");
+        List<String> moved = shards.shardDown(b);
+        assertEquals(Arrays.asList("#new2", "#quiet", "#new1"), moved);
+    }
+
+    @Test
+    public void testParsePolicy() {
+        assertEquals(ChannelShards.Policy.LOAD, ChannelShards.parsePolicy("load"));
+        assertEquals(ChannelShards.Policy.ROUND_ROBIN, ChannelShards.parsePolicy("roundrobin"));
+        assertEquals(ChannelShards.Policy.ROUND_ROBIN, ChannelShards.parsePolicy("abc"));
+    }
+
+}
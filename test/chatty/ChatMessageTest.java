@@ -0,0 +1,58 @@
+package chatty;
+
+import chatty.util.api.Emoticons.TagEmotes;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class ChatMessageTest {
+
+    private static ChatMessage create(String text, String emotesTag) {
+        return new ChatMessage(new User("abc", "#test"), text, false, emotesTag);
+    }
+
+    @Test
+    public void testLinks() {
+        List<ChatMessage.Link> links = create("abc http://example.com/test (twitch.tv/abc) Kappa", null).links;
+        assertEquals(2, links.size());
+        assertEquals(4, links.get(0).start);
+        assertEquals(26, links.get(0).end);
+        assertEquals("http://example.com/test", links.get(0).url);
+        // Closing bracket not part of the link
+        assertEquals(29, links.get(1).start);
+        assertEquals(41, links.get(1).end);
+        assertEquals("http://twitch.tv/abc", links.get(1).url);
+
+        assertTrue(create("no links here", null).links.isEmpty());
+        assertTrue(create("example..com", null).links.isEmpty());
+    }
+
+    @Test
+    public void testEmotes() {
+        assertNull(create("Kappa", null).emotes);
+
+        TagEmotes emotes = create("Kappa Keepo Kappa", "25:0-4,12-16/1902:6-10").emotes;
+        assertEquals(3, emotes.size());
+        assertEquals(0, emotes.getStart(0));
+        assertEquals(4, emotes.getEnd(0));
+        assertEquals(25, emotes.getId(0));
+        assertEquals(6, emotes.getStart(1));
+        assertEquals(1902, emotes.getId(1));
+        assertEquals(12, emotes.getStart(2));
+        assertEquals(16, emotes.getEnd(2));
+
+        // Supplementary character counts as one in the tag
+        emotes = create("Kappa 𠜎 Kappa", "25:0-4,8-12").emotes;
+        assertEquals(2, emotes.size());
+        assertEquals(9, emotes.getStart(1));
+        assertEquals(13, emotes.getEnd(1));
+
+        // Invalid or out of range
+        assertEquals(0, create("Kappa", "25:0-5/abc:0-1/25:3-2").emotes.size());
+    }
+
+}
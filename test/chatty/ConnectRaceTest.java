@@ -0,0 +1,81 @@
+package chatty;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class ConnectRaceTest {
+
+    private static final InetSocketAddress SLOW = new InetSocketAddress("127.0.0.1", 1);
+    private static final InetSocketAddress FAILING = new InetSocketAddress("127.0.0.1", 2);
+    private static final InetSocketAddress FAST = new InetSocketAddress("127.0.0.1", 3);
+
+    /**
+     * Doesn't actually connect, just simulates the different kinds of
+     * addresses.
+     */
+    private static final ConnectRace.Connector CONNECTOR = new ConnectRace.Connector() {
+
+        @Override
+        public Socket connect(InetSocketAddress address, int timeout) throws IOException {
+            if (address.equals(SLOW)) {
+                try {
+                    Thread.sleep(timeout);
+                } catch (InterruptedException ex) {
+                    // Just continue
+                }
+                throw new ConnectException("Timeout");
+            }
+            if (address.equals(FAILING)) {
+                throw new ConnectException("Refused");
+            }
+            return new Socket();
+        }
+    };
+
+    private static ConnectRace race(InetSocketAddress... addresses) {
+        return new ConnectRace(Arrays.asList(addresses), CONNECTOR, "Test");
+    }
+
+    @Test
+    public void testSlowFirst() throws IOException {
+        ConnectRace race = race(SLOW, FAST);
+        assertNotNull(race.connect(100, 2000));
+        assertEquals(FAST, race.getAddress());
+    }
+
+    @Test
+    public void testFailingFirst() throws IOException {
+        // Next one is started right away when the previous ones failed, so
+        // this doesn't wait for the stagger delay
+        ConnectRace race = race(FAILING, FAILING, FAST);
+        assertNotNull(race.connect(1000, 2000));
+        assertEquals(FAST, race.getAddress());
+        assertEquals(Arrays.asList(FAILING, FAILING), race.getFailedAddresses());
+    }
+
+    @Test
+    public void testAllFailing() {
+        List<InetSocketAddress> addresses = Arrays.asList(FAILING, SLOW, FAILING);
+        ConnectRace race = new ConnectRace(addresses, CONNECTOR, "Test");
+        try {
+            race.connect(50, 300);
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex instanceof ConnectException);
+        }
+        assertNull(race.getAddress());
+        assertEquals(3, race.getFailedAddresses().size());
+        assertTrue(race.getFailedAddresses().containsAll(addresses));
+    }
+
+}
@@ -0,0 +1,576 @@
+package chatty;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Minimal stand-in for the Twitch IRC server on the loopback interface, for
+ * testing connections and benchmarking the message processing without a
+ * network.
+ *
+ * Supports the commands the client uses (CAP, PASS, NICK, JOIN, PART, PRIVMSG,
+ * PING, QUIT) and answers them roughly like Twitch does (001-004, NAMES,
+ * USERSTATE, ROOMSTATE). Optionally generates chat messages (with tags) and
+ * CLEARCHAT in all joined channels.
+ *
+ * Secured connections use a self-signed certificate from the "faketmi.p12"
+ * resource, which clients can trust by using {@link #createClientContext()}.
+ *
+ * Can also be run standalone: FakeTmiServer &lt;port&gt; [secure]
+ * [messages/s per channel] [users per channel]
+ *
+ * @author tduva
+ */
+public class FakeTmiServer {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final String KEYSTORE = "faketmi.p12";
+    private static final char[] KEYSTORE_PASSWORD = "faketmi".toCharArray();
+
+    private static final String HOST = "tmi.twitch.tv";
+
+    /**
+     * How often the traffic generator sends (in milliseconds).
+     */
+    private static final int TRAFFIC_INTERVAL = 10;
+
+    /**
+     * Every how many generated messages a CLEARCHAT is sent instead.
+     */
+    private static final int CLEARCHAT_INTERVAL = 100;
+
+    /**
+     * How many received lines are kept for {@link #getReceivedLines()}.
+     */
+    private static final int MAX_RECEIVED_LINES = 10000;
+
+    private final ServerSocket serverSocket;
+    private final boolean secure;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final List<String> receivedLines = new ArrayList<>();
+
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong connectionCount = new AtomicLong();
+
+    private volatile boolean running;
+    private volatile double messagesPerSecond;
+    private volatile int users = 100;
+
+    /**
+     * Creates a server on a free port, use {@link #getPort()} to get it.
+     *
+     * @param secure Whether to use TLS
+     * @throws IOException
+     */
+    public FakeTmiServer(boolean secure) throws IOException {
+        this(0, secure);
+    }
+
+    public FakeTmiServer(int port, boolean secure) throws IOException {
+        this.secure = secure;
+        if (secure) {
+            try {
+                serverSocket = createContext(true).getServerSocketFactory().createServerSocket();
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+        } else {
+            serverSocket = new ServerSocket();
+        }
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Creates an SSLContext that trusts the certificate of this server.
+     *
+     * @return
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public static SSLContext createClientContext() throws GeneralSecurityException, IOException {
+        return createContext(false);
+    }
+
+    private static SSLContext createContext(boolean server)
+            throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream input = FakeTmiServer.class.getResourceAsStream(KEYSTORE)) {
+            if (input == null) {
+                throw new IOException("Keystore not found: "+KEYSTORE);
+            }
+            keyStore.load(input, KEYSTORE_PASSWORD);
+        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        if (server) {
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, KEYSTORE_PASSWORD);
+            context.init(kmf.getKeyManagers(), null, null);
+        } else {
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(keyStore);
+            context.init(null, tmf.getTrustManagers(), null);
+        }
+        return context;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public boolean isSecure() {
+        return secure;
+    }
+
+    public void start() {
+        running = true;
+        Thread acceptThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "FakeTmiServer-Accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        Thread trafficThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                trafficLoop();
+            }
+        }, "FakeTmiServer-Traffic");
+        trafficThread.setDaemon(true);
+        trafficThread.start();
+    }
+
+    /**
+     * Closes the server and all connections.
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            // Closing anyway
+        }
+        disconnectAll();
+    }
+
+    /**
+     * Sets the generated traffic.
+     *
+     * @param messagesPerSecond The number of chat messages per second in each
+     * joined channel, 0 to disable
+     * @param users The number of different users sending the messages
+     */
+    public void setTraffic(double messagesPerSecond, int users) {
+        this.users = Math.max(users, 1);
+        this.messagesPerSecond = messagesPerSecond;
+    }
+
+    /**
+     * Closes all client connections, without any message.
+     */
+    public void disconnectAll() {
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    /**
+     * Sends a line to all registered clients.
+     *
+     * @param line
+     */
+    public void sendToAll(String line) {
+        for (Client client : clients) {
+            if (client.nick != null) {
+                client.send(line);
+                client.flush();
+            }
+        }
+    }
+
+    /**
+     * Sends a line to all clients that joined the given channel.
+     *
+     * @param channel
+     * @param line
+     */
+    public void sendToChannel(String channel, String line) {
+        for (Client client : clients) {
+            if (client.isJoined(channel)) {
+                client.send(line);
+                client.flush();
+            }
+        }
+    }
+
+    /**
+     * The number of currently connected clients.
+     *
+     * @return
+     */
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * The total number of connections accepted so far.
+     *
+     * @return
+     */
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * The channels currently joined by any client.
+     *
+     * @return
+     */
+    public Set<String> getJoinedChannels() {
+        Set<String> result = new HashSet<>();
+        for (Client client : clients) {
+            synchronized(client.channels) {
+                result.addAll(client.channels);
+            }
+        }
+        return result;
+    }
+
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * The lines received from all clients (only the first ones, up to a
+     * limit).
+     *
+     * @return
+     */
+    public List<String> getReceivedLines() {
+        synchronized(receivedLines) {
+            return new ArrayList<>(receivedLines);
+        }
+    }
+
+    /**
+     * Waits until a line starting with the given text has been received.
+     *
+     * @param start The start of the line
+     * @param timeout How long to wait at most (in milliseconds)
+     * @return true if the line was received
+     * @throws InterruptedException
+     */
+    public boolean waitForLine(String start, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        synchronized(receivedLines) {
+            while (true) {
+                for (String line : receivedLines) {
+                    if (line.startsWith(start)) {
+                        return true;
+                    }
+                }
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                receivedLines.wait(wait);
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connectionCount.incrementAndGet();
+                final Client client = new Client(socket);
+                clients.add(client);
+                Thread thread = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        client.readLoop();
+                    }
+                }, "FakeTmiServer-Client");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ex) {
+                // Server socket closed, or failed accepting this one
+            }
+        }
+    }
+
+    private void trafficLoop() {
+        long messageId = 0;
+        double due = 0;
+        long last = System.nanoTime();
+        while (running) {
+            try {
+                Thread.sleep(TRAFFIC_INTERVAL);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            long now = System.nanoTime();
+            double rate = messagesPerSecond;
+            if (rate <= 0) {
+                due = 0;
+                last = now;
+                continue;
+            }
+            due += rate * (now - last) / 1000000000.0;
+            last = now;
+            int count = (int)due;
+            due -= count;
+            if (count == 0) {
+                continue;
+            }
+            for (Client client : clients) {
+                List<String> channels;
+                synchronized(client.channels) {
+                    channels = new ArrayList<>(client.channels);
+                }
+                long id = messageId;
+                for (int i = 0; i < count; i++) {
+                    for (String channel : channels) {
+                        id++;
+                        client.send(generateLine(channel, id));
+                    }
+                }
+                client.flush();
+            }
+            messageId += count;
+        }
+    }
+
+    private String generateLine(String channel, long id) {
+        int user = (int)(id % users);
+        String name = "user"+user;
+        if (id % CLEARCHAT_INTERVAL == 0) {
+            return "@ban-duration=1;room-id=1;target-user-id="+user
+                    + " :"+HOST+" CLEARCHAT "+channel+" :"+name;
+        }
+        return "@badges=;color=#1E90FF;display-name=User"+user+";emotes=25:0-4"
+                + ";id="+id+";mod=0;room-id=1;subscriber=0;tmi-sent-ts="+System.currentTimeMillis()
+                + ";turbo=0;user-id="+user+";user-type="
+                + " :"+name+"!"+name+"@"+name+"."+HOST+" PRIVMSG "+channel
+                + " :Kappa message number "+id+" in "+channel;
+    }
+
+    private void received(String line) {
+        receivedCount.incrementAndGet();
+        synchronized(receivedLines) {
+            if (receivedLines.size() < MAX_RECEIVED_LINES) {
+                receivedLines.add(line);
+                receivedLines.notifyAll();
+            }
+        }
+    }
+
+    private class Client {
+
+        private final Socket socket;
+        private final Writer out;
+        private final Set<String> channels = new HashSet<>();
+        private volatile String nick;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), CHARSET));
+        }
+
+        void readLoop() {
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), CHARSET))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    received(line);
+                    handle(line);
+                    flush();
+                }
+            } catch (IOException ex) {
+                // Disconnected
+            } finally {
+                close();
+            }
+        }
+
+        private void handle(String line) {
+            String command = line;
+            String parameter = "";
+            int space = line.indexOf(' ');
+            if (space != -1) {
+                command = line.substring(0, space);
+                parameter = line.substring(space + 1);
+            }
+            switch (command) {
+                case "CAP":
+                    if (parameter.startsWith("REQ ")) {
+                        send(":"+HOST+" CAP * ACK "+parameter.substring(4));
+                    }
+                    break;
+                case "NICK":
+                    register(parameter.toLowerCase());
+                    break;
+                case "JOIN":
+                    for (String channel : parameter.split(",")) {
+                        join(channel.trim().toLowerCase());
+                    }
+                    break;
+                case "PART":
+                    for (String channel : parameter.split(",")) {
+                        part(channel.trim().toLowerCase());
+                    }
+                    break;
+                case "PRIVMSG":
+                    int textStart = parameter.indexOf(" :");
+                    if (textStart != -1) {
+                        send("@badges=;color=;display-name="+nick+";emote-sets=0;mod=0;subscriber=0;user-type="
+                                + " :"+HOST+" USERSTATE "+parameter.substring(0, textStart));
+                    }
+                    break;
+                case "PING":
+                    send(":"+HOST+" PONG "+HOST+" "+parameter);
+                    break;
+                case "QUIT":
+                    close();
+                    break;
+            }
+        }
+
+        private void register(String nick) {
+            this.nick = nick;
+            send(":"+HOST+" 001 "+nick+" :Welcome, GLHF!");
+            send(":"+HOST+" 002 "+nick+" :Your host is "+HOST);
+            send(":"+HOST+" 003 "+nick+" :This server is rather new");
+            send(":"+HOST+" 004 "+nick+" :-");
+            send(":"+HOST+" 375 "+nick+" :-");
+            send(":"+HOST+" 372 "+nick+" :You are in a maze of twisty passages, all alike.");
+            send(":"+HOST+" 376 "+nick+" :>");
+            send("@badges=;color=;display-name="+nick+";emote-sets=0;user-id=1;user-type="
+                    + " :"+HOST+" GLOBALUSERSTATE");
+        }
+
+        private void join(String channel) {
+            if (nick == null || !channel.startsWith("#")) {
+                return;
+            }
+            synchronized(channels) {
+                if (!channels.add(channel)) {
+                    return;
+                }
+            }
+            String prefix = ":"+nick+"!"+nick+"@"+nick+"."+HOST;
+            send(prefix+" JOIN "+channel);
+            send(":"+nick+"."+HOST+" 353 "+nick+" = "+channel+" :"+nick);
+            send(":"+nick+"."+HOST+" 366 "+nick+" "+channel+" :End of /NAMES list");
+            send("@badges=;color=;display-name="+nick+";emote-sets=0;mod=0;subscriber=0;user-type="
+                    + " :"+HOST+" USERSTATE "+channel);
+            send("@broadcaster-lang=;emote-only=0;followers-only=-1;r9k=0;slow=0;subs-only=0"
+                    + " :"+HOST+" ROOMSTATE "+channel);
+        }
+
+        private void part(String channel) {
+            synchronized(channels) {
+                if (!channels.remove(channel)) {
+                    return;
+                }
+            }
+            send(":"+nick+"!"+nick+"@"+nick+"."+HOST+" PART "+channel);
+        }
+
+        boolean isJoined(String channel) {
+            synchronized(channels) {
+                return channels.contains(channel);
+            }
+        }
+
+        void send(String line) {
+            synchronized(out) {
+                try {
+                    out.write(line);
+                    out.write("\r\n");
+                    sentCount.incrementAndGet();
+                } catch (IOException ex) {
+                    close();
+                }
+            }
+        }
+
+        void flush() {
+            synchronized(out) {
+                try {
+                    out.flush();
+                } catch (IOException ex) {
+                    close();
+                }
+            }
+        }
+
+        void close() {
+            clients.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Closing anyway
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            System.out.println("Usage: FakeTmiServer <port> [secure] [messages/s per channel] [users]");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        boolean secure = args.length > 1 && Boolean.parseBoolean(args[1]);
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        int users = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        FakeTmiServer server = new FakeTmiServer(port, secure);
+        server.setTraffic(rate, users);
+        server.start();
+        System.out.println("Listening on port "+server.getPort()+(secure ? " (secure)" : ""));
+        long lastSent = 0;
+        while (true) {
+            Thread.sleep(10000);
+            long sent = server.getSentCount();
+            System.out.println(String.format("Clients: %d, Channels: %d, Received: %d, Sent: %d (%d/s)",
+                    server.getClientCount(), server.getJoinedChannels().size(),
+                    server.getReceivedCount(), sent, (sent - lastSent) / 10));
+            lastSent = sent;
+        }
+    }
+
+}
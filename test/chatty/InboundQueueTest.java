@@ -0,0 +1,163 @@
+package chatty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class InboundQueueTest {
+
+    /**
+     * Handler that waits for the latch before processing the first line, so
+     * that lines can be queued.
+     */
+    private static class TestHandler implements InboundQueue.Handler {
+
+        private final CountDownLatch start = new CountDownLatch(1);
+        private final List<String> lines = new ArrayList<>();
+
+        @Override
+        public void process(String line) {
+            try {
+                start.await();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            synchronized(lines) {
+                lines.add(line);
+            }
+        }
+
+        public void releaseLater() {
+            new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException ex) {
+                        // Just continue
+                    }
+                    start.countDown();
+                }
+            }.start();
+        }
+
+        public List<String> waitFor(InboundQueue queue) throws InterruptedException {
+            start.countDown();
+            final CountDownLatch done = new CountDownLatch(1);
+            queue.addTask(new Runnable() {
+
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            synchronized(lines) {
+                return new ArrayList<>(lines);
+            }
+        }
+    }
+
+    @Test
+    public void testOrder() throws InterruptedException {
+        TestHandler handler = new TestHandler();
+        InboundQueue queue = new InboundQueue("test", handler);
+        queue.setLimit(1000);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            queue.add("PING "+i);
+            expected.add("PING "+i);
+        }
+        assertEquals(expected, handler.waitFor(queue));
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    public void testOverload() throws InterruptedException {
+        TestHandler handler = new TestHandler();
+        InboundQueue queue = new InboundQueue("test", handler);
+        queue.setLimit(2);
+        queue.setOverload(InboundQueue.Overload.DROP);
+        queue.setLocalNick("abc");
+        queue.setDropFilter(new InboundQueue.DropFilter() {
+
+            @Override
+            public boolean canDrop(String channel, String nick, String text) {
+                return !text.contains("abc");
+            }
+        });
+        // Wait for the first one to be taken out of the queue
+        queue.add("PING 1");
+        while (queue.getDepth() > 0) {
+            Thread.sleep(10);
+        }
+        queue.add("PING 2");
+        queue.add("PING 3");
+        queue.add(":a!a@a JOIN #chan");
+        queue.add(":b!b@b JOIN #chan");
+        queue.add(":a!a@a PART #chan");
+        queue.add(":c!c@c PRIVMSG #chan :hello");
+        // Can't be dropped, so this blocks until processing continues
+        handler.releaseLater();
+        queue.add(":c!c@c PRIVMSG #chan :hello abc");
+        List<String> lines = handler.waitFor(queue);
+        assertFalse(lines.contains(":c!c@c PRIVMSG #chan :hello"));
+        assertTrue(lines.contains(":c!c@c PRIVMSG #chan :hello abc"));
+        assertFalse(lines.contains(":a!a@a JOIN #chan"));
+        int b = lines.indexOf(":b!b@b JOIN #chan");
+        int a = lines.indexOf(":a!a@a PART #chan");
+        assertTrue(b != -1 && a > b);
+        assertTrue(lines.containsAll(Arrays.asList("PING 1", "PING 2", "PING 3")));
+    }
+
+    @Test
+    public void testNoWaitOnEdt() throws InterruptedException {
+        TestHandler handler = new TestHandler();
+        final InboundQueue queue = new InboundQueue("test", handler);
+        queue.setLimit(2);
+        queue.setOverload(InboundQueue.Overload.COALESCE);
+        queue.add("PING 1");
+        while (queue.getDepth() > 0) {
+            Thread.sleep(10);
+        }
+        // The queue is full, but this must not wait on the EDT
+        final CountDownLatch added = new CountDownLatch(1);
+        SwingUtilities.invokeLater(new Runnable() {
+
+            @Override
+            public void run() {
+                queue.add("PING 2");
+                queue.add("PING 3");
+                queue.add(":a!a@a JOIN #chan");
+                queue.add(":a!a@a PRIVMSG #chan :hi");
+                queue.add(":a!a@a PART #chan");
+                queue.add(":a!a@a PRIVMSG #chan :bye");
+                added.countDown();
+            }
+        });
+        assertTrue(added.await(5, TimeUnit.SECONDS));
+        // Only the PART is left, but still in order with the messages
+        assertEquals(Arrays.asList("PING 1", "PING 2", "PING 3",
+                ":a!a@a PRIVMSG #chan :hi", ":a!a@a PART #chan",
+                ":a!a@a PRIVMSG #chan :bye"), handler.waitFor(queue));
+    }
+
+    @Test
+    public void testParseOverload() {
+        assertEquals(InboundQueue.Overload.DROP, InboundQueue.parseOverload("drop"));
+        assertEquals(InboundQueue.Overload.COALESCE, InboundQueue.parseOverload("coalesce"));
+        assertEquals(InboundQueue.Overload.BLOCK, InboundQueue.parseOverload("block"));
+        assertEquals(InboundQueue.Overload.BLOCK, InboundQueue.parseOverload(""));
+    }
+
+}
@@ -0,0 +1,161 @@
+package chatty;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Connects to a {@link FakeTmiServer} on the loopback interface.
+ *
+ * @author tduva
+ */
+public class IrcIntegrationTest {
+
+    private static final int TIMEOUT = 5000;
+
+    private static final List<String> CHANNELS = Arrays.asList("#a", "#b", "#c");
+
+    private static class TestIrc extends Irc {
+
+        private final CountDownLatch registered = new CountDownLatch(1);
+        private final CountDownLatch disconnected = new CountDownLatch(1);
+        private final Set<String> joined = Collections.synchronizedSet(new HashSet<String>());
+        private final AtomicInteger messages = new AtomicInteger();
+        private final AtomicInteger clearchats = new AtomicInteger();
+
+        TestIrc() {
+            super("Test");
+        }
+
+        @Override
+        public void debug(String line) {
+        }
+
+        @Override
+        void onRegistered() {
+            registered.countDown();
+        }
+
+        @Override
+        void onJoin(String channel, String nick, String prefix) {
+            joined.add(channel);
+        }
+
+        @Override
+        void onChannelMessage(String channel, String nick, String from,
+                String text, Map<String, String> tags, boolean action) {
+            messages.incrementAndGet();
+        }
+
+        @Override
+        void onClearChat(String channel, String name) {
+            clearchats.incrementAndGet();
+        }
+
+        @Override
+        void onDisconnect(int reason, String reasonMessage) {
+            disconnected.countDown();
+        }
+    }
+
+    @Test
+    public void testPlain() throws Exception {
+        run(false, false);
+    }
+
+    @Test
+    public void testEventLoop() throws Exception {
+        run(false, true);
+    }
+
+    @Test
+    public void testSecure() throws Exception {
+        run(true, false);
+        run(true, true);
+    }
+
+    @Test
+    public void testDisconnect() throws Exception {
+        FakeTmiServer server = new FakeTmiServer(false);
+        server.start();
+        TestIrc irc = new TestIrc();
+        try {
+            irc.connect("127.0.0.1", String.valueOf(server.getPort()),
+                    "testnick", "oauth:abc", Collections.<Integer>emptyList());
+            assertTrue(irc.registered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            // Remaining lines are still written, the socket closed afterwards
+            irc.send("PRIVMSG #a :bye");
+            assertTrue(irc.disconnect());
+            assertTrue(irc.disconnected.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertTrue(server.waitForLine("PRIVMSG #a :bye", TIMEOUT));
+            assertTrue(server.waitForLine("QUIT", TIMEOUT));
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while (server.getClientCount() > 0 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, server.getClientCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private void run(boolean secure, boolean eventLoop) throws Exception {
+        FakeTmiServer server = new FakeTmiServer(secure);
+        server.start();
+        TestIrc irc = new TestIrc();
+        irc.setUseEventLoop(eventLoop);
+        if (secure) {
+            irc.setSSLContext(FakeTmiServer.createClientContext());
+        }
+        try {
+            String port = String.valueOf(server.getPort());
+            List<Integer> securedPorts = secure
+                    ? Arrays.asList(server.getPort()) : Collections.<Integer>emptyList();
+            irc.connect("127.0.0.1", port, "testnick", "oauth:abc", securedPorts);
+            assertTrue(irc.registered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertTrue(server.waitForLine("NICK testnick", TIMEOUT));
+
+            // Joins are sent in one line
+            irc.joinChannels(CHANNELS);
+            waitFor(irc.joined, CHANNELS.size());
+            assertEquals(new HashSet<>(CHANNELS), irc.joined);
+            assertEquals(new HashSet<>(CHANNELS), server.getJoinedChannels());
+            assertTrue(server.waitForLine("JOIN #a,#b,#c", TIMEOUT));
+
+            // Generated traffic
+            server.setTraffic(200, 50);
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while (irc.messages.get() < 300 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertTrue(irc.messages.get() >= 300);
+            assertTrue(irc.clearchats.get() > 0);
+            server.setTraffic(0, 0);
+
+            server.sendToAll("PING :tmi.twitch.tv");
+            assertTrue(server.waitForLine("PONG", TIMEOUT));
+
+            server.disconnectAll();
+            assertTrue(irc.disconnected.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void waitFor(Set<String> set, int size) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (set.size() < size && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+    }
+
+}
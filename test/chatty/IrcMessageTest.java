@@ -0,0 +1,91 @@
+package chatty;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class IrcMessageTest {
+
+    @Test
+    public void testParse() {
+        IrcMessage m = new IrcMessage();
+
+        assertTrue(m.parse("@color=#FF0000;display-name=Abc\\sDef;emotes=;turbo :abc!abc@abc.tmi.twitch.tv PRIVMSG #chan :Kappa :)"));
+        assertEquals("abc!abc@abc.tmi.twitch.tv", m.getPrefix());
+        assertEquals("PRIVMSG", m.getCommand());
+        assertArrayEquals(new String[]{"#chan"}, m.getParameters());
+        assertEquals("Kappa :)", m.getTrailing());
+
+        Map<String, String> tags = m.getTags();
+        assertEquals("#FF0000", tags.get("color"));
+        assertEquals("Abc Def", tags.get("display-name"));
+        assertEquals("", tags.get("emotes"));
+        assertNull(tags.get("turbo"));
+        assertTrue(tags.containsKey("turbo"));
+        assertFalse(tags.containsKey("turb"));
+        assertNull(tags.get("color="));
+        assertEquals(4, tags.size());
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("color", "#FF0000");
+        expected.put("display-name", "Abc Def");
+        expected.put("emotes", "");
+        expected.put("turbo", null);
+        assertEquals(expected, tags);
+
+        // Reuse
+        assertTrue(m.parse(":tmi.twitch.tv 353 abc = #chan :a b c"));
+        assertNull(m.getTags());
+        assertEquals("353", m.getCommand());
+        assertArrayEquals(new String[]{"abc", "=", "#chan"}, m.getParameters());
+        assertEquals("a b c", m.getTrailing());
+
+        assertTrue(m.parse("PING"));
+        assertEquals("", m.getPrefix());
+        assertEquals("PING", m.getCommand());
+        assertEquals(0, m.getParameters().length);
+        assertEquals("", m.getTrailing());
+
+        assertTrue(m.parse(":abc  MODE #chan  +o abc "));
+        assertEquals("MODE", m.getCommand());
+        assertArrayEquals(new String[]{"#chan", "", "+o", "abc"}, m.getParameters());
+
+        assertTrue(m.parse(""));
+        assertEquals("", m.getCommand());
+
+        assertTrue(m.parse("@ PING"));
+        assertEquals(1, m.getTags().size());
+        assertTrue(m.getTags().containsKey(""));
+
+        assertFalse(m.parse("@color=abc"));
+        assertFalse(m.parse(":prefix"));
+        assertNotNull(m.getError());
+    }
+
+    @Test
+    public void testFindChannel() {
+        assertEquals("#chan", IrcMessage.findChannel("@color=#FF0000 :a!a@a PRIVMSG #chan :#abc"));
+        assertEquals("#chan", IrcMessage.findChannel(":tmi.twitch.tv 353 abc = #chan :a b"));
+        assertEquals("#chan", IrcMessage.findChannel(":abc  MODE #chan  +o abc "));
+        assertEquals("#chan", IrcMessage.findChannel("JOIN #chan"));
+        assertNull(IrcMessage.findChannel("PING :#tmi.twitch.tv"));
+        assertNull(IrcMessage.findChannel("@badges= :tmi.twitch.tv GLOBALUSERSTATE"));
+        assertNull(IrcMessage.findChannel(":a!a@a WHISPER b :#hello"));
+        assertNull(IrcMessage.findChannel("@color=abc"));
+        assertNull(IrcMessage.findChannel(""));
+    }
+
+    @Test
+    public void testTagsValueDecode() {
+        assertEquals("a b", Helper.tagsvalue_decode("xa\\sbx", 1, 5));
+        assertEquals("\\x", Helper.tagsvalue_decode("\\x"));
+        assertEquals("\\", Helper.tagsvalue_decode("\\"));
+        assertEquals("; \\\r\n", Helper.tagsvalue_decode("\\:\\s\\\\\\r\\n"));
+    }
+
+}
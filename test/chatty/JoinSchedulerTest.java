@@ -0,0 +1,183 @@
+package chatty;
+
+import chatty.util.StringUtil;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class JoinSchedulerTest {
+
+    /**
+     * Records the sent lines, or refuses to send them if not registered.
+     */
+    private static class TestSender implements JoinScheduler.Sender {
+
+        private final List<List<String>> lines = new ArrayList<>();
+        private boolean registered = true;
+
+        @Override
+        public synchronized boolean sendJoin(List<String> channels) {
+            if (!registered) {
+                return false;
+            }
+            lines.add(new ArrayList<>(channels));
+            return true;
+        }
+
+        public synchronized List<List<String>> getLines() {
+            return new ArrayList<>(lines);
+        }
+
+        public synchronized int getJoinCount() {
+            int result = 0;
+            for (List<String> line : lines) {
+                result += line.size();
+            }
+            return result;
+        }
+
+        public synchronized void setRegistered(boolean registered) {
+            this.registered = registered;
+        }
+    }
+
+    /**
+     * Waits until the batch delay has passed and the channels were joined.
+     */
+    private static void waitForBatch() throws InterruptedException {
+        Thread.sleep(400);
+    }
+
+    @Test
+    public void testBatching() throws InterruptedException {
+        TestSender sender = new TestSender();
+        JoinScheduler scheduler = new JoinScheduler(sender);
+        scheduler.setLimit("0/10");
+        List<String> channels = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String channel = String.format("#channel_name_%05d", i);
+            channels.add(channel);
+            scheduler.add(channel, false);
+        }
+        waitForBatch();
+        List<String> joined = new ArrayList<>();
+        for (List<String> line : sender.getLines()) {
+            String text = "JOIN "+StringUtil.join(line, ",");
+            assertTrue(text.length() <= 500);
+            joined.addAll(line);
+        }
+        assertEquals(channels, joined);
+        // 19 characters each (plus comma), so 24 fit into one line
+        assertEquals(5, sender.getLines().size());
+        assertEquals(0, scheduler.getQueueSize());
+    }
+
+    @Test
+    public void testPriority() throws InterruptedException {
+        TestSender sender = new TestSender();
+        JoinScheduler scheduler = new JoinScheduler(sender);
+        scheduler.setLimit("3/60");
+        scheduler.add("a", false);
+        scheduler.add("b", false);
+        scheduler.add("c", false);
+        scheduler.add("d", false);
+        scheduler.add("e", true);
+        // Moved to the priority channels
+        scheduler.add("c", true);
+        scheduler.add("f", false);
+        scheduler.remove("a");
+        waitForBatch();
+        assertEquals(Arrays.asList(Arrays.asList("#e", "#c", "#b")), sender.getLines());
+        assertEquals(2, scheduler.getQueueSize());
+        scheduler.clear();
+    }
+
+    @Test
+    public void testNotSent() throws InterruptedException {
+        TestSender sender = new TestSender();
+        JoinScheduler scheduler = new JoinScheduler(sender);
+        scheduler.setLimit("3/60");
+        sender.setRegistered(false);
+        scheduler.add("a", false);
+        scheduler.add("b", false);
+        waitForBatch();
+        assertEquals(0, sender.getJoinCount());
+
+        // Didn't use up the limit
+        sender.setRegistered(true);
+        scheduler.add("c", false);
+        scheduler.add("d", false);
+        scheduler.add("e", false);
+        waitForBatch();
+        assertEquals(3, sender.getJoinCount());
+    }
+
+    @Test
+    public void testShared() throws InterruptedException {
+        TestSender sender = new TestSender();
+        TestSender shardSender = new TestSender();
+        JoinScheduler scheduler = new JoinScheduler(sender);
+        JoinScheduler shard = new JoinScheduler(shardSender);
+        scheduler.setLimit("3/60");
+        shard.shareLimit(scheduler);
+        scheduler.add("a", false);
+        scheduler.add("b", false);
+        shard.add("c", false);
+        shard.add("d", false);
+        waitForBatch();
+        assertEquals(3, sender.getJoinCount() + shardSender.getJoinCount());
+        assertEquals(1, scheduler.getQueueSize() + shard.getQueueSize());
+        scheduler.clear();
+        shard.clear();
+    }
+
+    @Test
+    public void testReconnect() throws InterruptedException {
+        TestSender sender = new TestSender();
+        JoinScheduler scheduler = new JoinScheduler(sender);
+        scheduler.setLimit("3/60");
+        scheduler.add("a", false);
+        scheduler.add("b", false);
+        scheduler.add("c", false);
+        waitForBatch();
+        assertEquals(Arrays.asList(Arrays.asList("#a", "#b", "#c")), sender.getLines());
+
+        // Disconnect and reconnect right away applies the same limit again
+        scheduler.clear();
+        scheduler.setLimit("3/60");
+        scheduler.add("d", false);
+        waitForBatch();
+        assertEquals(3, sender.getJoinCount());
+        assertEquals(1, scheduler.getQueueSize());
+        scheduler.clear();
+    }
+
+    @Test
+    public void testReconnectShared() throws InterruptedException {
+        TestSender sender = new TestSender();
+        TestSender shardSender = new TestSender();
+        JoinScheduler scheduler = new JoinScheduler(sender);
+        JoinScheduler shard = new JoinScheduler(shardSender);
+        scheduler.setLimit("3/60");
+        shard.shareLimit(scheduler);
+        shard.add("a", false);
+        shard.add("b", false);
+        shard.add("c", false);
+        waitForBatch();
+        assertEquals(3, shardSender.getJoinCount());
+
+        // Main connection reconnecting doesn't reset what the shard used
+        scheduler.setLimit("3/60");
+        scheduler.add("d", false);
+        waitForBatch();
+        assertEquals(0, sender.getJoinCount());
+        scheduler.clear();
+    }
+
+}
@@ -0,0 +1,112 @@
+package chatty;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class OutboundQueueTest {
+
+    private static class TestSender implements OutboundQueue.Sender {
+
+        private final List<String> lines = new ArrayList<>();
+        private final Set<String> modChannels = new HashSet<>();
+
+        @Override
+        public synchronized void sendNow(String line) {
+            lines.add(line);
+        }
+
+        @Override
+        public synchronized boolean isModerator(String channel) {
+            return modChannels.contains(channel);
+        }
+
+        public synchronized List<String> getLines() {
+            return new ArrayList<>(lines);
+        }
+    }
+
+    private static void send(OutboundQueue queue, String channel, int count) {
+        for (int i = 0; i < count; i++) {
+            queue.add("PRIVMSG "+channel+" :message "+i);
+        }
+    }
+
+    @Test
+    public void testNotLimited() {
+        TestSender sender = new TestSender();
+        OutboundQueue queue = new OutboundQueue(sender);
+        queue.setLimits("1/60", "1/60");
+        for (int i = 0; i < 10; i++) {
+            queue.add("PONG");
+        }
+        assertEquals(10, sender.getLines().size());
+        assertEquals(0, queue.getQueueSize());
+    }
+
+    @Test
+    public void testModLimit() {
+        TestSender sender = new TestSender();
+        sender.modChannels.add("#mod");
+        OutboundQueue queue = new OutboundQueue(sender);
+        queue.setLimits("2/60", "4/60");
+        send(queue, "#mod", 3);
+        assertEquals(3, sender.getLines().size());
+
+        // Messages in the mod channel count towards the regular limit as well
+        send(queue, "#a", 1);
+        assertEquals(3, sender.getLines().size());
+
+        // Sent in order, so waits behind the other message
+        send(queue, "#mod", 1);
+        assertEquals(3, sender.getLines().size());
+        assertEquals(2, queue.getQueueSize());
+        queue.clear();
+        assertEquals(0, queue.getQueueSize());
+    }
+
+    @Test
+    public void testDrain() throws InterruptedException {
+        TestSender sender = new TestSender();
+        OutboundQueue queue = new OutboundQueue(sender);
+        queue.setLimits("2/1", "2/1");
+        send(queue, "#a", 4);
+        assertEquals(2, sender.getLines().size());
+        assertTrue(queue.getCurrentWait() >= 0);
+
+        long end = System.currentTimeMillis() + 5000;
+        while (queue.getQueueSize() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+        List<String> lines = sender.getLines();
+        assertEquals(4, lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals("PRIVMSG #a :message "+i, lines.get(i));
+        }
+    }
+
+    @Test
+    public void testReconnect() {
+        TestSender sender = new TestSender();
+        OutboundQueue queue = new OutboundQueue(sender);
+        queue.setLimits("3/60", "5/60");
+        send(queue, "#a", 3);
+        assertEquals(3, sender.getLines().size());
+
+        // Disconnect and reconnect right away applies the same limits again
+        queue.clear();
+        queue.setLimits("3/60", "5/60");
+        send(queue, "#a", 1);
+        assertEquals(3, sender.getLines().size());
+        assertEquals(1, queue.getQueueSize());
+        queue.clear();
+    }
+
+}
@@ -0,0 +1,56 @@
+package chatty.gui;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class FirehoseTest {
+
+    @Test
+    public void testSampling() {
+        Firehose firehose = new Firehose();
+        // First second, below threshold so far, measuring only
+        for (int i = 0; i < 400; i++) {
+            assertTrue(firehose.allow("#test", false, 100, 1000));
+        }
+        assertEquals(-1, firehose.getSkipped("#test", 1500));
+
+        // Second second, 400/s so every 4th message
+        int allowed = 0;
+        int importantAllowed = 0;
+        for (int i = 0; i < 400; i++) {
+            if (firehose.allow("#test", false, 100, 2000)) {
+                allowed++;
+            }
+            if (firehose.allow("#test", true, 100, 2000)) {
+                importantAllowed++;
+            }
+        }
+        assertEquals(100, allowed);
+        assertEquals(400, importantAllowed);
+        assertEquals(300, firehose.getSkipped("#test", 3000));
+
+        // Other channel not affected
+        assertTrue(firehose.allow("#other", false, 100, 2000));
+
+        // Disabled
+        assertTrue(firehose.allow("#test", false, 0, 3000));
+        assertEquals(-1, firehose.getSkipped("#test", 3000));
+    }
+
+    @Test
+    public void testSwitchOff() {
+        Firehose firehose = new Firehose();
+        for (int i = 0; i < 200; i++) {
+            firehose.allow("#test", false, 100, 1000);
+        }
+        assertFalse(firehose.allow("#test", false, 100, 2000));
+        // Nothing in the previous second
+        assertTrue(firehose.allow("#test", false, 100, 4000));
+        assertEquals(-1, firehose.getSkipped("#test", 4000));
+    }
+
+}
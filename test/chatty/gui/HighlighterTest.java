@@ -265,4 +265,65 @@ public class HighlighterTest {
         assertFalse(highlighter.check(subscriber, ""));
     }
     
+    @Test
+    public void testFirstMatch() {
+        highlighter.update(Arrays.asList(new String[]{
+            "color:red user:testuser2 abc",
+            "color:#00FF00 chan:testChannel2 w:abc",
+            "color:blue cs:ABC",
+            "color:yellow start:ab",
+            "color:black wcs:ab(c|d)",
+            "color:white abc"}));
+        assertTrue(highlighter.check(user2, "abc"));
+        assertEquals(Color.RED, highlighter.getLastMatchColor());
+        assertTrue(highlighter.check(user3, "abc"));
+        assertEquals(Color.RED, highlighter.getLastMatchColor());
+        assertTrue(highlighter.check(user, "xABC"));
+        assertEquals(Color.BLUE, highlighter.getLastMatchColor());
+        assertTrue(highlighter.check(user, "abc"));
+        assertEquals(Color.YELLOW, highlighter.getLastMatchColor());
+        assertTrue(highlighter.check(user, "x abd"));
+        assertEquals(Color.BLACK, highlighter.getLastMatchColor());
+        assertTrue(highlighter.check(user, "xabc"));
+        assertEquals(Color.WHITE, highlighter.getLastMatchColor());
+        assertFalse(highlighter.check(user, "xab"));
+        
+        highlighter.update(Arrays.asList(new String[]{
+            "color:red chan:testChannel2 w:abc",
+            "color:#00FF00 config:info abc",
+            "color:blue abc"}));
+        assertTrue(highlighter.check(user3, "x abc"));
+        assertEquals(Color.RED, highlighter.getLastMatchColor());
+        assertTrue(highlighter.check(user, "x abc"));
+        assertEquals(Color.BLUE, highlighter.getLastMatchColor());
+        assertTrue(highlighter.check(null, "x abc"));
+        assertEquals(Color.GREEN, highlighter.getLastMatchColor());
+    }
+    
+    @Test
+    public void testMatch() {
+        Highlighter hl = new Highlighter();
+        hl.update(Arrays.asList(new String[]{"color:red config:silent abc", "def"}));
+        hl.setUsername("testname");
+        hl.setHighlightUsername(true);
+        hl.setHighlightNextMessages(true);
+        
+        Highlighter.Match match = hl.match(user, "abc");
+        assertEquals("color:red config:silent abc", match.getItem());
+        assertEquals(Color.RED, match.getColor());
+        assertTrue(match.noSound());
+        assertFalse(match.noNotification());
+        
+        match = hl.match(user, "hello TestName");
+        assertTrue(match.isUsername());
+        assertNull(match.getColor());
+        
+        // Only checking doesn't remember the user for the next messages
+        assertTrue(hl.wouldMatch(user2, "def"));
+        assertNull(hl.match(user2, "mäh"));
+        assertEquals("def", hl.match(user2, "def").getItem());
+        assertTrue(hl.match(user2, "mäh").isRecent());
+        assertNull(hl.match(null, "mäh"));
+    }
+    
 }
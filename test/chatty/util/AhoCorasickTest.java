@@ -0,0 +1,43 @@
+package chatty.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class AhoCorasickTest {
+
+    private static BitSet bits(int... indices) {
+        BitSet result = new BitSet();
+        for (int index : indices) {
+            result.set(index);
+        }
+        return result;
+    }
+
+    @Test
+    public void testFind() {
+        AhoCorasick search = new AhoCorasick(Arrays.asList(
+                "he", "she", "his", "hers", null, "", "s"));
+        assertEquals(bits(0, 1, 3, 6), search.find("ushers"));
+        assertEquals(bits(2, 6), search.find("this"));
+        assertEquals(bits(), search.find("abc"));
+        assertEquals(bits(), search.find(""));
+        assertEquals(bits(0), search.find("ahe"));
+    }
+
+    @Test
+    public void testFindPrefixes() {
+        AhoCorasick search = new AhoCorasick(Arrays.asList(
+                "!bet", "!b", "bet", "!betting"));
+        assertEquals(bits(0, 1), search.findPrefixes("!bet abc"));
+        assertEquals(bits(1), search.findPrefixes("!ba"));
+        assertEquals(bits(), search.findPrefixes(" !bet"));
+        assertEquals(bits(0, 1, 3), search.findPrefixes("!betting"));
+    }
+
+}
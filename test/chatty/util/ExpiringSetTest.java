@@ -0,0 +1,38 @@
+package chatty.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class ExpiringSetTest {
+
+    @Test
+    public void testExpire() {
+        ExpiringSet<String> set = new ExpiringSet<>(10000, 1000);
+        set.add("a", 100000);
+        set.add("b", 105500);
+        assertTrue(set.contains("a", 100000));
+        assertTrue(set.contains("a", 109999));
+        assertTrue(set.contains("b", 109999));
+        assertFalse(set.contains("c", 105000));
+        assertFalse(set.contains("a", 111000));
+        assertTrue(set.contains("b", 111000));
+        assertFalse(set.contains("b", 117000));
+
+        // Renew
+        set.add("a", 112000);
+        assertTrue(set.contains("a", 121000));
+
+        // Bucket reused for a later time
+        set.add("c", 133000);
+        assertFalse(set.contains("a", 133000));
+        assertTrue(set.contains("c", 133000));
+
+        set.clear();
+        assertFalse(set.contains("c", 133000));
+    }
+
+}
@@ -0,0 +1,137 @@
+package chatty.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.ImageIcon;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class ImageLoaderTest {
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    private ImageLoader.Task task(final String key, final CountDownLatch wait) {
+        return new ImageLoader.Task() {
+
+            @Override
+            public ImageIcon load() {
+                try {
+                    wait.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    // Just continue
+                }
+                events.add("load "+key);
+                return new ImageIcon();
+            }
+        };
+    }
+
+    private ImageLoader.Callback callback(final String name, final CountDownLatch done) {
+        return new ImageLoader.Callback() {
+
+            @Override
+            public void loaded(ImageIcon icon) {
+                events.add("loaded "+name);
+                done.countDown();
+            }
+
+            @Override
+            public void cancelled() {
+                events.add("cancelled "+name);
+                done.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void testPriorityAndCancel() throws InterruptedException {
+        ImageLoader loader = new ImageLoader("Test", 1, 1);
+        CountDownLatch block = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(5);
+        Object visible = new Object();
+        Object background = new Object();
+        Object closed = new Object();
+        loader.setPriority(visible, ImageLoader.PRIORITY_HIGH);
+        loader.setPriority(background, ImageLoader.PRIORITY_LOW);
+
+        // Occupies the only thread until released
+        loader.load("first", "host", null, task("first", block), callback("first", done));
+        Thread.sleep(100);
+        loader.load("a", "host", background, task("a", block), callback("a", done));
+        loader.load("b", "host", closed, task("b", block), callback("b", done));
+        loader.load("c", "host", visible, task("c", block), callback("c", done));
+        // Combined with the waiting request, so only loaded once
+        loader.load("c", "host", background, task("c", block), callback("c2", done));
+        assertEquals(3, loader.getQueueLength());
+
+        loader.cancel(closed);
+        assertTrue(events.contains("cancelled b"));
+        assertEquals(2, loader.getQueueLength());
+
+        block.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        List<String> loaded = new ArrayList<>();
+        for (String event : events) {
+            if (event.startsWith("load ")) {
+                loaded.add(event);
+            }
+        }
+        assertEquals(Arrays.asList("load first", "load c", "load a"), loaded);
+        assertTrue(events.contains("loaded c2"));
+    }
+
+    @Test
+    public void testPerHost() throws InterruptedException {
+        ImageLoader loader = new ImageLoader("Test", 3, 1);
+        final AtomicInteger loading = new AtomicInteger();
+        final AtomicInteger maxLoading = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(6);
+        for (int i = 0; i < 6; i++) {
+            loader.load("key"+i, "host", null, new ImageLoader.Task() {
+
+                @Override
+                public ImageIcon load() {
+                    int current = loading.incrementAndGet();
+                    maxLoading.set(Math.max(maxLoading.get(), current));
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        // Just continue
+                    }
+                    loading.decrementAndGet();
+                    return null;
+                }
+            }, callback("key"+i, done));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxLoading.get());
+    }
+
+    @Test
+    public void testError() throws InterruptedException {
+        ImageLoader loader = new ImageLoader("Test", 1, 1);
+        CountDownLatch done = new CountDownLatch(2);
+        loader.load("error", "host", null, new ImageLoader.Task() {
+
+            @Override
+            public ImageIcon load() {
+                throw new AssertionError("Test");
+            }
+        }, callback("error", done));
+        loader.load("next", "host", null, task("next", new CountDownLatch(0)), callback("next", done));
+        // Host isn't blocked and the thread is replaced
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(events.contains("loaded error"));
+        assertTrue(events.contains("load next"));
+    }
+
+}
@@ -0,0 +1,86 @@
+package chatty.util;
+
+import chatty.util.LineFramer.LineListener;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class LineFramerTest {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final String INPUT = "PING :tmi.twitch.tv\r\n"
+            + "@color=#FF0000 :abc!abc@abc PRIVMSG #chan :Kappa äöü ❤\r\n"
+            + "stray\rcarriage\nreturns\r\n"
+            + "\r\n"
+            + "incomplete";
+
+    private static final String[] EXPECTED = new String[]{
+        "PING :tmi.twitch.tv",
+        "@color=#FF0000 :abc!abc@abc PRIVMSG #chan :Kappa äöü ❤",
+        "straycarriagereturns",
+        ""
+    };
+
+    /**
+     * Feeds the input in chunks of all possible sizes, so that line endings
+     * and multibyte characters are split up at every position.
+     */
+    @Test
+    public void testChunks() {
+        byte[] data = INPUT.getBytes(CHARSET);
+        for (boolean direct : new boolean[]{false, true}) {
+            for (int chunkSize = 1; chunkSize <= data.length; chunkSize++) {
+                // Small capacity so the buffer also has to grow
+                LineFramer framer = new LineFramer(8, direct);
+                Collector lines = new Collector();
+                int pos = 0;
+                while (pos < data.length) {
+                    int put = Math.min(chunkSize, data.length - pos);
+                    put = Math.min(put, framer.getBuffer().remaining());
+                    framer.getBuffer().put(data, pos, put);
+                    pos += put;
+                    framer.frame(lines);
+                }
+                assertArrayEquals(EXPECTED, lines.lines.toArray());
+            }
+        }
+    }
+
+    /**
+     * Both readers should return the same lines.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testReaders() throws IOException {
+        LineReader bytes = LineReader.bytes(new ByteArrayInputStream(INPUT.getBytes(CHARSET)));
+        LineReader chars = LineReader.chars(new ByteArrayInputStream(INPUT.getBytes(CHARSET)), CHARSET);
+        for (LineReader reader : new LineReader[]{bytes, chars}) {
+            Collector lines = new Collector();
+            while (reader.read(lines) != -1) {
+                // Read all
+            }
+            assertArrayEquals(EXPECTED, lines.lines.toArray());
+        }
+    }
+
+    private static class Collector implements LineListener {
+
+        private final List<String> lines = new ArrayList<>();
+
+        @Override
+        public void lineReceived(String line) {
+            lines.add(line);
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package chatty.util;
+
+import chatty.util.LineFramer.LineListener;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Compares the char based and byte based line reading on a synthetic stream of
+ * tagged PRIVMSG lines. This isn't a unit test, run the main method manually.
+ *
+ * @author tduva
+ */
+public class LineReaderBenchmark {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final int LINES = 200000;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws IOException {
+        byte[] data = createData(LINES);
+        System.out.println("Data: " + LINES + " lines, " + data.length / 1024 + " KB");
+        for (int round = 0; round < ROUNDS; round++) {
+            // Run both several times so the JIT has warmed up for later rounds
+            long chars = run(LineReader.chars(stream(data), CHARSET));
+            long bytes = run(LineReader.bytes(stream(data)));
+            System.out.println(String.format("Round %2d: chars %4dms (%7d lines/s)  bytes %4dms (%7d lines/s)",
+                    round, chars, LINES * 1000L / Math.max(chars, 1),
+                    bytes, LINES * 1000L / Math.max(bytes, 1)));
+        }
+    }
+
+    /**
+     * The stream reads in chunks similar to what a socket might return.
+     */
+    private static InputStream stream(byte[] data) {
+        return new ByteArrayInputStream(data) {
+
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1400));
+            }
+        };
+    }
+
+    private static long run(LineReader reader) throws IOException {
+        final int[] count = new int[1];
+        LineListener listener = new LineListener() {
+
+            @Override
+            public void lineReceived(String line) {
+                count[0] += line.length();
+            }
+        };
+        long start = System.currentTimeMillis();
+        while (reader.read(listener) != -1) {
+            // Continue until end of stream
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static byte[] createData(int lines) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            b.append("@badges=subscriber/12;color=#1E90FF;display-name=User")
+                    .append(i % 500)
+                    .append(";emotes=25:0-4;mod=0;subscriber=1;turbo=0;user-type= :user")
+                    .append(i % 500).append("!user@user.tmi.twitch.tv PRIVMSG #channel")
+                    .append(i % 30).append(" :Kappa this is message number ")
+                    .append(i).append(" with some more text äöü\r\n");
+        }
+        return b.toString().getBytes(CHARSET);
+    }
+
+}
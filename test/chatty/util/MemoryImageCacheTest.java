@@ -0,0 +1,88 @@
+package chatty.util;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class MemoryImageCacheTest {
+
+    private final List<CachedImageIcon> reloaded = new ArrayList<>();
+
+    private final CachedImageIcon.Reloader reloader = new CachedImageIcon.Reloader() {
+
+        @Override
+        public void reload(CachedImageIcon icon) {
+            reloaded.add(icon);
+        }
+    };
+
+    private static Image image(int size) {
+        return new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    private CachedImageIcon icon(MemoryImageCache cache) {
+        CachedImageIcon icon = new CachedImageIcon(image(10), cache, reloader);
+        icon.setCachedImage(image(10));
+        return icon;
+    }
+
+    private static void paint(CachedImageIcon icon) {
+        BufferedImage target = new BufferedImage(20, 20, BufferedImage.TYPE_INT_ARGB);
+        icon.paintIcon(null, target.getGraphics(), 0, 0);
+    }
+
+    @Test
+    public void testEviction() {
+        // Room for two 10x10 images
+        MemoryImageCache cache = new MemoryImageCache(800);
+        CachedImageIcon a = icon(cache);
+        CachedImageIcon b = icon(cache);
+        assertFalse(a.isEvicted());
+
+        // Oldest one goes first
+        CachedImageIcon c = icon(cache);
+        assertTrue(a.isEvicted());
+        assertFalse(b.isEvicted());
+        assertEquals(10, a.getIconWidth());
+        assertEquals(10, a.getIconHeight());
+
+        // Painted ones get a second chance
+        paint(b);
+        CachedImageIcon d = icon(cache);
+        assertFalse(b.isEvicted());
+        assertTrue(c.isEvicted());
+        assertFalse(d.isEvicted());
+
+        // Painting an evicted one requests it once
+        paint(a);
+        paint(a);
+        assertEquals(1, reloaded.size());
+        a.setCachedImage(image(10));
+        assertFalse(a.isEvicted());
+        assertEquals(2, countEvicted(a, b, c, d));
+
+        // Error images don't count, so the remaining one fits
+        a.setUncachedImage(image(10));
+        cache.setBudget(400);
+        assertFalse(a.isEvicted());
+        assertEquals(2, countEvicted(a, b, c, d));
+    }
+
+    private static int countEvicted(CachedImageIcon... icons) {
+        int result = 0;
+        for (CachedImageIcon icon : icons) {
+            if (icon.isEvicted()) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,84 @@
+package chatty.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class RateLimiterTest {
+
+    @Test
+    public void testLimit() {
+        RateLimiter limiter = new RateLimiter(3, 1000);
+        assertEquals(3, limiter.getAllowance(0));
+        assertTrue(limiter.tryAdd(0));
+        assertTrue(limiter.tryAdd(100));
+        assertTrue(limiter.tryAdd(200));
+        assertEquals(0, limiter.getAllowance(200));
+        assertFalse(limiter.tryAdd(500));
+        assertEquals(500, limiter.getWaitTime(500));
+        assertEquals(0, limiter.getWaitTime(1000));
+        assertTrue(limiter.tryAdd(1000));
+        assertEquals(100, limiter.getWaitTime(1000));
+        assertEquals(1, limiter.getAllowance(1150));
+    }
+
+    @Test
+    public void testSetLimit() {
+        RateLimiter limiter = new RateLimiter(3, 1000);
+        limiter.add(0);
+        limiter.add(100);
+        limiter.add(200);
+        limiter.add(300);
+
+        // Same limit (e.g. on reconnect) keeps everything
+        limiter.setLimit(3, 1000);
+        assertEquals(0, limiter.getAllowance(300));
+        assertEquals(800, limiter.getWaitTime(300));
+
+        // Smaller keeps the newest
+        limiter.setLimit(2, 1000);
+        assertEquals(0, limiter.getAllowance(300));
+        assertEquals(900, limiter.getWaitTime(300));
+
+        // Larger keeps all and allows the new ones right away
+        limiter.setLimit(4, 1000);
+        assertEquals(2, limiter.getAllowance(300));
+        assertTrue(limiter.tryAdd(300));
+        assertTrue(limiter.tryAdd(300));
+        assertFalse(limiter.tryAdd(300));
+        assertEquals(900, limiter.getWaitTime(300));
+
+        // Window change applies to the kept events
+        limiter.setLimit(4, 500);
+        assertEquals(1, limiter.getAllowance(750));
+    }
+
+    @Test
+    public void testNoLimit() {
+        RateLimiter limiter = new RateLimiter(0, 1000);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAdd(0));
+        }
+        assertEquals(0, limiter.getWaitTime(0));
+    }
+
+    @Test
+    public void testParse() {
+        assertArrayEquals(new Object[]{20L, 30000L}, box(RateLimiter.parse("20/30")));
+        assertNull(RateLimiter.parse("20"));
+        assertNull(RateLimiter.parse("a/30"));
+        assertNull(RateLimiter.parse(null));
+    }
+
+    private static Object[] box(long[] values) {
+        Object[] result = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i];
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,65 @@
+package chatty.util;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class RegexGuardTest {
+
+    @Test
+    public void testBudget() {
+        Pattern normal = Pattern.compile(".*(abc|dumdidum).*");
+        assertTrue(RegexGuard.matcher(normal, "test abc test").matches());
+
+        Pattern catastrophic = Pattern.compile("(x+x+)+y");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("x");
+        }
+        text.append("!");
+        RegexGuard.Budget budget = RegexGuard.guard(text, 10000);
+        try {
+            catastrophic.matcher(budget).matches();
+            fail();
+        } catch (RegexGuard.BudgetExceededException ex) {
+            // Expected
+        }
+        // Stopped right when the budget was used up
+        assertEquals(10001, budget.getSteps());
+    }
+
+    @Test
+    public void testMeasure() {
+        assertTrue(RegexGuard.measure(Pattern.compile("\\babc\\b"), true) < RegexGuard.DEFAULT_BUDGET);
+        assertTrue(RegexGuard.measure(Pattern.compile("(x+x+)+y"), false) > RegexGuard.DEFAULT_BUDGET);
+    }
+
+    @Test
+    public void testDisable() {
+        RegexGuard.setDisabled(Arrays.asList("a"));
+        assertTrue(RegexGuard.isDisabled("a"));
+        RegexGuard.disable("b", "Test");
+        assertEquals(Arrays.asList("a", "b"), RegexGuard.getDisabled());
+        RegexGuard.setDisabled(Arrays.<String>asList());
+        assertFalse(RegexGuard.isDisabled("a"));
+    }
+
+    @Test
+    public void testExceeded() {
+        // Only disabled when exceeded repeatedly within the window
+        assertFalse(RegexGuard.exceeded("c", "Test", 0));
+        assertFalse(RegexGuard.exceeded("c", "Test", 1000));
+        assertFalse(RegexGuard.exceeded("c", "Test", 20*60*1000));
+        assertFalse(RegexGuard.isDisabled("c"));
+        assertFalse(RegexGuard.exceeded("c", "Test", 21*60*1000));
+        assertTrue(RegexGuard.exceeded("c", "Test", 22*60*1000));
+        assertTrue(RegexGuard.isDisabled("c"));
+        RegexGuard.setDisabled(Arrays.<String>asList());
+    }
+
+}
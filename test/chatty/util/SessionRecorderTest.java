@@ -0,0 +1,60 @@
+package chatty.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class SessionRecorderTest {
+
+    @Test
+    public void testRoundTrip() throws IOException, InterruptedException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(output);
+        String[] lines = new String[]{
+            ":tmi.twitch.tv 001 abc :Welcome, GLHF!",
+            "@color=#FF0000 :abc!abc@abc.tmi.twitch.tv PRIVMSG #chan :Kappa äöü",
+            "",
+            new String(new char[3000]).replace('\0', 'a')
+        };
+        assertTrue(recorder.record(lines[0]));
+        Thread.sleep(50);
+        for (int i = 1; i < lines.length; i++) {
+            assertTrue(recorder.record(lines[i]));
+        }
+        assertEquals(4, recorder.getCount());
+        recorder.close();
+        assertFalse(recorder.record("abc"));
+
+        SessionRecorder.Reader reader = new SessionRecorder.Reader(
+                new ByteArrayInputStream(output.toByteArray()));
+        String[] read = new String[lines.length];
+        long[] times = new long[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            assertTrue(reader.next());
+            read[i] = reader.getLine();
+            times[i] = reader.getTime();
+        }
+        assertFalse(reader.next());
+        reader.close();
+        assertArrayEquals(lines, read);
+        assertTrue(times[1] >= 50);
+        assertTrue(times[3] >= times[1]);
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalid() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(output);
+        gzip.write("abcdefghijkl".getBytes());
+        gzip.close();
+        new SessionRecorder.Reader(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+}
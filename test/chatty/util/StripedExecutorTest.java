@@ -0,0 +1,92 @@
+package chatty.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class StripedExecutorTest {
+
+    @Test
+    public void testOrderPerKey() {
+        StripedExecutor executor = new StripedExecutor("Test", 4, 10);
+        StripedExecutor.Group group = executor.newGroup();
+        final Map<String, List<Integer>> result = new HashMap<>();
+        String[] keys = new String[]{"#a", "#b", "#c", "#d", "#e"};
+        for (String key : keys) {
+            result.put(key, Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        for (int i = 0; i < 1000; i++) {
+            final int value = i;
+            final String key = keys[i % keys.length];
+            group.execute(key, new Runnable() {
+
+                @Override
+                public void run() {
+                    result.get(key).add(value);
+                }
+            });
+        }
+        group.await();
+        assertEquals(0, group.getPending());
+        for (String key : keys) {
+            List<Integer> values = result.get(key);
+            assertEquals(200, values.size());
+            for (int i = 1; i < values.size(); i++) {
+                assertTrue(values.get(i - 1) < values.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testGroupAwait() {
+        StripedExecutor executor = new StripedExecutor("Test", 2, 10);
+        StripedExecutor.Group group = executor.newGroup();
+        final List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        group.execute("#a", new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ex) {
+                    // Just continue
+                }
+                done.add("#a");
+            }
+        });
+        group.await();
+        assertEquals(1, done.size());
+    }
+
+    @Test
+    public void testError() {
+        StripedExecutor executor = new StripedExecutor("Test", 1, 10);
+        StripedExecutor.Group group = executor.newGroup();
+        final List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        group.execute("#a", new Runnable() {
+
+            @Override
+            public void run() {
+                throw new StackOverflowError("Test");
+            }
+        });
+        group.execute("#a", new Runnable() {
+
+            @Override
+            public void run() {
+                done.add("#a");
+            }
+        });
+        group.await();
+        assertEquals(1, done.size());
+    }
+
+}
@@ -0,0 +1,104 @@
+package chatty.util.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+
+/**
+ * Compares the time it takes to find emoticons in a message by checking every
+ * emoticon against using the {@link EmoticonIndex}, for different numbers of
+ * emoticons. Not a test, run manually.
+ * 
+ * @author tduva
+ */
+public class EmoticonIndexBenchmark {
+    
+    private static final int MESSAGES = 2000;
+    
+    /**
+     * Checking every emoticon is a lot slower, so use fewer messages.
+     */
+    private static final int MESSAGES_ALL = 20;
+    
+    public static void main(String[] args) {
+        List<String> messages = createMessages();
+        System.out.println("Emotes | all (us/msg) | index (us/msg)");
+        for (int count : new int[]{100, 1000, 10000, 50000}) {
+            List<Emoticon> emotes = createEmotes(count);
+            EmoticonIndex index = new EmoticonIndex(emotes);
+            // Warmup
+            run(emotes, index, messages);
+            long start = System.nanoTime();
+            int foundAll = runAll(emotes, messages.subList(0, MESSAGES_ALL));
+            long all = System.nanoTime() - start;
+            int foundIndex = runIndex(index, messages.subList(0, MESSAGES_ALL));
+            start = System.nanoTime();
+            runIndex(index, messages);
+            long indexed = System.nanoTime() - start;
+            if (foundAll != foundIndex) {
+                System.out.println("Different results: "+foundAll+" "+foundIndex);
+            }
+            System.out.println(String.format("%6d | %12.1f | %14.2f",
+                    count, all / 1000.0 / MESSAGES_ALL, indexed / 1000.0 / MESSAGES));
+        }
+    }
+    
+    private static void run(List<Emoticon> emotes, EmoticonIndex index,
+            List<String> messages) {
+        runAll(emotes, messages.subList(0, 5));
+        runIndex(index, messages);
+    }
+    
+    private static int runAll(List<Emoticon> emotes, List<String> messages) {
+        int found = 0;
+        for (String message : messages) {
+            found += find(emotes, message);
+        }
+        return found;
+    }
+    
+    private static int runIndex(EmoticonIndex index, List<String> messages) {
+        int found = 0;
+        for (String message : messages) {
+            found += find(index.getCandidates(message), message);
+        }
+        return found;
+    }
+    
+    private static int find(List<Emoticon> emotes, String text) {
+        int found = 0;
+        for (Emoticon emote : emotes) {
+            Matcher m = emote.getMatcher(text);
+            while (m.find()) {
+                found++;
+            }
+        }
+        return found;
+    }
+    
+    private static List<Emoticon> createEmotes(int count) {
+        List<Emoticon> result = new ArrayList<>();
+        result.add(new Emoticon.Builder(Emoticon.Type.TWITCH, "\\:-?\\)", null).build());
+        result.add(new Emoticon.Builder(Emoticon.Type.TWITCH, "\\:-?D", null).build());
+        for (int i = 0; i < count; i++) {
+            result.add(new Emoticon.Builder(Emoticon.Type.TWITCH, "emote"+i+"Abc", null).build());
+        }
+        return result;
+    }
+    
+    private static List<String> createMessages() {
+        Random random = new Random(0);
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            StringBuilder b = new StringBuilder("some chat message with a few words");
+            for (int j = 0; j < 3; j++) {
+                b.append(" emote").append(random.nextInt(100)).append("Abc");
+            }
+            b.append(" :)");
+            result.add(b.toString());
+        }
+        return result;
+    }
+    
+}
@@ -0,0 +1,82 @@
+package chatty.util.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class EmoticonIndexTest {
+
+    private static Emoticon create(String code, boolean literal) {
+        return new Emoticon.Builder(Emoticon.Type.TWITCH, code, null)
+                .setLiteral(literal).build();
+    }
+
+    @Test
+    public void testCandidates() {
+        Emoticon kappa = create("Kappa", false);
+        Emoticon keepo = create("Keepo", false);
+        Emoticon smile = create("\\:-?\\)", false);
+        Emoticon ditto = create("(ditto)", true);
+        Emoticon word = create("Literal", true);
+        List<Emoticon> all = new ArrayList<>();
+        all.add(kappa);
+        all.add(keepo);
+        all.add(smile);
+        all.add(ditto);
+        all.add(word);
+        EmoticonIndex index = new EmoticonIndex(all);
+        assertEquals(1, index.getRegexCount());
+
+        List<Emoticon> result = index.getCandidates("Keepo abc Kappa Keepo");
+        assertEquals(3, result.size());
+        assertSame(keepo, result.get(0));
+        assertSame(kappa, result.get(1));
+        assertSame(smile, result.get(2));
+
+        // Only as whole word
+        result = index.getCandidates("KappaKeepo xLiteral");
+        assertEquals(1, result.size());
+
+        // Literal with non-word characters anywhere
+        result = index.getCandidates("abc(ditto)abc\tLiteral");
+        assertTrue(result.contains(ditto));
+        assertTrue(result.contains(word));
+    }
+
+    /**
+     * All matches found using the index should be the same as found by
+     * checking every emoticon.
+     */
+    @Test
+    public void testSameMatches() {
+        List<Emoticon> all = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            all.add(create("Emote"+i, false));
+        }
+        all.add(create("\\:-?\\)", false));
+        all.add(create(":tf:", true));
+        EmoticonIndex index = new EmoticonIndex(all);
+        String text = "Emote1 :) Emote22 abc:tf: Emote1 Emote333 :-)";
+        assertEquals(findAll(all, text), findAll(index.getCandidates(text), text));
+    }
+
+    private static List<String> findAll(List<Emoticon> emotes, String text) {
+        List<String> result = new ArrayList<>();
+        for (Emoticon emote : emotes) {
+            Matcher m = emote.getMatcher(text);
+            while (m.find()) {
+                result.add(emote.code+"@"+m.start());
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+}
@@ -0,0 +1,79 @@
+package chatty.util.api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class EmoticonSnapshotTest {
+
+    @Test
+    public void testSaveLoad() throws IOException {
+        Path dir = Files.createTempDirectory("chattytest");
+        Path source = dir.resolve("emoticons");
+        Files.write(source, "{}".getBytes("UTF-8"));
+        EmoticonSnapshot snapshot = new EmoticonSnapshot(dir.resolve("emoticons.bin").toString());
+        assertNull(snapshot.load(source));
+
+        EmoticonSnapshot.Entries entries = new EmoticonSnapshot.Entries(1);
+        for (int i = 0; i < 100; i++) {
+            entries.add(i, i % 3 == 0 ? Emoticon.SET_UNDEFINED : i, "Kappa"+i);
+        }
+        entries.add(1000, 0, "\\&lt\\;3 é❤");
+        snapshot.save(source, entries);
+
+        EmoticonSnapshot.Entries loaded = snapshot.load(source);
+        assertNotNull(loaded);
+        assertEquals(entries.size(), loaded.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(entries.getId(i), loaded.getId(i));
+            assertEquals(entries.getEmoteset(i), loaded.getEmoteset(i));
+            assertEquals(entries.getCode(i), loaded.getCode(i));
+        }
+
+        // Source file changed, so snapshot is stale
+        Files.setLastModifiedTime(source, FileTime.fromMillis(
+                Files.getLastModifiedTime(source).toMillis() + 5000));
+        assertNull(snapshot.load(source));
+
+        // Can be replaced after loading
+        snapshot.save(source, entries);
+        assertNotNull(snapshot.load(source));
+    }
+
+    @Test
+    public void testCorrupt() throws IOException {
+        Path dir = Files.createTempDirectory("chattytest");
+        Path source = dir.resolve("emoticons");
+        Path file = dir.resolve("emoticons.bin");
+        Files.write(source, "{}".getBytes("UTF-8"));
+        EmoticonSnapshot snapshot = new EmoticonSnapshot(file.toString());
+        EmoticonSnapshot.Entries entries = new EmoticonSnapshot.Entries();
+        entries.add(1, 0, "Kappa");
+        snapshot.save(source, entries);
+        byte[] data = Files.readAllBytes(file);
+
+        // Code length
+        ByteBuffer.wrap(data).putInt(32, Integer.MAX_VALUE);
+        Files.write(file, data);
+        assertNull(snapshot.load(source));
+
+        // Count
+        ByteBuffer.wrap(data).putInt(20, Integer.MAX_VALUE);
+        Files.write(file, data);
+        assertNull(snapshot.load(source));
+
+        // Truncated
+        Files.write(file, Arrays.copyOf(data, 10));
+        assertNull(snapshot.load(source));
+    }
+
+}
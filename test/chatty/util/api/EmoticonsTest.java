@@ -1,7 +1,14 @@
 
 package chatty.util.api;
 
+import chatty.User;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 /**
  *
@@ -9,22 +16,94 @@ import org.junit.Test;
  */
 public class EmoticonsTest {
     
+    private static final String TEXT = "abcdefghijklmnopqrstuvwxyz";
+    
     /**
      * Test of parseEmotesTag method, of class Emoticons.
      */
     @Test
     public void testParseEmotesTag() {
         System.out.println("parseEmotesTag (Errors)");
-        System.out.println(Emoticons.parseEmotesTag(null));
-        System.out.println(Emoticons.parseEmotesTag(""));
-        System.out.println(Emoticons.parseEmotesTag("/"));
-        System.out.println(Emoticons.parseEmotesTag(""));
-        System.out.println(Emoticons.parseEmotesTag("1/2"));
-        System.out.println(Emoticons.parseEmotesTag("1:1-2,3-/2:1"));
+        System.out.println(Emoticons.parseEmotesTag(null, TEXT));
+        System.out.println(Emoticons.parseEmotesTag("", TEXT));
+        System.out.println(Emoticons.parseEmotesTag("/", TEXT));
+        System.out.println(Emoticons.parseEmotesTag("", TEXT));
+        System.out.println(Emoticons.parseEmotesTag("1/2", TEXT));
+        System.out.println(Emoticons.parseEmotesTag("1:1-2,3-/2:1", TEXT));
         
         System.out.println("parseEmotesTag (Regular)");
-        System.out.println(Emoticons.parseEmotesTag("1:2-4/2:6-7"));
-        System.out.println(Emoticons.parseEmotesTag("4:2-7,10-12/13:2-3"));
+        System.out.println(Emoticons.parseEmotesTag("1:2-4/2:6-7", TEXT));
+        System.out.println(Emoticons.parseEmotesTag("4:2-7,10-12/13:2-3", TEXT));
+    }
+    
+    @Test
+    public void testUserEmotes() {
+        Emoticons emoticons = new Emoticons();
+        Set<Emoticon> emotes = new HashSet<>();
+        emotes.add(new Emoticon.Builder(Emoticon.Type.TWITCH, "setA", null)
+                .setEmoteset(1).build());
+        emotes.add(new Emoticon.Builder(Emoticon.Type.TWITCH, "setB", null)
+                .setEmoteset(2).build());
+        emotes.add(new Emoticon.Builder(Emoticon.Type.BTTV, "chanA", null)
+                .addStreamRestriction("chan").build());
+        emotes.add(new Emoticon.Builder(Emoticon.Type.BTTV, "chanSub", null)
+                .addStreamRestriction("chan").setEmoteset(2).build());
+        emoticons.addEmoticons(emotes);
+        
+        Set<Integer> sets = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(1)));
+        Emoticons.UserEmotes result = emoticons.getUserEmotes(sets, "chan");
+        assertEquals(1, result.byEmoteset.getCandidates("setA setB").size());
+        assertEquals(1, result.byStream.getCandidates("chanA chanSub").size());
+        
+        // Cached for equal sets, even if it's a different object
+        Set<Integer> sets2 = new HashSet<>(Arrays.asList(1));
+        assertSame(result, emoticons.getUserEmotes(sets2, "chan"));
+        assertNotSame(result, emoticons.getUserEmotes(sets2, "other"));
+        
+        Set<Integer> both = new HashSet<>(Arrays.asList(1, 2));
+        assertEquals(2, emoticons.getUserEmotes(both, "chan").byStream
+                .getCandidates("chanA chanSub").size());
+        
+        // Ignoring an emote discards the cache
+        emoticons.addIgnoredEmote("setA");
+        Emoticons.UserEmotes ignored = emoticons.getUserEmotes(sets, "chan");
+        assertNotSame(result, ignored);
+        assertEquals(0, ignored.byEmoteset.getCandidates("setA setB").size());
+    }
+    
+    @Test
+    public void testFindEmoticons() {
+        Emoticons emoticons = new Emoticons();
+        Set<Emoticon> emotes = new HashSet<>();
+        emotes.add(new Emoticon.Builder(Emoticon.Type.TWITCH, "Kappa", null)
+                .setNumericId(25).build());
+        emotes.add(new Emoticon.Builder(Emoticon.Type.FFZ, "LUL", null).build());
+        emotes.add(new Emoticon.Builder(Emoticon.Type.TWITCH, "subEmote", null)
+                .setEmoteset(1).build());
+        emoticons.addEmoticons(emotes);
+        User user = new User("abc", "#chan");
+        
+        List<Emoticons.EmoticonMatch> found = emoticons.findEmoticons(user,
+                "LUL Kappa subEmote Kappa", null);
+        assertEquals(3, found.size());
+        // Twitch emotes before other global emotes
+        assertEquals("Kappa", found.get(0).emoticon.code);
+        assertEquals(4, found.get(0).start);
+        assertEquals(8, found.get(0).end);
+        assertEquals(19, found.get(1).start);
+        assertEquals("LUL", found.get(2).emoticon.code);
+        
+        // Only emotes from the tags are used for Twitch emotes
+        String text = "Kappa NewEmote";
+        found = emoticons.findEmoticons(user, text,
+                Emoticons.parseEmotesTag("1234:6-13", text));
+        assertEquals(1, found.size());
+        assertEquals(1234, found.get(0).emoticon.numericId);
+        assertNotNull(emoticons.getEmoticonsById().get(1234));
+        
+        // Ignored
+        emoticons.addIgnoredEmote("LUL");
+        assertTrue(emoticons.findEmoticons(user, "LUL", null).isEmpty());
     }
     
 }
@@ -0,0 +1,129 @@
+package chatty.util.settings;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tduva
+ */
+public class SettingsTest {
+
+    @Test
+    public void testSnapshot() {
+        Settings settings = new Settings("");
+        settings.addBoolean("bool", false);
+        settings.addLong("long", 1);
+        settings.addString("string", "abc");
+        settings.addList("list", new ArrayList<>(), Setting.STRING);
+        settings.addMap("map", new HashMap<>(), Setting.STRING);
+
+        SettingsSnapshot before = settings.getSnapshot();
+        assertSame(before, settings.getSnapshot());
+
+        // Maps aren't in the snapshot
+        settings.mapPut("map", "key", "value");
+        assertSame(before, settings.getSnapshot());
+
+        settings.setBoolean("bool", true);
+        settings.setLong("long", 2);
+        settings.setString("string", "def");
+        settings.listAdd("list", "a");
+
+        assertTrue(settings.getBoolean("bool"));
+        assertEquals(2, settings.getLong("long"));
+        assertEquals("def", settings.getString("string"));
+        assertTrue(settings.listContains("list", "a"));
+
+        // Old snapshot unchanged
+        assertFalse(before.getBoolean("bool"));
+        assertEquals(1, before.getLong("long"));
+        assertFalse(before.listContains("list", "a"));
+
+        settings.listRemove("list", "a");
+        assertFalse(settings.listContains("list", "a"));
+    }
+
+    @Test
+    public void testSaveLoad() throws IOException {
+        Path dir = Files.createTempDirectory("chattytest");
+        Path file = dir.resolve("settings");
+        Path other = dir.resolve("other");
+        Settings settings = createSaveTest(file, other);
+        settings.loadSettingsFromJson();
+        settings.setLong("long", 5);
+        settings.listAdd("list", "a");
+        settings.mapPut("map", "key", "value");
+        settings.saveSettingsToJson();
+        assertTrue(Files.exists(file));
+        // Didn't exist yet, so it's saved as well
+        assertTrue(Files.exists(other));
+        assertFalse(Files.exists(dir.resolve("settings.tmp")));
+
+        Settings loaded = createSaveTest(file, other);
+        loaded.loadSettingsFromJson();
+        assertEquals(5, loaded.getLong("long"));
+        assertTrue(loaded.listContains("list", "a"));
+        assertEquals("value", loaded.mapGet("map", "key"));
+        assertEquals("abc", loaded.getString("string"));
+
+        // Only the file with changed settings is saved
+        Files.delete(other);
+        loaded.setLong("long", 6);
+        loaded.saveSettingsToJson();
+        assertFalse(Files.exists(other));
+    }
+
+    @Test
+    public void testLoadCorrupt() throws IOException {
+        Path dir = Files.createTempDirectory("chattytest");
+        Path file = dir.resolve("settings");
+        Path other = dir.resolve("other");
+        String corrupt = "{\"long\":5,\"list\":[\"a\"],\"map\":{";
+        Files.write(file, corrupt.getBytes("UTF-8"));
+        Settings settings = createSaveTest(file, other);
+        settings.loadSettingsFromJson();
+
+        // Values before the error aren't used either
+        assertEquals(1, settings.getLong("long"));
+        assertFalse(settings.listContains("list", "a"));
+
+        // Copied before it is overwritten with the defaults
+        settings.saveSettingsToJson();
+        List<Path> backups = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "settings.*.corrupt")) {
+            for (Path backup : stream) {
+                backups.add(backup);
+            }
+        }
+        assertEquals(1, backups.size());
+        assertEquals(corrupt, new String(Files.readAllBytes(backups.get(0)), "UTF-8"));
+        assertNotEquals(corrupt, new String(Files.readAllBytes(file), "UTF-8"));
+    }
+
+    private static Settings createSaveTest(Path file, Path other) {
+        Settings settings = new Settings(file.toString());
+        settings.addFile(other.toString());
+        settings.addLong("long", 1);
+        settings.addList("list", new ArrayList<>(), Setting.STRING);
+        settings.addMap("map", new HashMap<>(), Setting.STRING);
+        settings.addString("string", "abc");
+        settings.setFile("string", other.toString());
+        return settings;
+    }
+
+    @Test(expected = SettingNotFoundException.class)
+    public void testWrongType() {
+        Settings settings = new Settings("");
+        settings.addLong("long", 1);
+        settings.getBoolean("long");
+    }
+
+}